@@ -36,6 +36,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketImpl;
+import java.nio.channels.FileChannel;
 import java.security.AlgorithmParameters;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -111,6 +112,20 @@ final class Platform {
         }
     }
 
+    /**
+     * Returns the file descriptor backing {@code channel}, or {@code null} if it isn't
+     * accessible.
+     */
+    public static FileDescriptor getFileDescriptor(FileChannel channel) {
+        try {
+            Field f_fd = channel.getClass().getDeclaredField("fd");
+            f_fd.setAccessible(true);
+            return (FileDescriptor) f_fd.get(channel);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     public static FileDescriptor getFileDescriptorFromSSLSocket(AbstractConscryptSocket socket) {
         return getFileDescriptor(socket);
     }
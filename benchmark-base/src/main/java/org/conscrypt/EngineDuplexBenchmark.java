@@ -0,0 +1,119 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.doEngineHandshake;
+import static org.conscrypt.TestUtils.newTextMessage;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Benchmark for a client engine that encrypts on one thread while decrypting on another. The
+ * {@link #wrap()} and {@link #unwrap()} operations are meant to be run concurrently, each by a
+ * single thread.
+ */
+public final class EngineDuplexBenchmark {
+    /**
+     * Provider for the benchmark configuration
+     */
+    interface Config {
+        BufferType bufferType();
+        EngineFactory engineFactory();
+        int messageSize();
+        String cipher();
+
+        /**
+         * Applies the locking mode under test to the client engine before the handshake.
+         */
+        void configureClientEngine(SSLEngine engine);
+    }
+
+    private final EngineFactory engineFactory;
+    private final SSLEngine clientEngine;
+    private final SSLEngine serverEngine;
+
+    // Only used by the wrapping thread.
+    private final ByteBuffer clientMessage;
+    private final ByteBuffer clientPacketBuffer;
+
+    // Only used by the unwrapping thread.
+    private final ByteBuffer serverMessage;
+    private final ByteBuffer serverPacketBuffer;
+    private final ByteBuffer clientApplicationBuffer;
+
+    EngineDuplexBenchmark(Config config) throws Exception {
+        engineFactory = config.engineFactory();
+        String cipher = config.cipher();
+        BufferType bufferType = config.bufferType();
+
+        clientEngine = engineFactory.newClientEngine(cipher, false);
+        serverEngine = engineFactory.newServerEngine(cipher, false);
+        config.configureClientEngine(clientEngine);
+
+        clientApplicationBuffer = bufferType.newApplicationBuffer(clientEngine);
+        clientPacketBuffer = bufferType.newPacketBuffer(clientEngine);
+        serverPacketBuffer = bufferType.newPacketBuffer(serverEngine);
+
+        clientMessage = newMessage(bufferType, config.messageSize());
+        serverMessage = newMessage(bufferType, config.messageSize());
+
+        doEngineHandshake(clientEngine, serverEngine, clientApplicationBuffer, clientPacketBuffer,
+                bufferType.newApplicationBuffer(serverEngine), serverPacketBuffer, true);
+    }
+
+    void teardown() {
+        engineFactory.dispose(clientEngine);
+        engineFactory.dispose(serverEngine);
+    }
+
+    /**
+     * Encrypts a message with the client engine. The output is discarded.
+     */
+    void wrap() throws SSLException {
+        clientMessage.position(0);
+        clientPacketBuffer.clear();
+        checkOk(clientEngine.wrap(clientMessage, clientPacketBuffer));
+    }
+
+    /**
+     * Encrypts a message with the server engine and decrypts it with the client engine.
+     */
+    void unwrap() throws SSLException {
+        serverMessage.position(0);
+        serverPacketBuffer.clear();
+        checkOk(serverEngine.wrap(serverMessage, serverPacketBuffer));
+        serverPacketBuffer.flip();
+        clientApplicationBuffer.clear();
+        checkOk(clientEngine.unwrap(serverPacketBuffer, clientApplicationBuffer));
+    }
+
+    private static ByteBuffer newMessage(BufferType bufferType, int messageSize) {
+        ByteBuffer message = bufferType.newBuffer(messageSize);
+        message.put(newTextMessage(messageSize));
+        message.flip();
+        return message;
+    }
+
+    private static void checkOk(SSLEngineResult result) {
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new RuntimeException("Operation returned unexpected result " + result);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.doEngineHandshake;
+import static org.conscrypt.TestUtils.newTextMessage;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Benchmark for wrapping payloads that span many TLS records, comparing one record per
+ * {@code wrap} call with multi-record wrapping.
+ */
+public final class EngineMultiRecordWrapBenchmark {
+    /**
+     * Provider for the benchmark configuration
+     */
+    interface Config {
+        BufferType bufferType();
+        EngineFactory engineFactory();
+        int messageSize();
+        String cipher();
+
+        /**
+         * Applies the wrap mode under test to the client engine once the handshake is done.
+         */
+        void configureClientEngine(SSLEngine engine);
+    }
+
+    private static final int MAX_PLAINTEXT_RECORD_LENGTH = 16384;
+
+    private final EngineFactory engineFactory;
+    private final SSLEngine clientEngine;
+    private final SSLEngine serverEngine;
+
+    private final ByteBuffer messageBuffer;
+    private final ByteBuffer clientPacketBuffer;
+    private final int expectedPacketLength;
+
+    EngineMultiRecordWrapBenchmark(Config config) throws Exception {
+        engineFactory = config.engineFactory();
+        String cipher = config.cipher();
+        BufferType bufferType = config.bufferType();
+
+        clientEngine = engineFactory.newClientEngine(cipher, false);
+        serverEngine = engineFactory.newServerEngine(cipher, false);
+
+        ByteBuffer clientApplicationBuffer = bufferType.newApplicationBuffer(clientEngine);
+        ByteBuffer serverApplicationBuffer = bufferType.newApplicationBuffer(serverEngine);
+        ByteBuffer serverPacketBuffer = bufferType.newPacketBuffer(serverEngine);
+
+        // Large enough to hold every record of the message.
+        int messageSize = config.messageSize();
+        int packetBufferSize = clientEngine.getSession().getPacketBufferSize();
+        int numRecords = (messageSize + MAX_PLAINTEXT_RECORD_LENGTH - 1)
+                / MAX_PLAINTEXT_RECORD_LENGTH;
+        clientPacketBuffer = bufferType.newBuffer(numRecords * packetBufferSize);
+
+        messageBuffer = bufferType.newBuffer(messageSize);
+        messageBuffer.put(newTextMessage(messageSize));
+        messageBuffer.flip();
+
+        doEngineHandshake(clientEngine, serverEngine, clientApplicationBuffer,
+                bufferType.newPacketBuffer(clientEngine), serverApplicationBuffer,
+                serverPacketBuffer, true);
+
+        config.configureClientEngine(clientEngine);
+
+        // Record the expected output size for a lightweight check in the benchmark.
+        doWrapAll();
+        expectedPacketLength = clientPacketBuffer.position();
+    }
+
+    void teardown() {
+        engineFactory.dispose(clientEngine);
+        engineFactory.dispose(serverEngine);
+    }
+
+    /**
+     * Wraps the whole message, calling {@code wrap} as many times as necessary.
+     */
+    void wrapAll() throws SSLException {
+        doWrapAll();
+        assertEquals(expectedPacketLength, clientPacketBuffer.position());
+    }
+
+    private void doWrapAll() throws SSLException {
+        messageBuffer.position(0);
+        clientPacketBuffer.clear();
+        while (messageBuffer.hasRemaining()) {
+            SSLEngineResult result = clientEngine.wrap(messageBuffer, clientPacketBuffer);
+            if (result.getStatus() != SSLEngineResult.Status.OK) {
+                throw new RuntimeException("Operation returned unexpected result " + result);
+            }
+        }
+    }
+}
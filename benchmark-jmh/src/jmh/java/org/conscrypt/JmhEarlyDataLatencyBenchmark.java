@@ -0,0 +1,156 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.getLoopbackAddress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.Provider;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for the time from connecting to the first byte of a response over loopback. Each
+ * operation opens a new TLS 1.3 connection, sends a one byte request and reads the one byte
+ * response.
+ *
+ * <p>{@code FULL} connections don't resume a session, {@code RESUMED} connections resume the
+ * session of the previous operation and send the request after the handshake, and
+ * {@code ZERO_RTT} connections send the request as early data in their first flight.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JmhEarlyDataLatencyBenchmark {
+    private static final int MAX_EARLY_DATA = 16384;
+    private static final byte[] REQUEST = new byte[] {1};
+
+    public enum ConnectMode { FULL, RESUMED, ZERO_RTT }
+
+    @Param
+    public ConnectMode a_mode;
+
+    private SSLSocketFactory clientFactory;
+    private SSLServerSocket serverSocket;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Provider provider = TestUtils.getConscryptProvider();
+        clientFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newClientSslContext(provider).getSocketFactory(), true);
+        SSLServerSocketFactory serverSocketFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newServerSslContext(provider).getServerSocketFactory(), true);
+        serverSocket = (SSLServerSocket) serverSocketFactory.createServerSocket(
+                0, 1, getLoopbackAddress());
+        serverSocket.setEnabledProtocols(new String[] {"TLSv1.3"});
+
+        executor = Executors.newSingleThreadExecutor();
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                serve();
+                return null;
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        serverSocket.close();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public int firstByte() throws IOException {
+        Socket plain = new Socket(getLoopbackAddress(), serverSocket.getLocalPort());
+        // The client session cache is keyed by host, so a socket without one never resumes.
+        String host = a_mode == ConnectMode.FULL ? null : "localhost";
+        SSLSocket client = (SSLSocket) clientFactory.createSocket(
+                plain, host, serverSocket.getLocalPort(), true);
+        try {
+            client.setEnabledProtocols(new String[] {"TLSv1.3"});
+            if (a_mode == ConnectMode.ZERO_RTT) {
+                Conscrypt.setMaxEarlyData(client, MAX_EARLY_DATA);
+            }
+            if (a_mode != ConnectMode.ZERO_RTT
+                    || Conscrypt.writeEarlyData(client, REQUEST, 0, REQUEST.length) == 0) {
+                OutputStream out = client.getOutputStream();
+                out.write(REQUEST);
+                out.flush();
+            }
+            int response = client.getInputStream().read();
+            if (response < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            return response;
+        } finally {
+            client.close();
+        }
+    }
+
+    private void serve() throws IOException {
+        while (true) {
+            SSLSocket socket;
+            try {
+                socket = (SSLSocket) serverSocket.accept();
+            } catch (SocketException e) {
+                // The server socket was closed.
+                return;
+            }
+            try {
+                // Also makes the server issue the tickets that the client resumes with.
+                Conscrypt.setMaxEarlyData(socket, MAX_EARLY_DATA);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                if (in.read() >= 0) {
+                    out.write(1);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The client went away, move on to the next connection.
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.nio.ByteBuffer;
+import java.security.Provider;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.conscrypt.java.security.TestKeyStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for handshake throughput of event-loop threads that each drive a batch of in-memory
+ * engine handshakes at once. With delegated tasks enabled, certificate verification is run on a
+ * shared worker pool and the event loop moves on to other connections in the meantime; otherwise
+ * it runs inline and stalls the loop.
+ *
+ * <p>The trust manager spins for {@code c_verifyMicros} on top of the actual verification, to
+ * stand in for deep chains and revocation checks. Use {@code -t} to vary the number of event
+ * loops.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(4)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JmhEngineDelegatedTaskBenchmark {
+    private static final int CONNECTIONS = 16;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocateDirect(0);
+
+    @Param({"false", "true"})
+    public boolean a_delegated;
+
+    @Param({"4"})
+    public int b_workers;
+
+    @Param({"0", "1000"})
+    public int c_verifyMicros;
+
+    private SSLContext clientContext;
+    private SSLContext serverContext;
+    private ExecutorService workers;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Provider provider = TestUtils.getConscryptProvider();
+        TestKeyStore clientKeyStore = TestKeyStore.getClient();
+        clientContext = SSLContext.getInstance("TLS", provider);
+        clientContext.init(clientKeyStore.keyManagers,
+                new TrustManager[] {new SlowTrustManager(
+                        (X509TrustManager) clientKeyStore.trustManager, c_verifyMicros)},
+                null);
+        serverContext = TestUtils.newServerSslContext(provider);
+        workers = Executors.newFixedThreadPool(b_workers);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        workers.shutdownNow();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The connections of one event loop.
+     */
+    @State(Scope.Thread)
+    public static class EventLoop {
+        final Connection[] connections = new Connection[CONNECTIONS];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONNECTIONS)
+    public void handshakes(EventLoop loop) throws Exception {
+        Connection[] connections = loop.connections;
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection(clientContext, serverContext, a_delegated);
+        }
+        int remaining = connections.length;
+        while (remaining > 0) {
+            for (Connection connection : connections) {
+                if (!connection.done && connection.step(workers)) {
+                    remaining--;
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final SSLEngine client;
+        private final SSLEngine server;
+        private final ByteBuffer clientToServer;
+        private final ByteBuffer serverToClient;
+        private final ByteBuffer clientApp;
+        private final ByteBuffer serverApp;
+        private Future<?> task;
+        boolean done;
+
+        Connection(SSLContext clientContext, SSLContext serverContext, boolean delegated)
+                throws SSLException {
+            client = clientContext.createSSLEngine();
+            client.setUseClientMode(true);
+            Conscrypt.setDelegatedTasksEnabled(client, delegated);
+            server = serverContext.createSSLEngine();
+            server.setUseClientMode(false);
+            clientToServer = ByteBuffer.allocateDirect(client.getSession().getPacketBufferSize());
+            serverToClient = ByteBuffer.allocateDirect(server.getSession().getPacketBufferSize());
+            clientApp = ByteBuffer.allocateDirect(client.getSession().getApplicationBufferSize());
+            serverApp = ByteBuffer.allocateDirect(server.getSession().getApplicationBufferSize());
+            client.beginHandshake();
+            server.beginHandshake();
+        }
+
+        /**
+         * Advances the handshake without blocking and returns whether it has just finished.
+         */
+        boolean step(ExecutorService workers) throws Exception {
+            if (task != null) {
+                if (!task.isDone()) {
+                    return false;
+                }
+                // Surfaces any exception thrown by the task.
+                task.get();
+                task = null;
+            }
+            if (client.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                Runnable delegatedTask = client.getDelegatedTask();
+                if (delegatedTask != null) {
+                    task = workers.submit(delegatedTask);
+                }
+                return false;
+            }
+            client.wrap(EMPTY_BUFFER, clientToServer);
+            server.wrap(EMPTY_BUFFER, serverToClient);
+            clientToServer.flip();
+            server.unwrap(clientToServer, serverApp);
+            clientToServer.compact();
+            serverToClient.flip();
+            client.unwrap(serverToClient, clientApp);
+            serverToClient.compact();
+
+            done = client.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING
+                    && server.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING;
+            return done;
+        }
+    }
+
+    /**
+     * Adds a fixed CPU cost to every server certificate verification.
+     */
+    private static final class SlowTrustManager implements X509TrustManager {
+        private final X509TrustManager delegate;
+        private final long costNanos;
+
+        SlowTrustManager(X509TrustManager delegate, int costMicros) {
+            this.delegate = delegate;
+            this.costNanos = TimeUnit.MICROSECONDS.toNanos(costMicros);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType)
+                throws CertificateException {
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < costNanos) {
+                // Spin.
+            }
+            delegate.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.doEngineHandshake;
+import static org.conscrypt.TestUtils.newTextMessage;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark comparing the standard {@link SSLEngine} wrap and unwrap methods with the ones that
+ * fill in a {@link ReusableEngineResult}. Run with {@code -prof gc} to compare the allocation
+ * rate per operation.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+public class JmhEngineReusableResultBenchmark {
+    @Param({TestUtils.TEST_CIPHER})
+    public String a_cipher;
+
+    @Param({"DIRECT"})
+    public BufferType b_buffer;
+
+    @Param({"64", "512", "4096"})
+    public int c_message;
+
+    @Param({"CONSCRYPT_POOLED"})
+    public OpenJdkEngineFactory d_engine;
+
+    @Param({"false", "true"})
+    public boolean e_reusableResult;
+
+    private final ReusableEngineResult result = new ReusableEngineResult();
+    private SSLEngine clientEngine;
+    private SSLEngine serverEngine;
+    private ByteBuffer[] messageBuffers;
+    private ByteBuffer clientPacketBuffer;
+    private ByteBuffer[] clientPacketBuffers;
+    private ByteBuffer[] serverApplicationBuffers;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        clientEngine = d_engine.newClientEngine(a_cipher, false);
+        serverEngine = d_engine.newServerEngine(a_cipher, false);
+
+        ByteBuffer clientApplicationBuffer = b_buffer.newApplicationBuffer(clientEngine);
+        ByteBuffer serverApplicationBuffer = b_buffer.newApplicationBuffer(serverEngine);
+        clientPacketBuffer = b_buffer.newPacketBuffer(clientEngine);
+        ByteBuffer serverPacketBuffer = b_buffer.newPacketBuffer(serverEngine);
+        doEngineHandshake(clientEngine, serverEngine, clientApplicationBuffer, clientPacketBuffer,
+                serverApplicationBuffer, serverPacketBuffer, true);
+
+        ByteBuffer messageBuffer = b_buffer.newBuffer(c_message);
+        messageBuffer.put(newTextMessage(c_message));
+        messageBuffer.flip();
+        messageBuffers = new ByteBuffer[] {messageBuffer};
+        clientPacketBuffers = new ByteBuffer[] {clientPacketBuffer};
+        serverApplicationBuffers = new ByteBuffer[] {serverApplicationBuffer};
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() {
+        d_engine.dispose(clientEngine);
+        d_engine.dispose(serverEngine);
+    }
+
+    /**
+     * Sends a single message from the client to the server.
+     */
+    @Benchmark
+    public int wrapAndUnwrap() throws SSLException {
+        messageBuffers[0].position(0);
+        clientPacketBuffer.clear();
+        serverApplicationBuffers[0].clear();
+
+        int produced;
+        if (e_reusableResult) {
+            checkOk(Conscrypt.wrap(clientEngine, messageBuffers, 0, 1, clientPacketBuffer, result)
+                            .getStatus());
+            clientPacketBuffer.flip();
+            produced = Conscrypt.unwrap(serverEngine, clientPacketBuffers, 0, 1,
+                                        serverApplicationBuffers, 0, 1, result)
+                               .bytesProduced();
+        } else {
+            checkOk(clientEngine.wrap(messageBuffers, clientPacketBuffer).getStatus());
+            clientPacketBuffer.flip();
+            produced = serverEngine.unwrap(clientPacketBuffer, serverApplicationBuffers)
+                               .bytesProduced();
+        }
+        if (produced != c_message) {
+            throw new RuntimeException("Unexpected plaintext length " + produced);
+        }
+        return produced;
+    }
+
+    private static void checkOk(SSLEngineResult.Status status) {
+        if (status != SSLEngineResult.Status.OK) {
+            throw new RuntimeException("Operation returned unexpected status " + status);
+        }
+    }
+}
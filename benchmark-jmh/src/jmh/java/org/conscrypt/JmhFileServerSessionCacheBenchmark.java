@@ -0,0 +1,87 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for the lookup latency of the memory-mapped server session cache, which includes
+ * taking a file lock on the slots searched. Lookups either hit a cached session or miss.
+ *
+ * <p>Use {@code -t} to vary the number of threads.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JmhFileServerSessionCacheBenchmark {
+    private static final int SESSIONS = 4096;
+
+    @Param({"256", "2048"})
+    public int a_sessionSize;
+
+    @Param({"true", "false"})
+    public boolean b_hit;
+
+    private File file;
+    private FileServerSessionCache cache;
+    private byte[][] ids;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("JmhFileServerSessionCacheBenchmark", ".cache");
+        file.delete();
+        cache = (FileServerSessionCache) FileServerSessionCache.usingFile(file, SESSIONS * 2,
+                a_sessionSize, FileServerSessionCache.DEFAULT_TIMEOUT_SECONDS);
+        ids = new byte[SESSIONS][];
+        long expires = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < SESSIONS; i++) {
+            ids[i] = new byte[32];
+            ThreadLocalRandom.current().nextBytes(ids[i]);
+            if (b_hit) {
+                cache.put(ids[i], new byte[a_sessionSize], expires);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileServerSessionCache.reset();
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] lookup() {
+        return cache.getSessionData(ids[ThreadLocalRandom.current().nextInt(SESSIONS)]);
+    }
+}
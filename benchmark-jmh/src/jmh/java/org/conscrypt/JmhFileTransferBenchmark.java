@@ -0,0 +1,185 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.getLoopbackAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.Provider;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for sending a local file over a TLS socket, either by reading it through a heap
+ * buffer into the socket's output stream or with {@link Conscrypt#transferFrom}. The server
+ * discards everything it receives. Throughput is reported in bytes per second by the {@code
+ * bytes} counter.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JmhFileTransferBenchmark {
+    public enum TransferMode {
+        STREAM {
+            @Override
+            long send(SSLSocket socket, FileChannel file, byte[] buffer) throws IOException {
+                OutputStream out = socket.getOutputStream();
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                long sent = 0;
+                file.position(0);
+                while (true) {
+                    wrapped.clear();
+                    int read = file.read(wrapped);
+                    if (read < 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, read);
+                    sent += read;
+                }
+                return sent;
+            }
+        },
+        TRANSFER {
+            @Override
+            long send(SSLSocket socket, FileChannel file, byte[] buffer) throws IOException {
+                return Conscrypt.transferFrom(socket, file, 0, file.size());
+            }
+        };
+
+        abstract long send(SSLSocket socket, FileChannel file, byte[] buffer) throws IOException;
+    }
+
+    /**
+     * The number of file bytes sent.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ByteCounter {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            bytes = 0;
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean a_engineSocket;
+
+    @Param
+    public TransferMode b_mode;
+
+    @Param({"false", "true"})
+    public boolean c_ktls;
+
+    @Param({"16777216"})
+    public int d_fileSize;
+
+    private File file;
+    private FileChannel channel;
+    private byte[] buffer;
+    private SSLServerSocket serverSocket;
+    private SSLSocket client;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        byte[] contents = new byte[d_fileSize];
+        new Random(0).nextBytes(contents);
+        file = File.createTempFile("conscrypt-transfer", null);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(contents);
+        channel = raf.getChannel();
+        buffer = new byte[64 * 1024];
+
+        Provider provider = TestUtils.getConscryptProvider();
+        SSLSocketFactory clientFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newClientSslContext(provider).getSocketFactory(), a_engineSocket);
+        SSLServerSocketFactory serverSocketFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newServerSslContext(provider).getServerSocketFactory(),
+                a_engineSocket);
+        serverSocket = (SSLServerSocket) serverSocketFactory.createServerSocket(
+                0, 1, getLoopbackAddress());
+
+        executor = Executors.newSingleThreadExecutor();
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                Socket socket = serverSocket.accept();
+                try {
+                    InputStream in = socket.getInputStream();
+                    byte[] sink = new byte[64 * 1024];
+                    while (in.read(sink) >= 0) {
+                        // Discard.
+                    }
+                } finally {
+                    socket.close();
+                }
+                return null;
+            }
+        });
+
+        client = (SSLSocket) clientFactory.createSocket(
+                getLoopbackAddress(), serverSocket.getLocalPort());
+        Conscrypt.setKtlsEnabled(client, c_ktls);
+        client.startHandshake();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        client.close();
+        serverSocket.close();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        channel.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void send(ByteCounter counter) throws IOException {
+        counter.bytes += b_mode.send(client, channel, buffer);
+    }
+}
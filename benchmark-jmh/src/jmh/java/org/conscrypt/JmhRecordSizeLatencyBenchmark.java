@@ -0,0 +1,176 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.getLoopbackAddress;
+import static org.conscrypt.TestUtils.newTextMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.security.Provider;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for the time to first decrypted byte of a response. Each operation sends a one byte
+ * request over loopback and returns as soon as the client has decrypted any of the response;
+ * the rest of the response is drained outside of the measurement.
+ *
+ * <p>The dynamic policy uses an idle timeout of zero, so that every response starts with small
+ * records like a response after an idle period would.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JmhRecordSizeLatencyBenchmark {
+    public enum Policy {
+        FIXED {
+            @Override
+            RecordSizePolicy newPolicy() {
+                return RecordSizePolicy.fixed();
+            }
+        },
+        DYNAMIC {
+            @Override
+            RecordSizePolicy newPolicy() {
+                return RecordSizePolicy.dynamic(RecordSizePolicy.DEFAULT_SMALL_RECORD_SIZE,
+                        RecordSizePolicy.DEFAULT_BOOST_THRESHOLD_BYTES, 0);
+            }
+        };
+
+        abstract RecordSizePolicy newPolicy();
+    }
+
+    @Param({"false", "true"})
+    public boolean a_engineSocket;
+
+    @Param
+    public Policy b_policy;
+
+    @Param({"16384", "65536"})
+    public int c_responseSize;
+
+    private byte[] response;
+    private byte[] buffer;
+    private int received;
+    private SSLServerSocket serverSocket;
+    private SSLSocket client;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        response = newTextMessage(c_responseSize);
+        buffer = new byte[c_responseSize];
+
+        Provider provider = TestUtils.getConscryptProvider();
+        SSLSocketFactory clientFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newClientSslContext(provider).getSocketFactory(), a_engineSocket);
+        SSLServerSocketFactory serverSocketFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newServerSslContext(provider).getServerSocketFactory(),
+                a_engineSocket);
+        serverSocket = (SSLServerSocket) serverSocketFactory.createServerSocket(
+                0, 1, getLoopbackAddress());
+
+        executor = Executors.newSingleThreadExecutor();
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                serve();
+                return null;
+            }
+        });
+
+        client = (SSLSocket) clientFactory.createSocket(
+                getLoopbackAddress(), serverSocket.getLocalPort());
+        client.startHandshake();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        client.close();
+        serverSocket.close();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public int firstByte() throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(1);
+        out.flush();
+        received = client.getInputStream().read(buffer);
+        if (received < 0) {
+            throw new IOException("Unexpected end of stream");
+        }
+        return received;
+    }
+
+    @TearDown(Level.Invocation)
+    public void drain() throws IOException {
+        InputStream in = client.getInputStream();
+        while (received < c_responseSize) {
+            int count = in.read(buffer, 0, c_responseSize - received);
+            if (count < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            received += count;
+        }
+    }
+
+    private void serve() throws IOException {
+        SSLSocket socket;
+        try {
+            socket = (SSLSocket) serverSocket.accept();
+        } catch (SocketException e) {
+            // The server socket was closed.
+            return;
+        }
+        try {
+            Conscrypt.setRecordSizePolicy(socket, b_policy.newPolicy());
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (in.read() >= 0) {
+                out.write(response);
+                out.flush();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
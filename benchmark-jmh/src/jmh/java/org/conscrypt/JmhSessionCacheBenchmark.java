@@ -0,0 +1,161 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for the throughput of the server session cache under contention. Each operation
+ * either looks up a random session by ID, like a resumption attempt, or caches a session, like a
+ * full handshake. Two thirds of the session IDs are cached at any time, so some lookups miss and
+ * every insertion of a full cache evicts.
+ *
+ * <p>Use {@code -t} to vary the number of threads.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JmhSessionCacheBenchmark {
+    @Param({"100", "20000"})
+    public int a_cacheSize;
+
+    @Param({"0", "10", "50"})
+    public int b_putPercent;
+
+    private ServerSessionContext context;
+    private NativeSslSession[] sessions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new ServerSessionContext();
+        context.setSessionCacheSize(a_cacheSize);
+        sessions = new NativeSslSession[a_cacheSize * 3 / 2];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new BenchmarkSession(i);
+        }
+        for (NativeSslSession session : sessions) {
+            context.cacheSession(session);
+        }
+    }
+
+    @Benchmark
+    public NativeSslSession lookupOrCache() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        NativeSslSession session = sessions[random.nextInt(sessions.length)];
+        if (random.nextInt(100) < b_putPercent) {
+            context.cacheSession(session);
+            return session;
+        }
+        return context.getSessionFromCache(session.getId());
+    }
+
+    /**
+     * A session that is always valid, so that the benchmark measures the cache rather than
+     * native session accessors.
+     */
+    private static final class BenchmarkSession extends NativeSslSession {
+        private final byte[] id;
+
+        BenchmarkSession(int index) {
+            id = new byte[32];
+            ThreadLocalRandom.current().nextBytes(id);
+            id[0] = (byte) index;
+            id[1] = (byte) (index >>> 8);
+            id[2] = (byte) (index >>> 16);
+        }
+
+        @Override
+        byte[] getId() {
+            return id;
+        }
+
+        @Override
+        boolean isValid() {
+            return true;
+        }
+
+        @Override
+        boolean isSingleUse() {
+            return false;
+        }
+
+        @Override
+        int getMaxEarlyData() {
+            return 0;
+        }
+
+        @Override
+        void offerToResume(NativeSsl ssl) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        String getCipherSuite() {
+            return null;
+        }
+
+        @Override
+        String getProtocol() {
+            return null;
+        }
+
+        @Override
+        String getPeerHost() {
+            return null;
+        }
+
+        @Override
+        int getPeerPort() {
+            return -1;
+        }
+
+        @Override
+        byte[] getPeerOcspStapledResponse() {
+            return null;
+        }
+
+        @Override
+        byte[] getPeerSignedCertificateTimestamp() {
+            return null;
+        }
+
+        @Override
+        byte[] toBytes() {
+            return null;
+        }
+
+        @Override
+        SSLSession toSSLSession() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for the rate of full engine handshakes between a client and a server requesting a
+ * client certificate. Connections either use their context's configuration, which they inherit
+ * from the {@code SSL_CTX}, or each configure their own cipher suites, which makes them apply
+ * their configuration to the {@code SSL} like every connection did before.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JmhSslConfigTemplateBenchmark {
+    /**
+     * Where connections get their configuration from.
+     */
+    public enum Configuration {
+        INHERITED,
+        PER_CONNECTION
+    }
+
+    @Param
+    public Configuration a_configuration;
+
+    private SSLContext clientContext;
+    private SSLContext serverContext;
+    private String[] reversedCipherSuites;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        clientContext = TestUtils.initClientSslContext(
+                SSLContext.getInstance("TLS", TestUtils.getConscryptProvider()));
+        serverContext = TestUtils.initServerSslContext(
+                SSLContext.getInstance("TLS", TestUtils.getConscryptProvider()));
+        List<String> cipherSuites = Arrays.asList(
+                clientContext.getDefaultSSLParameters().getCipherSuites().clone());
+        Collections.reverse(cipherSuites);
+        reversedCipherSuites = cipherSuites.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public SSLEngine handshake() throws SSLException {
+        SSLEngine client = clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        SSLEngine server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        server.setWantClientAuth(true);
+        if (a_configuration == Configuration.PER_CONNECTION) {
+            client.setEnabledCipherSuites(reversedCipherSuites);
+            server.setEnabledCipherSuites(reversedCipherSuites);
+        }
+
+        int appSize = client.getSession().getApplicationBufferSize();
+        int packetSize = client.getSession().getPacketBufferSize();
+        TestUtils.doEngineHandshake(client, server, ByteBuffer.allocateDirect(appSize),
+                ByteBuffer.allocateDirect(packetSize), ByteBuffer.allocateDirect(appSize),
+                ByteBuffer.allocateDirect(packetSize), true);
+        client.closeOutbound();
+        server.closeOutbound();
+        return client;
+    }
+}
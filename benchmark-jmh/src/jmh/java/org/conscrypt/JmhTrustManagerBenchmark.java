@@ -0,0 +1,75 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.conscrypt.java.security.TestKeyStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark for the throughput of client chain validation by the trust manager, with and without
+ * the cache of verified chains. Every validation presents the same leaf and intermediate.
+ *
+ * <p>Use {@code -t} to vary the number of threads.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JmhTrustManagerBenchmark {
+    static {
+        TestUtils.installConscryptAsDefaultProvider();
+    }
+
+    @Param({"0", "1024"})
+    public int a_cacheSize;
+
+    private TrustManagerImpl trustManager;
+    private X509Certificate[] chain;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyStore.PrivateKeyEntry entry = TestKeyStore.getClient().getPrivateKey("RSA", "RSA");
+        X509Certificate[] fullChain = (X509Certificate[]) entry.getCertificateChain();
+        KeyStore keyStore = TestKeyStore.createKeyStore();
+        keyStore.setCertificateEntry("root", fullChain[fullChain.length - 1]);
+        trustManager = new TrustManagerImpl(keyStore);
+        trustManager.setVerifiedChainCache(a_cacheSize, TimeUnit.MINUTES.toMillis(10));
+        chain = new X509Certificate[fullChain.length - 1];
+        System.arraycopy(fullChain, 0, chain, 0, chain.length);
+    }
+
+    @Benchmark
+    public List<X509Certificate> checkClientTrusted() throws CertificateException {
+        return trustManager.checkClientTrusted(chain, "RSA", (String) null);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.getLoopbackAddress;
+import static org.conscrypt.TestUtils.newTextMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.Provider;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmark that runs a large number of concurrent TLS connections with one thread per socket,
+ * on either platform or virtual threads. Each operation connects all clients, handshakes and
+ * echoes one message per connection.
+ *
+ * <p>While the connections are running, a probe task on the same executor repeatedly sleeps for
+ * a millisecond and records how much longer than that it took to be scheduled again. If blocked
+ * sockets pinned their carrier threads the probe would starve, which shows up in the {@code
+ * maxStallMicros} counter.
+ *
+ * <p>{@code VIRTUAL} requires JDK 21 or later. Running 10k connections needs a file descriptor
+ * limit of at least twice that.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JmhVirtualThreadSocketBenchmark {
+    public enum ThreadType {
+        PLATFORM {
+            @Override
+            ExecutorService newExecutor() {
+                return Executors.newCachedThreadPool();
+            }
+        },
+        VIRTUAL {
+            @Override
+            ExecutorService newExecutor() {
+                try {
+                    // Looked up reflectively since the benchmarks are built for Java 8.
+                    return (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor")
+                            .invoke(null);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Virtual threads require JDK 21", e);
+                }
+            }
+        };
+
+        abstract ExecutorService newExecutor();
+    }
+
+    /**
+     * The longest time the probe task was delayed beyond its sleep, per iteration.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class StallCounter {
+        public long maxStallMicros;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            maxStallMicros = 0;
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean a_engineSocket;
+
+    @Param
+    public ThreadType b_threads;
+
+    @Param({"10000"})
+    public int c_connections;
+
+    @Param({"64"})
+    public int d_message;
+
+    private byte[] message;
+    private SSLSocketFactory clientFactory;
+    private SSLServerSocket serverSocket;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        message = newTextMessage(d_message);
+
+        Provider provider = TestUtils.getConscryptProvider();
+        clientFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newClientSslContext(provider).getSocketFactory(), a_engineSocket);
+        SSLServerSocketFactory serverSocketFactory = TestUtils.setUseEngineSocket(
+                TestUtils.newServerSslContext(provider).getServerSocketFactory(),
+                a_engineSocket);
+        serverSocket = (SSLServerSocket) serverSocketFactory.createServerSocket(
+                0, c_connections, getLoopbackAddress());
+
+        executor = b_threads.newExecutor();
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                accept();
+                return null;
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        serverSocket.close();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void connections(StallCounter stalls) throws Exception {
+        final CountDownLatch done = new CountDownLatch(c_connections);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Future<Long> probe = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws InterruptedException {
+                long maxStallNanos = 0;
+                while (done.getCount() > 0) {
+                    long start = System.nanoTime();
+                    Thread.sleep(1);
+                    long stall = System.nanoTime() - start - TimeUnit.MILLISECONDS.toNanos(1);
+                    maxStallNanos = Math.max(maxStallNanos, stall);
+                }
+                return maxStallNanos;
+            }
+        });
+
+        for (int i = 0; i < c_connections; i++) {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        connect();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        done.await();
+        long maxStallMicros = TimeUnit.NANOSECONDS.toMicros(probe.get());
+        stalls.maxStallMicros = Math.max(stalls.maxStallMicros, maxStallMicros);
+        if (error.get() != null) {
+            throw new IllegalStateException("Connection failed", error.get());
+        }
+    }
+
+    private void connect() throws IOException {
+        SSLSocket socket = (SSLSocket) clientFactory.createSocket(
+                getLoopbackAddress(), serverSocket.getLocalPort());
+        try {
+            socket.startHandshake();
+            OutputStream out = socket.getOutputStream();
+            out.write(message);
+            out.flush();
+            readFully(socket.getInputStream(), new byte[message.length]);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // The server socket was closed.
+                return;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        byte[] buffer = new byte[message.length];
+                        readFully(socket.getInputStream(), buffer);
+                        OutputStream out = socket.getOutputStream();
+                        out.write(buffer);
+                        out.flush();
+                    } finally {
+                        socket.close();
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int count = in.read(buffer, read, buffer.length - read);
+            if (count < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            read += count;
+        }
+    }
+}
@@ -143,6 +143,30 @@ public enum OpenJdkEngineFactory implements EngineFactory {
             }
         }
     },
+    CONSCRYPT_HEAP_PINNED {
+        private final SSLContext clientContext = newConscryptClientContext();
+        private final SSLContext serverContext = newConscryptServerContext();
+
+        @Override
+        public SSLEngine newClientEngine(String cipher, boolean useAlpn) {
+            SSLEngine engine = initEngine(clientContext.createSSLEngine(), cipher, true);
+            Conscrypt.setHeapBufferPinningEnabled(engine, true);
+            if (useAlpn) {
+                Conscrypt.setApplicationProtocols(engine, new String[] {ApplicationProtocolNames.HTTP_2});
+            }
+            return engine;
+        }
+
+        @Override
+        public SSLEngine newServerEngine(String cipher, boolean useAlpn) {
+            SSLEngine engine = initEngine(serverContext.createSSLEngine(), cipher, false);
+            Conscrypt.setHeapBufferPinningEnabled(engine, true);
+            if (useAlpn) {
+                Conscrypt.setApplicationProtocols(engine, new String[] {ApplicationProtocolNames.HTTP_2});
+            }
+            return engine;
+        }
+    },
     NETTY {
         private final SslContext clientContext = newNettyClientContext(OPENSSL, false);
         private final SslContext clientContextAlpn = newNettyClientContext(OPENSSL, true);
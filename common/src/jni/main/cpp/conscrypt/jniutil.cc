@@ -66,6 +66,7 @@ jmethodID sslHandshakeCallbacks_serverPSKKeyRequested;
 jmethodID sslHandshakeCallbacks_onNewSessionEstablished;
 jmethodID sslHandshakeCallbacks_selectApplicationProtocol;
 jmethodID sslHandshakeCallbacks_serverSessionRequested;
+jmethodID sslHandshakeCallbacks_allowEarlyData;
 
 void init(JavaVM* vm, JNIEnv* env) {
     gJavaVM = vm;
@@ -132,6 +133,8 @@ void init(JavaVM* vm, JNIEnv* env) {
             getMethodRef(env, sslHandshakeCallbacksClass, "serverSessionRequested", "([B)J");
     sslHandshakeCallbacks_selectApplicationProtocol =
             getMethodRef(env, sslHandshakeCallbacksClass, "selectApplicationProtocol", "([B)I");
+    sslHandshakeCallbacks_allowEarlyData =
+            getMethodRef(env, sslHandshakeCallbacksClass, "allowEarlyData", "([B[B)Z");
     cryptoUpcallsClass_rawSignMethod = env->GetStaticMethodID(cryptoUpcallsClass,
                                                      "ecSignDigestWithPrivateKey",
                                                      "(Ljava/security/PrivateKey;[B)[B");
@@ -38,11 +38,13 @@
 #include <openssl/asn1.h>
 #include <openssl/asn1t.h>
 #include <openssl/cmac.h>
+#include <openssl/core_names.h>
 #include <openssl/crypto.h>
 #include <openssl/engine.h>
 #include <openssl/err.h>
 #include <openssl/evp.h>
 #include <openssl/hmac.h>
+#include <openssl/params.h>
 #include <openssl/pkcs7.h>
 #include <openssl/rand.h>
 #include <openssl/rsa.h>
@@ -1045,6 +1047,305 @@ static jlong NativeCrypto_EVP_parse_public_key(JNIEnv* env, jclass, jbyteArray k
     return reinterpret_cast<uintptr_t>(pkey.release());
 }
 
+/**
+ * Holds the Java key that a wrapped RSA or EC key delegates its private key operations to.
+ */
+struct KeyExData {
+    jobject private_key;
+};
+
+static void KeyExDataFree(void* /* parent */, void* ptr, CRYPTO_EX_DATA* /* ad */, int /* index */,
+                          long /* argl */, void* /* argp */) {  // NOLINT(runtime/int)
+    KeyExData* ex_data = reinterpret_cast<KeyExData*>(ptr);
+    if (ex_data == nullptr) {
+        return;
+    }
+    JNIEnv* env = conscrypt::jniutil::getJNIEnv();
+    if (env != nullptr) {
+        env->DeleteGlobalRef(ex_data->private_key);
+    }
+    delete ex_data;
+}
+
+static int RsaKeyExDataIndex() {
+    static int index = RSA_get_ex_new_index(0, nullptr, nullptr, nullptr, KeyExDataFree);
+    return index;
+}
+
+static int EcKeyExDataIndex() {
+    static int index = EC_KEY_get_ex_new_index(0, nullptr, nullptr, nullptr, KeyExDataFree);
+    return index;
+}
+
+/**
+ * Calls one of the CryptoUpcalls methods that perform an operation with a Java private key.
+ * Returns nullptr, possibly with a pending exception, if the operation failed.
+ */
+static jbyteArray privateKeyUpcall(JNIEnv* env, jmethodID method, jobject privateKey,
+                                   const jint* padding, const unsigned char* input,
+                                   size_t input_len) {
+    ScopedLocalRef<jbyteArray> inputArray(env, env->NewByteArray(static_cast<jsize>(input_len)));
+    if (env->ExceptionCheck()) {
+        return nullptr;
+    }
+    env->SetByteArrayRegion(inputArray.get(), 0, static_cast<jsize>(input_len),
+                            reinterpret_cast<const jbyte*>(input));
+    jclass upcalls = conscrypt::jniutil::cryptoUpcallsClass;
+    if (padding == nullptr) {
+        return reinterpret_cast<jbyteArray>(
+                env->CallStaticObjectMethod(upcalls, method, privateKey, inputArray.get()));
+    }
+    return reinterpret_cast<jbyteArray>(
+            env->CallStaticObjectMethod(upcalls, method, privateKey, *padding, inputArray.get()));
+}
+
+/**
+ * Performs an RSA private key operation of a wrapped key and copies its result to |to|, which
+ * has room for RSA_size(rsa) bytes. Returns the length of the result or -1 on failure.
+ */
+static int RsaWrapperOperation(jmethodID method, int flen, const unsigned char* from,
+                               unsigned char* to, RSA* rsa, int padding) {
+    KeyExData* ex_data = reinterpret_cast<KeyExData*>(RSA_get_ex_data(rsa, RsaKeyExDataIndex()));
+    JNIEnv* env = conscrypt::jniutil::getJNIEnv();
+    if (ex_data == nullptr || env == nullptr) {
+        ERR_raise(ERR_LIB_RSA, ERR_R_INTERNAL_ERROR);
+        return -1;
+    }
+    jint jpadding = padding;
+    ScopedLocalRef<jbyteArray> result(
+            env, privateKeyUpcall(env, method, ex_data->private_key, &jpadding, from,
+                                  static_cast<size_t>(flen)));
+    if (result.get() == nullptr) {
+        ERR_raise(ERR_LIB_RSA, ERR_R_INTERNAL_ERROR);
+        return -1;
+    }
+    jsize len = env->GetArrayLength(result.get());
+    if (len > RSA_size(rsa)) {
+        ERR_raise(ERR_LIB_RSA, RSA_R_DATA_TOO_LARGE);
+        return -1;
+    }
+    env->GetByteArrayRegion(result.get(), 0, len, reinterpret_cast<jbyte*>(to));
+    return len;
+}
+
+static int RsaWrapperPrivEnc(int flen, const unsigned char* from, unsigned char* to, RSA* rsa,
+                             int padding) {
+    return RsaWrapperOperation(conscrypt::jniutil::cryptoUpcallsClass_rsaSignMethod, flen, from,
+                               to, rsa, padding);
+}
+
+static int RsaWrapperPrivDec(int flen, const unsigned char* from, unsigned char* to, RSA* rsa,
+                             int padding) {
+    return RsaWrapperOperation(conscrypt::jniutil::cryptoUpcallsClass_rsaDecryptMethod, flen, from,
+                               to, rsa, padding);
+}
+
+static const RSA_METHOD* RsaWrapperMethod() {
+    static const RSA_METHOD* method = []() {
+        RSA_METHOD* meth = RSA_meth_dup(RSA_PKCS1_OpenSSL());
+        RSA_meth_set1_name(meth, "Conscrypt wrapped RSA key");
+        RSA_meth_set_flags(meth, RSA_meth_get_flags(meth) | RSA_FLAG_EXT_PKEY);
+        RSA_meth_set_priv_enc(meth, RsaWrapperPrivEnc);
+        RSA_meth_set_priv_dec(meth, RsaWrapperPrivDec);
+        return meth;
+    }();
+    return method;
+}
+
+/**
+ * Signs with a wrapped EC key and returns the DER-encoded signature, or nullptr on failure.
+ */
+static jbyteArray EcWrapperSignDer(JNIEnv* env, const unsigned char* dgst, int dlen,
+                                   EC_KEY* eckey) {
+    KeyExData* ex_data =
+            reinterpret_cast<KeyExData*>(EC_KEY_get_ex_data(eckey, EcKeyExDataIndex()));
+    if (ex_data == nullptr) {
+        return nullptr;
+    }
+    return privateKeyUpcall(env, conscrypt::jniutil::cryptoUpcallsClass_rawSignMethod,
+                            ex_data->private_key, nullptr, dgst, static_cast<size_t>(dlen));
+}
+
+static int EcWrapperSign(int /* type */, const unsigned char* dgst, int dlen, unsigned char* sig,
+                         unsigned int* siglen, const BIGNUM* /* kinv */, const BIGNUM* /* r */,
+                         EC_KEY* eckey) {
+    JNIEnv* env = conscrypt::jniutil::getJNIEnv();
+    if (env == nullptr) {
+        return 0;
+    }
+    ScopedLocalRef<jbyteArray> signature(env, EcWrapperSignDer(env, dgst, dlen, eckey));
+    if (signature.get() == nullptr) {
+        ERR_raise(ERR_LIB_EC, ERR_R_INTERNAL_ERROR);
+        return 0;
+    }
+    jsize len = env->GetArrayLength(signature.get());
+    if (len > ECDSA_size(eckey)) {
+        ERR_raise(ERR_LIB_EC, ERR_R_INTERNAL_ERROR);
+        return 0;
+    }
+    env->GetByteArrayRegion(signature.get(), 0, len, reinterpret_cast<jbyte*>(sig));
+    *siglen = static_cast<unsigned int>(len);
+    return 1;
+}
+
+static ECDSA_SIG* EcWrapperSignSig(const unsigned char* dgst, int dlen, const BIGNUM* /* kinv */,
+                                   const BIGNUM* /* r */, EC_KEY* eckey) {
+    JNIEnv* env = conscrypt::jniutil::getJNIEnv();
+    if (env == nullptr) {
+        return nullptr;
+    }
+    ScopedLocalRef<jbyteArray> signature(env, EcWrapperSignDer(env, dgst, dlen, eckey));
+    if (signature.get() == nullptr) {
+        ERR_raise(ERR_LIB_EC, ERR_R_INTERNAL_ERROR);
+        return nullptr;
+    }
+    ScopedByteArrayRO bytes(env, signature.get());
+    if (bytes.get() == nullptr) {
+        return nullptr;
+    }
+    const unsigned char* p = reinterpret_cast<const unsigned char*>(bytes.get());
+    // NOLINTNEXTLINE(runtime/int)
+    return d2i_ECDSA_SIG(nullptr, &p, static_cast<long>(bytes.size()));
+}
+
+static const EC_KEY_METHOD* EcWrapperMethod() {
+    static const EC_KEY_METHOD* method = []() {
+        EC_KEY_METHOD* meth = EC_KEY_METHOD_new(EC_KEY_get_default_method());
+        int (*sign_setup)(EC_KEY*, BN_CTX*, BIGNUM**, BIGNUM**) = nullptr;
+        EC_KEY_METHOD_get_sign(meth, nullptr, &sign_setup, nullptr);
+        EC_KEY_METHOD_set_sign(meth, EcWrapperSign, sign_setup, EcWrapperSignSig);
+        return meth;
+    }();
+    return method;
+}
+
+/**
+ * Attaches |javaKey| to |ex_data_holder| with |set_ex_data|. Returns false with an exception
+ * pending on failure.
+ */
+static bool attachJavaKey(JNIEnv* env, jobject javaKey, int (*set_ex_data)(void*, int, void*),
+                          void* ex_data_holder, int index) {
+    KeyExData* ex_data = new KeyExData;
+    ex_data->private_key = env->NewGlobalRef(javaKey);
+    if (!set_ex_data(ex_data_holder, index, ex_data)) {
+        env->DeleteGlobalRef(ex_data->private_key);
+        delete ex_data;
+        conscrypt::jniutil::throwRuntimeException(env, "Could not attach private key");
+        return false;
+    }
+    return true;
+}
+
+static int RsaSetExData(void* rsa, int index, void* data) {
+    return RSA_set_ex_data(reinterpret_cast<RSA*>(rsa), index, data);
+}
+
+static int EcKeySetExData(void* eckey, int index, void* data) {
+    return EC_KEY_set_ex_data(reinterpret_cast<EC_KEY*>(eckey), index, data);
+}
+
+/*
+ * public static native long getRSAPrivateKeyWrapper(PrivateKey key, byte[] modulus);
+ *
+ * Returns an EVP_PKEY whose private key operations are delegated to |javaKey| through
+ * CryptoUpcalls.
+ */
+static jlong NativeCrypto_getRSAPrivateKeyWrapper(JNIEnv* env, jclass, jobject javaKey,
+                                                  jbyteArray modulusBytes) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    JNI_TRACE("getRSAPrivateKeyWrapper(%p, %p)", javaKey, modulusBytes);
+
+    UniquePtr<RSA> rsa(RSA_new());
+    if (rsa.get() == nullptr) {
+        conscrypt::jniutil::throwOutOfMemory(env, "Unable to allocate RSA key");
+        return 0;
+    }
+    if (!RSA_set_method(rsa.get(), RsaWrapperMethod())) {
+        conscrypt::jniutil::throwExceptionFromBoringSSLError(env, "RSA_set_method");
+        return 0;
+    }
+
+    BIGNUM* n = nullptr;
+    if (!arrayToBignum(env, modulusBytes, &n)) {
+        return 0;
+    }
+    UniquePtr<BIGNUM> nStorage(n);
+    // Note: just set e to 65537, the public exponent isn't passed in.
+    BIGNUM* e = nullptr;
+    if (!BN_dec2bn(&e, "65537")) {
+        conscrypt::jniutil::throwOutOfMemory(env, "Unable to allocate exponent");
+        return 0;
+    }
+    RSA_set0_key(rsa.get(), nStorage.release(), e, nullptr);
+
+    if (!attachJavaKey(env, javaKey, RsaSetExData, rsa.get(), RsaKeyExDataIndex())) {
+        return 0;
+    }
+
+    UniquePtr<EVP_PKEY> pkey(EVP_PKEY_new());
+    if (pkey.get() == nullptr || EVP_PKEY_assign_RSA(pkey.get(), rsa.get()) != 1) {
+        conscrypt::jniutil::throwRuntimeException(env, "getRSAPrivateKeyWrapper failed");
+        return 0;
+    }
+    OWNERSHIP_TRANSFERRED(rsa);
+    JNI_TRACE("getRSAPrivateKeyWrapper(%p, %p) => %p", javaKey, modulusBytes, pkey.get());
+    return reinterpret_cast<uintptr_t>(pkey.release());
+}
+
+/*
+ * public static native long getECPrivateKeyWrapper(PrivateKey key, NativeRef.EC_GROUP group,
+ *                                                  NativeRef.EC_POINT publicKey);
+ *
+ * Returns an EVP_PKEY whose signing operations are delegated to |javaKey| through
+ * CryptoUpcalls. OpenSSL needs the public key, if given, to match the key with its certificate.
+ */
+static jlong NativeCrypto_getECPrivateKeyWrapper(JNIEnv* env, jclass, jobject javaKey,
+                                                 jobject groupRef, jobject pubkeyRef) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    JNI_TRACE("getECPrivateKeyWrapper(%p, %p, %p)", javaKey, groupRef, pubkeyRef);
+    const EC_GROUP* group = fromContextObject<EC_GROUP>(env, groupRef);
+    if (group == nullptr) {
+        return 0;
+    }
+    const EC_POINT* pubkey = nullptr;
+    if (pubkeyRef != nullptr) {
+        pubkey = fromContextObject<EC_POINT>(env, pubkeyRef);
+        if (pubkey == nullptr) {
+            return 0;
+        }
+    }
+
+    UniquePtr<EC_KEY> eckey(EC_KEY_new());
+    if (eckey.get() == nullptr) {
+        conscrypt::jniutil::throwOutOfMemory(env, "Unable to allocate EC key");
+        return 0;
+    }
+    if (EC_KEY_set_group(eckey.get(), group) != 1 ||
+        EC_KEY_set_method(eckey.get(), EcWrapperMethod()) != 1) {
+        conscrypt::jniutil::throwExceptionFromBoringSSLError(env, "getECPrivateKeyWrapper");
+        return 0;
+    }
+    // Set before the key is shared, nothing may modify it afterwards.
+    if (pubkey != nullptr && EC_KEY_set_public_key(eckey.get(), pubkey) != 1) {
+        conscrypt::jniutil::throwExceptionFromBoringSSLError(env, "EC_KEY_set_public_key");
+        return 0;
+    }
+
+    if (!attachJavaKey(env, javaKey, EcKeySetExData, eckey.get(), EcKeyExDataIndex())) {
+        return 0;
+    }
+
+    UniquePtr<EVP_PKEY> pkey(EVP_PKEY_new());
+    if (pkey.get() == nullptr || EVP_PKEY_assign_EC_KEY(pkey.get(), eckey.get()) != 1) {
+        conscrypt::jniutil::throwRuntimeException(env, "getECPrivateKeyWrapper failed");
+        return 0;
+    }
+    OWNERSHIP_TRANSFERRED(eckey);
+    JNI_TRACE("getECPrivateKeyWrapper(%p, %p, %p) => %p", javaKey, groupRef, pubkeyRef,
+              pkey.get());
+    return reinterpret_cast<uintptr_t>(pkey.release());
+}
+
 /*
  * public static native int RSA_generate_key(int modulusBits, byte[] publicExponent);
  */
@@ -6207,6 +6508,61 @@ static SSL_SESSION* server_session_requested_callback(SSL* ssl, const uint8_t* i
     return ssl_session_ptr;
 }
 
+static int allow_early_data_callback(SSL* ssl, CONSCRYPT_UNUSED void* arg) {
+    JNI_TRACE("ssl=%p allow_early_data_callback", ssl);
+
+    AppData* appData = toAppData(ssl);
+    JNIEnv* env = appData->env;
+    if (env == nullptr) {
+        CONSCRYPT_LOG_ERROR("AppData->env missing in allow_early_data_callback");
+        JNI_TRACE("ssl=%p allow_early_data_callback env error", ssl);
+        return 0;
+    }
+    if (env->ExceptionCheck()) {
+        JNI_TRACE("ssl=%p allow_early_data_callback already pending exception", ssl);
+        return 0;
+    }
+
+    // The session being resumed identifies the ticket, the client random the ClientHello.
+    unsigned int id_len = 0;
+    const unsigned char* id = nullptr;
+    SSL_SESSION* session = SSL_get_session(ssl);
+    if (session != nullptr) {
+        id = SSL_SESSION_get_id(session, &id_len);
+    }
+    ScopedLocalRef<jbyteArray> id_array(env, env->NewByteArray(static_cast<jsize>(id_len)));
+    if (id_array.get() == nullptr) {
+        JNI_TRACE("ssl=%p allow_early_data_callback id_array == null => 0", ssl);
+        return 0;
+    }
+    env->SetByteArrayRegion(id_array.get(), 0, static_cast<jsize>(id_len),
+                            reinterpret_cast<const jbyte*>(id));
+
+    unsigned char random[SSL3_RANDOM_SIZE];
+    size_t random_len = SSL_get_client_random(ssl, random, sizeof(random));
+    ScopedLocalRef<jbyteArray> random_array(env,
+                                            env->NewByteArray(static_cast<jsize>(random_len)));
+    if (random_array.get() == nullptr) {
+        JNI_TRACE("ssl=%p allow_early_data_callback random_array == null => 0", ssl);
+        return 0;
+    }
+    env->SetByteArrayRegion(random_array.get(), 0, static_cast<jsize>(random_len),
+                            reinterpret_cast<const jbyte*>(random));
+
+    jobject sslHandshakeCallbacks = appData->sslHandshakeCallbacks;
+    jmethodID methodID = conscrypt::jniutil::sslHandshakeCallbacks_allowEarlyData;
+    JNI_TRACE("ssl=%p allow_early_data_callback calling allowEarlyData", ssl);
+    jboolean allow = env->CallBooleanMethod(sslHandshakeCallbacks, methodID, id_array.get(),
+                                            random_array.get());
+    if (env->ExceptionCheck()) {
+        // The exception fails the handshake once control is back in Java.
+        JNI_TRACE("ssl=%p allow_early_data_callback exception => 0", ssl);
+        return 0;
+    }
+    JNI_TRACE("ssl=%p allow_early_data_callback completed => %d", ssl, allow);
+    return allow ? 1 : 0;
+}
+
 static jint NativeCrypto_EVP_has_aes_hardware(JNIEnv* env, jclass) {
     CHECK_ERROR_QUEUE_ON_RETURN;
     int ret = 0;
@@ -6255,6 +6611,67 @@ static void debug_print_packet_data(const SSL* ssl, char direction, const char*
     CONSCRYPT_LOG(LOG_INFO, LOG_TAG "-jni", "ssl=%p SSL_DATA: %06zx", ssl, len);
 }
 
+/*
+ * The ticket_request extension of RFC 9149, which lets a client ask for a number of TLS 1.3
+ * session tickets. Servers that opted in and issue tickets at all issue as many as asked for, up
+ * to their configured maximum.
+ */
+static const unsigned int kTicketRequestExtension = 58;
+
+static int ticket_request_add_cb(SSL* ssl, unsigned int /* ext_type */,
+                                 unsigned int /* context */, const unsigned char** out,
+                                 size_t* outlen, X509* /* x */, size_t /* chainidx */,
+                                 int* /* al */, void* /* add_arg */) {
+    if (SSL_is_server(ssl)) {
+        return 0;
+    }
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr || appData->requestedTickets < 0) {
+        return 0;
+    }
+    unsigned char* data = reinterpret_cast<unsigned char*>(OPENSSL_malloc(2));
+    if (data == nullptr) {
+        return -1;
+    }
+    // The same count for new_session_count and resumption_count.
+    data[0] = static_cast<unsigned char>(appData->requestedTickets);
+    data[1] = static_cast<unsigned char>(appData->requestedTickets);
+    *out = data;
+    *outlen = 2;
+    JNI_TRACE("ssl=%p ticket_request_add_cb => %d tickets", ssl, appData->requestedTickets);
+    return 1;
+}
+
+static void ticket_request_free_cb(SSL* /* ssl */, unsigned int /* ext_type */,
+                                   unsigned int /* context */, const unsigned char* out,
+                                   void* /* add_arg */) {
+    OPENSSL_free(const_cast<unsigned char*>(out));
+}
+
+static int ticket_request_parse_cb(SSL* ssl, unsigned int /* ext_type */,
+                                   unsigned int /* context */, const unsigned char* in,
+                                   size_t inlen, X509* /* x */, size_t /* chainidx */, int* al,
+                                   void* /* parse_arg */) {
+    if (!SSL_is_server(ssl)) {
+        return 1;
+    }
+    if (inlen != 2) {
+        *al = SSL_AD_DECODE_ERROR;
+        return 0;
+    }
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr || appData->requestedTickets <= 0 || SSL_get_num_tickets(ssl) == 0) {
+        // This server doesn't issue tickets, or doesn't issue them on request.
+        return 1;
+    }
+    // Whether the session is resumed isn't known yet, so honor the larger of the counts.
+    int count = std::max(in[0], in[1]);
+    SSL_set_num_tickets(ssl, static_cast<size_t>(std::min(count, appData->requestedTickets)));
+    JNI_TRACE("ssl=%p ticket_request_parse_cb => %d tickets", ssl,
+              static_cast<int>(SSL_get_num_tickets(ssl)));
+    return 1;
+}
+
 static int cert_status_cb(SSL *ssl, void *arg) {
     JNI_TRACE("ssl=%p cert_status_cb", ssl);
     unsigned char *p = nullptr;
@@ -6391,50 +6808,288 @@ static void NativeCrypto_SSL_CTX_set_session_id_context(JNIEnv* env, jclass, jlo
     JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_session_id_context => ok", ssl_ctx);
 }
 
-static jlong NativeCrypto_SSL_CTX_set_timeout(JNIEnv* env, jclass, jlong ssl_ctx_address,
-                                              CONSCRYPT_UNUSED jobject holder, jlong seconds) {
-    CHECK_ERROR_QUEUE_ON_RETURN;
-    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
-    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_timeout seconds=%d", ssl_ctx, (int)seconds);
-    if (ssl_ctx == nullptr) {
-        return 0L;
+/**
+ * Session ticket keys installed with SSL_CTX_set_ticket_keys. Each key is the 16-byte name that
+ * tickets carry, a 32-byte HMAC-SHA256 key and a 32-byte AES-256-CBC key. The first key encrypts
+ * new tickets and all of them decrypt; tickets under any other key are counted as decrypted with
+ * a previous key and renewed. Until keys are installed, a random key takes the place of the keys
+ * the library would otherwise generate for the context.
+ */
+static const size_t kTicketKeyNameLength = 16;
+static const size_t kTicketKeyLength = 80;
+
+struct TicketKeys {
+    std::mutex mutex;
+    std::vector<uint8_t> keys;
+    std::atomic<uint64_t> current_key_decrypts{0};
+    std::atomic<uint64_t> previous_key_decrypts{0};
+    std::atomic<uint64_t> unknown_key_tickets{0};
+};
+
+static void TicketKeysFree(void* /* parent */, void* ptr, CRYPTO_EX_DATA* /* ad */,
+                           int /* index */, long /* argl */, void* /* argp */) {  // NOLINT(runtime/int)
+    TicketKeys* ticket_keys = reinterpret_cast<TicketKeys*>(ptr);
+    if (ticket_keys == nullptr) {
+        return;
     }
+    OPENSSL_cleanse(ticket_keys->keys.data(), ticket_keys->keys.size());
+    delete ticket_keys;
+}
 
-    return SSL_CTX_set_timeout(ssl_ctx, static_cast<uint32_t>(seconds));
+static int TicketKeysIndex() {
+    static int index = SSL_CTX_get_ex_new_index(0, nullptr, nullptr, nullptr, TicketKeysFree);
+    return index;
 }
 
-/**
- * public static native int SSL_new(long ssl_ctx) throws SSLException;
+static int ticket_key_callback(SSL* ssl, unsigned char* key_name, unsigned char* iv,
+                               EVP_CIPHER_CTX* cipher_ctx, EVP_MAC_CTX* mac_ctx, int encrypt) {
+    TicketKeys* ticket_keys = reinterpret_cast<TicketKeys*>(
+            SSL_CTX_get_ex_data(SSL_get_SSL_CTX(ssl), TicketKeysIndex()));
+    if (ticket_keys == nullptr) {
+        return -1;
+    }
+
+    uint8_t key[kTicketKeyLength];
+    size_t index = 0;
+    {
+        std::lock_guard<std::mutex> lock(ticket_keys->mutex);
+        size_t count = ticket_keys->keys.size() / kTicketKeyLength;
+        if (!encrypt) {
+            while (index < count &&
+                   CRYPTO_memcmp(&ticket_keys->keys[index * kTicketKeyLength], key_name,
+                                 kTicketKeyNameLength) != 0) {
+                index++;
+            }
+        }
+        if (index == count) {
+            JNI_TRACE("ssl=%p ticket_key_callback => unknown key", ssl);
+            ticket_keys->unknown_key_tickets++;
+            return 0;
+        }
+        memcpy(key, &ticket_keys->keys[index * kTicketKeyLength], kTicketKeyLength);
+    }
+
+    int result = -1;
+    OSSL_PARAM params[] = {
+            OSSL_PARAM_construct_octet_string(OSSL_MAC_PARAM_KEY, key + kTicketKeyNameLength, 32),
+            OSSL_PARAM_construct_utf8_string(OSSL_MAC_PARAM_DIGEST, const_cast<char*>("SHA256"),
+                                             0),
+            OSSL_PARAM_construct_end()};
+    if (encrypt) {
+        memcpy(key_name, key, kTicketKeyNameLength);
+        if (RAND_bytes(iv, EVP_CIPHER_iv_length(EVP_aes_256_cbc())) <= 0) {
+            OPENSSL_cleanse(key, sizeof(key));
+            return -1;
+        }
+    }
+    if (EVP_MAC_CTX_set_params(mac_ctx, params) &&
+        EVP_CipherInit_ex(cipher_ctx, EVP_aes_256_cbc(), nullptr,
+                          key + kTicketKeyNameLength + 32, iv, encrypt)) {
+        if (encrypt) {
+            result = 1;
+        } else if (index == 0) {
+            ticket_keys->current_key_decrypts++;
+            result = 1;
+        } else {
+            // Asks for a new ticket under the current key.
+            ticket_keys->previous_key_decrypts++;
+            result = 2;
+        }
+    }
+    OPENSSL_cleanse(key, sizeof(key));
+    JNI_TRACE("ssl=%p ticket_key_callback encrypt=%d index=%zu => %d", ssl, encrypt, index,
+              result);
+    return result;
+}
+
+/*
+ * public static native void SSL_CTX_init_ticket_keys(long ssl_ctx, AbstractSessionContext holder);
+ *
+ * Installs the ticket key callback with a random key. Must be called while the context is set up,
+ * before any SSL is created from it, so that installing keys later doesn't modify the SSL_CTX.
  */
-static jlong NativeCrypto_SSL_new(JNIEnv* env, jclass, jlong ssl_ctx_address,
-                                  CONSCRYPT_UNUSED jobject holder) {
+static void NativeCrypto_SSL_CTX_init_ticket_keys(JNIEnv* env, jclass, jlong ssl_ctx_address,
+                                                  CONSCRYPT_UNUSED jobject holder) {
     CHECK_ERROR_QUEUE_ON_RETURN;
     SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
-    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new", ssl_ctx);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_init_ticket_keys", ssl_ctx);
     if (ssl_ctx == nullptr) {
-        return 0;
+        return;
     }
-    UniquePtr<SSL> ssl(SSL_new(ssl_ctx));
-    if (ssl.get() == nullptr) {
-        conscrypt::jniutil::throwSSLExceptionWithSslErrors(env, nullptr, SSL_ERROR_NONE,
-                                                           "Unable to create SSL structure");
-        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new => null", ssl_ctx);
-        return 0;
+    if (SSL_CTX_get_ex_data(ssl_ctx, TicketKeysIndex()) != nullptr) {
+        conscrypt::jniutil::throwException(env, "java/lang/IllegalStateException",
+                                           "Ticket keys already initialized");
+        return;
     }
 
-    /*
-     * Create our special application data.
-     */
-    AppData* appData = AppData::create();
-    if (appData == nullptr) {
-        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to create application data");
-        ERR_clear_error();
-        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new appData => 0", ssl_ctx);
-        return 0;
+    std::unique_ptr<TicketKeys> new_keys(new TicketKeys());
+    new_keys->keys.resize(kTicketKeyLength);
+    if (RAND_bytes(new_keys->keys.data(), static_cast<int>(kTicketKeyLength)) <= 0 ||
+        !SSL_CTX_set_ex_data(ssl_ctx, TicketKeysIndex(), new_keys.get())) {
+        conscrypt::jniutil::throwExceptionFromBoringSSLError(
+                env, "NativeCrypto_SSL_CTX_init_ticket_keys");
+        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_init_ticket_keys => error", ssl_ctx);
+        return;
     }
-    SSL_set_app_data(ssl.get(), reinterpret_cast<char*>(appData));
+    new_keys.release();
+    SSL_CTX_set_tlsext_ticket_key_evp_cb(ssl_ctx, ticket_key_callback);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_init_ticket_keys => ok", ssl_ctx);
+}
 
-    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new => ssl=%p appData=%p", ssl_ctx, ssl.get(), appData);
+/*
+ * public static native void SSL_CTX_add_ticket_request_ext(long ssl_ctx,
+ *         AbstractSessionContext holder, boolean server);
+ *
+ * Registers the ticket_request extension, which clients send and servers parse. Must be called
+ * before any SSL is created from the context.
+ */
+static void NativeCrypto_SSL_CTX_add_ticket_request_ext(JNIEnv* env, jclass,
+                                                        jlong ssl_ctx_address,
+                                                        CONSCRYPT_UNUSED jobject holder,
+                                                        jboolean server) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_add_ticket_request_ext server=%d", ssl_ctx,
+              server);
+    if (ssl_ctx == nullptr) {
+        return;
+    }
+    int ret;
+    if (server) {
+        ret = SSL_CTX_add_custom_ext(ssl_ctx, kTicketRequestExtension,
+                                     SSL_EXT_CLIENT_HELLO | SSL_EXT_TLS1_3_ONLY, nullptr, nullptr,
+                                     nullptr, ticket_request_parse_cb, nullptr);
+    } else {
+        ret = SSL_CTX_add_custom_ext(ssl_ctx, kTicketRequestExtension,
+                                     SSL_EXT_CLIENT_HELLO | SSL_EXT_TLS1_3_ONLY,
+                                     ticket_request_add_cb, ticket_request_free_cb, nullptr,
+                                     nullptr, nullptr);
+    }
+    if (!ret) {
+        conscrypt::jniutil::throwExceptionFromBoringSSLError(env, "SSL_CTX_add_custom_ext");
+        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_add_ticket_request_ext => error", ssl_ctx);
+    }
+}
+
+/*
+ * public static native void SSL_CTX_set_ticket_keys(long ssl_ctx, AbstractSessionContext holder,
+ *         byte[] keys);
+ */
+static void NativeCrypto_SSL_CTX_set_ticket_keys(JNIEnv* env, jclass, jlong ssl_ctx_address,
+                                                 CONSCRYPT_UNUSED jobject holder,
+                                                 jbyteArray keys) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_ticket_keys keys=%p", ssl_ctx, keys);
+    if (ssl_ctx == nullptr) {
+        return;
+    }
+
+    ScopedByteArrayRO buf(env, keys);
+    if (buf.get() == nullptr) {
+        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_ticket_keys => threw exception", ssl_ctx);
+        return;
+    }
+    if (buf.size() == 0 || buf.size() % kTicketKeyLength != 0) {
+        conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
+                                           "keys.length is not a multiple of 80");
+        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_ticket_keys => length = %zu", ssl_ctx,
+                  buf.size());
+        return;
+    }
+    TicketKeys* ticket_keys =
+            reinterpret_cast<TicketKeys*>(SSL_CTX_get_ex_data(ssl_ctx, TicketKeysIndex()));
+    if (ticket_keys == nullptr) {
+        conscrypt::jniutil::throwException(env, "java/lang/IllegalStateException",
+                                           "Ticket keys not initialized");
+        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_ticket_keys => not initialized", ssl_ctx);
+        return;
+    }
+
+    const uint8_t* bytes = reinterpret_cast<const uint8_t*>(buf.get());
+    {
+        std::lock_guard<std::mutex> lock(ticket_keys->mutex);
+        OPENSSL_cleanse(ticket_keys->keys.data(), ticket_keys->keys.size());
+        ticket_keys->keys.assign(bytes, bytes + buf.size());
+    }
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_ticket_keys => %zu keys", ssl_ctx,
+              buf.size() / kTicketKeyLength);
+}
+
+/*
+ * public static native long[] SSL_CTX_get_ticket_key_stats(long ssl_ctx,
+ *         AbstractSessionContext holder);
+ */
+static jlongArray NativeCrypto_SSL_CTX_get_ticket_key_stats(JNIEnv* env, jclass,
+                                                            jlong ssl_ctx_address,
+                                                            CONSCRYPT_UNUSED jobject holder) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_get_ticket_key_stats", ssl_ctx);
+    if (ssl_ctx == nullptr) {
+        return nullptr;
+    }
+
+    jlong stats[3] = {0, 0, 0};
+    TicketKeys* ticket_keys =
+            reinterpret_cast<TicketKeys*>(SSL_CTX_get_ex_data(ssl_ctx, TicketKeysIndex()));
+    if (ticket_keys != nullptr) {
+        stats[0] = static_cast<jlong>(ticket_keys->current_key_decrypts.load());
+        stats[1] = static_cast<jlong>(ticket_keys->previous_key_decrypts.load());
+        stats[2] = static_cast<jlong>(ticket_keys->unknown_key_tickets.load());
+    }
+    ScopedLocalRef<jlongArray> result(env, env->NewLongArray(3));
+    if (result.get() == nullptr) {
+        return nullptr;
+    }
+    env->SetLongArrayRegion(result.get(), 0, 3, stats);
+    return result.release();
+}
+
+static jlong NativeCrypto_SSL_CTX_set_timeout(JNIEnv* env, jclass, jlong ssl_ctx_address,
+                                              CONSCRYPT_UNUSED jobject holder, jlong seconds) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_timeout seconds=%d", ssl_ctx, (int)seconds);
+    if (ssl_ctx == nullptr) {
+        return 0L;
+    }
+
+    return SSL_CTX_set_timeout(ssl_ctx, static_cast<uint32_t>(seconds));
+}
+
+/**
+ * public static native int SSL_new(long ssl_ctx) throws SSLException;
+ */
+static jlong NativeCrypto_SSL_new(JNIEnv* env, jclass, jlong ssl_ctx_address,
+                                  CONSCRYPT_UNUSED jobject holder) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new", ssl_ctx);
+    if (ssl_ctx == nullptr) {
+        return 0;
+    }
+    UniquePtr<SSL> ssl(SSL_new(ssl_ctx));
+    if (ssl.get() == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionWithSslErrors(env, nullptr, SSL_ERROR_NONE,
+                                                           "Unable to create SSL structure");
+        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new => null", ssl_ctx);
+        return 0;
+    }
+
+    /*
+     * Create our special application data.
+     */
+    AppData* appData = AppData::create();
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to create application data");
+        ERR_clear_error();
+        JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new appData => 0", ssl_ctx);
+        return 0;
+    }
+    SSL_set_app_data(ssl.get(), reinterpret_cast<char*>(appData));
+
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_new => ssl=%p appData=%p", ssl_ctx, ssl.get(), appData);
     return (jlong)ssl.release();
 }
 
@@ -6556,6 +7211,79 @@ static void NativeCrypto_setLocalCertsAndPrivateKey(JNIEnv* env, jclass, jlong s
     JNI_TRACE("ssl=%p NativeCrypto_setLocalCertsAndPrivateKey => ok", ssl);
 }
 
+/**
+ * Like setLocalCertsAndPrivateKey, but takes the certificates as references to already parsed
+ * X509s, which the SSL takes its own references to. |certificatesHolder| keeps the Java objects
+ * owning the X509s reachable for the duration of the call.
+ */
+static void NativeCrypto_setLocalCertRefsAndPrivateKey(JNIEnv* env, jclass, jlong ssl_address,
+                                                       CONSCRYPT_UNUSED jobject ssl_holder,
+                                                       jlongArray certificateRefs,
+                                                       CONSCRYPT_UNUSED jobject certificatesHolder,
+                                                       jobject pkeyRef) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey certificates=%p, privateKey=%p",
+              ssl, certificateRefs, pkeyRef);
+    if (ssl == nullptr) {
+        return;
+    }
+    if (certificateRefs == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "certificates == null");
+        JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey => certificates == null", ssl);
+        return;
+    }
+    ScopedLongArrayRO refs(env, certificateRefs);
+    if (refs.get() == nullptr) {
+        JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey => using long array failed",
+                  ssl);
+        return;
+    }
+    if (refs.size() == 0) {
+        conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
+                                           "certificates.length == 0");
+        JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey => certificates.length == 0",
+                  ssl);
+        return;
+    }
+    if (pkeyRef == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "privateKey == null");
+        JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey => privateKey == null", ssl);
+        return;
+    }
+
+    EVP_PKEY* pkey = fromContextObject<EVP_PKEY>(env, pkeyRef);
+    if (pkey == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "pkey == null");
+        JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey => pkey == null", ssl);
+        return;
+    }
+
+    UniquePtr<STACK_OF(X509)> chain(sk_X509_new_null());
+    if (chain.get() == nullptr) {
+        conscrypt::jniutil::throwOutOfMemory(env, "Unable to allocate chain stack");
+        return;
+    }
+    X509* cert = reinterpret_cast<X509*>(static_cast<uintptr_t>(refs[0]));
+    for (size_t i = 1; i < refs.size(); ++i) {
+        // The chain owns a reference to each certificate on it.
+        X509* x509 = reinterpret_cast<X509*>(static_cast<uintptr_t>(refs[i]));
+        if (sk_X509_push(chain.get(), x509) <= 0) {
+            conscrypt::jniutil::throwOutOfMemory(env, "Unable to allocate chain stack");
+            return;
+        }
+        X509_up_ref(x509);
+    }
+
+    if (SSL_use_cert_and_key(ssl, cert, pkey, chain.get(), 1) != 1) {
+        conscrypt::jniutil::throwSSLExceptionWithSslErrors(env, ssl, SSL_ERROR_NONE,
+                                                           "Error configuring certificate");
+        JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey => error", ssl);
+        return;
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_setLocalCertRefsAndPrivateKey => ok", ssl);
+}
+
 static void NativeCrypto_SSL_set_client_CA_list(JNIEnv* env, jclass, jlong ssl_address,
                                                 CONSCRYPT_UNUSED jobject ssl_holder,
                                                 jobjectArray principals) {
@@ -6664,6 +7392,182 @@ static jlong NativeCrypto_SSL_clear_options(JNIEnv* env, jclass, jlong ssl_addre
     return result;
 }
 
+/**
+ * public static native boolean SSL_enable_ktls(long ssl, NativeSsl ssl_holder);
+ */
+static jboolean NativeCrypto_SSL_enable_ktls(JNIEnv* env, jclass, jlong ssl_address,
+                                             CONSCRYPT_UNUSED jobject ssl_holder) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_enable_ktls", ssl);
+    if (ssl == nullptr) {
+        return JNI_FALSE;
+    }
+#if defined(SSL_OP_ENABLE_KTLS) && !defined(OPENSSL_NO_KTLS)
+    // The keys are handed to the kernel when they are installed, provided the socket has the
+    // tls ULP and the cipher is supported. Otherwise records keep being processed in user space.
+    SSL_set_options(ssl, SSL_OP_ENABLE_KTLS);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_enable_ktls => true", ssl);
+    return JNI_TRUE;
+#else
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_enable_ktls => false", ssl);
+    return JNI_FALSE;
+#endif
+}
+
+/**
+ * public static native int SSL_get_ktls_status(long ssl, NativeSsl ssl_holder);
+ */
+static jint NativeCrypto_SSL_get_ktls_status(JNIEnv* env, jclass, jlong ssl_address,
+                                             CONSCRYPT_UNUSED jobject ssl_holder) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_get_ktls_status", ssl);
+    if (ssl == nullptr) {
+        return 0;
+    }
+    jint status = 0;
+#if defined(SSL_OP_ENABLE_KTLS) && !defined(OPENSSL_NO_KTLS)
+    // Must match the KTLS_* constants in NativeSsl.
+    BIO* wbio = SSL_get_wbio(ssl);
+    if (wbio != nullptr && BIO_get_ktls_send(wbio)) {
+        status |= 1;
+    }
+    BIO* rbio = SSL_get_rbio(ssl);
+    if (rbio != nullptr && BIO_get_ktls_recv(rbio)) {
+        status |= 2;
+    }
+#endif
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_get_ktls_status => %d", ssl, status);
+    return status;
+}
+
+/**
+ * public static native boolean SSL_set_retry_verify(long ssl, NativeSsl ssl_holder);
+ *
+ * Only meaningful from within the certificate verification callback of a client: suspends the
+ * handshake with SSL_ERROR_WANT_RETRY_VERIFY, and the callback runs again when the handshake is
+ * resumed. Returns false if the library can't suspend the handshake.
+ */
+static jboolean NativeCrypto_SSL_set_retry_verify(JNIEnv* env, jclass, jlong ssl_address,
+                                                  CONSCRYPT_UNUSED jobject ssl_holder) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_retry_verify", ssl);
+    if (ssl == nullptr) {
+        return JNI_FALSE;
+    }
+#ifdef SSL_CTRL_SET_RETRY_VERIFY
+    jboolean result = SSL_set_retry_verify(ssl) ? JNI_TRUE : JNI_FALSE;
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_retry_verify => %d", ssl, result);
+    return result;
+#else
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_retry_verify => false", ssl);
+    return JNI_FALSE;
+#endif
+}
+
+/*
+ * public static native void SSL_set_ticket_request(long ssl, NativeSsl ssl_holder, int count);
+ */
+static void NativeCrypto_SSL_set_ticket_request(JNIEnv* env, jclass, jlong ssl_address,
+                                                CONSCRYPT_UNUSED jobject ssl_holder,
+                                                jint count) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_ticket_request count=%d", ssl, count);
+    if (ssl == nullptr) {
+        return;
+    }
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
+        return;
+    }
+    appData->requestedTickets = std::max(-1, std::min(count, static_cast<jint>(UINT8_MAX)));
+}
+
+/**
+ * public static native void SSL_set_max_early_data(long ssl, NativeSsl ssl_holder, int max);
+ *
+ * Sets the amount of TLS 1.3 early data a server accepts, and advertises in the tickets it
+ * issues. Early data needs tickets, so at least one is issued when early data is enabled.
+ */
+static void NativeCrypto_SSL_set_max_early_data(JNIEnv* env, jclass, jlong ssl_address,
+                                                CONSCRYPT_UNUSED jobject ssl_holder,
+                                                jint max_early_data) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_max_early_data max=%d", ssl, max_early_data);
+    if (ssl == nullptr) {
+        return;
+    }
+    uint32_t max = static_cast<uint32_t>(max_early_data);
+    if (!SSL_set_max_early_data(ssl, max) || !SSL_set_recv_max_early_data(ssl, max)) {
+        conscrypt::jniutil::throwExceptionFromBoringSSLError(env, "SSL_set_max_early_data");
+        JNI_TRACE("ssl=%p NativeCrypto_SSL_set_max_early_data => error", ssl);
+        return;
+    }
+    if (max > 0 && SSL_get_num_tickets(ssl) == 0) {
+        SSL_set_num_tickets(ssl, 1);
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_max_early_data => ok", ssl);
+}
+
+/*
+ * public static native void SSL_set_num_tickets(long ssl, NativeSsl ssl_holder, int count);
+ */
+static void NativeCrypto_SSL_set_num_tickets(JNIEnv* env, jclass, jlong ssl_address,
+                                             CONSCRYPT_UNUSED jobject ssl_holder, jint count) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_num_tickets count=%d", ssl, count);
+    if (ssl == nullptr) {
+        return;
+    }
+    if (count < 0 || !SSL_set_num_tickets(ssl, static_cast<size_t>(count))) {
+        conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
+                                           "Invalid number of tickets");
+        JNI_TRACE("ssl=%p NativeCrypto_SSL_set_num_tickets => error", ssl);
+    }
+}
+
+/**
+ * public static native int SSL_get_early_data_status(long ssl, NativeSsl ssl_holder);
+ *
+ * Returns one of SSL_EARLY_DATA_NOT_SENT, SSL_EARLY_DATA_REJECTED and SSL_EARLY_DATA_ACCEPTED.
+ */
+static jint NativeCrypto_SSL_get_early_data_status(JNIEnv* env, jclass, jlong ssl_address,
+                                                   CONSCRYPT_UNUSED jobject ssl_holder) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_get_early_data_status", ssl);
+    if (ssl == nullptr) {
+        return SSL_EARLY_DATA_NOT_SENT;
+    }
+    jint status = SSL_get_early_data_status(ssl);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_get_early_data_status => %d", ssl, status);
+    return status;
+}
+
+/**
+ * public static native void SSL_set_allow_early_data_cb(long ssl, NativeSsl ssl_holder);
+ *
+ * Leaves the decision whether to accept early data to the allowEarlyData handshake callback,
+ * in place of the library's own replay protection.
+ */
+static void NativeCrypto_SSL_set_allow_early_data_cb(JNIEnv* env, jclass, jlong ssl_address,
+                                                     CONSCRYPT_UNUSED jobject ssl_holder) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_allow_early_data_cb", ssl);
+    if (ssl == nullptr) {
+        return;
+    }
+    SSL_set_allow_early_data_cb(ssl, allow_early_data_callback, nullptr);
+    SSL_set_options(ssl, SSL_OP_NO_ANTI_REPLAY);
+}
+
 static jint NativeCrypto_SSL_set_protocol_versions(JNIEnv* env, jclass, jlong ssl_address,
                                                    CONSCRYPT_UNUSED jobject ssl_holder,
                                                    jint min_version, jint max_version) {
@@ -6981,23 +7885,61 @@ static jlongArray NativeCrypto_SSL_get_ciphers(JNIEnv* env, jclass, jlong ssl_ad
     return ciphersArray.release();
 }
 
-/**
- * Sets the ciphers suites that are enabled in the SSL
+/*
+ * Builds the OpenSSL cipher strings for TLS 1.2 and below and for TLS 1.3 from an array of cipher
+ * suite names, each a colon-separated list. Returns false with an exception pending on failure.
  */
-static void NativeCrypto_SSL_set_cipher_lists(JNIEnv* env, jclass, jlong ssl_address,
-                                              CONSCRYPT_UNUSED jobject ssl_holder,
-                                              jobjectArray cipherSuites) {
-    CHECK_ERROR_QUEUE_ON_RETURN;
-    SSL* ssl = to_SSL(env, ssl_address, true);
-    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_cipher_lists cipherSuites=%p", ssl, cipherSuites);
-    if (ssl == nullptr) {
-        return;
-    }
-    if (cipherSuites == nullptr) {
-        conscrypt::jniutil::throwNullPointerException(env, "cipherSuites == null");
-        return;
-    }
-
+static bool buildCipherStrings(JNIEnv* env, jobjectArray cipherSuites, std::string* cipherString,
+                               std::string* tls13CipherString) {
+    int length = env->GetArrayLength(cipherSuites);
+    for (int i = 0; i < length; i++) {
+        ScopedLocalRef<jstring> cipherSuite(
+                env, reinterpret_cast<jstring>(env->GetObjectArrayElement(cipherSuites, i)));
+        ScopedUtfChars c(env, cipherSuite.get());
+        if (c.c_str() == nullptr) {
+            return false;
+        }
+
+        /* stdname => OpenSSL name */
+        const char *name = OPENSSL_cipher_name(c.c_str());
+        if (strcmp("(NONE)", name) == 0) {
+            name = c.c_str();
+        }
+
+        std::string* target = tls13_ciphersuites.find(name) != tls13_ciphersuites.end()
+                                       ? tls13CipherString
+                                       : cipherString;
+        if (!target->empty()) {
+            target->push_back(':');
+        }
+        target->append(name);
+    }
+
+    if (cipherString->empty() && tls13CipherString->empty()) {
+        conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
+                                           "Empty cipher suite strings.");
+        return false;
+    }
+    return true;
+}
+
+/**
+ * Sets the ciphers suites that are enabled in the SSL
+ */
+static void NativeCrypto_SSL_set_cipher_lists(JNIEnv* env, jclass, jlong ssl_address,
+                                              CONSCRYPT_UNUSED jobject ssl_holder,
+                                              jobjectArray cipherSuites) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_cipher_lists cipherSuites=%p", ssl, cipherSuites);
+    if (ssl == nullptr) {
+        return;
+    }
+    if (cipherSuites == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "cipherSuites == null");
+        return;
+    }
+
     int length = env->GetArrayLength(cipherSuites);
 
     /*
@@ -7021,112 +7963,121 @@ static void NativeCrypto_SSL_set_cipher_lists(JNIEnv* env, jclass, jlong ssl_add
         return;
     }
 
-    size_t cipherStringLen = 0;
-
-    for (int i = 0; i < length; i++) {
-        ScopedLocalRef<jstring> cipherSuite(
-                env, reinterpret_cast<jstring>(env->GetObjectArrayElement(cipherSuites, i)));
-        ScopedUtfChars c(env, cipherSuite.get());
-        if (c.c_str() == nullptr) {
-            return;
-        }
-
-        if (cipherStringLen + 1 < cipherStringLen) {
-            conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
-                                               "Overflow in cipher suite strings");
-            return;
-        }
-
-        if (cipherStringLen != 0) {
-            cipherStringLen += 1; /* For the separating colon */
-        }
-
-        /* stdname => OpenSSL name */
-        const char *name = OPENSSL_cipher_name(c.c_str());
-        if (strcmp("(NONE)", name) == 0) {
-            name = c.c_str();
-        }
-
-        size_t len = strlen(name);
-        if (cipherStringLen + len < cipherStringLen) {
-            conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
-                                               "Overflow in cipher suite strings");
-            return;
-        }
-
-        cipherStringLen += len;
+    std::string cipherString;
+    std::string tls13CipherString;
+    if (!buildCipherStrings(env, cipherSuites, &cipherString, &tls13CipherString)) {
+        return;
     }
 
-    if (cipherStringLen == 0) {
-
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_cipher_lists cipherlist=%s", ssl, cipherString.c_str());
+    if (!cipherString.empty() && !SSL_set_cipher_list(ssl, cipherString.c_str())) {
+        ERR_clear_error();
         conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
-                                           "Empty cipher suite strings.");
+                                           "Illegal cipher suite strings.");
         return;
     }
 
-    if (cipherStringLen + 1 < cipherStringLen) {
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_cipher_lists TLSv1.3 cipherSuites=%s", ssl,
+              tls13CipherString.c_str());
+    if (!tls13CipherString.empty() && !SSL_set_ciphersuites(ssl, tls13CipherString.c_str())) {
+        ERR_clear_error();
         conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
-                                           "Overflow in cipher suite strings");
+                                           "Illegal tls1.3 cipher suite strings.");
         return;
     }
-    cipherStringLen += 1; /* For final NUL. */
+}
 
-    std::unique_ptr<char[]> cipherString(new char[cipherStringLen]);
-    std::unique_ptr<char[]> tls13CipherString(new char[cipherStringLen]);
-    if (cipherString.get() == nullptr || tls13CipherString.get() == nullptr) {
-        conscrypt::jniutil::throwOutOfMemory(env, "Unable to alloc cipher string");
+/*
+ * public static native void SSL_CTX_set_cipher_lists(long ssl_ctx, AbstractSessionContext holder,
+ *         String[] cipherSuites);
+ */
+static void NativeCrypto_SSL_CTX_set_cipher_lists(JNIEnv* env, jclass, jlong ssl_ctx_address,
+                                                  CONSCRYPT_UNUSED jobject holder,
+                                                  jobjectArray cipherSuites) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_cipher_lists cipherSuites=%p", ssl_ctx,
+              cipherSuites);
+    if (ssl_ctx == nullptr) {
         return;
     }
-
-    size_t j = 0;
-    size_t k = 0;
-
-    for (int i = 0; i < length; i++) {
-        ScopedLocalRef<jstring> cipherSuite(
-                env, reinterpret_cast<jstring>(env->GetObjectArrayElement(cipherSuites, i)));
-        ScopedUtfChars c(env, cipherSuite.get());
-
-        /* stdname => OpenSSL name */
-        const char *name = OPENSSL_cipher_name(c.c_str());
-        if (strcmp("(NONE)", name) == 0) {
-            name = c.c_str();
-        }
-
-        if (tls13_ciphersuites.find(name) != tls13_ciphersuites.end()) {
-            if (k != 0) {
-                tls13CipherString[k++] = ':';
-            }
-
-            memcpy(&tls13CipherString[k], name, strlen(name));
-            k += strlen(name);
-        } else {
-            if (j != 0) {
-                cipherString[j++] = ':';
-            }
-
-            memcpy(&cipherString[j], name, strlen(name));
-            j += strlen(name);
-        }
+    if (cipherSuites == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "cipherSuites == null");
+        return;
     }
 
-    cipherString[j++] = 0;
-    tls13CipherString[k++] = 0;
-
-    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_cipher_lists cipherlist=%s", ssl, cipherString.get());
-    if (j > 1 && !SSL_set_cipher_list(ssl, cipherString.get())) {
+    std::string cipherString;
+    std::string tls13CipherString;
+    if (!buildCipherStrings(env, cipherSuites, &cipherString, &tls13CipherString)) {
+        return;
+    }
+    // Unlike for a single SSL, an empty list leaves the context's default in place.
+    if (!cipherString.empty() && !SSL_CTX_set_cipher_list(ssl_ctx, cipherString.c_str())) {
         ERR_clear_error();
         conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
                                            "Illegal cipher suite strings.");
         return;
     }
-
-    JNI_TRACE("ssl=%p NativeCrypto_SSL_set_cipher_lists TLSv1.3 cipherSuites=%s", ssl, tls13CipherString.get());
-    if (k > 1 && !SSL_set_ciphersuites(ssl, tls13CipherString.get())) {
+    if (!tls13CipherString.empty() &&
+        !SSL_CTX_set_ciphersuites(ssl_ctx, tls13CipherString.c_str())) {
         ERR_clear_error();
         conscrypt::jniutil::throwException(env, "java/lang/IllegalArgumentException",
                                            "Illegal tls1.3 cipher suite strings.");
         return;
     }
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_cipher_lists => %s %s", ssl_ctx,
+              cipherString.c_str(), tls13CipherString.c_str());
+}
+
+/*
+ * public static native int SSL_CTX_set_protocol_versions(long ssl_ctx,
+ *         AbstractSessionContext holder, int min_version, int max_version);
+ */
+static jint NativeCrypto_SSL_CTX_set_protocol_versions(JNIEnv* env, jclass,
+                                                       jlong ssl_ctx_address,
+                                                       CONSCRYPT_UNUSED jobject holder,
+                                                       jint min_version, jint max_version) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_protocol_versions min=0x%x max=0x%x",
+              ssl_ctx, min_version, max_version);
+    if (ssl_ctx == nullptr) {
+        return 0;
+    }
+    int min_result = SSL_CTX_set_min_proto_version(ssl_ctx, static_cast<uint16_t>(min_version));
+    int max_result = SSL_CTX_set_max_proto_version(ssl_ctx, static_cast<uint16_t>(max_version));
+    if (!min_result || !max_result) {
+        // The only possible error is an invalid version, so we don't need the details.
+        ERR_clear_error();
+        return 0;
+    }
+    return 1;
+}
+
+/*
+ * public static native void SSL_CTX_set_alpn_protos(long ssl_ctx, AbstractSessionContext holder,
+ *         byte[] protocols);
+ */
+static void NativeCrypto_SSL_CTX_set_alpn_protos(JNIEnv* env, jclass, jlong ssl_ctx_address,
+                                                 CONSCRYPT_UNUSED jobject holder,
+                                                 jbyteArray protocols) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_CTX* ssl_ctx = to_SSL_CTX(env, ssl_ctx_address, true);
+    JNI_TRACE("ssl_ctx=%p NativeCrypto_SSL_CTX_set_alpn_protos protocols=%p", ssl_ctx,
+              protocols);
+    if (ssl_ctx == nullptr) {
+        return;
+    }
+    ScopedByteArrayRO protosBytes(env, protocols);
+    if (protosBytes.get() == nullptr) {
+        return;
+    }
+    const unsigned char* tmp = reinterpret_cast<const unsigned char*>(protosBytes.get());
+    if (SSL_CTX_set_alpn_protos(ssl_ctx, tmp, static_cast<unsigned int>(protosBytes.size())) !=
+        0) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set ALPN protocols");
+        return;
+    }
 }
 
 static void NativeCrypto_SSL_set_accept_state(JNIEnv* env, jclass, jlong ssl_address,
@@ -8137,6 +9088,27 @@ static int sslWrite(JNIEnv* env, SSL* ssl, jobject fdObject, jobject shc, const
     return count;
 }
 
+/**
+ * Throws the exception matching a failed sslWrite() result, if any.
+ */
+static void throwForSslWriteResult(JNIEnv* env, SSL* ssl, int ret, SslError* sslError) {
+    switch (ret) {
+        case THROW_SSLEXCEPTION:
+            // See sslWrite() regarding improper failure to handle normal cases.
+            conscrypt::jniutil::throwSSLExceptionWithSslErrors(env, ssl, sslError->release(),
+                                                               "Write error");
+            break;
+        case THROW_SOCKETTIMEOUTEXCEPTION:
+            conscrypt::jniutil::throwSocketTimeoutException(env, "Write timed out");
+            break;
+        case THROWN_EXCEPTION:
+            // SocketException thrown by NetFd.isClosed
+            break;
+        default:
+            break;
+    }
+}
+
 /**
  * OpenSSL write function (2): write into buffer at offset n chunks.
  */
@@ -8217,21 +9189,146 @@ static void NativeCrypto_SSL_write(JNIEnv* env, jclass, jlong ssl_address,
                        len, &sslError, write_timeout_millis);
     }
 
-    switch (ret) {
-        case THROW_SSLEXCEPTION:
-            // See sslWrite() regarding improper failure to handle normal cases.
-            conscrypt::jniutil::throwSSLExceptionWithSslErrors(env, ssl, sslError.release(),
-                                                               "Write error");
-            break;
-        case THROW_SOCKETTIMEOUTEXCEPTION:
-            conscrypt::jniutil::throwSocketTimeoutException(env, "Write timed out");
-            break;
-        case THROWN_EXCEPTION:
-            // SocketException thrown by NetFd.isClosed
-            break;
-        default:
-            break;
+    throwForSslWriteResult(env, ssl, ret, &sslError);
+}
+
+/**
+ * Writes the plaintext at the given native address, e.g. that of a direct or memory-mapped
+ * buffer, without copying it into a Java array first.
+ */
+static void NativeCrypto_SSL_write_direct(JNIEnv* env, jclass, jlong ssl_address,
+                                          CONSCRYPT_UNUSED jobject ssl_holder, jobject fdObject,
+                                          jobject shc, jlong address, jint len,
+                                          jint write_timeout_millis) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_write_direct fd=%p shc=%p address=%p len=%d", ssl,
+              fdObject, shc, reinterpret_cast<void*>(address), len);
+    if (ssl == nullptr) {
+        return;
+    }
+    if (fdObject == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "fd == null");
+        JNI_TRACE("ssl=%p NativeCrypto_SSL_write_direct => fd == null", ssl);
+        return;
+    }
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_SSL_write_direct => sslHandshakeCallbacks == null", ssl);
+        return;
+    }
+
+    SslError sslError;
+    int ret = sslWrite(env, ssl, fdObject, shc, reinterpret_cast<const char*>(address), len,
+                       &sslError, write_timeout_millis);
+    throwForSslWriteResult(env, ssl, ret, &sslError);
+}
+
+#if defined(SSL_OP_ENABLE_KTLS) && !defined(OPENSSL_NO_KTLS)
+/**
+ * Sends a file region with SSL_sendfile, which requires kTLS to be active for sending. The
+ * kernel encrypts the data, so it never enters user space. Returns the number of bytes sent or
+ * one of the THROW_* codes.
+ */
+static int64_t sslSendfile(JNIEnv* env, SSL* ssl, jobject fdObject, int fileFd, int64_t offset,
+                           int64_t count, SslError* sslError, int write_timeout_millis) {
+    AppData* appData = toAppData(ssl);
+    JNI_TRACE("ssl=%p sslSendfile appData=%p", ssl, appData);
+    if (appData == nullptr) {
+        return THROW_SSLEXCEPTION;
+    }
+
+    int64_t sent = 0;
+    while (appData->aliveAndKicking && sent < count) {
+        errno = 0;
+
+        std::unique_lock<std::mutex> appDataLock(appData->mutex);
+        size_t chunk = static_cast<size_t>(std::min<int64_t>(count - sent, INT_MAX));
+        ossl_ssize_t result =
+                SSL_sendfile(ssl, fileFd, static_cast<off_t>(offset + sent), chunk, 0);
+        sslError->reset(ssl, result > 0 ? 1 : static_cast<int>(result));
+        JNI_TRACE("ssl=%p sslSendfile SSL_sendfile result=%zd sslError=%d", ssl, result,
+                  sslError->get());
+        if (sslError->get() == SSL_ERROR_WANT_READ || sslError->get() == SSL_ERROR_WANT_WRITE) {
+            appData->waitingThreads++;
+        }
+        appDataLock.unlock();
+
+        switch (sslError->get()) {
+            case SSL_ERROR_NONE: {
+                sent += result;
+                break;
+            }
+            case SSL_ERROR_WANT_READ:
+            case SSL_ERROR_WANT_WRITE: {
+                int selectResult =
+                        sslSelect(env, sslError->get(), fdObject, appData, write_timeout_millis);
+                if (selectResult == THROWN_EXCEPTION) {
+                    return THROWN_EXCEPTION;
+                }
+                if (selectResult == -1) {
+                    return THROW_SSLEXCEPTION;
+                }
+                if (selectResult == 0) {
+                    return THROW_SOCKETTIMEOUTEXCEPTION;
+                }
+                break;
+            }
+            case SSL_ERROR_SYSCALL: {
+                if (errno == EINTR) {
+                    break;
+                }
+                FALLTHROUGH_INTENDED;
+            }
+            default: { return THROW_SSLEXCEPTION; }
+        }
+    }
+    JNI_TRACE("ssl=%p sslSendfile => %lld", ssl, static_cast<long long>(sent));  // NOLINT
+    return sent;
+}
+#endif
+
+/**
+ * Sends {@code count} bytes of the file starting at {@code offset} using kernel TLS. Returns the
+ * number of bytes sent.
+ */
+static jlong NativeCrypto_SSL_sendfile(JNIEnv* env, jclass, jlong ssl_address,
+                                       CONSCRYPT_UNUSED jobject ssl_holder, jobject fdObject,
+                                       jobject fileObject, jlong offset, jlong count,
+                                       jint write_timeout_millis) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    JNI_TRACE("ssl=%p NativeCrypto_SSL_sendfile fd=%p file=%p offset=%lld count=%lld", ssl,
+              fdObject, fileObject, static_cast<long long>(offset),  // NOLINT
+              static_cast<long long>(count));                        // NOLINT
+    if (ssl == nullptr) {
+        return 0;
     }
+    if (fdObject == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "fd == null");
+        JNI_TRACE("ssl=%p NativeCrypto_SSL_sendfile => fd == null", ssl);
+        return 0;
+    }
+    if (fileObject == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "file == null");
+        JNI_TRACE("ssl=%p NativeCrypto_SSL_sendfile => file == null", ssl);
+        return 0;
+    }
+#if defined(SSL_OP_ENABLE_KTLS) && !defined(OPENSSL_NO_KTLS)
+    int fileFd = conscrypt::jniutil::jniGetFDFromFileDescriptor(env, fileObject);
+    SslError sslError;
+    int64_t ret = sslSendfile(env, ssl, fdObject, fileFd, offset, count, &sslError,
+                              write_timeout_millis);
+    if (ret < 0) {
+        throwForSslWriteResult(env, ssl, static_cast<int>(ret), &sslError);
+        return 0;
+    }
+    return static_cast<jlong>(ret);
+#else
+    (void)write_timeout_millis;
+    conscrypt::jniutil::throwSSLExceptionStr(env, "Kernel TLS is not supported");
+    return 0;
+#endif
 }
 
 /**
@@ -8690,12 +9787,31 @@ static jboolean NativeCrypto_SSL_SESSION_should_be_single_use(JNIEnv* env, jclas
 }
 
 /**
- * Increments the reference count of the session.
+ * Returns the amount of early data the server accepts on resumption of the session, or zero if
+ * the session can't be used to send early data.
  */
-static void NativeCrypto_SSL_SESSION_up_ref(JNIEnv* env, jclass, jlong ssl_session_address) {
+static jint NativeCrypto_SSL_SESSION_get_max_early_data(JNIEnv* env, jclass,
+                                                        jlong ssl_session_address) {
     CHECK_ERROR_QUEUE_ON_RETURN;
     SSL_SESSION* ssl_session = to_SSL_SESSION(env, ssl_session_address, true);
-    JNI_TRACE("ssl_session=%p NativeCrypto_SSL_SESSION_up_ref", ssl_session);
+    JNI_TRACE("ssl_session=%p NativeCrypto_SSL_SESSION_get_max_early_data", ssl_session);
+    if (ssl_session == nullptr) {
+        return 0;
+    }
+    uint32_t max = SSL_SESSION_get_max_early_data(ssl_session);
+    jint result = max > INT32_MAX ? INT32_MAX : static_cast<jint>(max);
+    JNI_TRACE("ssl_session=%p NativeCrypto_SSL_SESSION_get_max_early_data => %d", ssl_session,
+              result);
+    return result;
+}
+
+/**
+ * Increments the reference count of the session.
+ */
+static void NativeCrypto_SSL_SESSION_up_ref(JNIEnv* env, jclass, jlong ssl_session_address) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL_SESSION* ssl_session = to_SSL_SESSION(env, ssl_session_address, true);
+    JNI_TRACE("ssl_session=%p NativeCrypto_SSL_SESSION_up_ref", ssl_session);
     if (ssl_session == nullptr) {
         return;
     }
@@ -9047,6 +10163,13 @@ static jint NativeCrypto_ENGINE_SSL_do_handshake(JNIEnv* env, jclass, jlong ssl_
         JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_do_handshake shc=%p => ret=%d", ssl, shc, code);
         return code;
     }
+#ifdef SSL_ERROR_WANT_RETRY_VERIFY
+    if (code == SSL_ERROR_WANT_RETRY_VERIFY) {
+        // Certificate verification was handed off to a delegated task.
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_do_handshake shc=%p => retry verify", ssl, shc);
+        return code;
+    }
+#endif
 
     // Exceptional case...
     if (ret == 0) {
@@ -9147,48 +10270,12 @@ static void NativeCrypto_ENGINE_SSL_shutdown(JNIEnv* env, jclass, jlong ssl_addr
     ERR_clear_error();
 }
 
-static jint NativeCrypto_ENGINE_SSL_read_direct(JNIEnv* env, jclass, jlong ssl_address,
-                                                CONSCRYPT_UNUSED jobject ssl_holder, jlong address,
-                                                jint length, jobject shc) {
-    CHECK_ERROR_QUEUE_ON_RETURN;
-    SSL* ssl = to_SSL(env, ssl_address, true);
-    char* destPtr = reinterpret_cast<char*>(address);
-    if (ssl == nullptr) {
-        return -1;
-    }
-    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct address=%p length=%d shc=%p", ssl,
-              destPtr, length, shc);
-
-    if (shc == nullptr) {
-        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
-        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => sslHandshakeCallbacks == null",
-                  ssl);
-        return -1;
-    }
-    AppData* appData = toAppData(ssl);
-    if (appData == nullptr) {
-        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
-        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => appData == null", ssl);
-        return -1;
-    }
-    if (!appData->setCallbackState(env, shc, nullptr)) {
-        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set appdata callback");
-        ERR_clear_error();
-        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => exception", ssl);
-        return -1;
-    }
-
-    errno = 0;
-
-    int result = SSL_read(ssl, destPtr, length);
-    appData->clearCallbackState();
-    if (env->ExceptionCheck()) {
-        // An exception was thrown by one of the callbacks. Just propagate that exception.
-        ERR_clear_error();
-        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => THROWN_EXCEPTION", ssl);
-        return -1;
-    }
-
+/**
+ * Maps the result of an SSL_read by the engine to the value returned to Java: the number of
+ * bytes read, or the negated SSL error for ZERO_RETURN, WANT_READ and WANT_WRITE. Any other
+ * error is thrown as an exception.
+ */
+static jint engineReadResult(JNIEnv* env, SSL* ssl, int result) {
     SslError sslError(ssl, result);
     switch (sslError.get()) {
         case SSL_ERROR_NONE: {
@@ -9200,7 +10287,11 @@ static jint NativeCrypto_ENGINE_SSL_read_direct(JNIEnv* env, jclass, jlong ssl_a
             return -SSL_ERROR_ZERO_RETURN;
         }
         case SSL_ERROR_WANT_READ:
-        case SSL_ERROR_WANT_WRITE: {
+        case SSL_ERROR_WANT_WRITE:
+#ifdef SSL_ERROR_WANT_RETRY_VERIFY
+        case SSL_ERROR_WANT_RETRY_VERIFY:
+#endif
+        {
             // Return the negative of these values.
             result = -sslError.get();
             break;
@@ -9236,11 +10327,165 @@ static jint NativeCrypto_ENGINE_SSL_read_direct(JNIEnv* env, jclass, jlong ssl_a
         }
     }
 
+    return result;
+}
+
+/**
+ * Pins a Java byte array with GetPrimitiveArrayCritical for the lifetime of this object. No JNI
+ * calls may be made, and so no callbacks into Java may happen, while an instance is in scope.
+ */
+class CriticalByteArray {
+ public:
+    CriticalByteArray(JNIEnv* env, jbyteArray array)
+        : env_(env),
+          array_(array),
+          ptr_(static_cast<char*>(env->GetPrimitiveArrayCritical(array, nullptr))) {}
+
+    ~CriticalByteArray() {
+        if (ptr_ != nullptr) {
+            env_->ReleasePrimitiveArrayCritical(array_, ptr_, 0);
+        }
+    }
+
+    char* get() const {
+        return ptr_;
+    }
+
+ private:
+    JNIEnv* env_;
+    jbyteArray array_;
+    char* ptr_;
+
+    // Disallow copy and assignment.
+    CriticalByteArray(const CriticalByteArray&);
+    void operator=(const CriticalByteArray&);
+};
+
+/**
+ * Returns whether the next SSL_read or SSL_write on |ssl| may run the handshake state machine,
+ * and with it callbacks into Java. Such calls must not be made with a pinned array.
+ */
+static bool engineMayCallBack(SSL* ssl) {
+    return !SSL_is_init_finished(ssl) || SSL_get_key_update_type(ssl) != SSL_KEY_UPDATE_NONE;
+}
+
+static jint NativeCrypto_ENGINE_SSL_read_direct(JNIEnv* env, jclass, jlong ssl_address,
+                                                CONSCRYPT_UNUSED jobject ssl_holder, jlong address,
+                                                jint length, jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    char* destPtr = reinterpret_cast<char*>(address);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct address=%p length=%d shc=%p", ssl,
+              destPtr, length, shc);
+
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => sslHandshakeCallbacks == null",
+                  ssl);
+        return -1;
+    }
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => appData == null", ssl);
+        return -1;
+    }
+    if (!appData->setCallbackState(env, shc, nullptr)) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set appdata callback");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => exception", ssl);
+        return -1;
+    }
+
+    errno = 0;
+
+    int result = SSL_read(ssl, destPtr, length);
+    appData->clearCallbackState();
+    if (env->ExceptionCheck()) {
+        // An exception was thrown by one of the callbacks. Just propagate that exception.
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct => THROWN_EXCEPTION", ssl);
+        return -1;
+    }
+
+    result = engineReadResult(env, ssl, result);
     JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_direct address=%p length=%d shc=%p result=%d",
               ssl, destPtr, length, shc, result);
     return result;
 }
 
+/**
+ * Reads TLS 1.3 early data on a server, driving the handshake up to the end of the early data.
+ * Returns the number of bytes read, zero once there is no more early data, or the negated SSL
+ * error for WANT_READ and WANT_WRITE.
+ */
+static jint NativeCrypto_ENGINE_SSL_read_early_data_direct(JNIEnv* env, jclass, jlong ssl_address,
+                                                           CONSCRYPT_UNUSED jobject ssl_holder,
+                                                           jlong address, jint length,
+                                                           jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    char* destPtr = reinterpret_cast<char*>(address);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_early_data_direct address=%p length=%d shc=%p",
+              ssl, destPtr, length, shc);
+
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_early_data_direct => "
+                  "sslHandshakeCallbacks == null",
+                  ssl);
+        return -1;
+    }
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_early_data_direct => appData == null", ssl);
+        return -1;
+    }
+    if (!appData->setCallbackState(env, shc, nullptr)) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set appdata callback");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_early_data_direct => exception", ssl);
+        return -1;
+    }
+
+    errno = 0;
+
+    size_t bytesRead = 0;
+    int ret = SSL_read_early_data(ssl, destPtr, static_cast<size_t>(length), &bytesRead);
+    appData->clearCallbackState();
+    if (env->ExceptionCheck()) {
+        // An exception was thrown by one of the callbacks. Just propagate that exception.
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_early_data_direct => THROWN_EXCEPTION",
+                  ssl);
+        return -1;
+    }
+
+    jint result;
+    switch (ret) {
+        case SSL_READ_EARLY_DATA_SUCCESS:
+            result = static_cast<jint>(bytesRead);
+            break;
+        case SSL_READ_EARLY_DATA_FINISH:
+            result = 0;
+            break;
+        default:
+            result = engineReadResult(env, ssl, 0);
+            break;
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_early_data_direct address=%p length=%d shc=%p "
+              "result=%d",
+              ssl, destPtr, length, shc, result);
+    return result;
+}
+
 static int NativeCrypto_ENGINE_SSL_write_BIO_direct(JNIEnv* env, jclass, jlong ssl_address,
                                                     CONSCRYPT_UNUSED jobject ssl_holder,
                                                     jlong bioRef, jlong address, jint len,
@@ -9347,6 +10592,258 @@ static int NativeCrypto_ENGINE_SSL_read_BIO_direct(JNIEnv* env, jclass, jlong ss
     return result;
 }
 
+static jint NativeCrypto_ENGINE_SSL_read_heap(JNIEnv* env, jclass, jlong ssl_address,
+                                              CONSCRYPT_UNUSED jobject ssl_holder,
+                                              jbyteArray destArray, jint offset, jint length,
+                                              jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap dest=%p offset=%d length=%d shc=%p", ssl,
+              destArray, offset, length, shc);
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap => sslHandshakeCallbacks == null",
+                  ssl);
+        return -1;
+    }
+    if (destArray == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "dest == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap => dest == null", ssl);
+        return -1;
+    }
+    if (ARRAY_CHUNK_INVALID(env->GetArrayLength(destArray), offset, length)) {
+        conscrypt::jniutil::throwException(env, "java/lang/ArrayIndexOutOfBoundsException",
+                                           nullptr);
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap => out of bounds", ssl);
+        return -1;
+    }
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap => appData == null", ssl);
+        return -1;
+    }
+    if (!appData->setCallbackState(env, shc, nullptr)) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set appdata callback");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap => exception", ssl);
+        return -1;
+    }
+
+    errno = 0;
+
+    // Decrypting a record may process post-handshake messages, which calls back into Java. So
+    // let SSL_peek decrypt the next record with nothing pinned, and only read plaintext that is
+    // already buffered while the array is pinned.
+    int result = SSL_pending(ssl);
+    if (result <= 0) {
+        char c;
+        result = SSL_peek(ssl, &c, 1);
+    }
+    if (result > 0 && !env->ExceptionCheck()) {
+        int pending = SSL_pending(ssl);
+        if (pending > 0 && !engineMayCallBack(ssl)) {
+            CriticalByteArray dest(env, destArray);
+            if (dest.get() == nullptr) {
+                appData->clearCallbackState();
+                JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap => unable to pin", ssl);
+                return -1;
+            }
+            result = SSL_read(ssl, dest.get() + offset, std::min(length, pending));
+        } else {
+            char buf[SSL3_RT_MAX_PLAIN_LENGTH];
+            result = SSL_read(ssl, buf, std::min(length, static_cast<jint>(sizeof(buf))));
+            if (result > 0) {
+                env->SetByteArrayRegion(destArray, offset, result, reinterpret_cast<jbyte*>(buf));
+            }
+        }
+    }
+    appData->clearCallbackState();
+    if (env->ExceptionCheck()) {
+        // An exception was thrown by one of the callbacks. Just propagate that exception.
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap => THROWN_EXCEPTION", ssl);
+        return -1;
+    }
+
+    result = engineReadResult(env, ssl, result);
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_heap dest=%p length=%d shc=%p result=%d", ssl,
+              destArray, length, shc, result);
+    return result;
+}
+
+static int NativeCrypto_ENGINE_SSL_write_heap(JNIEnv* env, jclass, jlong ssl_address,
+                                              CONSCRYPT_UNUSED jobject ssl_holder,
+                                              jbyteArray sourceArray, jint offset, jint length,
+                                              jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap source=%p offset=%d length=%d shc=%p",
+              ssl, sourceArray, offset, length, shc);
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap => sslHandshakeCallbacks == null",
+                  ssl);
+        return -1;
+    }
+    if (sourceArray == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "source == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap => source == null", ssl);
+        return -1;
+    }
+    if (ARRAY_CHUNK_INVALID(env->GetArrayLength(sourceArray), offset, length)) {
+        conscrypt::jniutil::throwException(env, "java/lang/ArrayIndexOutOfBoundsException",
+                                           nullptr);
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap => out of bounds", ssl);
+        return -1;
+    }
+
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap appData => null", ssl);
+        return -1;
+    }
+    if (!appData->setCallbackState(env, shc, nullptr)) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set appdata callback");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap => exception", ssl);
+        return -1;
+    }
+
+    errno = 0;
+
+    int len = std::min(length, static_cast<jint>(SSL3_RT_MAX_PLAIN_LENGTH));
+    int result;
+    if (!engineMayCallBack(ssl)) {
+        CriticalByteArray source(env, sourceArray);
+        if (source.get() == nullptr) {
+            appData->clearCallbackState();
+            JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap => unable to pin", ssl);
+            return -1;
+        }
+        result = SSL_write(ssl, source.get() + offset, len);
+    } else {
+        // The write may run the handshake, which calls back into Java, so copy the data out
+        // rather than pinning the array.
+        char buf[SSL3_RT_MAX_PLAIN_LENGTH];
+        env->GetByteArrayRegion(sourceArray, offset, len, reinterpret_cast<jbyte*>(buf));
+        result = SSL_write(ssl, buf, len);
+    }
+    appData->clearCallbackState();
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_heap source=%p length=%d shc=%p => ret=%d",
+              ssl, sourceArray, len, shc, result);
+    return result;
+}
+
+static int NativeCrypto_ENGINE_SSL_write_BIO_heap(JNIEnv* env, jclass, jlong ssl_address,
+                                                  CONSCRYPT_UNUSED jobject ssl_holder,
+                                                  jlong bioRef, jbyteArray sourceArray,
+                                                  jint offset, jint len, jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_BIO_heap => sslHandshakeCallbacks == null",
+                  ssl);
+        return -1;
+    }
+    BIO* bio = to_BIO(env, bioRef);
+    if (bio == nullptr) {
+        return -1;
+    }
+    if (sourceArray == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "source == null");
+        return -1;
+    }
+    if (ARRAY_CHUNK_INVALID(env->GetArrayLength(sourceArray), offset, len)) {
+        conscrypt::jniutil::throwException(env, "java/lang/ArrayIndexOutOfBoundsException",
+                                           nullptr);
+        return -1;
+    }
+    if (BIO_ctrl_get_write_guarantee(bio) < static_cast<size_t>(len)) {
+        // The network BIO couldn't handle the entire write. Don't write anything, so that we
+        // only process one packet at a time.
+        return 0;
+    }
+
+    errno = 0;
+
+    // Writing to the BIO pair never calls back into Java, so the array can be pinned.
+    int result;
+    {
+        CriticalByteArray source(env, sourceArray);
+        if (source.get() == nullptr) {
+            return -1;
+        }
+        result = BIO_write(bio, source.get() + offset, len);
+        JNI_TRACE_PACKET_DATA(ssl, 'O', source.get() + offset, static_cast<size_t>(result));
+    }
+    JNI_TRACE(
+            "ssl=%p NativeCrypto_ENGINE_SSL_write_BIO_heap bio=%p source=%p len=%d shc=%p => "
+            "ret=%d",
+            ssl, bio, sourceArray, len, shc, result);
+    return result;
+}
+
+static int NativeCrypto_ENGINE_SSL_read_BIO_heap(JNIEnv* env, jclass, jlong ssl_address,
+                                                 CONSCRYPT_UNUSED jobject ssl_holder, jlong bioRef,
+                                                 jbyteArray destArray, jint offset,
+                                                 jint outputSize, jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_read_BIO_heap => sslHandshakeCallbacks == null",
+                  ssl);
+        return -1;
+    }
+    BIO* bio = to_BIO(env, bioRef);
+    if (bio == nullptr) {
+        return -1;
+    }
+    if (destArray == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "dest == null");
+        return -1;
+    }
+    if (ARRAY_CHUNK_INVALID(env->GetArrayLength(destArray), offset, outputSize)) {
+        conscrypt::jniutil::throwException(env, "java/lang/ArrayIndexOutOfBoundsException",
+                                           nullptr);
+        return -1;
+    }
+
+    errno = 0;
+
+    // Reading from the BIO pair never calls back into Java, so the array can be pinned.
+    int result;
+    {
+        CriticalByteArray dest(env, destArray);
+        if (dest.get() == nullptr) {
+            return -1;
+        }
+        result = BIO_read(bio, dest.get() + offset, outputSize);
+        JNI_TRACE_PACKET_DATA(ssl, 'I', dest.get() + offset, static_cast<size_t>(result));
+    }
+    JNI_TRACE(
+            "ssl=%p NativeCrypto_ENGINE_SSL_read_BIO_heap bio=%p dest=%p outputSize=%d shc=%p "
+            "=> ret=%d",
+            ssl, bio, destArray, outputSize, shc, result);
+    return result;
+}
+
 static void NativeCrypto_ENGINE_SSL_force_read(JNIEnv* env, jclass, jlong ssl_address,
                                                CONSCRYPT_UNUSED jobject ssl_holder, jobject shc) {
     CHECK_ERROR_QUEUE_ON_RETURN;
@@ -9388,8 +10885,13 @@ static void NativeCrypto_ENGINE_SSL_force_read(JNIEnv* env, jclass, jlong ssl_ad
         case SSL_ERROR_NONE:
         case SSL_ERROR_ZERO_RETURN:
         case SSL_ERROR_WANT_READ:
-        case SSL_ERROR_WANT_WRITE: {
-            // The call succeeded, lacked data, or the SSL is closed.  All is well.
+        case SSL_ERROR_WANT_WRITE:
+#ifdef SSL_ERROR_WANT_RETRY_VERIFY
+        case SSL_ERROR_WANT_RETRY_VERIFY:
+#endif
+        {
+            // The call succeeded, lacked data, the SSL is closed, or certificate verification
+            // was handed off to a delegated task.  All is well.
             break;
         }
         case SSL_ERROR_SYSCALL: {
@@ -9470,6 +10972,182 @@ static int NativeCrypto_ENGINE_SSL_write_direct(JNIEnv* env, jclass, jlong ssl_a
     return result;
 }
 
+/**
+ * Writes TLS 1.3 early data on a client that offers a session which allows it, sending the
+ * ClientHello first if it hasn't been sent. Returns the number of bytes written or the negated
+ * SSL error for WANT_READ and WANT_WRITE.
+ */
+static jint NativeCrypto_ENGINE_SSL_write_early_data_direct(JNIEnv* env, jclass,
+                                                            jlong ssl_address,
+                                                            CONSCRYPT_UNUSED jobject ssl_holder,
+                                                            jlong address, jint len, jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    const char* sourcePtr = reinterpret_cast<const char*>(address);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct address=%p length=%d shc=%p",
+              ssl, sourcePtr, len, shc);
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct => "
+                  "sslHandshakeCallbacks == null",
+                  ssl);
+        return -1;
+    }
+
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct appData => null", ssl);
+        return -1;
+    }
+    if (!appData->setCallbackState(env, shc, nullptr)) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set appdata callback");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct => exception", ssl);
+        return -1;
+    }
+
+    errno = 0;
+
+    size_t written = 0;
+    int ret = SSL_write_early_data(ssl, sourcePtr, static_cast<size_t>(len), &written);
+    appData->clearCallbackState();
+    if (env->ExceptionCheck()) {
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct => THROWN_EXCEPTION",
+                  ssl);
+        return -1;
+    }
+    if (ret > 0) {
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct => %zu", ssl, written);
+        return static_cast<jint>(written);
+    }
+
+    SslError sslError(ssl, ret);
+    int code = sslError.get();
+    if (code == SSL_ERROR_WANT_READ || code == SSL_ERROR_WANT_WRITE) {
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct => want %d", ssl, code);
+        return -code;
+    }
+    conscrypt::jniutil::throwSSLExceptionWithSslErrors(env, ssl, sslError.release(),
+                                                       "Write error");
+    JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_early_data_direct => error", ssl);
+    return -1;
+}
+
+/**
+ * Worst case size of a sealed record carrying |plaintextLen| bytes. Mirrors
+ * SSLUtils.calculateOutNetBufSize() on the Java side.
+ */
+static size_t sealedRecordSize(int plaintextLen) {
+    static const size_t kMaxEncryptionOverhead = 15 + 48 + 1 + 16 + 1 + 2 + 2 + 1;
+    return std::min(static_cast<size_t>(SSL3_RT_MAX_PACKET_SIZE),
+                    kMaxEncryptionOverhead + static_cast<size_t>(plaintextLen));
+}
+
+/**
+ * Seals as many records as possible from the source address into the destination address,
+ * draining the network BIO after each record. Returns the number of plaintext bytes consumed in
+ * the upper 32 bits and the number of ciphertext bytes produced in the lower 32 bits, or the
+ * result of the failed SSL_write if no record could be written.
+ */
+static jlong NativeCrypto_ENGINE_SSL_write_records_direct(JNIEnv* env, jclass, jlong ssl_address,
+                                                          CONSCRYPT_UNUSED jobject ssl_holder,
+                                                          jlong bioRef, jlong sourceAddress,
+                                                          jint sourceLength, jlong destAddress,
+                                                          jint destLength, jobject shc) {
+    CHECK_ERROR_QUEUE_ON_RETURN;
+    SSL* ssl = to_SSL(env, ssl_address, true);
+    if (ssl == nullptr) {
+        return -1;
+    }
+    const char* sourcePtr = reinterpret_cast<const char*>(sourceAddress);
+    char* destPtr = reinterpret_cast<char*>(destAddress);
+    JNI_TRACE(
+            "ssl=%p NativeCrypto_ENGINE_SSL_write_records_direct source=%p sourceLength=%d "
+            "dest=%p destLength=%d shc=%p",
+            ssl, sourcePtr, sourceLength, destPtr, destLength, shc);
+    if (shc == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "sslHandshakeCallbacks == null");
+        JNI_TRACE(
+                "ssl=%p NativeCrypto_ENGINE_SSL_write_records_direct => "
+                "sslHandshakeCallbacks == null",
+                ssl);
+        return -1;
+    }
+    BIO* bio = to_BIO(env, bioRef);
+    if (bio == nullptr) {
+        return -1;
+    }
+    if (destPtr == nullptr) {
+        conscrypt::jniutil::throwNullPointerException(env, "destPtr == null");
+        return -1;
+    }
+
+    AppData* appData = toAppData(ssl);
+    if (appData == nullptr) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to retrieve application data");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_records_direct appData => null", ssl);
+        return -1;
+    }
+    if (!appData->setCallbackState(env, shc, nullptr)) {
+        conscrypt::jniutil::throwSSLExceptionStr(env, "Unable to set appdata callback");
+        ERR_clear_error();
+        JNI_TRACE("ssl=%p NativeCrypto_ENGINE_SSL_write_records_direct => exception", ssl);
+        return -1;
+    }
+
+    errno = 0;
+
+    int result = 0;
+    jint consumed = 0;
+    jint produced = 0;
+    while (consumed < sourceLength) {
+        int chunk = std::min(sourceLength - consumed, static_cast<jint>(SSL3_RT_MAX_PLAIN_LENGTH));
+        // Make sure the record and anything already queued in the BIO will fit in the
+        // destination, otherwise leave the rest for the next call.
+        size_t pending = BIO_ctrl_pending(bio);
+        if (static_cast<size_t>(destLength - produced) < pending + sealedRecordSize(chunk)) {
+            break;
+        }
+        result = SSL_write(ssl, sourcePtr + consumed, chunk);
+        if (result <= 0) {
+            break;
+        }
+        consumed += result;
+
+        pending = BIO_ctrl_pending(bio);
+        if (pending > 0) {
+            int read = BIO_read(bio, destPtr + produced, static_cast<int>(pending));
+            if (read <= 0) {
+                break;
+            }
+            JNI_TRACE_PACKET_DATA(ssl, 'O', destPtr + produced, static_cast<size_t>(read));
+            produced += read;
+        }
+    }
+    appData->clearCallbackState();
+
+    if (consumed > 0) {
+        // Errors from a later record are reported again by the next write.
+        ERR_clear_error();
+        result = 0;
+    }
+    JNI_TRACE(
+            "ssl=%p NativeCrypto_ENGINE_SSL_write_records_direct shc=%p => consumed=%d "
+            "produced=%d ret=%d",
+            ssl, shc, consumed, produced, result);
+    if (consumed == 0) {
+        return result;
+    }
+    return (static_cast<jlong>(consumed) << 32) | static_cast<jlong>(produced);
+}
+
 /**
  * public static native bool usesBoringSsl_FIPS_mode();
  */
@@ -9710,9 +11388,9 @@ static JNINativeMethod sNativeCryptoMethods[] = {
         CONSCRYPT_NATIVE_METHOD(EVP_parse_public_key, "([B)J"),
         CONSCRYPT_NATIVE_METHOD(PEM_read_bio_PUBKEY, "(J)J"),
         CONSCRYPT_NATIVE_METHOD(PEM_read_bio_PrivateKey, "(J)J"),
-        // CONSCRYPT_NATIVE_METHOD(getRSAPrivateKeyWrapper, "(Ljava/security/PrivateKey;[B)J"),
-        // CONSCRYPT_NATIVE_METHOD(getECPrivateKeyWrapper,
-        //                         "(Ljava/security/PrivateKey;" REF_EC_GROUP ")J"),
+        CONSCRYPT_NATIVE_METHOD(getRSAPrivateKeyWrapper, "(Ljava/security/PrivateKey;[B)J"),
+        CONSCRYPT_NATIVE_METHOD(getECPrivateKeyWrapper,
+                                "(Ljava/security/PrivateKey;" REF_EC_GROUP REF_EC_POINT ")J"),
         CONSCRYPT_NATIVE_METHOD(RSA_generate_key_ex, "(I[B)J"),
         CONSCRYPT_NATIVE_METHOD(RSA_size, "(" REF_EVP_PKEY ")I"),
         CONSCRYPT_NATIVE_METHOD(RSA_private_encrypt, "(I[B[B" REF_EVP_PKEY "I)I"),
@@ -9905,6 +11583,14 @@ static JNINativeMethod sNativeCryptoMethods[] = {
         CONSCRYPT_NATIVE_METHOD(SSL_CTX_new, "()J"),
         CONSCRYPT_NATIVE_METHOD(SSL_CTX_free, "(J" REF_SSL_CTX ")V"),
         CONSCRYPT_NATIVE_METHOD(SSL_CTX_set_session_id_context, "(J" REF_SSL_CTX "[B)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_CTX_init_ticket_keys, "(J" REF_SSL_CTX ")V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_CTX_set_ticket_keys, "(J" REF_SSL_CTX "[B)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_CTX_add_ticket_request_ext, "(J" REF_SSL_CTX "Z)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_CTX_get_ticket_key_stats, "(J" REF_SSL_CTX ")[J"),
+        CONSCRYPT_NATIVE_METHOD(SSL_CTX_set_protocol_versions, "(J" REF_SSL_CTX "II)I"),
+        CONSCRYPT_NATIVE_METHOD(SSL_CTX_set_cipher_lists,
+                                "(J" REF_SSL_CTX "[Ljava/lang/String;)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_CTX_set_alpn_protos, "(J" REF_SSL_CTX "[B)V"),
         CONSCRYPT_NATIVE_METHOD(SSL_CTX_set_timeout, "(J" REF_SSL_CTX "J)J"),
         CONSCRYPT_NATIVE_METHOD(SSL_new, "(J" REF_SSL_CTX ")J"),
         // BEGIN { not supported by Tongsuo }
@@ -9913,10 +11599,19 @@ static JNINativeMethod sNativeCryptoMethods[] = {
         CONSCRYPT_NATIVE_METHOD(SSL_set1_tls_channel_id, "(J" REF_SSL REF_EVP_PKEY ")V"),
         // END { not supported by Tongsuo }
         CONSCRYPT_NATIVE_METHOD(setLocalCertsAndPrivateKey, "(J" REF_SSL "[[B" REF_EVP_PKEY ")V"),
+        CONSCRYPT_NATIVE_METHOD(setLocalCertRefsAndPrivateKey, "(J" REF_SSL "[JLjava/lang/Object;" REF_EVP_PKEY ")V"),
         CONSCRYPT_NATIVE_METHOD(SSL_set_client_CA_list, "(J" REF_SSL "[[B)V"),
         CONSCRYPT_NATIVE_METHOD(SSL_set_mode, "(J" REF_SSL "J)J"),
         CONSCRYPT_NATIVE_METHOD(SSL_set_options, "(J" REF_SSL "J)J"),
         CONSCRYPT_NATIVE_METHOD(SSL_clear_options, "(J" REF_SSL "J)J"),
+        CONSCRYPT_NATIVE_METHOD(SSL_enable_ktls, "(J" REF_SSL ")Z"),
+        CONSCRYPT_NATIVE_METHOD(SSL_get_ktls_status, "(J" REF_SSL ")I"),
+        CONSCRYPT_NATIVE_METHOD(SSL_set_retry_verify, "(J" REF_SSL ")Z"),
+        CONSCRYPT_NATIVE_METHOD(SSL_set_ticket_request, "(J" REF_SSL "I)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_set_max_early_data, "(J" REF_SSL "I)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_set_num_tickets, "(J" REF_SSL "I)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_get_early_data_status, "(J" REF_SSL ")I"),
+        CONSCRYPT_NATIVE_METHOD(SSL_set_allow_early_data_cb, "(J" REF_SSL ")V"),
         CONSCRYPT_NATIVE_METHOD(SSL_set_protocol_versions, "(J" REF_SSL "II)I"),
         CONSCRYPT_NATIVE_METHOD(SSL_enable_signed_cert_timestamps, "(J" REF_SSL ")V"),
         CONSCRYPT_NATIVE_METHOD(SSL_get_signed_cert_timestamp_list, "(J" REF_SSL ")[B"),
@@ -9949,6 +11644,8 @@ static JNINativeMethod sNativeCryptoMethods[] = {
         CONSCRYPT_NATIVE_METHOD(SSL_get0_peer_certificates, "(J" REF_SSL ")[[B"),
         CONSCRYPT_NATIVE_METHOD(SSL_read, "(J" REF_SSL FILE_DESCRIPTOR SSL_CALLBACKS "[BIII)I"),
         CONSCRYPT_NATIVE_METHOD(SSL_write, "(J" REF_SSL FILE_DESCRIPTOR SSL_CALLBACKS "[BIII)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_write_direct, "(J" REF_SSL FILE_DESCRIPTOR SSL_CALLBACKS "JII)V"),
+        CONSCRYPT_NATIVE_METHOD(SSL_sendfile, "(J" REF_SSL FILE_DESCRIPTOR FILE_DESCRIPTOR "JJI)J"),
         CONSCRYPT_NATIVE_METHOD(SSL_interrupt, "(J" REF_SSL ")V"),
         CONSCRYPT_NATIVE_METHOD(SSL_shutdown, "(J" REF_SSL FILE_DESCRIPTOR SSL_CALLBACKS ")V"),
         CONSCRYPT_NATIVE_METHOD(SSL_get_shutdown, "(J" REF_SSL ")I"),
@@ -9964,6 +11661,7 @@ static JNINativeMethod sNativeCryptoMethods[] = {
         CONSCRYPT_NATIVE_METHOD(SSL_SESSION_get_version, "(J)Ljava/lang/String;"),
         CONSCRYPT_NATIVE_METHOD(SSL_SESSION_cipher, "(J)Ljava/lang/String;"),
         CONSCRYPT_NATIVE_METHOD(SSL_SESSION_should_be_single_use, "(J)Z"),
+        CONSCRYPT_NATIVE_METHOD(SSL_SESSION_get_max_early_data, "(J)I"),
         CONSCRYPT_NATIVE_METHOD(SSL_SESSION_up_ref, "(J)V"),
         CONSCRYPT_NATIVE_METHOD(SSL_SESSION_free, "(J)V"),
         CONSCRYPT_NATIVE_METHOD(i2d_SSL_SESSION, "(J)[B"),
@@ -9987,8 +11685,19 @@ static JNINativeMethod sNativeCryptoMethods[] = {
         CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_do_handshake, "(J" REF_SSL SSL_CALLBACKS ")I"),
         CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_read_direct, "(J" REF_SSL "JI" SSL_CALLBACKS ")I"),
         CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_write_direct, "(J" REF_SSL "JI" SSL_CALLBACKS ")I"),
+        CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_read_early_data_direct,
+                                "(J" REF_SSL "JI" SSL_CALLBACKS ")I"),
+        CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_write_early_data_direct,
+                                "(J" REF_SSL "JI" SSL_CALLBACKS ")I"),
+        CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_write_heap, "(J" REF_SSL "[BII" SSL_CALLBACKS ")I"),
+        CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_read_heap, "(J" REF_SSL "[BII" SSL_CALLBACKS ")I"),
+        CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_write_records_direct,
+                                "(J" REF_SSL "JJIJI" SSL_CALLBACKS ")J"),
         CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_write_BIO_direct, "(J" REF_SSL "JJI" SSL_CALLBACKS ")I"),
         CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_read_BIO_direct, "(J" REF_SSL "JJI" SSL_CALLBACKS ")I"),
+        CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_write_BIO_heap,
+                                "(J" REF_SSL "J[BII" SSL_CALLBACKS ")I"),
+        CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_read_BIO_heap, "(J" REF_SSL "J[BII" SSL_CALLBACKS ")I"),
         CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_force_read, "(J" REF_SSL SSL_CALLBACKS ")V"),
         CONSCRYPT_NATIVE_METHOD(ENGINE_SSL_shutdown, "(J" REF_SSL SSL_CALLBACKS ")V"),
         CONSCRYPT_NATIVE_METHOD(usesBoringSsl_FIPS_mode, "()Z"),
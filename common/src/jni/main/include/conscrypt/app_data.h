@@ -118,6 +118,9 @@ class AppData {
     char* applicationProtocolsData;
     size_t applicationProtocolsLength;
     bool hasApplicationProtocolSelector;
+    // The number of session tickets a client asks the server for, or -1 not to ask. On a
+    // server, the most tickets it issues on request, or -1 to ignore requests.
+    int requestedTickets;
 
     /**
      * Creates the application data context for the SSL*.
@@ -227,7 +230,8 @@ class AppData {
           sslHandshakeCallbacks(nullptr),
           applicationProtocolsData(nullptr),
           applicationProtocolsLength(static_cast<size_t>(-1)),
-          hasApplicationProtocolSelector(false) {
+          hasApplicationProtocolSelector(false),
+          requestedTickets(-1) {
 #ifdef _WIN32
         interruptEvent = nullptr;
 #else
@@ -66,6 +66,7 @@ extern jmethodID sslHandshakeCallbacks_serverPSKKeyRequested;
 extern jmethodID sslHandshakeCallbacks_onNewSessionEstablished;
 extern jmethodID sslHandshakeCallbacks_selectApplicationProtocol;
 extern jmethodID sslHandshakeCallbacks_serverSessionRequested;
+extern jmethodID sslHandshakeCallbacks_allowEarlyData;
 
 /**
  * Initializes the JNI constants from the environment.
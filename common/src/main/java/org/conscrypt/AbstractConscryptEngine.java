@@ -29,6 +29,64 @@ import javax.net.ssl.SSLSession;
 abstract class AbstractConscryptEngine extends SSLEngine {
     abstract void setBufferAllocator(BufferAllocator bufferAllocator);
 
+    /**
+     * Enables/disables sealing of multiple TLS records per call to {@code wrap}. When enabled,
+     * {@code wrap} keeps producing records until the sources are exhausted or the destination
+     * buffer can't hold another record.
+     */
+    abstract void setMultiRecordWrapEnabled(boolean enabled);
+
+    /**
+     * Enables/disables running certificate verification as a delegated task, see {@link
+     * #getDelegatedTask()}.
+     */
+    abstract void setDelegatedTasksEnabled(boolean enabled);
+
+    /**
+     * Sets the policy that decides how much plaintext goes into each record produced by {@code
+     * wrap}.
+     */
+    abstract void setRecordSizePolicy(RecordSizePolicy policy);
+
+    /**
+     * Sets the amount of TLS 1.3 early data a client sends from its first {@code wrap} when
+     * resuming a session that allows it, or that a server accepts.
+     */
+    abstract void setMaxEarlyData(int maxEarlyData);
+
+    /**
+     * Sets what decides whether a server accepts early data, or {@code null} for the built-in
+     * replay protection.
+     */
+    abstract void setEarlyDataReplayProtection(EarlyDataReplayProtection protection);
+
+    /**
+     * Returns whether the peer accepted the early data of a client, or a server accepted the
+     * early data of its peer. Only meaningful once the handshake has finished.
+     */
+    abstract boolean isEarlyDataAccepted();
+
+    /**
+     * Enables/disables decryption of multiple TLS records per call to {@code unwrap}. When
+     * enabled, {@code unwrap} decrypts every complete record in the source buffers, as long as
+     * the destination buffers have room for the plaintext.
+     */
+    abstract void setMultiRecordUnwrapEnabled(boolean enabled);
+
+    /**
+     * Enables/disables passing the backing arrays of heap buffers to native code directly
+     * instead of copying them through a direct buffer.
+     */
+    abstract void setHeapBufferPinningEnabled(boolean enabled);
+
+    /**
+     * Enables/disables full-duplex operation, in which {@code wrap} and {@code unwrap} on an
+     * established connection can run concurrently on different threads.
+     *
+     * @throws IllegalStateException if the handshake has already begun
+     */
+    abstract void setFullDuplexEnabled(boolean enabled);
+
     /**
      * Returns the maximum overhead, in bytes, of sealing a record with SSL.
      */
@@ -120,6 +178,14 @@ abstract class AbstractConscryptEngine extends SSLEngine {
             final ByteBuffer[] dsts, final int dstsOffset, final int dstsLength)
             throws SSLException;
 
+    /**
+     * Same as {@link #unwrap(ByteBuffer[], int, int, ByteBuffer[], int, int)}, but fills in
+     * and returns {@code result} instead of allocating a new result.
+     */
+    abstract ReusableEngineResult unwrap(final ByteBuffer[] srcs, int srcsOffset,
+            final int srcsLength, final ByteBuffer[] dsts, final int dstsOffset,
+            final int dstsLength, ReusableEngineResult result) throws SSLException;
+
     @Override
     public abstract SSLEngineResult wrap(ByteBuffer src, ByteBuffer dst) throws SSLException;
 
@@ -127,6 +193,13 @@ abstract class AbstractConscryptEngine extends SSLEngine {
     public abstract SSLEngineResult wrap(
             ByteBuffer[] srcs, int srcsOffset, int srcsLength, ByteBuffer dst) throws SSLException;
 
+    /**
+     * Same as {@link #wrap(ByteBuffer[], int, int, ByteBuffer)}, but fills in and returns
+     * {@code result} instead of allocating a new result.
+     */
+    abstract ReusableEngineResult wrap(ByteBuffer[] srcs, int srcsOffset, int srcsLength,
+            ByteBuffer dst, ReusableEngineResult result) throws SSLException;
+
     /**
      * This method enables session ticket support.
      *
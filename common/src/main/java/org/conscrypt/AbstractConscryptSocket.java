@@ -28,6 +28,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.security.PrivateKey;
 import java.util.ArrayList;
@@ -42,6 +43,11 @@ import javax.net.ssl.SSLSocket;
  * Abstract base class for all Conscrypt {@link SSLSocket} classes.
  */
 abstract class AbstractConscryptSocket extends SSLSocket {
+    /**
+     * The largest file region that {@link #transferFrom} maps at once.
+     */
+    static final int TRANSFER_MAP_SIZE = 8 * 1024 * 1024;
+
     final Socket socket;
     private final boolean autoClose;
 
@@ -624,6 +630,77 @@ abstract class AbstractConscryptSocket extends SSLSocket {
      */
     abstract void setUseSessionTickets(boolean useSessionTickets);
 
+    /**
+     * Enables/disables offloading record processing to Linux kernel TLS after the handshake.
+     * Sockets that can't use kernel TLS ignore this.
+     *
+     * <p>This method needs to be invoked before the handshake starts.
+     *
+     * @throws IllegalStateException if the handshake has already started.
+     */
+    abstract void setKtlsEnabled(boolean enabled);
+
+    /**
+     * Returns whether outgoing records are encrypted by the kernel.
+     */
+    abstract boolean isKtlsSendEnabled();
+
+    /**
+     * Returns whether incoming records are decrypted by the kernel.
+     */
+    abstract boolean isKtlsReceiveEnabled();
+
+    /**
+     * Sets the policy that decides how much application data goes into each record sent. Regions
+     * sent by {@link #transferFrom} on file descriptor sockets always use full-size records.
+     */
+    abstract void setRecordSizePolicy(RecordSizePolicy policy);
+
+    /**
+     * Sets the amount of TLS 1.3 early data a client may send with {@link #writeEarlyData}, or
+     * that a server accepts. Only engine-based sockets support early data.
+     */
+    abstract void setMaxEarlyData(int maxEarlyData);
+
+    /**
+     * Sets what decides whether a server accepts early data, or {@code null} for the built-in
+     * replay protection.
+     */
+    abstract void setEarlyDataReplayProtection(EarlyDataReplayProtection protection);
+
+    /**
+     * Starts the handshake of a client by sending up to {@code len} bytes of {@code b} as early
+     * data, and returns the number of bytes sent. Returns {@code 0} if the client doesn't resume a
+     * session that allows early data, or the handshake has already started.
+     */
+    abstract int writeEarlyData(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Returns whether the early data was accepted. Blocks until the handshake has completed.
+     */
+    abstract boolean isEarlyDataAccepted() throws IOException;
+
+    /**
+     * Writes up to {@code count} bytes of {@code file}, starting at {@code position}, to this
+     * socket and returns the number of bytes written. The file is memory-mapped and records are
+     * sealed directly from the mapping, or sent with {@code sendfile} when kernel TLS is active
+     * for sending, so the contents are never copied onto the Java heap.
+     *
+     * <p>Like {@link OutputStream#write(byte[])}, this blocks until the handshake has completed
+     * and all of the data has been written.
+     */
+    abstract long transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Returns the number of bytes of {@code file} covered by a transfer of {@code count} bytes
+     * starting at {@code position}.
+     */
+    static long transferLength(FileChannel file, long position, long count) throws IOException {
+        checkArgument(position >= 0, "position < 0");
+        checkArgument(count >= 0, "count < 0");
+        return Math.max(0, Math.min(count, file.size() - position));
+    }
+
     /**
      * Enables/disables TLS Channel ID for this server socket.
      *
@@ -16,11 +16,10 @@
 
 package org.conscrypt;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.NoSuchElementException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSessionContext;
@@ -41,21 +40,13 @@ abstract class AbstractSessionContext implements SSLSessionContext {
 
     final long sslCtxNativePointer = NativeCrypto.SSL_CTX_new();
 
-    private final Map<ByteArray, NativeSslSession> sessions =
-            new LinkedHashMap<ByteArray, NativeSslSession>() {
-                @Override
-                protected boolean removeEldestEntry(
-                        Map.Entry<ByteArray, NativeSslSession> eldest) {
-                    // NOTE: does not take into account any session that may have become
-                    // invalid.
-                    if (maximumSize > 0 && size() > maximumSize) {
-                        // Let the subclass know.
-                        onBeforeRemoveSession(eldest.getValue());
-                        return true;
-                    }
-                    return false;
-                }
-            };
+    private final StripedSessionCache sessions;
+
+    /** The native form of the local certificates and keys of the connections. */
+    final LocalCertificateCache localCertificates = new LocalCertificateCache();
+
+    private final Object configTemplateLock = new Object();
+    private volatile SslConfigTemplate configTemplate;
 
     /**
      * Constructs a new session context.
@@ -64,6 +55,8 @@ abstract class AbstractSessionContext implements SSLSessionContext {
      */
     AbstractSessionContext(int maximumSize) {
         this.maximumSize = maximumSize;
+        this.sessions = new StripedSessionCache(
+                maximumSize, DEFAULT_SESSION_TIMEOUT_SECONDS, System.currentTimeMillis());
     }
 
     /**
@@ -73,11 +66,7 @@ abstract class AbstractSessionContext implements SSLSessionContext {
     @Override
     public final Enumeration<byte[]> getIds() {
         // Make a copy of the IDs.
-        final Iterator<NativeSslSession> iter;
-        synchronized (sessions) {
-            iter = Arrays.asList(sessions.values().toArray(new NativeSslSession[0]))
-                    .iterator();
-        }
+        final Iterator<NativeSslSession> iter = sessions.sessions().iterator();
         return new Enumeration<byte[]>() {
             private NativeSslSession next;
 
@@ -118,12 +107,11 @@ abstract class AbstractSessionContext implements SSLSessionContext {
         if (sessionId == null) {
             throw new NullPointerException("sessionId");
         }
-        ByteArray key = new ByteArray(sessionId);
-        NativeSslSession session;
-        synchronized (sessions) {
-            session = sessions.get(key);
-        }
-        if (session != null && session.isValid()) {
+        List<NativeSslSession> dropped = new ArrayList<NativeSslSession>();
+        NativeSslSession session =
+                sessions.peek(new ByteArray(sessionId), System.currentTimeMillis(), dropped);
+        onSessionsDropped(dropped);
+        if (session != null) {
             return session.toSSLSession();
         }
         return null;
@@ -156,18 +144,10 @@ abstract class AbstractSessionContext implements SSLSessionContext {
             } else {
                 NativeCrypto.SSL_CTX_set_timeout(sslCtxNativePointer, this, Integer.MAX_VALUE);
             }
-
-            Iterator<NativeSslSession> i = sessions.values().iterator();
-            while (i.hasNext()) {
-                NativeSslSession session = i.next();
-                // SSLSession's know their context and consult the
-                // timeout as part of their validity condition.
-                if (!session.isValid()) {
-                    // Let the subclass know.
-                    onBeforeRemoveSession(session);
-                    i.remove();
-                }
-            }
+            // SSLSession's know their context and consult the timeout as part of their
+            // validity condition, so sessions that are now expired are never returned. The
+            // cache drops them when their scheduled expiry comes around.
+            sessions.setTimeout(seconds);
         }
     }
 
@@ -177,13 +157,60 @@ abstract class AbstractSessionContext implements SSLSessionContext {
             throw new IllegalArgumentException("size < 0");
         }
 
-        int oldMaximum = maximumSize;
-        maximumSize = size;
+        List<NativeSslSession> dropped = new ArrayList<NativeSslSession>();
+        synchronized (sessions) {
+            maximumSize = size;
+            // Trims the cache to size if necessary.
+            sessions.setMaximumSize(size, System.currentTimeMillis(), dropped);
+        }
+        onSessionsDropped(dropped);
+    }
+
+    /**
+     * Returns the number of lookups by session ID that found a valid session.
+     */
+    public final long getSessionCacheHitCount() {
+        return sessions.hitCount();
+    }
+
+    /**
+     * Returns the number of lookups by session ID that found no valid session.
+     */
+    public final long getSessionCacheMissCount() {
+        return sessions.missCount();
+    }
 
-        // Trim cache to size if necessary.
-        if (size < oldMaximum) {
-            trimToSize();
+    /**
+     * Returns the number of sessions removed to keep the cache within its maximum size.
+     */
+    public final long getSessionCacheEvictionCount() {
+        return sessions.evictionCount();
+    }
+
+    /**
+     * Returns the number of sessions removed because they had expired.
+     */
+    public final long getSessionCacheExpirationCount() {
+        return sessions.expirationCount();
+    }
+
+    /**
+     * Returns the configuration compiled into this context's {@code SSL_CTX}, compiling the
+     * given parameters into it if this is the first connection. Must be called before creating
+     * an {@code SSL} from the context.
+     */
+    final SslConfigTemplate getConfigTemplate(SSLParametersImpl parameters) {
+        SslConfigTemplate template = configTemplate;
+        if (template == null) {
+            synchronized (configTemplateLock) {
+                template = configTemplate;
+                if (template == null) {
+                    template = SslConfigTemplate.compile(this, parameters);
+                    configTemplate = template;
+                }
+            }
         }
+        return template;
     }
 
     @Override
@@ -205,16 +232,12 @@ abstract class AbstractSessionContext implements SSLSessionContext {
             return;
         }
 
-        synchronized (sessions) {
-            ByteArray key = new ByteArray(id);
-            if (sessions.containsKey(key)) {
-                removeSession(sessions.get(key));
-            }
-            // Let the subclass know.
-            onBeforeAddSession(session);
+        // Let the subclass know.
+        onBeforeAddSession(session);
 
-            sessions.put(key, session);
-        }
+        List<NativeSslSession> dropped = new ArrayList<NativeSslSession>();
+        sessions.put(new ByteArray(id), session, System.currentTimeMillis(), dropped);
+        onSessionsDropped(dropped);
     }
 
     /**
@@ -228,10 +251,7 @@ abstract class AbstractSessionContext implements SSLSessionContext {
 
         onBeforeRemoveSession(session);
 
-        ByteArray key = new ByteArray(id);
-        synchronized (sessions) {
-            sessions.remove(key);
-        }
+        sessions.remove(new ByteArray(id));
     }
 
     /**
@@ -244,11 +264,11 @@ abstract class AbstractSessionContext implements SSLSessionContext {
         }
 
         // First, look in the in-memory cache.
-        NativeSslSession session;
-        synchronized (sessions) {
-            session = sessions.get(new ByteArray(sessionId));
-        }
-        if (session != null && session.isValid()) {
+        List<NativeSslSession> dropped = new ArrayList<NativeSslSession>();
+        NativeSslSession session =
+                sessions.get(new ByteArray(sessionId), System.currentTimeMillis(), dropped);
+        onSessionsDropped(dropped);
+        if (session != null) {
             if (session.isSingleUse()) {
                 removeSession(session);
             }
@@ -285,20 +305,12 @@ abstract class AbstractSessionContext implements SSLSessionContext {
     abstract NativeSslSession getSessionFromPersistentCache(byte[] sessionId);
 
     /**
-     * Makes sure cache size is < maximumSize.
+     * Lets the subclass know about sessions the cache has evicted, expired or replaced. Called
+     * after the fact, so that the subclass never runs while the cache holds a lock.
      */
-    private void trimToSize() {
-        synchronized (sessions) {
-            int size = sessions.size();
-            if (size > maximumSize) {
-                int removals = size - maximumSize;
-                Iterator<NativeSslSession> i = sessions.values().iterator();
-                while (removals-- > 0) {
-                    NativeSslSession session = i.next();
-                    onBeforeRemoveSession(session);
-                    i.remove();
-                }
-            }
+    private void onSessionsDropped(List<NativeSslSession> dropped) {
+        for (int i = 0; i < dropped.size(); i++) {
+            onBeforeRemoveSession(dropped.get(i));
         }
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.conscrypt;
+
+import java.security.PrivateKey;
+import java.util.concurrent.Future;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Performs the private key operations of the TLS stack for a key whose material isn't
+ * accessible, such as a key held by an HSM or a remote key management service. Without one, such
+ * keys are used through the {@code Signature} or {@code Cipher} implementation of the first other
+ * provider that accepts them.
+ *
+ * <p>The TLS stack waits for the returned futures on the thread that runs the handshake. To keep
+ * that wait off an event loop, enable {@link Conscrypt#setDelegatedTasksEnabled(SSLEngine,
+ * boolean) delegated tasks} on the engine: the handshake is then suspended with {@code NEED_TASK}
+ * and resumes once the task that waits for the operation has run. An operation that hasn't
+ * completed within 30 seconds fails the handshake and its future is cancelled.
+ *
+ * <p>See {@link Conscrypt#setAsyncPrivateKeyMethod(PrivateKey, AsyncPrivateKeyMethod)}.
+ */
+@ExperimentalApi
+public interface AsyncPrivateKeyMethod {
+    /**
+     * Starts signing {@code input} with {@code key}.
+     *
+     * @param algorithm {@code "NONEwithECDSA"} to produce a DER-encoded ECDSA signature of a
+     *     digest, {@code "RSA/ECB/PKCS1Padding"} to apply PKCS#1 v1.5 signature padding to an
+     *     encoded DigestInfo and then the private key, or {@code "RSA/ECB/NoPadding"} to apply the
+     *     private key to an already padded input. The RSA variants match {@code Cipher} in
+     *     {@code ENCRYPT_MODE} with a private key.
+     * @return the future result, which completes exceptionally if the operation failed
+     */
+    Future<byte[]> sign(PrivateKey key, String algorithm, byte[] input);
+
+    /**
+     * Starts decrypting {@code input} with {@code key}.
+     *
+     * @param transformation the RSA {@code Cipher} transformation to decrypt with, one of
+     *     {@code "RSA/ECB/PKCS1Padding"}, {@code "RSA/ECB/NoPadding"} and
+     *     {@code "RSA/ECB/OAEPPadding"}
+     * @return the future result, which completes exceptionally if the operation failed
+     */
+    Future<byte[]> decrypt(PrivateKey key, String transformation, byte[] input);
+}
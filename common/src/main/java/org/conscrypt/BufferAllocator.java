@@ -37,6 +37,16 @@ public abstract class BufferAllocator {
         return UNPOOLED;
     }
 
+    /**
+     * Returns a shared pooled buffer allocator. Buffers are cached per thread and in size-classed
+     * arenas of direct memory, up to a bounded number per size class, and are reused once they
+     * have been {@link AllocatedBuffer#release() released}. Each buffer must be released exactly
+     * once and not used afterwards.
+     */
+    public static BufferAllocator pooled() {
+        return PooledBufferAllocator.getDefault();
+    }
+
     /**
      * Allocates a direct (i.e. non-heap) buffer with the given capacity.
      */
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.security.cert.CertificateEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes peer certificates, returning the same instance for certificates with the same
+ * encoding. Servers and intermediates are seen over and over again, so most certificates are
+ * only parsed the first time. The least recently used certificates are dropped once the cache
+ * is full.
+ */
+final class CertificateInternCache {
+    /** The number of certificates cached by the shared instance. */
+    private static final int DEFAULT_CAPACITY = 512;
+
+    /** Must be a power of two. */
+    private static final int STRIPES = 16;
+
+    private static final CertificateInternCache INSTANCE =
+            new CertificateInternCache(DEFAULT_CAPACITY);
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    CertificateInternCache(int capacity) {
+        int stripeCapacity = Math.max(1, capacity / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    static CertificateInternCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the certificate with the given DER encoding, which the caller must not modify
+     * afterwards.
+     */
+    OpenSSLX509Certificate intern(byte[] encoded) throws CertificateEncodingException {
+        ByteArray key = new ByteArray(encoded);
+        // Spread the hash, as stripes are chosen by its low bits.
+        int hash = key.hashCode();
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        OpenSSLX509Certificate certificate;
+        synchronized (stripe) {
+            certificate = stripe.get(key);
+        }
+        if (certificate != null) {
+            hits.incrementAndGet();
+            return certificate;
+        }
+        misses.incrementAndGet();
+
+        // Parse outside the lock. Racing threads may both parse, and the first one wins.
+        certificate = OpenSSLX509Certificate.fromX509Der(encoded);
+        synchronized (stripe) {
+            OpenSSLX509Certificate existing = stripe.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            stripe.put(key, certificate);
+        }
+        return certificate;
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Stripe extends LinkedHashMap<ByteArray, OpenSSLX509Certificate> {
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(capacity, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteArray, OpenSSLX509Certificate> eldest) {
+            return size() > capacity;
+        }
+    }
+}
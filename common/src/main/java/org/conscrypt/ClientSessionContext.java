@@ -16,33 +16,48 @@
 
 package org.conscrypt;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLContext;
 
 /**
  * Caches client sessions. Indexes by host and port. Users are typically
  * looking to reuse any session for a given host and port.
+ *
+ * <p>TLS 1.3 sessions can only be resumed once, so each host and port has a pool of them, and
+ * parallel connections to the same server each take one. With a {@linkplain
+ * #setTicketPoolSize(int) ticket pool size} set, clients ask the server to top the pool up.
  */
 @Internal
 public final class ClientSessionContext extends AbstractSessionContext {
     /**
-     * Sessions indexed by host and port. Protect from concurrent
-     * access by holding a lock on sessionsByHostAndPort.
-     *
-     * Invariant: Each list includes either exactly one multi-use session or one
-     * or more single-use sessions.  The types of sessions are never mixed, and adding
-     * a session of one kind will remove all sessions of the other kind.
+     * The most tickets a client asks for in a single handshake, the limit of the ticket_request
+     * extension.
+     */
+    private static final int MAX_TICKET_REQUEST = 255;
+
+    /**
+     * Sessions indexed by host and port. Each pool is guarded by its own lock, and pools that
+     * become empty are retired and removed from the map.
      */
-    @SuppressWarnings("serial")
-    private final Map<HostAndPort, List<NativeSslSession>> sessionsByHostAndPort = new HashMap<HostAndPort, List<NativeSslSession>>();
+    private final ConcurrentMap<HostAndPort, TicketPool> sessionsByHostAndPort =
+            new ConcurrentHashMap<HostAndPort, TicketPool>();
+
+    private final AtomicLong ticketPoolHits = new AtomicLong();
+    private final AtomicLong ticketPoolMisses = new AtomicLong();
+
+    private volatile int ticketPoolSize;
 
     private SSLClientSessionCache persistentCache;
 
     ClientSessionContext() {
         super(10);
+        NativeCrypto.SSL_CTX_add_ticket_request_ext(sslCtxNativePointer, this, false);
     }
 
     /**
@@ -53,83 +68,111 @@ public final class ClientSessionContext extends AbstractSessionContext {
         this.persistentCache = persistentCache;
     }
 
+    /**
+     * Sets the number of TLS 1.3 tickets to keep for each host and port. When fewer are left,
+     * clients ask the server for enough new tickets to refill the pool, which servers that
+     * support the ticket_request extension of RFC 9149 honor. Zero, the default, sends no
+     * requests. The tickets count against the {@linkplain #setSessionCacheSize(int) session
+     * cache size}, so it should leave room for all the pools.
+     *
+     * <p>Applications should not use this method. Instead use {@link
+     * Conscrypt#setTicketPoolSize(SSLContext, int)}.
+     */
+    public void setTicketPoolSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0");
+        }
+        ticketPoolSize = size;
+    }
+
+    /**
+     * Returns the number of TLS 1.3 tickets kept for each host and port.
+     */
+    public int getTicketPoolSize() {
+        return ticketPoolSize;
+    }
+
+    /**
+     * Returns the number of lookups by host and port that found a session to resume.
+     */
+    public long getTicketPoolHitCount() {
+        return ticketPoolHits.get();
+    }
+
+    /**
+     * Returns the number of lookups by host and port that found no session to resume, and so
+     * led to a full handshake.
+     */
+    public long getTicketPoolMissCount() {
+        return ticketPoolMisses.get();
+    }
+
     /**
      * Gets the suitable session reference from the session cache container.
      */
-    synchronized NativeSslSession getCachedSession(String hostName, int port,
+    NativeSslSession getCachedSession(String hostName, int port,
             SSLParametersImpl sslParameters) {
         if (hostName == null) {
             return null;
         }
 
-        NativeSslSession session = getSession(hostName, port);
+        NativeSslSession session = getSession(hostName, port, sslParameters);
         if (session == null) {
+            ticketPoolMisses.incrementAndGet();
             return null;
         }
-
-        String protocol = session.getProtocol();
-        boolean protocolFound = false;
-        for (String enabledProtocol : sslParameters.enabledProtocols) {
-            if (protocol.equals(enabledProtocol)) {
-                protocolFound = true;
-                break;
-            }
-        }
-        if (!protocolFound) {
-            return null;
-        }
-
-        String cipherSuite = session.getCipherSuite();
-        boolean cipherSuiteFound = false;
-        for (String enabledCipherSuite : sslParameters.getEnabledCipherSuites()) {
-            if (cipherSuite.equals(enabledCipherSuite)) {
-                cipherSuiteFound = true;
-                break;
-            }
-        }
-        if (!cipherSuiteFound) {
-            return null;
-        }
+        ticketPoolHits.incrementAndGet();
 
         if (session.isSingleUse()) {
+            // Already taken from its pool, so just drop it from the cache by ID.
             removeSession(session);
         }
         return session;
     }
 
+    /**
+     * Returns the number of tickets to ask the server at the given host and port for, or zero
+     * not to ask. Called after any session to resume has been taken from the pool.
+     */
+    int getTicketRequest(String hostName, int port) {
+        int target = ticketPoolSize;
+        if (target == 0 || hostName == null) {
+            return 0;
+        }
+        int available = 0;
+        TicketPool pool = sessionsByHostAndPort.get(new HostAndPort(hostName, port));
+        if (pool != null) {
+            available = pool.size();
+        }
+        // Always ask for at least one, to replace the ticket this connection used.
+        return Math.min(MAX_TICKET_REQUEST, Math.max(1, target - available));
+    }
+
     int size() {
         int size = 0;
-        synchronized (sessionsByHostAndPort) {
-            for (List<NativeSslSession> sessions : sessionsByHostAndPort.values()) {
-                size += sessions.size();
-            }
+        for (TicketPool pool : sessionsByHostAndPort.values()) {
+            size += pool.size();
         }
         return size;
     }
 
     /**
-     * Finds a cached session for the given host name and port.
+     * Finds a cached session for the given host name and port that the parameters allow to
+     * resume. Single-use sessions are removed from their pool.
      *
      * @param host of server
      * @param port of server
      * @return cached session or null if none found
      */
-    private NativeSslSession getSession(String host, int port) {
-        if (host == null) {
-            return null;
-        }
-
+    private NativeSslSession getSession(String host, int port, SSLParametersImpl sslParameters) {
         HostAndPort key = new HostAndPort(host, port);
-        NativeSslSession session = null;
-        synchronized (sessionsByHostAndPort) {
-            List<NativeSslSession> sessions = sessionsByHostAndPort.get(key);
-            if (sessions != null && sessions.size() > 0) {
-                session = sessions.get(0);
+        TicketPool pool = sessionsByHostAndPort.get(key);
+        if (pool != null) {
+            NativeSslSession session = pool.take(key, sslParameters);
+            if (session != null) {
+                return session;
             }
         }
-        if (session != null && session.isValid()) {
-            return session;
-        }
 
         // Look in persistent cache.  We don't currently delete sessions from the persistent
         // cache, so we may find a multi-use (aka TLS 1.2) session after having received and
@@ -137,10 +180,12 @@ public final class ClientSessionContext extends AbstractSessionContext {
         if (persistentCache != null) {
             byte[] data = persistentCache.getSessionData(host, port);
             if (data != null) {
-                session = NativeSslSession.newInstance(this, data, host, port);
+                NativeSslSession session = NativeSslSession.newInstance(this, data, host, port);
                 if (session != null && session.isValid()) {
                     putSession(key, session);
-                    return session;
+                    if (isResumable(session, sslParameters)) {
+                        return session;
+                    }
                 }
             }
         }
@@ -149,36 +194,30 @@ public final class ClientSessionContext extends AbstractSessionContext {
     }
 
     private void putSession(HostAndPort key, NativeSslSession session) {
-        synchronized (sessionsByHostAndPort) {
-            List<NativeSslSession> sessions = sessionsByHostAndPort.get(key);
-            if (sessions == null) {
-                sessions = new ArrayList<NativeSslSession>();
-                sessionsByHostAndPort.put(key, sessions);
-            }
-            // To maintain the invariant that single- and multi-use sessions aren't
-            // mixed, check what the current list contains and remove those sessions if
-            // they're of the other type.
-            if (sessions.size() > 0 && sessions.get(0).isSingleUse() != session.isSingleUse()) {
-                while (!sessions.isEmpty()) {
-                    removeSession(sessions.get(0));
+        List<NativeSslSession> replaced = new ArrayList<NativeSslSession>();
+        while (true) {
+            TicketPool pool = sessionsByHostAndPort.get(key);
+            if (pool == null) {
+                pool = new TicketPool();
+                TicketPool existing = sessionsByHostAndPort.putIfAbsent(key, pool);
+                if (existing != null) {
+                    pool = existing;
                 }
-                // The last removeSession() call will have removed the list from
-                // the map, so put it back.
-                sessionsByHostAndPort.put(key, sessions);
             }
-            sessions.add(session);
+            if (pool.add(session, replaced)) {
+                break;
+            }
+            // The pool was retired after emptying out, so start a new one.
+        }
+        for (int i = 0; i < replaced.size(); i++) {
+            removeSession(replaced.get(i));
         }
     }
 
     private void removeSession(HostAndPort key, NativeSslSession session) {
-        synchronized (sessionsByHostAndPort) {
-            List<NativeSslSession> sessions = sessionsByHostAndPort.get(key);
-            if (sessions != null) {
-                sessions.remove(session);
-                if (sessions.isEmpty()) {
-                    sessionsByHostAndPort.remove(key);
-                }
-            }
+        TicketPool pool = sessionsByHostAndPort.get(key);
+        if (pool != null) {
+            pool.remove(key, session);
         }
     }
 
@@ -219,6 +258,124 @@ public final class ClientSessionContext extends AbstractSessionContext {
         return null;
     }
 
+    private static boolean isResumable(NativeSslSession session, SSLParametersImpl sslParameters) {
+        String protocol = session.getProtocol();
+        boolean protocolFound = false;
+        for (String enabledProtocol : sslParameters.enabledProtocols) {
+            if (protocol.equals(enabledProtocol)) {
+                protocolFound = true;
+                break;
+            }
+        }
+        if (!protocolFound) {
+            return false;
+        }
+
+        String cipherSuite = session.getCipherSuite();
+        for (String enabledCipherSuite : sslParameters.getEnabledCipherSuites()) {
+            if (cipherSuite.equals(enabledCipherSuite)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The sessions for one host and port, oldest first, so that tickets are used before they
+     * expire.
+     *
+     * <p>Invariant: A pool holds either exactly one multi-use session or one or more single-use
+     * sessions.  The types of sessions are never mixed, and adding a session of one kind will
+     * remove all sessions of the other kind.
+     */
+    private final class TicketPool {
+        private final ArrayDeque<NativeSslSession> sessions = new ArrayDeque<NativeSslSession>();
+        private boolean retired;
+
+        /**
+         * Adds the session, collecting the sessions it replaces. Returns {@code false} if the
+         * pool has been retired and the session has to go into a new one.
+         */
+        synchronized boolean add(NativeSslSession session, List<NativeSslSession> replaced) {
+            if (retired) {
+                return false;
+            }
+            // To maintain the invariant that single- and multi-use sessions aren't
+            // mixed, check what the pool contains and remove those sessions if
+            // they're of the other type.
+            NativeSslSession first = sessions.peekFirst();
+            if (first != null && (!session.isSingleUse() || !first.isSingleUse())) {
+                replaced.addAll(sessions);
+                sessions.clear();
+            }
+            sessions.addLast(session);
+            return true;
+        }
+
+        /**
+         * Returns the oldest valid session the parameters allow to resume, removing it if it is
+         * single-use. Invalid sessions found along the way are dropped.
+         */
+        NativeSslSession take(HostAndPort key, SSLParametersImpl sslParameters) {
+            List<NativeSslSession> invalid = null;
+            NativeSslSession result = null;
+            boolean empty;
+            synchronized (this) {
+                for (Iterator<NativeSslSession> it = sessions.iterator(); it.hasNext();) {
+                    NativeSslSession session = it.next();
+                    if (!session.isValid()) {
+                        it.remove();
+                        if (invalid == null) {
+                            invalid = new ArrayList<NativeSslSession>();
+                        }
+                        invalid.add(session);
+                    } else if (isResumable(session, sslParameters)) {
+                        if (session.isSingleUse()) {
+                            it.remove();
+                        }
+                        result = session;
+                        break;
+                    }
+                }
+                empty = retireIfEmpty();
+            }
+            if (empty) {
+                sessionsByHostAndPort.remove(key, this);
+            }
+            if (invalid != null) {
+                for (int i = 0; i < invalid.size(); i++) {
+                    removeSession(invalid.get(i));
+                }
+            }
+            return result;
+        }
+
+        void remove(HostAndPort key, NativeSslSession session) {
+            boolean empty;
+            synchronized (this) {
+                if (!sessions.remove(session)) {
+                    return;
+                }
+                empty = retireIfEmpty();
+            }
+            if (empty) {
+                sessionsByHostAndPort.remove(key, this);
+            }
+        }
+
+        synchronized int size() {
+            return sessions.size();
+        }
+
+        private boolean retireIfEmpty() {
+            if (sessions.isEmpty() && !retired) {
+                retired = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
     private static final class HostAndPort {
         final String host;
         final int port;
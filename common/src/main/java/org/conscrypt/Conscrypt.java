@@ -18,6 +18,10 @@ package org.conscrypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
 import java.security.PrivateKey;
 import java.security.Provider;
@@ -263,6 +267,89 @@ public final class Conscrypt {
         ((ServerSessionContext) serverContext).setPersistentCache(cache);
     }
 
+    /**
+     * Sets the number of TLS 1.3 session tickets the client side of the context keeps for each
+     * server, so that that many parallel connections to the server can resume. When the pool
+     * runs low, clients ask the server for more tickets with the ticket_request extension of
+     * RFC 9149; servers that don't support it issue their usual number. Zero, the default,
+     * sends no requests.
+     *
+     * <p>Tickets count against the client session cache size, which should be raised to hold
+     * the pools of all the servers the context connects to.
+     */
+    @ExperimentalApi
+    public static void setTicketPoolSize(SSLContext context, int size) {
+        SSLSessionContext clientContext = context.getClientSessionContext();
+        if (!(clientContext instanceof ClientSessionContext)) {
+            throw new IllegalArgumentException(
+                    "Not a conscrypt client context: " + clientContext.getClass().getName());
+        }
+        ((ClientSessionContext) clientContext).setTicketPoolSize(size);
+    }
+
+    /**
+     * Lets servers of the context issue up to {@code max} TLS 1.3 session tickets to clients
+     * that ask for them with the ticket_request extension of RFC 9149, so that clients can keep
+     * a pool of tickets for parallel connections. Zero, the default, ignores requests. Only
+     * servers that issue tickets, for instance because {@linkplain #setSessionTicketKeys(
+     * SSLContext, byte[], byte[]...) ticket keys} are installed, honor requests. Must be called
+     * before the context creates any connection.
+     *
+     * @throws IllegalArgumentException if {@code max} isn't between 0 and 255
+     */
+    @ExperimentalApi
+    public static void setMaxRequestedTickets(SSLContext context, int max) {
+        SSLSessionContext serverContext = context.getServerSessionContext();
+        if (!(serverContext instanceof ServerSessionContext)) {
+            throw new IllegalArgumentException(
+                    "Not a conscrypt server context: " + serverContext.getClass().getName());
+        }
+        ((ServerSessionContext) serverContext).setMaxRequestedTickets(max);
+    }
+
+    /**
+     * Installs session ticket keys on the server side of the context, so that servers sharing the
+     * keys, including this one after a restart, resume each other's sessions. New tickets are
+     * encrypted with {@code currentKey}; tickets under any of the {@code previousKeys} are still
+     * accepted, and renewed under the current key. Installing keys turns on session tickets for
+     * all server connections of the context.
+     *
+     * <p>Each key is {@link ServerSessionContext#TICKET_KEY_LENGTH} random bytes: a 16-byte name
+     * that identifies the key in tickets, a 32-byte HMAC-SHA256 key and a 32-byte AES-256-CBC key.
+     * The number of tickets decrypted with the current and the previous keys is reported by the
+     * {@link ServerSessionContext} of the context.
+     */
+    @ExperimentalApi
+    public static void setSessionTicketKeys(
+            SSLContext context, byte[] currentKey, byte[]... previousKeys) {
+        toConscryptServerSessionContext(context).setTicketKeys(currentKey, previousKeys);
+    }
+
+    /**
+     * Schedules session ticket keys to replace those installed with {@link
+     * #setSessionTicketKeys(SSLContext, byte[], byte[]...)} at {@code activationTimeMillis}, in
+     * milliseconds since the epoch. Servers that share the keys schedule the same rotations ahead
+     * of time, and keep the outgoing key as a previous key for at least the ticket lifetime.
+     *
+     * <p>The keys are installed by the first server connection created at or after the
+     * activation time.
+     */
+    @ExperimentalApi
+    public static void scheduleSessionTicketKeys(SSLContext context, long activationTimeMillis,
+            byte[] currentKey, byte[]... previousKeys) {
+        toConscryptServerSessionContext(context).scheduleTicketKeys(
+                activationTimeMillis, currentKey, previousKeys);
+    }
+
+    private static ServerSessionContext toConscryptServerSessionContext(SSLContext context) {
+        SSLSessionContext serverContext = context.getServerSessionContext();
+        if (!(serverContext instanceof ServerSessionContext)) {
+            throw new IllegalArgumentException(
+                    "Not a conscrypt server context: " + serverContext.getClass().getName());
+        }
+        return (ServerSessionContext) serverContext;
+    }
+
     /**
      * Indicates whether the given {@link SSLSocketFactory} was created by this distribution of
      * Conscrypt.
@@ -374,6 +461,158 @@ public final class Conscrypt {
         toConscrypt(socket).setUseSessionTickets(useSessionTickets);
     }
 
+    /**
+     * Enables/disables offloading record encryption and decryption to Linux kernel TLS once
+     * the handshake has finished. This needs the {@code tls} kernel module and a cipher suite
+     * the kernel supports; if either is missing the socket silently keeps processing records in
+     * user space. Only sockets that are not engine-based can use kernel TLS, others ignore this.
+     *
+     * <p>This method needs to be invoked before the handshake starts.
+     *
+     * @param socket the socket
+     * @param enabled whether to use kernel TLS if possible
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket.
+     * @throws IllegalStateException if the handshake has already started.
+     */
+    @ExperimentalApi
+    public static void setKtlsEnabled(SSLSocket socket, boolean enabled) {
+        toConscrypt(socket).setKtlsEnabled(enabled);
+    }
+
+    /**
+     * Returns whether the kernel encrypts the data written to the given socket, in which case
+     * writing to the underlying file descriptor directly (e.g. with {@code sendfile}) sends
+     * encrypted records without any user space crypto.
+     *
+     * @param socket the socket
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket.
+     */
+    @ExperimentalApi
+    public static boolean isKtlsSendEnabled(SSLSocket socket) {
+        return toConscrypt(socket).isKtlsSendEnabled();
+    }
+
+    /**
+     * Returns whether the kernel decrypts the data read from the given socket.
+     *
+     * @param socket the socket
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket.
+     */
+    @ExperimentalApi
+    public static boolean isKtlsReceiveEnabled(SSLSocket socket) {
+        return toConscrypt(socket).isKtlsReceiveEnabled();
+    }
+
+    /**
+     * Sets the policy that decides how much application data goes into each TLS record the
+     * given socket sends. Defaults to {@link RecordSizePolicy#fixed()}.
+     *
+     * @param socket the socket
+     * @param policy the record size policy
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket.
+     * @throws NullPointerException if {@code policy} is null.
+     */
+    @ExperimentalApi
+    public static void setRecordSizePolicy(SSLSocket socket, RecordSizePolicy policy) {
+        toConscrypt(socket).setRecordSizePolicy(policy);
+    }
+
+    /**
+     * Writes up to {@code count} bytes of the given file, starting at {@code position}, to the
+     * socket. The file is memory-mapped and TLS records are sealed directly from the mapping, or,
+     * if kernel TLS is active for sending, handed to the kernel with {@code sendfile}, so the
+     * contents are never copied onto the Java heap. Blocks until the handshake has completed
+     * and all of the data has been written.
+     *
+     * <p>On OpenJDK 16 and later, {@code sendfile} needs the file descriptor of the channel,
+     * which is only accessible with {@code --add-opens java.base/sun.nio.ch=ALL-UNNAMED}.
+     * Without it, the file is sent through the memory mapping, and a message is logged once.
+     *
+     * @param socket the socket
+     * @param file the file to read from
+     * @param position the position in the file of the first byte to send
+     * @param count the maximum number of bytes to send
+     * @return the number of bytes sent, which is less than {@code count} only if the file ends
+     *     first
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket, or if {@code
+     *     position} or {@code count} is negative.
+     */
+    @ExperimentalApi
+    public static long transferFrom(SSLSocket socket, FileChannel file, long position, long count)
+            throws IOException {
+        return toConscrypt(socket).transferFrom(file, position, count);
+    }
+
+    /**
+     * Enables TLS 1.3 early data (0-RTT) on the given socket. A client may then send up to
+     * {@code maxEarlyData} bytes of its first request with {@link #writeEarlyData} when it
+     * resumes a session whose server allows it. A server accepts up to {@code maxEarlyData}
+     * bytes of early data, which it reads like any other data, and issues tickets that allow
+     * clients to send as much. Defaults to {@code 0}, which disables early data.
+     *
+     * <p>Early data can be replayed by an attacker, so it must only carry requests that are safe
+     * to process twice. Only engine-based sockets support early data, see {@link
+     * #setUseEngineSocket(SSLSocketFactory, boolean)}. This method needs to be invoked before
+     * the handshake starts.
+     *
+     * @param socket the socket
+     * @param maxEarlyData the maximum number of bytes of early data
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket or {@code
+     *     maxEarlyData} is negative.
+     */
+    @ExperimentalApi
+    public static void setMaxEarlyData(SSLSocket socket, int maxEarlyData) {
+        toConscrypt(socket).setMaxEarlyData(maxEarlyData);
+    }
+
+    /**
+     * Sets what decides whether the given server socket accepts early data. Defaults to
+     * {@code null}, which only accepts the early data on a ticket once per server session
+     * cache.
+     *
+     * @param socket the socket
+     * @param protection the replay protection, or {@code null}
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket.
+     */
+    @ExperimentalApi
+    public static void setEarlyDataReplayProtection(
+            SSLSocket socket, EarlyDataReplayProtection protection) {
+        toConscrypt(socket).setEarlyDataReplayProtection(protection);
+    }
+
+    /**
+     * Starts the handshake of the given client socket by sending up to {@code len} bytes of
+     * {@code b} as early data along with the ClientHello. The handshake completes on the next
+     * read, write or call to {@link SSLSocket#startHandshake()}. If the server rejects the early
+     * data, see {@link #isEarlyDataAccepted(SSLSocket)}, the client has to send it again.
+     *
+     * @param socket the socket
+     * @param b the data
+     * @param off the offset of the first byte to send
+     * @param len the number of bytes to send
+     * @return the number of bytes sent as early data, which is {@code 0} if the socket doesn't
+     *     resume a session that allows early data or the handshake has already started
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket.
+     */
+    @ExperimentalApi
+    public static int writeEarlyData(SSLSocket socket, byte[] b, int off, int len)
+            throws IOException {
+        return toConscrypt(socket).writeEarlyData(b, off, len);
+    }
+
+    /**
+     * Returns whether the early data of the given socket was accepted: by the server for a
+     * client socket, by the socket itself for a server socket. Blocks until the handshake has
+     * completed.
+     *
+     * @param socket the socket
+     * @throws IllegalArgumentException if the socket is not a Conscrypt socket.
+     */
+    @ExperimentalApi
+    public static boolean isEarlyDataAccepted(SSLSocket socket) throws IOException {
+        return toConscrypt(socket).isEarlyDataAccepted();
+    }
+
     /**
      * Enables/disables TLS Channel ID for the given server-side socket.
      *
@@ -541,6 +780,170 @@ public final class Conscrypt {
         ConscryptEngine.setDefaultBufferAllocator(bufferAllocator);
     }
 
+    /**
+     * Enables/disables sealing of multiple TLS records per call to {@code wrap} on the given
+     * engine. When enabled, a single {@code wrap} keeps producing records until the source
+     * buffers are exhausted or the destination buffer can't hold another full record, instead
+     * of stopping after the first record.
+     *
+     * @param engine the engine
+     * @param enabled whether to produce multiple records per wrap
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     */
+    @ExperimentalApi
+    public static void setMultiRecordWrapEnabled(SSLEngine engine, boolean enabled) {
+        toConscrypt(engine).setMultiRecordWrapEnabled(enabled);
+    }
+
+    /**
+     * Enables/disables running the expensive steps of the handshake as delegated tasks on the
+     * given engine. When enabled, the handshake stops with {@link
+     * SSLEngineResult.HandshakeStatus#NEED_TASK} and {@link SSLEngine#getDelegatedTask()}
+     * returns a task that can be run on a worker thread instead of the thread driving the
+     * engine. Once it has run, the handshake continues with {@code wrap}.
+     *
+     * <p>A client delegates the verification of the server's certificate chain. A server
+     * delegates processing the handshake messages it receives, which covers signing with its
+     * private key, including waiting for an {@link AsyncPrivateKeyMethod}, and verifying client
+     * certificates. The engine must not be used while such a task is running.
+     *
+     * @param engine the engine
+     * @param enabled whether to run handshake steps in delegated tasks
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     */
+    @ExperimentalApi
+    public static void setDelegatedTasksEnabled(SSLEngine engine, boolean enabled) {
+        toConscrypt(engine).setDelegatedTasksEnabled(enabled);
+    }
+
+    /**
+     * Sets the method that performs the private key operations of the TLS stack with the given
+     * key, which is needed when its key material isn't accessible. A {@code null} method goes
+     * back to using the {@code Signature} or {@code Cipher} implementation of another provider
+     * that accepts the key.
+     *
+     * @param key the private key, as returned by the {@code KeyManager}
+     * @param method the method, or {@code null}
+     */
+    @ExperimentalApi
+    public static void setAsyncPrivateKeyMethod(PrivateKey key, AsyncPrivateKeyMethod method) {
+        CryptoUpcalls.setAsyncPrivateKeyMethod(key, method);
+    }
+
+    /**
+     * Enables TLS 1.3 early data (0-RTT) on the given engine. When a client resumes a session
+     * whose server allows it, the first {@code wrap} sends up to {@code maxEarlyData} bytes of
+     * its source buffers, at most one record, as early data along with the ClientHello. A server
+     * accepts up to {@code maxEarlyData} bytes of early data, which {@code unwrap} produces while
+     * the handshake is still in progress, and issues tickets that allow clients to send as much.
+     * Defaults to {@code 0}, which disables early data.
+     *
+     * <p>Early data can be replayed by an attacker, so it must only carry requests that are safe
+     * to process twice. This method needs to be invoked before the handshake starts.
+     *
+     * @param engine the engine
+     * @param maxEarlyData the maximum number of bytes of early data
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine or
+     *     {@code maxEarlyData} is negative.
+     */
+    @ExperimentalApi
+    public static void setMaxEarlyData(SSLEngine engine, int maxEarlyData) {
+        toConscrypt(engine).setMaxEarlyData(maxEarlyData);
+    }
+
+    /**
+     * Sets what decides whether the given server engine accepts early data. Defaults to
+     * {@code null}, which only accepts the early data on a ticket once per server session
+     * cache.
+     *
+     * @param engine the engine
+     * @param protection the replay protection, or {@code null}
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     */
+    @ExperimentalApi
+    public static void setEarlyDataReplayProtection(
+            SSLEngine engine, EarlyDataReplayProtection protection) {
+        toConscrypt(engine).setEarlyDataReplayProtection(protection);
+    }
+
+    /**
+     * Returns whether the early data of the given engine was accepted: by the server for a
+     * client engine, by the engine itself for a server engine. A client whose early data was
+     * rejected has to send it again. Only meaningful once the handshake has finished.
+     *
+     * @param engine the engine
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     */
+    @ExperimentalApi
+    public static boolean isEarlyDataAccepted(SSLEngine engine) {
+        return toConscrypt(engine).isEarlyDataAccepted();
+    }
+
+    /**
+     * Sets the policy that decides how much application data goes into each TLS record the
+     * given engine produces. Defaults to {@link RecordSizePolicy#fixed()}.
+     *
+     * @param engine the engine
+     * @param policy the record size policy
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     * @throws NullPointerException if {@code policy} is null.
+     */
+    @ExperimentalApi
+    public static void setRecordSizePolicy(SSLEngine engine, RecordSizePolicy policy) {
+        toConscrypt(engine).setRecordSizePolicy(policy);
+    }
+
+    /**
+     * Enables/disables decryption of multiple TLS records per call to {@code unwrap} on the
+     * given engine. When enabled, a single {@code unwrap} feeds every complete record in the
+     * source buffers to the engine and drains the plaintext into the destination buffers,
+     * returning the aggregate number of bytes consumed and produced. Records whose plaintext
+     * might not fit in the remaining destination space are left for the next call. Records
+     * received before the handshake completes are still unwrapped one per call.
+     *
+     * @param engine the engine
+     * @param enabled whether to decrypt multiple records per unwrap
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     */
+    @ExperimentalApi
+    public static void setMultiRecordUnwrapEnabled(SSLEngine engine, boolean enabled) {
+        toConscrypt(engine).setMultiRecordUnwrapEnabled(enabled);
+    }
+
+    /**
+     * Enables/disables passing the backing arrays of heap {@link java.nio.ByteBuffer}s to native
+     * code directly. When enabled, the array is pinned for the duration of a single native read
+     * or write rather than being copied through a direct buffer, which saves a copy per byte for
+     * applications that use heap buffers. Pinning may briefly delay garbage collection, so it is
+     * disabled by default.
+     *
+     * @param engine the engine
+     * @param enabled whether to pin heap buffers
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     */
+    @ExperimentalApi
+    public static void setHeapBufferPinningEnabled(SSLEngine engine, boolean enabled) {
+        toConscrypt(engine).setHeapBufferPinningEnabled(enabled);
+    }
+
+    /**
+     * Enables/disables full-duplex operation of the given engine. When enabled, once the
+     * handshake has finished, {@code wrap} and {@code unwrap} only serialize against other calls
+     * in the same direction. The native SSL still reads and writes one record at a time, but
+     * copying data between the caller's buffers and native memory on one thread no longer
+     * waits for the other direction. The handshake, renegotiation and closing remain fully
+     * serialized.
+     *
+     * @param engine the engine
+     * @param enabled whether to allow concurrent wrap and unwrap
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     * @throws IllegalStateException if the provided engine has already begun its handshake.
+     */
+    @ExperimentalApi
+    public static void setFullDuplexEnabled(SSLEngine engine, boolean enabled) {
+        toConscrypt(engine).setFullDuplexEnabled(enabled);
+    }
+
     /**
      * This method enables Server Name Indication (SNI) and overrides the hostname supplied
      * during engine creation.
@@ -654,6 +1057,120 @@ public final class Conscrypt {
                 srcs, srcsOffset, srcsLength, dsts, dstsOffset, dstsLength);
     }
 
+    /**
+     * Same as {@link #unwrap(SSLEngine, ByteBuffer[], int, int, ByteBuffer[], int, int)}, but
+     * fills in {@code result} rather than allocating a new {@link SSLEngineResult}, so that
+     * unwrapping application data on an established connection creates no garbage.
+     *
+     * @param engine the target engine for the unwrap.
+     * @param srcs the source buffers
+     * @param srcsOffset the offset in the {@code srcs} array of the first source buffer
+     * @param srcsLength the number of source buffers starting at {@code srcsOffset}
+     * @param dsts the destination buffers
+     * @param dstsOffset the offset in the {@code dsts} array of the first destination buffer
+     * @param dstsLength the number of destination buffers starting at {@code dstsOffset}
+     * @param result the result to fill in
+     * @return {@code result}
+     * @throws SSLException thrown if an SSL error occurred
+     */
+    @ExperimentalApi
+    public static ReusableEngineResult unwrap(SSLEngine engine, ByteBuffer[] srcs,
+            int srcsOffset, int srcsLength, ByteBuffer[] dsts, int dstsOffset, int dstsLength,
+            ReusableEngineResult result) throws SSLException {
+        return toConscrypt(engine).unwrap(
+                srcs, srcsOffset, srcsLength, dsts, dstsOffset, dstsLength, result);
+    }
+
+    /**
+     * Same as {@link SSLEngine#wrap(ByteBuffer[], int, int, ByteBuffer)}, but fills in {@code
+     * result} rather than allocating a new {@link SSLEngineResult}, so that wrapping
+     * application data on an established connection creates no garbage.
+     *
+     * @param engine the target engine for the wrap.
+     * @param srcs the source buffers
+     * @param srcsOffset the offset in the {@code srcs} array of the first source buffer
+     * @param srcsLength the number of source buffers starting at {@code srcsOffset}
+     * @param dst the destination buffer
+     * @param result the result to fill in
+     * @return {@code result}
+     * @throws SSLException thrown if an SSL error occurred
+     */
+    @ExperimentalApi
+    public static ReusableEngineResult wrap(SSLEngine engine, ByteBuffer[] srcs,
+            int srcsOffset, int srcsLength, ByteBuffer dst, ReusableEngineResult result)
+            throws SSLException {
+        return toConscrypt(engine).wrap(srcs, srcsOffset, srcsLength, dst, result);
+    }
+
+    /**
+     * Wraps up to {@code count} bytes of the given file, starting at {@code position}, into
+     * TLS records in {@code dst}. The region is memory-mapped and sealed directly from the
+     * mapping, so its contents are never copied onto the Java heap. Stops when {@code dst} has no
+     * room for another record, so callers send the contents of {@code dst} and call this again
+     * with {@code position} advanced by the returned count. The handshake must have completed.
+     *
+     * @param engine the engine
+     * @param file the file to read from
+     * @param position the position in the file of the first byte to wrap
+     * @param count the maximum number of bytes to wrap
+     * @param dst the destination buffer for the records
+     * @return the number of bytes of the file that were wrapped
+     * @throws IllegalArgumentException if the engine is not a Conscrypt engine, or if {@code
+     *     position} or {@code count} is negative.
+     */
+    @ExperimentalApi
+    public static long transferFrom(SSLEngine engine, FileChannel file, long position,
+            long count, ByteBuffer dst) throws IOException {
+        AbstractConscryptEngine conscryptEngine = toConscrypt(engine);
+        long length = AbstractConscryptSocket.transferLength(file, position, count);
+        // Records are larger than their plaintext, so this is all that can fit in dst.
+        int mapSize = (int) Math.min(length, dst.remaining());
+        if (mapSize == 0) {
+            return 0;
+        }
+        MappedByteBuffer src = file.map(FileChannel.MapMode.READ_ONLY, position, mapSize);
+        while (src.hasRemaining()) {
+            SSLEngineResult result = conscryptEngine.wrap(src, dst);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.position() == 0) {
+                throw new SSLException("Engine is closed");
+            }
+            if (result.getStatus() != SSLEngineResult.Status.OK
+                    || result.bytesConsumed() == 0) {
+                break;
+            }
+        }
+        return src.position();
+    }
+
+    /**
+     * Creates a TLS channel that encrypts the data of the given socket channel with the given
+     * engine. The channel may be blocking or non-blocking.
+     *
+     * @param channel the connected socket channel
+     * @param engine the engine, which must not have begun its handshake
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     * @throws IllegalStateException if the provided engine has already begun its handshake.
+     */
+    @ExperimentalApi
+    public static ConscryptTlsChannel newTlsChannel(SocketChannel channel, SSLEngine engine) {
+        return new ConscryptTlsChannel(channel, toConscrypt(engine));
+    }
+
+    /**
+     * Creates an asynchronous socket channel that encrypts the data of the given channel with
+     * the given engine.
+     *
+     * @param channel the underlying channel
+     * @param engine the engine, which must not have begun its handshake
+     * @throws IllegalArgumentException if the provided engine is not a Conscrypt engine.
+     * @throws IllegalStateException if the provided engine has already begun its handshake.
+     */
+    @ExperimentalApi
+    public static ConscryptAsynchronousSocketChannel newAsynchronousSocketChannel(
+            AsynchronousSocketChannel channel, SSLEngine engine) {
+        return new ConscryptAsynchronousSocketChannel(channel, toConscrypt(engine));
+    }
+
     /**
      * This method enables session ticket support.
      *
@@ -753,6 +1270,21 @@ public final class Conscrypt {
         return (TrustManagerImpl) trustManager;
     }
 
+    /**
+     * Makes the given trust manager cache up to {@code maximumSize} successfully validated
+     * chains, for at most {@code timeToLiveMillis} each, so that peers presenting the same chain
+     * again are trusted without validating it again. Zero disables the cache, which is the
+     * default.
+     *
+     * @throws IllegalArgumentException if the provided trust manager is not a Conscrypt trust
+     * manager per {@link #isConscrypt(TrustManager)}
+     */
+    @ExperimentalApi
+    public static void setVerifiedChainCache(
+            TrustManager trustManager, int maximumSize, long timeToLiveMillis) {
+        toConscrypt(trustManager).setVerifiedChainCache(maximumSize, timeToLiveMillis);
+    }
+
     /**
      * Set the default hostname verifier that will be used for HTTPS endpoint identification by
      * Conscrypt trust managers.  If {@code null} (the default), endpoint identification will use
@@ -0,0 +1,765 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.conscrypt;
+
+import static org.conscrypt.Preconditions.checkNotNull;
+import static org.conscrypt.Preconditions.checkPositionIndexes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * An {@link AsynchronousSocketChannel} that encrypts the data of another one with a Conscrypt
+ * engine.
+ *
+ * <p>The handshake is started by {@link #handshake()} or implicitly by the first read or write.
+ * All network I/O is done through the underlying channel's completion handlers, so no thread is
+ * ever blocked on the network. The operations that return a {@link Future} return a {@link
+ * CompletableFuture}.
+ *
+ * <p>Encrypted records are written to the underlying channel in the order they were produced by
+ * the engine, whether they carry application data or were generated by the engine itself (e.g.
+ * handshake messages, key updates or the close_notify alert). A write completes when its records
+ * have been written to the underlying channel.
+ */
+@ExperimentalApi
+public final class ConscryptAsynchronousSocketChannel extends AsynchronousSocketChannel {
+    private static final ByteBuffer[] EMPTY_BUFFERS = new ByteBuffer[0];
+
+    private final AsynchronousSocketChannel channel;
+    private final AbstractConscryptEngine engine;
+    private final BufferAllocator allocator = PooledBufferAllocator.getDefault();
+    private final int packetBufferSize;
+
+    /**
+     * Lock for the inbound direction. When both are needed, readLock is acquired before
+     * writeLock. Neither is held while calling back into user code.
+     */
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    // Only accessed by the operation in progress (the handshake or the pending read), under
+    // readLock unless a read from the channel is outstanding.
+    private final ByteBuffer netIn;
+    private final ByteBuffer[] netIns;
+    // Decrypted data that didn't fit into the caller's buffers, always in read mode.
+    // @GuardedBy("readLock");
+    private final ByteBuffer appIn;
+    // @GuardedBy("readLock");
+    private final ByteBuffer[] appIns;
+    // @GuardedBy("readLock");
+    private final ReusableEngineResult readResult = new ReusableEngineResult();
+    // @GuardedBy("readLock");
+    private boolean inboundDone;
+
+    // @GuardedBy("writeLock");
+    private final ReusableEngineResult writeResult = new ReusableEngineResult();
+
+    private final AtomicReference<CompletableFuture<Void>> handshakeFuture =
+            new AtomicReference<CompletableFuture<Void>>();
+    private volatile boolean handshakeFinished;
+    private final AtomicBoolean readPending = new AtomicBoolean();
+    private final AtomicBoolean writePending = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Encrypted data waiting to be written to the channel, in record order. The head of the
+     * queue is being written while {@link #writing} is set.
+     */
+    private final ConcurrentLinkedQueue<PendingWrite> writeQueue =
+            new ConcurrentLinkedQueue<PendingWrite>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final CompletionHandler<Integer, PendingWrite> writeHandler =
+            new CompletionHandler<Integer, PendingWrite>() {
+                @Override
+                public void completed(Integer written, PendingWrite write) {
+                    if (write.buffer.hasRemaining()) {
+                        channel.write(write.buffer, write.timeout, write.unit, write, this);
+                        return;
+                    }
+                    finishWrite(write, null);
+                }
+
+                @Override
+                public void failed(Throwable e, PendingWrite write) {
+                    finishWrite(write, e);
+                }
+            };
+
+    private final CompletionHandler<Integer, ReadOperation> readHandler =
+            new CompletionHandler<Integer, ReadOperation>() {
+                @Override
+                public void completed(Integer read, ReadOperation op) {
+                    if (read < 0) {
+                        synchronized (readLock) {
+                            inboundDone = true;
+                        }
+                        op.complete(-1);
+                    } else {
+                        doRead(op);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, ReadOperation op) {
+                    op.fail(e);
+                }
+            };
+
+    ConscryptAsynchronousSocketChannel(
+            AsynchronousSocketChannel channel, AbstractConscryptEngine engine) {
+        super(checkNotNull(channel, "channel").provider());
+        this.channel = channel;
+        this.engine = checkNotNull(engine, "engine");
+        // Reads and writes only hold the channel's own locks while they wait for the network,
+        // the engine serializes the wraps and unwraps themselves.
+
+        packetBufferSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocateDirect(packetBufferSize);
+        netIns = new ByteBuffer[] {netIn};
+        appIn = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+        appIn.limit(0);
+        appIns = new ByteBuffer[] {appIn};
+    }
+
+    /**
+     * Returns the underlying channel.
+     */
+    public AsynchronousSocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the engine that encrypts and decrypts the data of this channel.
+     */
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Starts the handshake unless that has already happened.
+     *
+     * @return a future that is completed when the handshake has finished
+     */
+    public CompletableFuture<Void> handshake() {
+        CompletableFuture<Void> future = handshakeFuture.get();
+        if (future != null) {
+            return future;
+        }
+        future = new CompletableFuture<Void>();
+        if (!handshakeFuture.compareAndSet(null, future)) {
+            return handshakeFuture.get();
+        }
+        try {
+            engine.beginHandshake();
+        } catch (SSLException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        stepHandshake();
+        return future;
+    }
+
+    /**
+     * Advances the handshake as far as possible with the data received so far.
+     */
+    private void stepHandshake() {
+        CompletableFuture<Void> future = handshakeFuture.get();
+        boolean needsData = false;
+        try {
+            synchronized (readLock) {
+                synchronized (writeLock) {
+                    while (!needsData && !handshakeFinished) {
+                        switch (engine.getHandshakeStatus()) {
+                            case NEED_WRAP:
+                                wrapLocked(EMPTY_BUFFERS, 0, 0, 0, null);
+                                break;
+                            case NEED_UNWRAP:
+                                if (unwrapLocked(appIns, 0, 1) < 0) {
+                                    if (inboundDone) {
+                                        throw new EOFException(
+                                                "Connection closed during handshake");
+                                    }
+                                    needsData = true;
+                                }
+                                break;
+                            case NEED_TASK:
+                                runDelegatedTasks();
+                                break;
+                            default:
+                                handshakeFinished = true;
+                                break;
+                        }
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            drainWriteQueue();
+            future.completeExceptionally(e);
+            return;
+        }
+        drainWriteQueue();
+        if (!needsData) {
+            future.complete(null);
+            return;
+        }
+        channel.read(netIn, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                if (read < 0) {
+                    handshakeFuture.get().completeExceptionally(
+                            new EOFException("Connection closed during handshake"));
+                } else {
+                    stepHandshake();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                handshakeFuture.get().completeExceptionally(e);
+            }
+        });
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment,
+            CompletionHandler<Integer, ? super A> handler) {
+        checkNotNull(dst, "dst");
+        checkNotNull(handler, "handler");
+        notifyInt(startRead(new ByteBuffer[] {dst}, 0, 1, timeout, unit), attachment, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The returned future is a {@link CompletableFuture}.
+     */
+    @Override
+    public Future<Integer> read(ByteBuffer dst) {
+        checkNotNull(dst, "dst");
+        return startRead(new ByteBuffer[] {dst}, 0, 1, 0, TimeUnit.MILLISECONDS)
+                .thenApply(TO_INT);
+    }
+
+    @Override
+    public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit,
+            A attachment, CompletionHandler<Long, ? super A> handler) {
+        checkNotNull(dsts, "dsts");
+        checkNotNull(handler, "handler");
+        notifyLong(startRead(dsts, offset, length, timeout, unit), attachment, handler);
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment,
+            CompletionHandler<Integer, ? super A> handler) {
+        checkNotNull(src, "src");
+        checkNotNull(handler, "handler");
+        notifyInt(startWrite(new ByteBuffer[] {src}, 0, 1, timeout, unit), attachment, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The returned future is a {@link CompletableFuture}.
+     */
+    @Override
+    public Future<Integer> write(ByteBuffer src) {
+        checkNotNull(src, "src");
+        return startWrite(new ByteBuffer[] {src}, 0, 1, 0, TimeUnit.MILLISECONDS)
+                .thenApply(TO_INT);
+    }
+
+    @Override
+    public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit,
+            A attachment, CompletionHandler<Long, ? super A> handler) {
+        checkNotNull(srcs, "srcs");
+        checkNotNull(handler, "handler");
+        notifyLong(startWrite(srcs, offset, length, timeout, unit), attachment, handler);
+    }
+
+    private CompletableFuture<Long> startRead(
+            ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit) {
+        checkPositionIndexes(offset, offset + length, dsts.length);
+        if (!readPending.compareAndSet(false, true)) {
+            throw new ReadPendingException();
+        }
+        final ReadOperation op = new ReadOperation(dsts, offset, length, timeout, unit);
+        handshake().whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable e) {
+                if (e != null) {
+                    op.fail(e);
+                } else {
+                    doRead(op);
+                }
+            }
+        });
+        return op.future;
+    }
+
+    /**
+     * Completes {@code op} with buffered or decrypted data if possible, otherwise reads more
+     * data from the channel and tries again.
+     */
+    private void doRead(ReadOperation op) {
+        long result = 0;
+        boolean needsData = false;
+        try {
+            synchronized (readLock) {
+                if (appIn.hasRemaining()) {
+                    result = transfer(appIn, op.dsts, op.offset, op.length);
+                } else if (inboundDone) {
+                    result = -1;
+                } else {
+                    while (true) {
+                        int produced = unwrapLocked(op.unwrapDsts, 0, op.unwrapDsts.length);
+                        if (produced > 0) {
+                            result = produced - appIn.remaining();
+                            break;
+                        }
+                        if (produced < 0) {
+                            result = -1;
+                            needsData = !inboundDone;
+                            break;
+                        }
+                        // Only non-application records so far, keep going.
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            drainWriteQueue();
+            op.fail(e);
+            return;
+        }
+        // Unwrapping may have produced a response, e.g. to a key update.
+        drainWriteQueue();
+        if (!needsData) {
+            op.complete(result);
+            return;
+        }
+        channel.read(netIn, op.timeout, op.unit, op, readHandler);
+    }
+
+    private CompletableFuture<Long> startWrite(final ByteBuffer[] srcs, final int offset,
+            final int length, final long timeout, final TimeUnit unit) {
+        checkPositionIndexes(offset, offset + length, srcs.length);
+        if (!writePending.compareAndSet(false, true)) {
+            throw new WritePendingException();
+        }
+        final CompletableFuture<Long> future = new CompletableFuture<Long>();
+        handshake().whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable e) {
+                if (e != null) {
+                    writePending.set(false);
+                    future.completeExceptionally(unwrapCompletionException(e));
+                } else {
+                    doWrite(srcs, offset, length, timeout, unit, future);
+                }
+            }
+        });
+        return future;
+    }
+
+    private void doWrite(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit,
+            final CompletableFuture<Long> future) {
+        final PendingWrite write;
+        try {
+            synchronized (writeLock) {
+                write = wrapLocked(srcs, offset, length, timeout, unit);
+            }
+        } catch (Throwable e) {
+            writePending.set(false);
+            future.completeExceptionally(e);
+            return;
+        }
+        drainWriteQueue();
+        write.future.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable e) {
+                writePending.set(false);
+                if (e != null) {
+                    future.completeExceptionally(unwrapCompletionException(e));
+                } else {
+                    future.complete((long) write.bytesConsumed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decrypts at most one record from {@link #netIn}.
+     *
+     * @return the number of bytes written to {@code dsts}, or {@code -1} if {@link #netIn}
+     *     doesn't hold a complete record, or the peer closed the connection if {@link
+     *     #inboundDone} is set
+     */
+    // @GuardedBy("readLock")
+    private int unwrapLocked(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        appIn.compact();
+        netIn.flip();
+        try {
+            engine.unwrap(netIns, 0, 1, dsts, offset, length, readResult);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        switch (readResult.getStatus()) {
+            case OK:
+                HandshakeStatus status = readResult.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_WRAP && handshakeFinished) {
+                    // A post-handshake message, e.g. a key update, needs an answer.
+                    synchronized (writeLock) {
+                        wrapLocked(EMPTY_BUFFERS, 0, 0, 0, null);
+                    }
+                } else if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                return readResult.bytesProduced();
+            case CLOSED:
+                // The peer sent a close_notify, answer it.
+                inboundDone = true;
+                synchronized (writeLock) {
+                    wrapLocked(EMPTY_BUFFERS, 0, 0, 0, null);
+                }
+                return readResult.bytesProduced() > 0 ? readResult.bytesProduced() : -1;
+            case BUFFER_UNDERFLOW:
+                return -1;
+            default:
+                // appIn is large enough for any record.
+                throw new SSLException("Unexpected unwrap result " + readResult);
+        }
+    }
+
+    /**
+     * Encrypts data into a pooled buffer and queues it for writing. The caller has to call
+     * {@link #drainWriteQueue()} after releasing the lock.
+     */
+    // @GuardedBy("writeLock")
+    private PendingWrite wrapLocked(ByteBuffer[] srcs, int offset, int length, long timeout,
+            TimeUnit unit) throws IOException {
+        AllocatedBuffer allocated = allocator.allocateDirectBuffer(packetBufferSize);
+        ByteBuffer netOut = allocated.nioBuffer();
+        boolean queued = false;
+        try {
+            engine.wrap(srcs, offset, length, netOut, writeResult);
+            switch (writeResult.getStatus()) {
+                case OK:
+                    if (writeResult.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    break;
+                case CLOSED:
+                    if (writeResult.bytesProduced() == 0 && hasRemaining(srcs, offset, length)) {
+                        throw new ClosedChannelException();
+                    }
+                    break;
+                default:
+                    // netOut is large enough for any record.
+                    throw new SSLException("Unexpected wrap result " + writeResult);
+            }
+            netOut.flip();
+            PendingWrite write = new PendingWrite(
+                    allocated, netOut, writeResult.bytesConsumed(), timeout, unit);
+            if (netOut.hasRemaining()) {
+                writeQueue.offer(write);
+                queued = true;
+            } else {
+                write.future.complete(null);
+            }
+            return write;
+        } finally {
+            if (!queued) {
+                allocated.release();
+            }
+        }
+    }
+
+    /**
+     * Starts writing the head of {@link #writeQueue} unless a write is in progress already.
+     */
+    private void drainWriteQueue() {
+        while (writing.compareAndSet(false, true)) {
+            PendingWrite write = writeQueue.peek();
+            if (write != null) {
+                channel.write(write.buffer, write.timeout, write.unit, write, writeHandler);
+                return;
+            }
+            writing.set(false);
+            if (writeQueue.isEmpty()) {
+                return;
+            }
+            // Lost a race with a producer, try again.
+        }
+    }
+
+    private void finishWrite(PendingWrite write, Throwable e) {
+        writeQueue.poll();
+        write.allocated.release();
+        writing.set(false);
+        if (e != null) {
+            write.future.completeExceptionally(e);
+        } else {
+            write.future.complete(null);
+        }
+        drainWriteQueue();
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public AsynchronousSocketChannel bind(SocketAddress local) throws IOException {
+        channel.bind(local);
+        return this;
+    }
+
+    @Override
+    public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value)
+            throws IOException {
+        channel.setOption(name, value);
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return channel.getOption(name);
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return channel.supportedOptions();
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownInput() throws IOException {
+        channel.shutdownInput();
+        return this;
+    }
+
+    @Override
+    public AsynchronousSocketChannel shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+        return this;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        return channel.getRemoteAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    @Override
+    public <A> void connect(
+            SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+        channel.connect(remote, attachment, handler);
+    }
+
+    @Override
+    public Future<Void> connect(SocketAddress remote) {
+        return channel.connect(remote);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && channel.isOpen();
+    }
+
+    /**
+     * Queues a close_notify alert and closes the underlying channel once it has been written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        PendingWrite closeNotify;
+        try {
+            synchronized (writeLock) {
+                engine.closeOutbound();
+                closeNotify = wrapLocked(EMPTY_BUFFERS, 0, 0, 0, null);
+            }
+        } catch (IOException e) {
+            channel.close();
+            return;
+        }
+        drainWriteQueue();
+        closeNotify.future.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable e) {
+                try {
+                    channel.close();
+                } catch (IOException ignoredException) {
+                    // Nothing left to do.
+                }
+            }
+        });
+    }
+
+    private static final Function<Long, Integer> TO_INT = new Function<Long, Integer>() {
+        @Override
+        public Integer apply(Long result) {
+            return result.intValue();
+        }
+    };
+
+    private static <A> void notifyInt(CompletableFuture<Long> future, final A attachment,
+            final CompletionHandler<Integer, ? super A> handler) {
+        future.whenComplete(new BiConsumer<Long, Throwable>() {
+            @Override
+            public void accept(Long result, Throwable e) {
+                if (e != null) {
+                    handler.failed(unwrapCompletionException(e), attachment);
+                } else {
+                    handler.completed(result.intValue(), attachment);
+                }
+            }
+        });
+    }
+
+    private static <A> void notifyLong(CompletableFuture<Long> future, final A attachment,
+            final CompletionHandler<Long, ? super A> handler) {
+        future.whenComplete(new BiConsumer<Long, Throwable>() {
+            @Override
+            public void accept(Long result, Throwable e) {
+                if (e != null) {
+                    handler.failed(unwrapCompletionException(e), attachment);
+                } else {
+                    handler.completed(result, attachment);
+                }
+            }
+        });
+    }
+
+    private static Throwable unwrapCompletionException(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            return e.getCause();
+        }
+        return e;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) {
+        int transferred = 0;
+        for (int i = offset; i < offset + length && src.hasRemaining(); i++) {
+            ByteBuffer dst = dsts[i];
+            int count = Math.min(src.remaining(), dst.remaining());
+            if (count == 0) {
+                continue;
+            }
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            dst.put(src);
+            src.limit(limit);
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    /**
+     * A read issued by the user. Decrypted data goes directly into the user's buffers, followed
+     * by {@link #appIn} for any data that doesn't fit.
+     */
+    private final class ReadOperation {
+        final ByteBuffer[] dsts;
+        final int offset;
+        final int length;
+        final ByteBuffer[] unwrapDsts;
+        final long timeout;
+        final TimeUnit unit;
+        final CompletableFuture<Long> future = new CompletableFuture<Long>();
+
+        ReadOperation(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit) {
+            this.dsts = dsts;
+            this.offset = offset;
+            this.length = length;
+            this.timeout = timeout;
+            this.unit = unit;
+            unwrapDsts = new ByteBuffer[length + 1];
+            System.arraycopy(dsts, offset, unwrapDsts, 0, length);
+            unwrapDsts[length] = appIn;
+        }
+
+        void complete(long result) {
+            readPending.set(false);
+            future.complete(result);
+        }
+
+        void fail(Throwable e) {
+            readPending.set(false);
+            future.completeExceptionally(unwrapCompletionException(e));
+        }
+    }
+
+    /**
+     * Encrypted data produced by one call to the engine.
+     */
+    private static final class PendingWrite {
+        final AllocatedBuffer allocated;
+        final ByteBuffer buffer;
+        final int bytesConsumed;
+        final long timeout;
+        final TimeUnit unit;
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        PendingWrite(AllocatedBuffer allocated, ByteBuffer buffer, int bytesConsumed,
+                long timeout, TimeUnit unit) {
+            this.allocated = allocated;
+            this.buffer = buffer;
+            this.bytesConsumed = bytesConsumed;
+            this.timeout = timeout;
+            // The channel requires a unit even if there is no timeout.
+            this.unit = unit != null ? unit : TimeUnit.MILLISECONDS;
+        }
+    }
+}
@@ -32,9 +32,9 @@
 
 package org.conscrypt;
 
-import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.FINISHED;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_TASK;
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_WRAP;
 import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
@@ -42,12 +42,15 @@ import static javax.net.ssl.SSLEngineResult.Status.BUFFER_OVERFLOW;
 import static javax.net.ssl.SSLEngineResult.Status.BUFFER_UNDERFLOW;
 import static javax.net.ssl.SSLEngineResult.Status.CLOSED;
 import static javax.net.ssl.SSLEngineResult.Status.OK;
+import static org.conscrypt.NativeConstants.SSL3_RT_APPLICATION_DATA;
+import static org.conscrypt.NativeConstants.SSL3_RT_HANDSHAKE;
 import static org.conscrypt.NativeConstants.SSL3_RT_HEADER_LENGTH;
 import static org.conscrypt.NativeConstants.SSL3_RT_MAX_PACKET_SIZE;
 import static org.conscrypt.NativeConstants.SSL3_RT_MAX_PLAIN_LENGTH;
 import static org.conscrypt.NativeConstants.SSL_CB_HANDSHAKE_DONE;
 import static org.conscrypt.NativeConstants.SSL_CB_HANDSHAKE_START;
 import static org.conscrypt.NativeConstants.SSL_ERROR_WANT_READ;
+import static org.conscrypt.NativeConstants.SSL_ERROR_WANT_RETRY_VERIFY;
 import static org.conscrypt.NativeConstants.SSL_ERROR_WANT_WRITE;
 import static org.conscrypt.NativeConstants.SSL_ERROR_ZERO_RETURN;
 import static org.conscrypt.Preconditions.checkArgument;
@@ -111,25 +114,23 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     private static final SSLEngineResult CLOSED_NOT_HANDSHAKING =
             new SSLEngineResult(CLOSED, NOT_HANDSHAKING, 0, 0);
 
+    // Handshake message types, see mayNeedDelegatedStep.
+    private static final int SSL3_MT_CLIENT_HELLO = 1;
+    private static final int SSL3_MT_CERTIFICATE = 11;
+    private static final int SSL3_MT_CLIENT_KEY_EXCHANGE = 16;
+
     private static BufferAllocator defaultBufferAllocator = null;
 
     private final SSLParametersImpl sslParameters;
     private BufferAllocator bufferAllocator = defaultBufferAllocator;
 
-    /**
-     * A lazy-created direct buffer used as a bridge between heap buffers provided by the
-     * application and JNI. This avoids the overhead of calling JNI with heap buffers.
-     * Used only when no {@link #bufferAllocator} has been provided.
-     */
-    private ByteBuffer lazyDirectBuffer;
-
     /**
      * Hostname used with the TLS extension SNI hostname.
      */
     private String peerHostname;
 
     // @GuardedBy("ssl");
-    private int state = STATE_NEW;
+    private volatile int state = STATE_NEW;
     private boolean handshakeFinished;
 
     /**
@@ -174,8 +175,120 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     private HandshakeListener handshakeListener;
 
+    /**
+     * Whether a single call to wrap may produce more than one TLS record.
+     */
+    // @GuardedBy("ssl");
+    private boolean multiRecordWrap;
+
+    /**
+     * Decides how much plaintext goes into each record, or {@code null} to always fill records.
+     */
+    // @GuardedBy("ssl");
+    private RecordSizePolicy.Sizer recordSizer;
+
+    /**
+     * Whether expensive handshake steps run as delegated tasks rather than inline.
+     */
+    // @GuardedBy("ssl");
+    private boolean delegatedTasksEnabled;
+
+    /**
+     * The verification the handshake is suspended for, until the handshake picks up its result.
+     */
+    // @GuardedBy("ssl");
+    private DelegatedVerification pendingVerification;
+
+    /**
+     * The server handshake step that is run as a delegated task, until the handshake picks up
+     * its result.
+     */
+    // @GuardedBy("ssl");
+    private DelegatedHandshake pendingHandshake;
+
+    /**
+     * The amount of TLS 1.3 early data a client may send or a server accepts, {@code 0} if
+     * early data is disabled.
+     */
+    // @GuardedBy("ssl");
+    private int maxEarlyData;
+
+    /**
+     * Decides whether a server accepts early data, or {@code null} for the built-in protection.
+     */
+    // @GuardedBy("ssl");
+    private EarlyDataReplayProtection earlyDataReplayProtection;
+
+    /**
+     * On a client, the amount of early data the next {@code wrap} may send. Once it has sent any,
+     * or the handshake has moved on, it's {@code 0}.
+     */
+    // @GuardedBy("ssl");
+    private int earlyDataToSend;
+
+    /**
+     * Whether a server is reading early data, and the handshake advances as it does.
+     */
+    // @GuardedBy("ssl");
+    private boolean readingEarlyData;
+
+    /**
+     * Whether the early data was accepted, known once the handshake has finished.
+     */
+    // @GuardedBy("ssl");
+    private boolean earlyDataAccepted;
+
+    /**
+     * Whether a single call to unwrap may decrypt more than one TLS record.
+     */
+    // @GuardedBy("ssl");
+    private boolean multiRecordUnwrap;
+
+    /**
+     * Whether heap buffers are passed to native code directly, instead of being copied through
+     * a direct buffer.
+     */
+    // @GuardedBy("ssl");
+    private boolean heapBufferPinning;
+
+
+    /**
+     * Whether wrap and unwrap on an established connection only lock their own direction, so
+     * that they can run concurrently on different threads. Calls into the SSL and the network
+     * BIO still synchronize on {@code ssl}, only the work around them overlaps. Can only be
+     * changed before the handshake starts.
+     */
+    private volatile boolean fullDuplex;
+
+    /**
+     * Whether the connection is established and {@link #fullDuplex} is enabled, i.e. whether
+     * wrap and unwrap may skip locking {@code ssl}. Only changes while both {@link #inboundLock}
+     * and {@link #outboundLock} are held. Post-handshake messages don't change it, they are
+     * handled by a read that holds {@code ssl} like any other.
+     */
+    private volatile boolean duplexReady;
+
+    /**
+     * Locks taken by unwrap and wrap respectively. When both are needed they are acquired in
+     * that order, and always before {@code ssl}.
+     */
+    private final Object inboundLock = new Object();
+    private final Object outboundLock = new Object();
+
+    // @GuardedBy("inboundLock");
     private final ByteBuffer[] singleSrcBuffer = new ByteBuffer[1];
+    // @GuardedBy("inboundLock");
     private final ByteBuffer[] singleDstBuffer = new ByteBuffer[1];
+    // @GuardedBy("outboundLock"), or "ssl" when not full-duplex;
+    private final ByteBuffer[] singleWrapSrcBuffer = new ByteBuffer[1];
+    // @GuardedBy("outboundLock"), or "ssl" when not full-duplex;
+    private ByteBuffer[] wrapSrcsSlice;
+    // @GuardedBy("outboundLock"), or "ssl" when not full-duplex;
+    private final ReusableEngineResult wrapResult = new ReusableEngineResult();
+    // @GuardedBy("inboundLock"), or "ssl" when not full-duplex;
+    private final ReusableEngineResult unwrapResult = new ReusableEngineResult();
+    // @GuardedBy("outboundLock");
+    private boolean closeAfterWrap;
     private final PeerInfoProvider peerInfoProvider;
 
     ConscryptEngine(SSLParametersImpl sslParameters) {
@@ -236,6 +349,120 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
         }
     }
 
+    /**
+     * Enables/disables sealing of multiple TLS records per call to {@code wrap}. When enabled,
+     * {@code wrap} keeps producing records until the sources are exhausted or {@code dst} can't
+     * hold another record.
+     */
+    @Override
+    void setMultiRecordWrapEnabled(boolean enabled) {
+        synchronized (ssl) {
+            this.multiRecordWrap = enabled;
+        }
+    }
+
+    /**
+     * Enables/disables running certificate verification as a delegated task. Only clients can
+     * suspend the handshake for it, servers always verify inline.
+     */
+    @Override
+    void setDelegatedTasksEnabled(boolean enabled) {
+        synchronized (ssl) {
+            this.delegatedTasksEnabled = enabled;
+        }
+    }
+
+    /**
+     * Sets the policy that decides how much plaintext goes into each record. The engine starts
+     * tracking its sent data afresh.
+     */
+    @Override
+    void setRecordSizePolicy(RecordSizePolicy policy) {
+        checkNotNull(policy, "policy");
+        synchronized (ssl) {
+            this.recordSizer = policy.newSizer();
+        }
+    }
+
+    /**
+     * Sets the amount of TLS 1.3 early data to send on resumption as a client, or to accept as a
+     * server. Takes effect at the start of the handshake.
+     */
+    @Override
+    void setMaxEarlyData(int maxEarlyData) {
+        checkArgument(maxEarlyData >= 0, "maxEarlyData < 0");
+        synchronized (ssl) {
+            this.maxEarlyData = maxEarlyData;
+        }
+    }
+
+    @Override
+    void setEarlyDataReplayProtection(EarlyDataReplayProtection protection) {
+        synchronized (ssl) {
+            this.earlyDataReplayProtection = protection;
+        }
+    }
+
+    @Override
+    boolean isEarlyDataAccepted() {
+        synchronized (ssl) {
+            return earlyDataAccepted;
+        }
+    }
+
+    /**
+     * Returns whether the next {@code wrap} may send early data.
+     */
+    boolean mayWriteEarlyData() {
+        synchronized (ssl) {
+            return earlyDataToSend > 0;
+        }
+    }
+
+    /**
+     * Enables/disables decryption of multiple TLS records per call to {@code unwrap}. When
+     * enabled, {@code unwrap} keeps feeding complete records from the sources to the network BIO
+     * and draining plaintext until no complete record is left or the destinations are full.
+     * Handshake records are still unwrapped one per call.
+     */
+    @Override
+    void setMultiRecordUnwrapEnabled(boolean enabled) {
+        synchronized (ssl) {
+            this.multiRecordUnwrap = enabled;
+        }
+    }
+
+    /**
+     * Enables/disables passing the backing arrays of heap buffers to native code directly. When
+     * enabled, the array is pinned for the duration of a single read or write instead of being
+     * copied through a direct buffer.
+     */
+    @Override
+    void setHeapBufferPinningEnabled(boolean enabled) {
+        synchronized (ssl) {
+            this.heapBufferPinning = enabled;
+        }
+    }
+
+    /**
+     * Enables/disables full-duplex operation. When enabled, once the handshake has finished
+     * {@code wrap} and {@code unwrap} only serialize against calls in the same direction. The
+     * SSL doesn't support reading and writing at the same time, so each call into it still
+     * synchronizes on {@code ssl}, but copying between the caller's buffers and the direct
+     * buffers handed to native code no longer waits for the other direction. The handshake,
+     * renegotiation and closing remain serialized with everything else.
+     */
+    @Override
+    void setFullDuplexEnabled(boolean enabled) {
+        synchronized (ssl) {
+            if (isHandshakeStarted()) {
+                throw new IllegalStateException(
+                        "Could not enable full-duplex after the initial handshake has begun.");
+            }
+            this.fullDuplex = enabled;
+        }
+    }
+
     /**
      * Returns the maximum overhead, in bytes, of sealing a record with SSL.
      */
@@ -397,6 +624,16 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     @Override
     public void beginHandshake() throws SSLException {
+        if (fullDuplex) {
+            synchronized (inboundLock) {
+                synchronized (outboundLock) {
+                    synchronized (ssl) {
+                        beginHandshakeInternal();
+                    }
+                }
+            }
+            return;
+        }
         synchronized (ssl) {
             beginHandshakeInternal();
         }
@@ -434,11 +671,25 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                         getHostname(), getPeerPort(), sslParameters);
                 if (cachedSession != null) {
                     cachedSession.offerToResume(ssl);
+                    if (maxEarlyData > 0) {
+                        earlyDataToSend = min(maxEarlyData, cachedSession.getMaxEarlyData());
+                    }
+                }
+                int ticketRequest =
+                        clientSessionContext().getTicketRequest(getHostname(), getPeerPort());
+                if (ticketRequest > 0) {
+                    ssl.setTicketRequest(ticketRequest);
                 }
+            } else if (maxEarlyData > 0) {
+                ssl.setMaxEarlyData(maxEarlyData, earlyDataReplayProtection != null);
+                readingEarlyData = true;
             }
 
             // maxSealOverhead = ssl.getMaxSealOverhead();
-            handshake();
+            if (earlyDataToSend == 0 && !readingEarlyData) {
+                // Otherwise the first flight goes out with the early data, or as it's read.
+                handshake();
+            }
             releaseResources = false;
         } catch (IOException e) {
             // Write CCS errors to EventLog
@@ -459,6 +710,19 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     @Override
     public void closeInbound() {
+        if (fullDuplex) {
+            // Wait for wraps and unwraps in progress, which rely on the state not changing.
+            synchronized (inboundLock) {
+                synchronized (outboundLock) {
+                    closeInboundInternal();
+                }
+            }
+        } else {
+            closeInboundInternal();
+        }
+    }
+
+    private void closeInboundInternal() {
         synchronized (ssl) {
             if (state == STATE_CLOSED || state == STATE_CLOSED_INBOUND) {
                 return;
@@ -479,6 +743,20 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     @Override
     public void closeOutbound() {
+        if (fullDuplex) {
+            // Wait for wraps and unwraps in progress, which rely on the state not changing, and
+            // don't send the close_notify in the middle of a wrap.
+            synchronized (inboundLock) {
+                synchronized (outboundLock) {
+                    closeOutboundInternal();
+                }
+            }
+        } else {
+            closeOutboundInternal();
+        }
+    }
+
+    private void closeOutboundInternal() {
         synchronized (ssl) {
             if (state == STATE_CLOSED || state == STATE_CLOSED_OUTBOUND) {
                 return;
@@ -500,8 +778,14 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     @Override
     public Runnable getDelegatedTask() {
-        // This implementation doesn't use any delegated tasks.
-        return null;
+        synchronized (ssl) {
+            DelegatedTask task = pendingTask();
+            if (task == null || task.handedOut) {
+                return null;
+            }
+            task.handedOut = true;
+            return task;
+        }
     }
 
     @Override
@@ -545,6 +829,15 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
         }
         switch (state) {
             case STATE_HANDSHAKE_STARTED:
+                if (earlyDataToSend > 0) {
+                    // The next wrap sends the ClientHello along with any early data.
+                    return NEED_WRAP;
+                }
+                DelegatedTask task = pendingTask();
+                if (task != null) {
+                    // wrap() resumes the handshake once the task has run.
+                    return task.done ? NEED_WRAP : NEED_TASK;
+                }
                 return pendingStatus(pendingOutboundEncryptedBytes());
             case STATE_HANDSHAKE_COMPLETED:
                 return HandshakeStatus.NEED_WRAP;
@@ -563,11 +856,15 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     }
 
     int pendingOutboundEncryptedBytes() {
-        return networkBio.getPendingWrittenBytes();
+        synchronized (ssl) {
+            return networkBio.getPendingWrittenBytes();
+        }
     }
 
     private int pendingInboundCleartextBytes() {
-        return ssl.getPendingReadableBytes();
+        synchronized (ssl) {
+            return ssl.getPendingReadableBytes();
+        }
     }
 
     private static SSLEngineResult.HandshakeStatus pendingStatus(int pendingOutboundBytes) {
@@ -618,8 +915,14 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     private ConscryptSession provideHandshakeSession() {
         synchronized (ssl) {
-            return state == STATE_HANDSHAKE_STARTED ? activeSession
-                : SSLNullSession.getNullSession();
+            if (state != STATE_HANDSHAKE_STARTED) {
+                return SSLNullSession.getNullSession();
+            }
+            if (isHandshakeTaskRunningElsewhere()) {
+                // The task is using the SSL, show the session as it was when the task started.
+                return pendingHandshake.session;
+            }
+            return activeSession;
         }
     }
 
@@ -654,6 +957,10 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     @Override
     public boolean isInboundDone() {
         synchronized (ssl) {
+            if (isHandshakeTaskRunningElsewhere()) {
+                // The task is using the SSL, only a close can have changed the answer.
+                return state == STATE_CLOSED || state == STATE_CLOSED_INBOUND;
+            }
             return (state == STATE_CLOSED
                     || state == STATE_CLOSED_INBOUND
                     || ssl.wasShutdownReceived())
@@ -664,6 +971,10 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     @Override
     public boolean isOutboundDone() {
         synchronized (ssl) {
+            if (isHandshakeTaskRunningElsewhere()) {
+                // The task is using the SSL, whatever it sends is picked up once it's done.
+                return false;
+            }
             return (state == STATE_CLOSED
                     || state == STATE_CLOSED_OUTBOUND
                     || ssl.wasShutdownSent())
@@ -710,7 +1021,7 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     @Override
     public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
-        synchronized (ssl) {
+        synchronized (inboundLock) {
             try {
                 return unwrap(singleSrcBuffer(src), singleDstBuffer(dst));
             } finally {
@@ -722,7 +1033,7 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     @Override
     public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts) throws SSLException {
-        synchronized (ssl) {
+        synchronized (inboundLock) {
             try {
                 return unwrap(singleSrcBuffer(src), dsts);
             } finally {
@@ -734,7 +1045,7 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     @Override
     public SSLEngineResult unwrap(final ByteBuffer src, final ByteBuffer[] dsts, final int offset,
             final int length) throws SSLException {
-        synchronized (ssl) {
+        synchronized (inboundLock) {
             try {
                 return unwrap(singleSrcBuffer(src), 0, 1, dsts, offset, length);
             } finally {
@@ -754,6 +1065,25 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     SSLEngineResult unwrap(final ByteBuffer[] srcs, int srcsOffset, final int srcsLength,
             final ByteBuffer[] dsts, final int dstsOffset, final int dstsLength)
             throws SSLException {
+        return unwrapWithLocks(srcs, srcsOffset, srcsLength, dsts, dstsOffset, dstsLength, null);
+    }
+
+    @Override
+    ReusableEngineResult unwrap(final ByteBuffer[] srcs, int srcsOffset, final int srcsLength,
+            final ByteBuffer[] dsts, final int dstsOffset, final int dstsLength,
+            ReusableEngineResult result) throws SSLException {
+        checkArgument(result != null, "result is null");
+        unwrapWithLocks(srcs, srcsOffset, srcsLength, dsts, dstsOffset, dstsLength, result);
+        return result;
+    }
+
+    /**
+     * Acquires the locks needed to unwrap. If {@code result} is {@code null} a new result is
+     * returned, otherwise {@code result} is filled in and {@code null} is returned.
+     */
+    private SSLEngineResult unwrapWithLocks(final ByteBuffer[] srcs, int srcsOffset,
+            final int srcsLength, final ByteBuffer[] dsts, final int dstsOffset,
+            final int dstsLength, ReusableEngineResult result) throws SSLException {
         checkArgument(srcs != null, "srcs is null");
         checkArgument(dsts != null, "dsts is null");
         checkPositionIndexes(srcsOffset, srcsOffset + srcsLength, srcs.length);
@@ -766,43 +1096,103 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
         final int srcsEndOffset = srcsOffset + srcsLength;
         final long srcLength = calcSrcsLength(srcs, srcsOffset, srcsEndOffset);
 
-        synchronized (ssl) {
-            switch (state) {
-                case STATE_MODE_SET:
-                    // Begin the handshake implicitly.
-                    beginHandshakeInternal();
-                    break;
-                case STATE_CLOSED_INBOUND:
-                case STATE_CLOSED:
-                    freeIfDone();
-                    // If the inbound direction is closed. we can't send anymore.
-                    return new SSLEngineResult(Status.CLOSED, getHandshakeStatusInternal(), 0, 0);
-                case STATE_NEW:
-                    throw new IllegalStateException(
-                            "Client/server mode must be set before calling unwrap");
-                default:
-                    break;
+        if (!fullDuplex) {
+            return unwrapLocked(ssl, srcs, srcsOffset, srcsEndOffset, srcLength, dsts,
+                    dstsOffset, endOffset, dstLength, result);
+        }
+        synchronized (inboundLock) {
+            if (duplexReady) {
+                // The connection is established, the inbound lock is all we need.
+                return unwrapLocked(inboundLock, srcs, srcsOffset, srcsEndOffset, srcLength,
+                        dsts, dstsOffset, endOffset, dstLength, result);
             }
+            synchronized (outboundLock) {
+                return unwrapLocked(ssl, srcs, srcsOffset, srcsEndOffset, srcLength, dsts,
+                        dstsOffset, endOffset, dstLength, result);
+            }
+        }
+    }
 
-            HandshakeStatus handshakeStatus = HandshakeStatus.NOT_HANDSHAKING;
-            if (!handshakeFinished) {
-                handshakeStatus = handshake();
-                if (handshakeStatus == NEED_WRAP) {
-                    return NEED_WRAP_OK;
-                }
-                if (state == STATE_CLOSED) {
-                    return NEED_WRAP_CLOSED;
-                }
-                // NEED_UNWRAP - just fall through to perform the unwrap.
+    /**
+     * Unwraps while holding {@code lock}. If the caller supplied {@code result} it is filled in
+     * and {@code null} is returned, otherwise a new result is returned.
+     */
+    private SSLEngineResult unwrapLocked(Object lock, ByteBuffer[] srcs, int srcsOffset,
+            int srcsEndOffset, long srcLength, ByteBuffer[] dsts, int dstsOffset, int endOffset,
+            int dstLength, ReusableEngineResult result) throws SSLException {
+        synchronized (lock) {
+            if (result != null) {
+                unwrapInternal(srcs, srcsOffset, srcsEndOffset, srcLength, dsts, dstsOffset,
+                        endOffset, dstLength, result);
+                return null;
+            }
+            return unwrapInternal(srcs, srcsOffset, srcsEndOffset, srcLength, dsts, dstsOffset,
+                    endOffset, dstLength, unwrapResult).toSSLEngineResult();
+        }
+    }
+
+    private ReusableEngineResult unwrapInternal(ByteBuffer[] srcs, int srcsOffset,
+            int srcsEndOffset, long srcLength, ByteBuffer[] dsts, int dstsOffset, int endOffset,
+            int dstLength, ReusableEngineResult result) throws SSLException {
+        switch (state) {
+            case STATE_MODE_SET:
+                // Begin the handshake implicitly.
+                beginHandshakeInternal();
+                break;
+            case STATE_CLOSED_INBOUND:
+            case STATE_CLOSED:
+                freeIfDone();
+                // If the inbound direction is closed. we can't send anymore.
+                return result.set(Status.CLOSED, getHandshakeStatusInternal(), 0, 0);
+            case STATE_NEW:
+                throw new IllegalStateException(
+                        "Client/server mode must be set before calling unwrap");
+            default:
+                break;
+        }
+
+        // Only application data records are unwrapped in a loop. During the handshake, each
+        // record may change the handshake status reported for this call.
+        boolean multiRecord = multiRecordUnwrap && handshakeFinished;
+        HandshakeStatus handshakeStatus = HandshakeStatus.NOT_HANDSHAKING;
+        if (!handshakeFinished) {
+            // A client can't send early data once it reads the server's response.
+            earlyDataToSend = 0;
+            handshakeStatus = handshake();
+            if (handshakeStatus == NEED_WRAP) {
+                return result.set(NEED_WRAP_OK);
             }
+            if (handshakeStatus == NEED_TASK) {
+                return newResult(result, 0, 0, handshakeStatus);
+            }
+            if (state == STATE_CLOSED) {
+                return result.set(NEED_WRAP_CLOSED);
+            }
+            if (readingEarlyData && dstLength == 0) {
+                // The next record may hold early data.
+                return result.set(BUFFER_OVERFLOW, getHandshakeStatusInternal(), 0, 0);
+            }
+            // NEED_UNWRAP - just fall through to perform the unwrap.
+        }
 
+        int bytesConsumed = 0;
+        int bytesProduced = 0;
+        do {
+            // Set once an earlier record of this call has been processed.
+            boolean madeProgress = bytesConsumed > 0 || bytesProduced > 0;
+            boolean delegateHandshake = false;
             // Consume any source data. Skip this if there are unread cleartext data.
             boolean noCleartextDataAvailable = pendingInboundCleartextBytes() <= 0;
+            long srcRemaining = srcLength - bytesConsumed;
             int lenRemaining = 0;
-            if (srcLength > 0 && noCleartextDataAvailable) {
-                if (srcLength < SSL3_RT_HEADER_LENGTH) {
+            if (srcRemaining > 0 && noCleartextDataAvailable) {
+                if (srcRemaining < SSL3_RT_HEADER_LENGTH) {
+                    if (madeProgress) {
+                        // Only a partial record is left, return what we have so far.
+                        break;
+                    }
                     // Need to be able to read a full TLS header.
-                    return new SSLEngineResult(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
+                    return result.set(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
                 }
 
                 int packetLength = SSLUtils.getEncryptedPacketLength(srcs, srcsOffset);
@@ -810,21 +1200,36 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                     throw new SSLException("Unable to parse TLS packet header");
                 }
 
-                if (srcLength < packetLength) {
-                    // We either have not enough data to read the packet header or not enough for
-                    // reading the whole packet.
-                    return new SSLEngineResult(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
+                if (srcRemaining < packetLength) {
+                    if (madeProgress) {
+                        break;
+                    }
+                    // We either have not enough data to read the packet header or not enough
+                    // for reading the whole packet.
+                    return result.set(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
+                }
+
+                if (madeProgress
+                        && dstLength - bytesProduced < packetLength - SSL3_RT_HEADER_LENGTH) {
+                    // The plaintext of the next record might not fit, leave it for the
+                    // next call rather than returning BUFFER_OVERFLOW.
+                    break;
                 }
 
                 // Limit the amount of data to be read to a single packet.
                 lenRemaining = packetLength;
+                if (!handshakeFinished && delegatedTasksEnabled && !getUseClientMode()) {
+                    delegateHandshake = mayNeedDelegatedStep(srcs, srcsOffset);
+                }
             } else if (noCleartextDataAvailable) {
+                if (madeProgress) {
+                    break;
+                }
                 // No pending data and nothing provided as input.  Need more data.
-                return new SSLEngineResult(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
+                return result.set(BUFFER_UNDERFLOW, getHandshakeStatus(), 0, 0);
             }
 
             // Write all of the encrypted source data to the networkBio
-            int bytesConsumed = 0;
             if (lenRemaining > 0 && srcsOffset < srcsEndOffset) {
                 do {
                     ByteBuffer src = srcs[srcsOffset];
@@ -854,19 +1259,29 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                             break;
                         }
                     } else {
-                        // BIO_write returned a negative or zero number, this means we could not
-                        // complete the write operation and should retry later.
+                        // BIO_write returned a negative or zero number, this means we could
+                        // not complete the write operation and should retry later.
                         // We ignore BIO_* errors here as we use in memory BIO anyway and will
-                        // do another SSL_* call later on in which we will produce an exception
-                        // in case of an error
+                        // do another SSL_* call later on in which we will produce an
+                        // exception in case of an error
                         NativeCrypto.SSL_clear_error();
                         break;
                     }
                 } while (srcsOffset < srcsEndOffset);
             }
 
+            if (readingEarlyData) {
+                return unwrapEarlyData(result, bytesConsumed, dsts, dstsOffset, endOffset);
+            }
+
+            if (delegateHandshake && bytesConsumed > 0) {
+                // Leave processing the handshake messages, which may have to use the private
+                // key or the trust manager, to a delegated task.
+                pendingHandshake = new DelegatedHandshake();
+                return newResult(result, bytesConsumed, bytesProduced, handshakeStatus);
+            }
+
             // Now read any available plaintext data.
-            int bytesProduced = 0;
             try {
                 if (dstLength > 0) {
                     // Write decrypted data to dsts buffers
@@ -886,15 +1301,26 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                             }
                         } else {
                             switch (bytesRead) {
+                                case -SSL_ERROR_WANT_RETRY_VERIFY:
+                                    // Certificate verification was handed off to a
+                                    // delegated task.
+                                    return newResult(result, bytesConsumed, bytesProduced,
+                                            handshakeStatus);
                                 case -SSL_ERROR_WANT_READ:
                                 case -SSL_ERROR_WANT_WRITE: {
-                                    return newResult(bytesConsumed, bytesProduced, handshakeStatus);
+                                    if (!multiRecord) {
+                                        return newResult(result, bytesConsumed,
+                                                bytesProduced, handshakeStatus);
+                                    }
+                                    // Move on to the next record, if any.
+                                    break;
                                 }
                                 case -SSL_ERROR_ZERO_RETURN: {
                                     // We received a close_notify from the peer, so mark the
-                                    // inbound direction as closed and shut down the SSL object
+                                    // inbound direction as closed and shut down the SSL
+                                    // object
                                     closeAll();
-                                    return new SSLEngineResult(Status.CLOSED,
+                                    return result.set(Status.CLOSED,
                                             pendingOutboundEncryptedBytes() > 0
                                                     ? NEED_WRAP : NOT_HANDSHAKING,
                                             bytesConsumed, bytesProduced);
@@ -905,39 +1331,65 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                                     throw newSslExceptionWithMessage("SSL_read");
                                 }
                             }
+                            break;
                         }
                     }
                 } else {
-                    // If the capacity of all destination buffers is 0 we need to trigger a SSL_read
-                    // anyway to ensure everything is flushed in the BIO pair and so we can detect
-                    // it in the pendingInboundCleartextBytes() call.
-                    ssl.forceRead();
+                    // If the capacity of all destination buffers is 0 we need to trigger a
+                    // SSL_read anyway to ensure everything is flushed in the BIO pair and so
+                    // we can detect it in the pendingInboundCleartextBytes() call.
+                    synchronized (ssl) {
+                        ssl.forceRead();
+                    }
                 }
             } catch (InterruptedIOException e) {
-                return newResult(bytesConsumed, bytesProduced, handshakeStatus);
+                return newResult(result, bytesConsumed, bytesProduced, handshakeStatus);
             } catch (IOException e) {
-                // Shut down the SSL and rethrow the exception.  Users will need to drain any alerts
-                // from the SSL before closing.
+                // Shut down the SSL and rethrow the exception.  Users will need to drain any
+                // alerts from the SSL before closing.
                 closeAll();
                 throw convertException(e);
             }
+        } while (multiRecord && bytesConsumed < srcLength && bytesProduced < dstLength);
+
+        // There won't be any application data until we're done handshaking.
+        // We first check handshakeFinished to eliminate the overhead of extra JNI call if
+        // possible.
+        int pendingCleartextBytes = handshakeFinished ? pendingInboundCleartextBytes() : 0;
+        if (pendingCleartextBytes > 0) {
+            // We filled all buffers but there is still some data pending in the BIO buffer,
+            // return BUFFER_OVERFLOW.
+            return result.set(BUFFER_OVERFLOW,
+                    mayFinishHandshake(handshakeStatus == FINISHED
+                                    ? handshakeStatus
+                                    : getHandshakeStatusInternal()),
+                    bytesConsumed, bytesProduced);
+        }
 
-            // There won't be any application data until we're done handshaking.
-            // We first check handshakeFinished to eliminate the overhead of extra JNI call if
-            // possible.
-            int pendingCleartextBytes = handshakeFinished ? pendingInboundCleartextBytes() : 0;
-            if (pendingCleartextBytes > 0) {
-                // We filled all buffers but there is still some data pending in the BIO buffer,
-                // return BUFFER_OVERFLOW.
-                return new SSLEngineResult(BUFFER_OVERFLOW,
-                        mayFinishHandshake(handshakeStatus == FINISHED
-                                        ? handshakeStatus
-                                        : getHandshakeStatusInternal()),
-                        bytesConsumed, bytesProduced);
-            }
+        return newResult(result, bytesConsumed, bytesProduced, handshakeStatus);
+    }
 
-            return newResult(bytesConsumed, bytesProduced, handshakeStatus);
+    /**
+     * Returns whether a server processing the record at the start of {@code srcs} may use its
+     * private key or trust manager, which is worth doing in a delegated task. That is the case
+     * for the ClientHello, and for the client's certificate and key exchange in TLS 1.2. TLS 1.3
+     * encrypts the client's last flight, which only needs the trust manager with client
+     * authentication. A flight that only holds the Finished message is processed right away.
+     */
+    private boolean mayNeedDelegatedStep(ByteBuffer[] srcs, int srcsOffset) {
+        int contentType = SSLUtils.peekUnsignedByte(srcs, srcsOffset, 0);
+        if (contentType == SSL3_RT_HANDSHAKE) {
+            switch (SSLUtils.peekUnsignedByte(srcs, srcsOffset, SSL3_RT_HEADER_LENGTH)) {
+                case SSL3_MT_CLIENT_HELLO:
+                case SSL3_MT_CERTIFICATE:
+                case SSL3_MT_CLIENT_KEY_EXCHANGE:
+                    return true;
+                default:
+                    return false;
+            }
         }
+        return contentType == SSL3_RT_APPLICATION_DATA
+                && (sslParameters.getNeedClientAuth() || sslParameters.getWantClientAuth());
     }
 
     private static int calcDstsLength(ByteBuffer[] dsts, int dstsOffset, int dstsLength) {
@@ -972,13 +1424,30 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
             // Only actually perform the handshake if we haven't already just completed it
             // via BIO operations.
             try {
-                int ssl_error_code = ssl.doHandshake();
+                if (readingEarlyData) {
+                    // The handshake advances as unwrap reads the early data.
+                    return pendingStatus(pendingOutboundEncryptedBytes());
+                }
+                int ssl_error_code;
+                DelegatedHandshake delegated = pendingHandshake;
+                if (delegated != null) {
+                    if (!delegated.done) {
+                        return NEED_TASK;
+                    }
+                    pendingHandshake = null;
+                    ssl_error_code = delegated.getResult();
+                } else {
+                    ssl_error_code = ssl.doHandshake();
+                }
                 switch (ssl_error_code) {
                     case SSL_ERROR_WANT_READ:
                         return pendingStatus(pendingOutboundEncryptedBytes());
                     case SSL_ERROR_WANT_WRITE: {
                         return NEED_WRAP;
                     }
+                    case SSL_ERROR_WANT_RETRY_VERIFY: {
+                        return NEED_TASK;
+                    }
                     default: {
                         // SSL_ERROR_NONE.
                     }
@@ -995,6 +1464,9 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
             // Update the session from the current state of the SSL object.
             activeSession.onPeerCertificateAvailable(getPeerHost(), getPeerPort());
 
+            if (maxEarlyData > 0) {
+                earlyDataAccepted = ssl.isEarlyDataAccepted();
+            }
             finishHandshake();
             return FINISHED;
         } catch (Exception e) {
@@ -1004,6 +1476,7 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     private void finishHandshake() throws SSLException {
         handshakeFinished = true;
+        updateDuplexReady();
         // Notify the listener, if provided.
         if (handshakeListener != null) {
             handshakeListener.onHandshakeFinished();
@@ -1011,7 +1484,8 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     }
 
     /**
-     * Write plaintext data to the OpenSSL internal BIO
+     * Write plaintext data to the OpenSSL internal BIO. Returns the number of bytes written or
+     * the negated SSL error.
      *
      * Calling this function with src.remaining == 0 is undefined.
      */
@@ -1034,22 +1508,25 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     }
 
     private int writePlaintextDataDirect(ByteBuffer src, int pos, int len) throws IOException {
-        return ssl.writeDirectByteBuffer(directByteBufferAddress(src, pos), len);
+        synchronized (ssl) {
+            // Look up the error before anything else can use the SSL.
+            int sslWrote = ssl.writeDirectByteBuffer(directByteBufferAddress(src, pos), len);
+            return sslWrote > 0 ? sslWrote : -ssl.getError(sslWrote);
+        }
     }
 
     private int writePlaintextDataHeap(ByteBuffer src, int pos, int len) throws IOException {
-        AllocatedBuffer allocatedBuffer = null;
-        try {
-            final ByteBuffer buffer;
-            if (bufferAllocator != null) {
-                allocatedBuffer = bufferAllocator.allocateDirectBuffer(len);
-                buffer = allocatedBuffer.nioBuffer();
-            } else {
-                // We don't have a buffer allocator, but we don't want to send a heap
-                // buffer to JNI. So lazy-create a direct buffer that we will use from now
-                // on to copy plaintext data.
-                buffer = getOrCreateLazyDirectBuffer();
+        if (heapBufferPinning && src.hasArray()) {
+            synchronized (ssl) {
+                int sslWrote = ssl.writeHeapByteBuffer(src.array(), src.arrayOffset() + pos, len);
+                return sslWrote > 0 ? sslWrote : -ssl.getError(sslWrote);
             }
+        }
+
+        // We don't want to send a heap buffer to JNI, so copy via a direct buffer.
+        AllocatedBuffer allocatedBuffer = allocateDirectBuffer(len);
+        try {
+            final ByteBuffer buffer = allocatedBuffer.nioBuffer();
 
             // Copy the data to the direct buffer.
             int limit = src.limit();
@@ -1063,10 +1540,8 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
             return writePlaintextDataDirect(buffer, 0, bytesToWrite);
         } finally {
-            if (allocatedBuffer != null) {
-                // Release the buffer back to the pool.
-                allocatedBuffer.release();
-            }
+            // Release the buffer back to the pool.
+            allocatedBuffer.release();
         }
     }
 
@@ -1095,23 +1570,29 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     private int readPlaintextDataDirect(ByteBuffer dst, int pos, int len)
             throws IOException, CertificateException {
-        return ssl.readDirectByteBuffer(directByteBufferAddress(dst, pos), len);
+        synchronized (ssl) {
+            return ssl.readDirectByteBuffer(directByteBufferAddress(dst, pos), len);
+        }
     }
 
     private int readPlaintextDataHeap(ByteBuffer dst, int len)
             throws IOException, CertificateException {
-        AllocatedBuffer allocatedBuffer = null;
-        try {
-            final ByteBuffer buffer;
-            if (bufferAllocator != null) {
-                allocatedBuffer = bufferAllocator.allocateDirectBuffer(len);
-                buffer = allocatedBuffer.nioBuffer();
-            } else {
-                // We don't have a buffer allocator, but we don't want to send a heap
-                // buffer to JNI. So lazy-create a direct buffer that we will use from now
-                // on to copy plaintext data.
-                buffer = getOrCreateLazyDirectBuffer();
+        if (heapBufferPinning && dst.hasArray()) {
+            int pos = dst.position();
+            int bytesRead;
+            synchronized (ssl) {
+                bytesRead = ssl.readHeapByteBuffer(dst.array(), dst.arrayOffset() + pos, len);
+            }
+            if (bytesRead > 0) {
+                dst.position(pos + bytesRead);
             }
+            return bytesRead;
+        }
+
+        // We don't want to send a heap buffer to JNI, so copy via a direct buffer.
+        AllocatedBuffer allocatedBuffer = allocateDirectBuffer(len);
+        try {
+            final ByteBuffer buffer = allocatedBuffer.nioBuffer();
 
             // Read the data to the direct buffer.
             int bytesToRead = min(len, buffer.remaining());
@@ -1125,10 +1606,8 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
             return bytesRead;
         } finally {
-            if (allocatedBuffer != null) {
-                // Release the buffer back to the pool.
-                allocatedBuffer.release();
-            }
+            // Release the buffer back to the pool.
+            allocatedBuffer.release();
         }
     }
 
@@ -1164,22 +1643,23 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     }
 
     private int writeEncryptedDataDirect(ByteBuffer src, int pos, int len) throws IOException {
-        return networkBio.writeDirectByteBuffer(directByteBufferAddress(src, pos), len);
+        synchronized (ssl) {
+            return networkBio.writeDirectByteBuffer(directByteBufferAddress(src, pos), len);
+        }
     }
 
     private int writeEncryptedDataHeap(ByteBuffer src, int pos, int len) throws IOException {
-        AllocatedBuffer allocatedBuffer = null;
-        try {
-            final ByteBuffer buffer;
-            if (bufferAllocator != null) {
-                allocatedBuffer = bufferAllocator.allocateDirectBuffer(len);
-                buffer = allocatedBuffer.nioBuffer();
-            } else {
-                // We don't have a buffer allocator, but we don't want to send a heap
-                // buffer to JNI. So lazy-create a direct buffer that we will use from now
-                // on to copy encrypted packets.
-                buffer = getOrCreateLazyDirectBuffer();
+        if (heapBufferPinning && src.hasArray()) {
+            synchronized (ssl) {
+                return networkBio.writeHeapByteBuffer(
+                        src.array(), src.arrayOffset() + pos, min(src.limit() - pos, len));
             }
+        }
+
+        // We don't want to send a heap buffer to JNI, so copy via a direct buffer.
+        AllocatedBuffer allocatedBuffer = allocateDirectBuffer(len);
+        try {
+            final ByteBuffer buffer = allocatedBuffer.nioBuffer();
 
             int limit = src.limit();
             int bytesToCopy = min(min(limit - pos, len), buffer.remaining());
@@ -1198,28 +1678,28 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
             return bytesWritten;
         } finally {
-            if (allocatedBuffer != null) {
-                // Release the buffer back to the pool.
-                allocatedBuffer.release();
-            }
+            // Release the buffer back to the pool.
+            allocatedBuffer.release();
         }
     }
 
-    private ByteBuffer getOrCreateLazyDirectBuffer() {
-        if (lazyDirectBuffer == null) {
-            lazyDirectBuffer = ByteBuffer.allocateDirect(
-                    max(SSL3_RT_MAX_PLAIN_LENGTH, SSL3_RT_MAX_PACKET_SIZE));
-        }
-        lazyDirectBuffer.clear();
-        return lazyDirectBuffer;
+    /**
+     * Allocates a direct buffer from the configured {@link BufferAllocator}, or from the shared
+     * pooled allocator if none has been provided.
+     */
+    private AllocatedBuffer allocateDirectBuffer(int len) {
+        BufferAllocator allocator =
+                bufferAllocator != null ? bufferAllocator : BufferAllocator.pooled();
+        return allocator.allocateDirectBuffer(len);
     }
 
     private long directByteBufferAddress(ByteBuffer directBuffer, int pos) {
         return NativeCrypto.getDirectBufferAddress(directBuffer) + pos;
     }
 
-    private SSLEngineResult readPendingBytesFromBIO(ByteBuffer dst, int bytesConsumed,
-            int bytesProduced, SSLEngineResult.HandshakeStatus status) throws SSLException {
+    private ReusableEngineResult readPendingBytesFromBIO(ReusableEngineResult result,
+            ByteBuffer dst, int bytesConsumed, int bytesProduced,
+            SSLEngineResult.HandshakeStatus status) throws SSLException {
         try {
             // Check to see if the engine wrote data into the network BIO
             int pendingNet = pendingOutboundEncryptedBytes();
@@ -1227,7 +1707,7 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                 // Do we have enough room in dst to write encrypted data?
                 int capacity = dst.remaining();
                 if (capacity < pendingNet) {
-                    return new SSLEngineResult(BUFFER_OVERFLOW,
+                    return result.set(BUFFER_OVERFLOW,
                             mayFinishHandshake(
                                     status == FINISHED ? status : getHandshakeStatus(pendingNet)),
                             bytesConsumed, bytesProduced);
@@ -1246,7 +1726,7 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                     pendingNet -= produced;
                 }
 
-                return new SSLEngineResult(getEngineStatus(),
+                return result.set(getEngineStatus(),
                         mayFinishHandshake(
                                 status == FINISHED ? status : getHandshakeStatus(pendingNet)),
                         bytesConsumed, bytesProduced);
@@ -1286,22 +1766,29 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     }
 
     private int readEncryptedDataDirect(ByteBuffer dst, int pos, int len) throws IOException {
-        return networkBio.readDirectByteBuffer(directByteBufferAddress(dst, pos), len);
+        synchronized (ssl) {
+            return networkBio.readDirectByteBuffer(directByteBufferAddress(dst, pos), len);
+        }
     }
 
     private int readEncryptedDataHeap(ByteBuffer dst, int len) throws IOException {
-        AllocatedBuffer allocatedBuffer = null;
-        try {
-            final ByteBuffer buffer;
-            if (bufferAllocator != null) {
-                allocatedBuffer = bufferAllocator.allocateDirectBuffer(len);
-                buffer = allocatedBuffer.nioBuffer();
-            } else {
-                // We don't have a buffer allocator, but we don't want to send a heap
-                // buffer to JNI. So lazy-create a direct buffer that we will use from now
-                // on to copy encrypted packets.
-                buffer = getOrCreateLazyDirectBuffer();
+        if (heapBufferPinning && dst.hasArray()) {
+            int pos = dst.position();
+            int bytesRead;
+            synchronized (ssl) {
+                bytesRead =
+                        networkBio.readHeapByteBuffer(dst.array(), dst.arrayOffset() + pos, len);
             }
+            if (bytesRead > 0) {
+                dst.position(pos + bytesRead);
+            }
+            return bytesRead;
+        }
+
+        // We don't want to send a heap buffer to JNI, so copy via a direct buffer.
+        AllocatedBuffer allocatedBuffer = allocateDirectBuffer(len);
+        try {
+            final ByteBuffer buffer = allocatedBuffer.nioBuffer();
 
             int bytesToRead = min(len, buffer.remaining());
             int bytesRead = readEncryptedDataDirect(buffer, 0, bytesToRead);
@@ -1313,10 +1800,113 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
             return bytesRead;
         } finally {
-            if (allocatedBuffer != null) {
-                // Release the buffer back to the pool.
-                allocatedBuffer.release();
+            // Release the buffer back to the pool.
+            allocatedBuffer.release();
+        }
+    }
+
+    /**
+     * Sends up to {@link #earlyDataToSend} bytes of {@code srcs} as early data, along with the
+     * ClientHello. Returns {@code null} if there is nothing to send, in which case the handshake
+     * proceeds without early data.
+     */
+    private ReusableEngineResult wrapEarlyData(ByteBuffer[] srcs, ByteBuffer dst,
+            ReusableEngineResult result) throws SSLException {
+        int length = (int) min(BufferUtils.remaining(srcs),
+                min(earlyDataToSend, SSL3_RT_MAX_PLAIN_LENGTH));
+        if (length == 0) {
+            earlyDataToSend = 0;
+            return null;
+        }
+        if (dst.remaining() < calculateOutNetBufSize(length)) {
+            return result.set(Status.BUFFER_OVERFLOW, getHandshakeStatusInternal(), 0, 0);
+        }
+        earlyDataToSend = 0;
+
+        AllocatedBuffer allocatedBuffer = allocateDirectBuffer(length);
+        int bytesWritten;
+        try {
+            ByteBuffer buffer = BufferUtils.copyNoConsume(
+                    srcs, allocatedBuffer.nioBuffer(), length);
+            bytesWritten = ssl.writeEarlyDataDirectByteBuffer(
+                    directByteBufferAddress(buffer, buffer.position()), buffer.remaining());
+        } catch (IOException e) {
+            closeAll();
+            throw convertException(e);
+        } finally {
+            allocatedBuffer.release();
+        }
+        int bytesConsumed = 0;
+        if (bytesWritten > 0) {
+            BufferUtils.consume(srcs, bytesWritten);
+            bytesConsumed = bytesWritten;
+        }
+
+        ReusableEngineResult pendingNetResult =
+                readPendingBytesFromBIO(result, dst, bytesConsumed, 0, NEED_WRAP);
+        if (pendingNetResult == null || pendingNetResult.getStatus() == BUFFER_OVERFLOW) {
+            // The ClientHello didn't fit alongside the early data, the next wrap sends both.
+            return result.set(getEngineStatus(), NEED_WRAP, bytesConsumed, 0);
+        }
+        return pendingNetResult;
+    }
+
+    /**
+     * Reads the early data of the records written to the network BIO or, once there is no more
+     * of it, moves on with the rest of the handshake.
+     */
+    private ReusableEngineResult unwrapEarlyData(ReusableEngineResult result, int bytesConsumed,
+            ByteBuffer[] dsts, int dstsOffset, int endOffset) throws SSLException {
+        int bytesRead = -SSL_ERROR_WANT_READ;
+        try {
+            for (int idx = dstsOffset; idx < endOffset; ++idx) {
+                if (dsts[idx].hasRemaining()) {
+                    bytesRead = readEarlyData(dsts[idx]);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            closeAll();
+            throw convertException(e);
+        }
+        if (bytesRead > 0) {
+            return newResult(result, bytesConsumed, bytesRead, NEED_UNWRAP);
+        }
+        HandshakeStatus status = NEED_UNWRAP;
+        if (bytesRead == 0) {
+            // The early data has ended or wasn't accepted, the rest of the handshake is as usual.
+            readingEarlyData = false;
+            status = handshake();
+        }
+        return newResult(result, bytesConsumed, 0, status);
+    }
+
+    private int readEarlyData(ByteBuffer dst) throws IOException {
+        final int pos = dst.position();
+        final int len = min(SSL3_RT_MAX_PACKET_SIZE, dst.remaining());
+        if (dst.isDirect()) {
+            int bytesRead =
+                    ssl.readEarlyDataDirectByteBuffer(directByteBufferAddress(dst, pos), len);
+            if (bytesRead > 0) {
+                dst.position(pos + bytesRead);
             }
+            return bytesRead;
+        }
+
+        // We don't want to send a heap buffer to JNI, so read via a direct buffer.
+        AllocatedBuffer allocatedBuffer = allocateDirectBuffer(len);
+        try {
+            final ByteBuffer buffer = allocatedBuffer.nioBuffer();
+            int bytesRead = ssl.readEarlyDataDirectByteBuffer(
+                    directByteBufferAddress(buffer, 0), min(len, buffer.remaining()));
+            if (bytesRead > 0) {
+                buffer.position(bytesRead);
+                buffer.flip();
+                dst.put(buffer);
+            }
+            return bytesRead;
+        } finally {
+            allocatedBuffer.release();
         }
     }
 
@@ -1347,6 +1937,12 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     }
 
     private void closeAll() {
+        if (fullDuplex && !Thread.holdsLock(inboundLock) && Thread.holdsLock(outboundLock)) {
+            // A wrap only holding the outbound lock can't take the inbound one, so it closes
+            // the engine once it's released it, see wrapWithLocks.
+            closeAfterWrap = true;
+            return;
+        }
         closeOutbound();
         closeInbound();
     }
@@ -1364,191 +1960,373 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
         return new SSLHandshakeException(err);
     }
 
-    private SSLEngineResult newResult(int bytesConsumed, int bytesProduced,
-            SSLEngineResult.HandshakeStatus status) throws SSLException {
-        return new SSLEngineResult(getEngineStatus(),
+    private ReusableEngineResult newResult(ReusableEngineResult result, int bytesConsumed,
+            int bytesProduced, SSLEngineResult.HandshakeStatus status) throws SSLException {
+        return result.set(getEngineStatus(),
                 mayFinishHandshake(status == FINISHED ? status : getHandshakeStatusInternal()),
                 bytesConsumed, bytesProduced);
     }
 
     @Override
     public SSLEngineResult wrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
-        synchronized (ssl) {
-            try {
-                return wrap(singleSrcBuffer(src), dst);
-            } finally {
-                resetSingleSrcBuffer();
-            }
+        checkArgument(src != null, "Null buffer in array");
+        checkArgument(dst != null, "dst is null");
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
         }
+        return wrapWithLocks(null, 0, 0, src, dst, null);
     }
 
     @Override
     public SSLEngineResult wrap(ByteBuffer[] srcs, int srcsOffset, int srcsLength, ByteBuffer dst)
             throws SSLException {
+        checkWrapArguments(srcs, srcsOffset, srcsLength, dst);
+        return wrapWithLocks(srcs, srcsOffset, srcsLength, null, dst, null);
+    }
+
+    @Override
+    ReusableEngineResult wrap(ByteBuffer[] srcs, int srcsOffset, int srcsLength, ByteBuffer dst,
+            ReusableEngineResult result) throws SSLException {
+        checkArgument(result != null, "result is null");
+        checkWrapArguments(srcs, srcsOffset, srcsLength, dst);
+        wrapWithLocks(srcs, srcsOffset, srcsLength, null, dst, result);
+        return result;
+    }
+
+    private static void checkWrapArguments(
+            ByteBuffer[] srcs, int srcsOffset, int srcsLength, ByteBuffer dst) {
         checkArgument(srcs != null, "srcs is null");
         checkArgument(dst != null, "dst is null");
         checkPositionIndexes(srcsOffset, srcsOffset + srcsLength, srcs.length);
         if (dst.isReadOnly()) {
             throw new ReadOnlyBufferException();
         }
-
-        if ((srcsOffset != 0) || (srcsLength != srcs.length)) {
-            srcs = Arrays.copyOfRange(srcs, srcsOffset, srcsOffset + srcsLength);
+        for (int i = srcsOffset; i < srcsOffset + srcsLength; i++) {
+            if (srcs[i] == null) {
+                throw new IllegalArgumentException("Null buffer in array");
+            }
         }
-        BufferUtils.checkNotNull(srcs);
+    }
 
-        synchronized (ssl) {
-            switch (state) {
-                case STATE_MODE_SET:
-                    // Begin the handshake implicitly.
-                    beginHandshakeInternal();
-                    break;
-                case STATE_CLOSED_OUTBOUND:
-                case STATE_CLOSED:
-                    // We may have pending encrypted bytes from a close_notify alert, so
-                    // try to read them out
-                    SSLEngineResult pendingNetResult =
-                            readPendingBytesFromBIO(dst, 0, 0, HandshakeStatus.NOT_HANDSHAKING);
-                    if (pendingNetResult != null) {
-                        freeIfDone();
-                        return pendingNetResult;
+    /**
+     * Acquires the locks needed to wrap either the given range of {@code srcs} or, if that is
+     * {@code null}, the single buffer {@code src}. If {@code result} is {@code null} a new
+     * result is returned, otherwise {@code result} is filled in and {@code null} is returned.
+     */
+    private SSLEngineResult wrapWithLocks(ByteBuffer[] srcs, int srcsOffset, int srcsLength,
+            ByteBuffer src, ByteBuffer dst, ReusableEngineResult result) throws SSLException {
+        if (!fullDuplex) {
+            return wrapLocked(ssl, srcs, srcsOffset, srcsLength, src, dst, result);
+        }
+        boolean close = false;
+        try {
+            synchronized (outboundLock) {
+                if (duplexReady) {
+                    // The connection is established, the outbound lock is all we need.
+                    try {
+                        return wrapLocked(
+                                outboundLock, srcs, srcsOffset, srcsLength, src, dst, result);
+                    } finally {
+                        close = closeAfterWrap;
+                        closeAfterWrap = false;
                     }
-                    return new SSLEngineResult(Status.CLOSED, getHandshakeStatusInternal(), 0, 0);
-                case STATE_NEW:
-                    throw new IllegalStateException(
-                            "Client/server mode must be set before calling wrap");
-                default:
-                    break;
+                }
             }
+        } finally {
+            if (close) {
+                closeAll();
+            }
+        }
+        // The outbound lock must not be held here, inboundLock comes first.
+        synchronized (inboundLock) {
+            synchronized (outboundLock) {
+                return wrapLocked(ssl, srcs, srcsOffset, srcsLength, src, dst, result);
+            }
+        }
+    }
 
-            // If we haven't completed the handshake yet, just let the caller know.
-            HandshakeStatus handshakeStatus = HandshakeStatus.NOT_HANDSHAKING;
-            // Prepare OpenSSL to work in server mode and receive handshake
-            if (!handshakeFinished) {
-                handshakeStatus = handshake();
-                if (handshakeStatus == NEED_UNWRAP) {
-                    return NEED_UNWRAP_OK;
+    /**
+     * Wraps while holding {@code lock}. If the caller supplied {@code result} it is filled in
+     * and {@code null} is returned, otherwise a new result is returned.
+     */
+    private SSLEngineResult wrapLocked(Object lock, ByteBuffer[] srcs, int srcsOffset,
+            int srcsLength, ByteBuffer src, ByteBuffer dst, ReusableEngineResult result)
+            throws SSLException {
+        synchronized (lock) {
+            // Every wrap holds the lock passed here, so the scratch arrays and the result can be
+            // shared.
+            ByteBuffer[] wrapSrcs = srcs;
+            if (srcs == null) {
+                wrapSrcs = singleWrapSrcBuffer;
+                wrapSrcs[0] = src;
+            } else if (srcsOffset != 0 || srcsLength != srcs.length) {
+                if (wrapSrcsSlice == null || wrapSrcsSlice.length != srcsLength) {
+                    // Callers usually pass the same number of buffers every time.
+                    wrapSrcsSlice = new ByteBuffer[srcsLength];
                 }
+                wrapSrcs = wrapSrcsSlice;
+                System.arraycopy(srcs, srcsOffset, wrapSrcs, 0, srcsLength);
+            }
+            try {
+                if (result != null) {
+                    wrapInternal(wrapSrcs, dst, result);
+                    return null;
+                }
+                return wrapInternal(wrapSrcs, dst, wrapResult).toSSLEngineResult();
+            } finally {
+                if (wrapSrcs != srcs) {
+                    Arrays.fill(wrapSrcs, null);
+                }
+            }
+        }
+    }
 
-                if (state == STATE_CLOSED) {
-                    return NEED_UNWRAP_CLOSED;
+    private ReusableEngineResult wrapInternal(ByteBuffer[] srcs, ByteBuffer dst,
+            ReusableEngineResult result) throws SSLException {
+        switch (state) {
+            case STATE_MODE_SET:
+                // Begin the handshake implicitly.
+                beginHandshakeInternal();
+                break;
+            case STATE_CLOSED_OUTBOUND:
+            case STATE_CLOSED:
+                if (isHandshakeTaskRunning()) {
+                    return result.set(Status.CLOSED, getHandshakeStatusInternal(), 0, 0);
+                }
+                // We may have pending encrypted bytes from a close_notify alert, so
+                // try to read them out
+                ReusableEngineResult pendingNetResult = readPendingBytesFromBIO(
+                        result, dst, 0, 0, HandshakeStatus.NOT_HANDSHAKING);
+                if (pendingNetResult != null) {
+                    freeIfDone();
+                    return pendingNetResult;
                 }
-                // NEED_WRAP - just fall through to perform the wrap.
-            }
-
-            int dataLength = (int) min(BufferUtils.remaining(srcs), SSL3_RT_MAX_PLAIN_LENGTH);
-            if (dst.remaining() < calculateOutNetBufSize(dataLength)) {
-                return new SSLEngineResult(
-                    Status.BUFFER_OVERFLOW, getHandshakeStatusInternal(), 0, 0);
-            }
-
-            int bytesProduced = 0;
-            int bytesConsumed = 0;
-            if (dataLength > 0) {
-                // Try and find a single buffer to send, e.g. the first non-empty buffer has
-                // more than enough data remaining to fill a TLS record. Otherwise copy as much
-                // data as possible from the source buffers to fill a record. Note the we can't
-                // mark the data as consumed until we see how much the TLS layer actually consumes.
-                boolean isCopy = false;
-                ByteBuffer outputBuffer
-                        = BufferUtils.getBufferLargerThan(srcs, SSL3_RT_MAX_PLAIN_LENGTH);
-                if (outputBuffer == null) {
-                    // The buffer by getOrCreateLazyDirectBuffer() is also used by
-                    // writePlainTextDataHeap(), but by filling it here the write path will go via
-                    // writePlainTextDataDirect() and the cost will be approximately the same,
-                    // especially if compacting multiple non-direct buffers into a single
-                    // direct one.
-                    // TODO(): use bufferAllocator if set.
-                    // https://github.com/google/conscrypt/issues/974
-                    outputBuffer = BufferUtils.copyNoConsume(
-                            srcs, getOrCreateLazyDirectBuffer(), SSL3_RT_MAX_PLAIN_LENGTH);
-                    isCopy = true;
+                return result.set(Status.CLOSED, getHandshakeStatusInternal(), 0, 0);
+            case STATE_NEW:
+                throw new IllegalStateException(
+                        "Client/server mode must be set before calling wrap");
+            default:
+                break;
+        }
+
+        // If we haven't completed the handshake yet, just let the caller know.
+        HandshakeStatus handshakeStatus = HandshakeStatus.NOT_HANDSHAKING;
+        // Prepare OpenSSL to work in server mode and receive handshake
+        if (!handshakeFinished) {
+            if (earlyDataToSend > 0) {
+                ReusableEngineResult earlyDataResult = wrapEarlyData(srcs, dst, result);
+                if (earlyDataResult != null) {
+                    return earlyDataResult;
                 }
-                final SSLEngineResult pendingNetResult;
-                // Write plaintext application data to the SSL engine
-                int result = writePlaintextData(outputBuffer,
-                        min(SSL3_RT_MAX_PLAIN_LENGTH, outputBuffer.remaining()));
-                if (result > 0) {
-                    bytesConsumed = result;
-                    if (isCopy) {
-                        // Data was a copy, so mark it as consumed in the original buffers.
-                        BufferUtils.consume(srcs, bytesConsumed);
-                    }
+            }
+            handshakeStatus = handshake();
+            if (handshakeStatus == NEED_UNWRAP) {
+                return result.set(NEED_UNWRAP_OK);
+            }
+            if (handshakeStatus == NEED_TASK) {
+                return newResult(result, 0, 0, handshakeStatus);
+            }
 
-                    pendingNetResult = readPendingBytesFromBIO(
-                            dst, bytesConsumed, bytesProduced, handshakeStatus);
-                    if (pendingNetResult != null) {
-                        if (pendingNetResult.getStatus() != OK) {
-                            return pendingNetResult;
-                        }
-                        bytesProduced = pendingNetResult.bytesProduced();
-                    }
-                } else {
-                    int sslError = ssl.getError(result);
-                    switch (sslError) {
-                        case SSL_ERROR_ZERO_RETURN:
-                            // This means the connection was shutdown correctly, close inbound
-                            // and outbound
-                            closeAll();
-                            pendingNetResult = readPendingBytesFromBIO(
-                                    dst, bytesConsumed, bytesProduced, handshakeStatus);
-                            return pendingNetResult != null ? pendingNetResult
-                                    : CLOSED_NOT_HANDSHAKING;
-                        case SSL_ERROR_WANT_READ:
-                            // If there is no pending data to read from BIO we should go back to
-                            // event loop and try
-                            // to read more data [1]. It is also possible that event loop will
-                            // detect the socket
-                            // has been closed. [1]
-                            // https://www.openssl.org/docs/manmaster/man3/SSL_write.html
-                            pendingNetResult = readPendingBytesFromBIO(
-                                    dst, bytesConsumed, bytesProduced, handshakeStatus);
-                            return pendingNetResult != null
-                                    ? pendingNetResult
-                                    : new SSLEngineResult(getEngineStatus(), NEED_UNWRAP,
-                                    bytesConsumed, bytesProduced);
-                        case SSL_ERROR_WANT_WRITE:
-                            // SSL_ERROR_WANT_WRITE typically means that the underlying
-                            // transport is not writable
-                            // and we should set the "want write" flag on the selector and try
-                            // again when the
-                            // underlying transport is writable [1]. However we are not directly
-                            // writing to the
-                            // underlying transport and instead writing to a BIO buffer. The
-                            // OpenSsl documentation
-                            // says we should do the following [1]:
-                            //
-                            // "When using a buffering BIO, like a BIO pair, data must be
-                            // written into or retrieved
-                            // out of the BIO before being able to continue."
-                            //
-                            // So we attempt to drain the BIO buffer below, but if there is no
-                            // data this condition
-                            // is undefined and we assume their is a fatal error with the
-                            // openssl engine and close.
-                            // [1] https://www.openssl.org/docs/manmaster/man3/SSL_write.html
-                            pendingNetResult = readPendingBytesFromBIO(
-                                    dst, bytesConsumed, bytesProduced, handshakeStatus);
-                            return pendingNetResult != null ? pendingNetResult
-                                    : NEED_WRAP_CLOSED;
-                        default:
-                            // Everything else is considered as error
-                            closeAll();
-                            throw newSslExceptionWithMessage("SSL_write: error " + sslError);
-                    }
+            if (state == STATE_CLOSED) {
+                return result.set(NEED_UNWRAP_CLOSED);
+            }
+            if (readingEarlyData) {
+                // Application data can only be sent once the early data has been read.
+                ReusableEngineResult pendingNetResult =
+                        readPendingBytesFromBIO(result, dst, 0, 0, handshakeStatus);
+                return pendingNetResult != null ? pendingNetResult
+                                                : result.set(NEED_UNWRAP_OK);
+            }
+            // NEED_WRAP - just fall through to perform the wrap.
+        }
+
+        long srcsRemaining = BufferUtils.remaining(srcs);
+        int maxRecordSize = SSL3_RT_MAX_PLAIN_LENGTH;
+        if (recordSizer != null && srcsRemaining > 0) {
+            maxRecordSize = recordSizer.beginWrite();
+        }
+        int dataLength = (int) min(srcsRemaining, maxRecordSize);
+        if (dst.remaining() < calculateOutNetBufSize(dataLength)) {
+            return result.set(Status.BUFFER_OVERFLOW, getHandshakeStatusInternal(), 0, 0);
+        }
+
+        int bytesProduced = 0;
+        int bytesConsumed = 0;
+        if (multiRecordWrap && dataLength > 0 && maxRecordSize == SSL3_RT_MAX_PLAIN_LENGTH) {
+            // Seal as many records as possible from a single direct source with one call.
+            long sealed = wrapRecordsDirect(srcs, dst);
+            bytesConsumed = (int) (sealed >>> 32);
+            bytesProduced = (int) sealed;
+            if (recordSizer != null) {
+                recordSizer.written(bytesConsumed);
+            }
+            dataLength = nextRecordLength(srcs, dst, maxRecordSize);
+        }
+        while (dataLength > 0) {
+            // Try and find a single buffer to send, e.g. the first non-empty buffer has
+            // more than enough data remaining to fill a TLS record. Otherwise copy as much
+            // data as possible from the source buffers to fill a record. Note the we can't
+            // mark the data as consumed until we see how much the TLS layer actually consumes.
+            boolean isCopy = false;
+            AllocatedBuffer allocatedBuffer = null;
+            ByteBuffer outputBuffer = BufferUtils.getBufferLargerThan(srcs, maxRecordSize);
+            if (outputBuffer == null) {
+                // Copying into a direct buffer here means the write path will go via
+                // writePlainTextDataDirect() rather than writePlainTextDataHeap(), and the
+                // cost will be approximately the same, especially if compacting multiple
+                // non-direct buffers into a single direct one.
+                allocatedBuffer = allocateDirectBuffer(SSL3_RT_MAX_PLAIN_LENGTH);
+                outputBuffer = BufferUtils.copyNoConsume(
+                        srcs, allocatedBuffer.nioBuffer(), maxRecordSize);
+                isCopy = true;
+            }
+            final ReusableEngineResult pendingNetResult;
+            // Write plaintext application data to the SSL engine
+            int bytesWritten;
+            try {
+                bytesWritten = writePlaintextData(outputBuffer,
+                        min(maxRecordSize, outputBuffer.remaining()));
+            } finally {
+                if (allocatedBuffer != null) {
+                    // Release the buffer back to the pool.
+                    allocatedBuffer.release();
                 }
             }
+            if (bytesWritten > 0) {
+                bytesConsumed += bytesWritten;
+                if (recordSizer != null) {
+                    maxRecordSize = recordSizer.written(bytesWritten);
+                }
+                if (isCopy) {
+                    // Data was a copy, so mark it as consumed in the original buffers.
+                    BufferUtils.consume(srcs, bytesWritten);
+                }
 
-            // We need to check if pendingWrittenBytesInBIO was checked yet, as we may not have
-            // checked if the srcs was empty, or only contained empty buffers.
-            if (bytesConsumed == 0) {
-                SSLEngineResult pendingNetResult =
-                        readPendingBytesFromBIO(dst, 0, bytesProduced, handshakeStatus);
+                pendingNetResult = readPendingBytesFromBIO(
+                        result, dst, bytesConsumed, bytesProduced, handshakeStatus);
                 if (pendingNetResult != null) {
-                    return pendingNetResult;
+                    if (pendingNetResult.getStatus() != OK) {
+                        return pendingNetResult;
+                    }
+                    bytesProduced = pendingNetResult.bytesProduced();
                 }
+            } else {
+                int sslError = -bytesWritten;
+                switch (sslError) {
+                    case SSL_ERROR_ZERO_RETURN:
+                        // This means the connection was shutdown correctly, close inbound
+                        // and outbound
+                        closeAll();
+                        pendingNetResult = readPendingBytesFromBIO(
+                                result, dst, bytesConsumed, bytesProduced, handshakeStatus);
+                        return pendingNetResult != null ? pendingNetResult
+                                : result.set(CLOSED_NOT_HANDSHAKING);
+                    case SSL_ERROR_WANT_READ:
+                        // If there is no pending data to read from BIO we should go back to
+                        // event loop and try
+                        // to read more data [1]. It is also possible that event loop will
+                        // detect the socket
+                        // has been closed. [1]
+                        // https://www.openssl.org/docs/manmaster/man3/SSL_write.html
+                        pendingNetResult = readPendingBytesFromBIO(
+                                result, dst, bytesConsumed, bytesProduced, handshakeStatus);
+                        return pendingNetResult != null
+                                ? pendingNetResult
+                                : result.set(getEngineStatus(), NEED_UNWRAP,
+                                bytesConsumed, bytesProduced);
+                    case SSL_ERROR_WANT_WRITE:
+                        // SSL_ERROR_WANT_WRITE typically means that the underlying
+                        // transport is not writable
+                        // and we should set the "want write" flag on the selector and try
+                        // again when the
+                        // underlying transport is writable [1]. However we are not directly
+                        // writing to the
+                        // underlying transport and instead writing to a BIO buffer. The
+                        // OpenSsl documentation
+                        // says we should do the following [1]:
+                        //
+                        // "When using a buffering BIO, like a BIO pair, data must be
+                        // written into or retrieved
+                        // out of the BIO before being able to continue."
+                        //
+                        // So we attempt to drain the BIO buffer below, but if there is no
+                        // data this condition
+                        // is undefined and we assume their is a fatal error with the
+                        // openssl engine and close.
+                        // [1] https://www.openssl.org/docs/manmaster/man3/SSL_write.html
+                        pendingNetResult = readPendingBytesFromBIO(
+                                result, dst, bytesConsumed, bytesProduced, handshakeStatus);
+                        return pendingNetResult != null ? pendingNetResult
+                                : result.set(NEED_WRAP_CLOSED);
+                    default:
+                        // Everything else is considered as error
+                        closeAll();
+                        throw newSslExceptionWithMessage("SSL_write: error " + sslError);
+                }
+            }
+            if (!multiRecordWrap) {
+                break;
+            }
+            dataLength = nextRecordLength(srcs, dst, maxRecordSize);
+        }
+
+        // We need to check if pendingWrittenBytesInBIO was checked yet, as we may not have
+        // checked if the srcs was empty, or only contained empty buffers.
+        if (bytesConsumed == 0) {
+            ReusableEngineResult pendingNetResult =
+                    readPendingBytesFromBIO(result, dst, 0, bytesProduced, handshakeStatus);
+            if (pendingNetResult != null) {
+                return pendingNetResult;
             }
-            return newResult(bytesConsumed, bytesProduced, handshakeStatus);
+        }
+        return newResult(result, bytesConsumed, bytesProduced, handshakeStatus);
+    }
+
+    /**
+     * Returns the amount of plaintext that will go into the next record, or zero if there is
+     * nothing left to wrap or {@code dst} can't hold another full record.
+     */
+    private static int nextRecordLength(ByteBuffer[] srcs, ByteBuffer dst, int maxRecordSize) {
+        int dataLength = (int) min(BufferUtils.remaining(srcs), maxRecordSize);
+        if (dst.remaining() < calculateOutNetBufSize(dataLength)) {
+            return 0;
+        }
+        return dataLength;
+    }
+
+    /**
+     * Seals records straight from a direct source buffer into a direct {@code dst} with a single
+     * native call. Returns the number of bytes consumed in the upper 32 bits and the number of
+     * bytes produced in the lower 32 bits, or zero if no records could be sealed this way, in
+     * which case the caller falls back to wrapping a record at a time.
+     */
+    private long wrapRecordsDirect(ByteBuffer[] srcs, ByteBuffer dst) throws SSLException {
+        if (!dst.isDirect()) {
+            return 0;
+        }
+        ByteBuffer src = BufferUtils.getBufferLargerThan(srcs, SSL3_RT_MAX_PLAIN_LENGTH);
+        if (src == null || !src.isDirect()) {
+            return 0;
+        }
+        try {
+            final int srcPos = src.position();
+            final int dstPos = dst.position();
+            long sealed;
+            synchronized (ssl) {
+                sealed = ssl.writeRecordsDirectByteBuffer(networkBio,
+                        directByteBufferAddress(src, srcPos), src.remaining(),
+                        directByteBufferAddress(dst, dstPos), dst.remaining());
+            }
+            if (sealed <= 0) {
+                // Let the record-at-a-time path below report the error, if any.
+                NativeCrypto.SSL_clear_error();
+                return 0;
+            }
+            src.position(srcPos + (int) (sealed >>> 32));
+            dst.position(dstPos + (int) sealed);
+            return sealed;
+        } catch (Exception e) {
+            throw convertException(e);
         }
     }
 
@@ -1624,20 +2402,50 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     @Override
     public void verifyCertificateChain(byte[][] certChain, String authMethod)
             throws CertificateException {
+        DelegatedVerification verification = pendingVerification;
+        if (verification != null) {
+            // The handshake has been resumed after suspending for a delegated task.
+            if (!verification.done) {
+                // The task hasn't run yet, keep waiting for it.
+                ssl.setRetryVerify();
+                return;
+            }
+            pendingVerification = null;
+            if (verification.failure != null) {
+                throw verification.failure;
+            }
+            return;
+        }
+
         try {
             if (certChain == null || certChain.length == 0) {
                 throw new CertificateException("Peer sent no certificate");
             }
             X509Certificate[] peerCertChain = SSLUtils.decodeX509CertificateChain(certChain);
 
+            // Update the peer information on the session.
+            activeSession.onPeerCertificatesReceived(getPeerHost(), getPeerPort(), peerCertChain);
+
+            if (delegatedTasksEnabled && getUseClientMode() && ssl.setRetryVerify()) {
+                pendingVerification = new DelegatedVerification(peerCertChain, authMethod);
+                return;
+            }
+            checkPeerTrusted(peerCertChain, authMethod);
+        } catch (CertificateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CertificateException(e);
+        }
+    }
+
+    private void checkPeerTrusted(X509Certificate[] peerCertChain, String authMethod)
+            throws CertificateException {
+        try {
             X509TrustManager x509tm = sslParameters.getX509TrustManager();
             if (x509tm == null) {
                 throw new CertificateException("No X.509 TrustManager");
             }
 
-            // Update the peer information on the session.
-            activeSession.onPeerCertificatesReceived(getPeerHost(), getPeerPort(), peerCertChain);
-
             if (getUseClientMode()) {
                 Platform.checkServerTrusted(x509tm, peerCertChain, authMethod, this);
             } else {
@@ -1651,6 +2459,105 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
         }
     }
 
+    // @GuardedBy("ssl");
+    private DelegatedTask pendingTask() {
+        return pendingVerification != null ? pendingVerification : pendingHandshake;
+    }
+
+    /**
+     * A step of the handshake that is run by the application, possibly on another thread.
+     */
+    private abstract static class DelegatedTask implements Runnable {
+        // @GuardedBy("ssl");
+        boolean handedOut;
+        volatile boolean done;
+    }
+
+    /**
+     * Runs the trust manager on a peer certificate chain outside of the handshake, which is
+     * suspended until the task is done.
+     */
+    private final class DelegatedVerification extends DelegatedTask {
+        private final X509Certificate[] peerCertChain;
+        private final String authMethod;
+        volatile CertificateException failure;
+
+        DelegatedVerification(X509Certificate[] peerCertChain, String authMethod) {
+            this.peerCertChain = peerCertChain;
+            this.authMethod = authMethod;
+        }
+
+        @Override
+        public void run() {
+            try {
+                checkPeerTrusted(peerCertChain, authMethod);
+            } catch (CertificateException e) {
+                failure = e;
+            } finally {
+                done = true;
+            }
+        }
+    }
+
+    /**
+     * Advances a server handshake with the messages that have been received. The task doesn't
+     * hold the engine's lock while it runs the handshake, as a private key operation may wait
+     * for a long time, e.g. for an {@link AsyncPrivateKeyMethod}. Instead the engine leaves the
+     * SSL alone until the task is done, and the task frees it if the engine was closed in the
+     * meantime. The next wrap picks up the handshake where the task left it.
+     */
+    private final class DelegatedHandshake extends DelegatedTask {
+        // @GuardedBy("ssl");
+        boolean running;
+        // The thread running the handshake, which may use the SSL from callbacks.
+        // @GuardedBy("ssl");
+        Thread thread;
+        // What other threads see of the handshake session while the task runs.
+        // @GuardedBy("ssl");
+        SessionSnapshot session;
+        private int result;
+        private IOException failure;
+
+        @Override
+        public void run() {
+            synchronized (ssl) {
+                if (state == STATE_CLOSED) {
+                    failure = new SSLException("Engine is closed");
+                    done = true;
+                    return;
+                }
+                session = new SessionSnapshot(activeSession);
+                thread = Thread.currentThread();
+                running = true;
+            }
+            try {
+                result = ssl.doHandshake();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // For instance from a failed private key operation.
+                failure = new SSLException(e);
+            } finally {
+                synchronized (ssl) {
+                    running = false;
+                    thread = null;
+                    done = true;
+                    if (state == STATE_CLOSED) {
+                        freeResources();
+                    }
+                }
+            }
+        }
+
+        // @GuardedBy("ssl");
+        int getResult() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+
     @Override
     public void clientCertificateRequested(byte[] keyTypeBytes, int[] signatureAlgs,
             byte[][] asn1DerEncodedPrincipals)
@@ -1659,6 +2566,10 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
     }
 
     private void sendSSLShutdown() {
+        if (isHandshakeTaskRunning()) {
+            // The SSL is in use, and the handshake is unfinished anyway.
+            return;
+        }
         try {
             ssl.shutdown();
         } catch (IOException ignored) {
@@ -1669,6 +2580,31 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
     private void closeAndFreeResources() {
         transitionTo(STATE_CLOSED);
+        if (isHandshakeTaskRunning()) {
+            // The task frees them once it's done with the SSL.
+            return;
+        }
+        freeResources();
+    }
+
+    // @GuardedBy("ssl");
+    private boolean isHandshakeTaskRunning() {
+        DelegatedHandshake delegated = pendingHandshake;
+        return delegated != null && delegated.running;
+    }
+
+    /**
+     * Returns whether a delegated handshake task is using the SSL on another thread, in which
+     * case this thread must answer from the engine's own state.
+     */
+    // @GuardedBy("ssl");
+    private boolean isHandshakeTaskRunningElsewhere() {
+        DelegatedHandshake delegated = pendingHandshake;
+        return delegated != null && delegated.running
+                && delegated.thread != Thread.currentThread();
+    }
+
+    private void freeResources() {
         if (ssl != null) {
             ssl.close();
         }
@@ -1771,6 +2707,18 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
         sslParameters.setApplicationProtocolSelector(adapter);
     }
 
+    @Override
+    public boolean allowEarlyData(byte[] sessionId, byte[] clientRandom) {
+        // Only asked when a replay protection was set before the handshake.
+        EarlyDataReplayProtection protection = earlyDataReplayProtection;
+        try {
+            return protection != null && protection.allowEarlyData(sessionId, clientRandom);
+        } catch (RuntimeException e) {
+            // Err on the side of a full round trip.
+            return false;
+        }
+    }
+
     @Override
     public int selectApplicationProtocol(byte[] protocols) {
         ApplicationProtocolSelectorAdapter adapter = sslParameters.getApplicationProtocolSelector();
@@ -1826,7 +2774,11 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
                 break;
             }
             case STATE_CLOSED: {
-                if (!ssl.isClosed() && state >= STATE_HANDSHAKE_STARTED && state < STATE_CLOSED) {
+                if (isHandshakeTaskRunning()) {
+                    // The task is using the SSL.
+                    closedSession = pendingHandshake.session;
+                } else if (!ssl.isClosed() && state >= STATE_HANDSHAKE_STARTED
+                        && state < STATE_CLOSED) {
                     closedSession = new SessionSnapshot(activeSession);
                 }
                 break;
@@ -1838,5 +2790,11 @@ final class ConscryptEngine extends AbstractConscryptEngine implements NativeCry
 
         // Update the state
         this.state = newState;
+        updateDuplexReady();
+    }
+
+    private void updateDuplexReady() {
+        duplexReady = fullDuplex && handshakeFinished
+                && (state == STATE_HANDSHAKE_COMPLETED || state == STATE_READY);
     }
 }
@@ -33,9 +33,12 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.PrivateKey;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
@@ -54,14 +57,24 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
     private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
     private final ConscryptEngine engine;
-    private final Object stateLock = new Object();
-    private final Object handshakeLock = new Object();
+    // The locks are java.util.concurrent locks rather than monitors, because they are held (or
+    // waited for) across blocking socket I/O and monitors would pin virtual threads to their
+    // carrier thread.
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
+    private final ReentrantLock handshakeLock = new ReentrantLock();
 
     private SSLOutputStream out;
     private SSLInputStream in;
 
     private long handshakeStartedMillis;
 
+    /**
+     * Set when the handshake was started to send early data, and still has to be completed.
+     */
+    // @GuardedBy("handshakeLock");
+    private boolean handshakeDeferred;
+
     private BufferAllocator bufferAllocator = ConscryptEngine.getDefaultBufferAllocator();
 
     // @GuardedBy("stateLock");
@@ -188,18 +201,16 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
         checkOpen();
 
         try {
-            synchronized (handshakeLock) {
+            handshakeLock.lock();
+            try {
                 // Only lock stateLock when we begin the handshake. This is done so that we don't
                 // hold the stateLock when we invoke the handshake completion listeners.
-                synchronized (stateLock) {
+                stateLock.lock();
+                try {
                     // Initialize the handshake if we haven't already.
                     if (state == STATE_NEW) {
-                        state = STATE_HANDSHAKE_STARTED;
-                        handshakeStartedMillis = Platform.getMillisSinceBoot();
-                        engine.beginHandshake();
-                        in = new SSLInputStream();
-                        out = new SSLOutputStream();
-                    } else {
+                        beginHandshake();
+                    } else if (!handshakeDeferred) {
                         // We've either started the handshake already or have been closed.
                         // Do nothing in both cases.
                         //
@@ -207,9 +218,62 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
                         // ignore addition handshake calls.
                         return;
                     }
+                    handshakeDeferred = false;
+                } finally {
+                    stateLock.unlock();
                 }
 
                 doHandshake();
+            } finally {
+                handshakeLock.unlock();
+            }
+        } catch (SSLException e) {
+            close();
+            throw e;
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (Exception e) {
+            close();
+            // Convert anything else to a handshake exception.
+            throw SSLUtils.toSSLHandshakeException(e);
+        }
+    }
+
+    // @GuardedBy("stateLock");
+    private void beginHandshake() throws IOException {
+        state = STATE_HANDSHAKE_STARTED;
+        handshakeStartedMillis = Platform.getMillisSinceBoot();
+        engine.beginHandshake();
+        in = new SSLInputStream();
+        out = new SSLOutputStream();
+    }
+
+    @Override
+    final int writeEarlyData(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+
+        try {
+            handshakeLock.lock();
+            try {
+                stateLock.lock();
+                try {
+                    if (state != STATE_NEW) {
+                        return 0;
+                    }
+                    beginHandshake();
+                    // The next call to startHandshake completes the handshake.
+                    handshakeDeferred = true;
+                } finally {
+                    stateLock.unlock();
+                }
+
+                if (!engine.mayWriteEarlyData()) {
+                    return 0;
+                }
+                return out.writeEarlyData(ByteBuffer.wrap(b, off, len));
+            } finally {
+                handshakeLock.unlock();
             }
         } catch (SSLException e) {
             close();
@@ -380,6 +444,50 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
         engine.setUseSessionTickets(useSessionTickets);
     }
 
+    @Override
+    final void setKtlsEnabled(boolean enabled) {
+        // Records are always processed by the engine in user space.
+    }
+
+    @Override
+    final boolean isKtlsSendEnabled() {
+        return false;
+    }
+
+    @Override
+    final boolean isKtlsReceiveEnabled() {
+        return false;
+    }
+
+    @Override
+    final void setRecordSizePolicy(RecordSizePolicy policy) {
+        engine.setRecordSizePolicy(policy);
+    }
+
+    @Override
+    final void setMaxEarlyData(int maxEarlyData) {
+        engine.setMaxEarlyData(maxEarlyData);
+    }
+
+    @Override
+    final void setEarlyDataReplayProtection(EarlyDataReplayProtection protection) {
+        engine.setEarlyDataReplayProtection(protection);
+    }
+
+    @Override
+    final boolean isEarlyDataAccepted() throws IOException {
+        checkOpen();
+        waitForHandshake();
+        return engine.isEarlyDataAccepted();
+    }
+
+    @Override
+    final long transferFrom(FileChannel file, long position, long count) throws IOException {
+        checkOpen();
+        waitForHandshake();
+        return out.transferFrom(file, position, count);
+    }
+
     @Override
     public final void setChannelIdEnabled(boolean enabled) {
         engine.setChannelIdEnabled(enabled);
@@ -447,7 +555,8 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
         }
 
         int previousState;
-        synchronized (stateLock) {
+        stateLock.lock();
+        try {
             previousState = state;
             if (state == STATE_CLOSED) {
                 // close() has already been called, so do nothing and return.
@@ -456,7 +565,9 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
 
             state = STATE_CLOSED;
 
-            stateLock.notifyAll();
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
         }
 
         try {
@@ -529,7 +640,8 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
 
     private void onHandshakeFinished() {
         boolean notify = false;
-        synchronized (stateLock) {
+        stateLock.lock();
+        try {
             if (state != STATE_CLOSED) {
                 if (state == STATE_HANDSHAKE_STARTED) {
                     state = STATE_READY_HANDSHAKE_CUT_THROUGH;
@@ -539,9 +651,11 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
 
                 // Unblock threads that are waiting for our state to transition
                 // into STATE_READY or STATE_READY_HANDSHAKE_CUT_THROUGH.
-                stateLock.notifyAll();
+                stateChanged.signalAll();
                 notify = true;
             }
+        } finally {
+            stateLock.unlock();
         }
 
         if (notify) {
@@ -555,11 +669,12 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
     private void waitForHandshake() throws IOException {
         startHandshake();
 
-        synchronized (stateLock) {
+        stateLock.lock();
+        try {
             while (state != STATE_READY && state != STATE_READY_HANDSHAKE_CUT_THROUGH
                     && state != STATE_CLOSED) {
                 try {
-                    stateLock.wait();
+                    stateChanged.await();
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     throw new IOException("Interrupted waiting for handshake", e);
@@ -569,6 +684,8 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
             if (state == STATE_CLOSED) {
                 throw new SocketException("Socket is closed");
             }
+        } finally {
+            stateLock.unlock();
         }
     }
 
@@ -607,7 +724,7 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
      * Wrap bytes written to the underlying socket.
      */
     private final class SSLOutputStream extends OutputStream {
-        private final Object writeLock = new Object();
+        private final ReentrantLock writeLock = new ReentrantLock();
         private final ByteBuffer target;
         private final int targetArrayOffset;
         private OutputStream socketOutputStream;
@@ -625,24 +742,79 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
         @Override
         public void write(int b) throws IOException {
             startHandshake();
-            synchronized (writeLock) {
+            writeLock.lock();
+            try {
                 write(new byte[] {(byte) b});
+            } finally {
+                writeLock.unlock();
             }
         }
 
         @Override
         public void write(byte[] b) throws IOException {
             startHandshake();
-            synchronized (writeLock) {
+            writeLock.lock();
+            try {
                 writeInternal(ByteBuffer.wrap(b));
+            } finally {
+                writeLock.unlock();
             }
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
             startHandshake();
-            synchronized (writeLock) {
+            writeLock.lock();
+            try {
                 writeInternal(ByteBuffer.wrap(b, off, len));
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        long transferFrom(FileChannel file, long position, long count) throws IOException {
+            long length = transferLength(file, position, count);
+            if (length == 0) {
+                return 0;
+            }
+
+            startHandshake();
+            writeLock.lock();
+            try {
+                long written = 0;
+                while (written < length) {
+                    int chunk = (int) Math.min(length - written, TRANSFER_MAP_SIZE);
+                    // The engine seals records straight from the mapping.
+                    writeInternal(
+                            file.map(FileChannel.MapMode.READ_ONLY, position + written, chunk));
+                    written += chunk;
+                }
+                return written;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Wraps a single record of early data along with the ClientHello, and returns the
+         * number of bytes of {@code buffer} sent.
+         */
+        int writeEarlyData(ByteBuffer buffer) throws IOException {
+            writeLock.lock();
+            try {
+                checkOpen();
+                init();
+                target.clear();
+                SSLEngineResult engineResult = engine.wrap(buffer, target);
+                if (engineResult.getStatus() != OK) {
+                    throw new SSLException("Unexpected engine result " + engineResult.getStatus());
+                }
+                target.flip();
+                writeToSocket();
+                flushInternal();
+                return engineResult.bytesConsumed();
+            } finally {
+                writeLock.unlock();
             }
         }
 
@@ -686,8 +858,11 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
         @Override
         public void flush() throws IOException {
             startHandshake();
-            synchronized (writeLock) {
+            writeLock.lock();
+            try {
                 flushInternal();
+            } finally {
+                writeLock.unlock();
             }
         }
 
@@ -713,7 +888,7 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
      * Unwrap bytes read from the underlying socket.
      */
     private final class SSLInputStream extends InputStream {
-        private final Object readLock = new Object();
+        private final ReentrantLock readLock = new ReentrantLock();
         private final byte[] singleByte = new byte[1];
         private final ByteBuffer fromEngine;
         private final ByteBuffer fromSocket;
@@ -742,17 +917,21 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
         }
 
         void release() {
-            synchronized (readLock) {
+            readLock.lock();
+            try {
                 if (allocatedBuffer != null) {
                     allocatedBuffer.release();
                 }
+            } finally {
+                readLock.unlock();
             }
         }
 
         @Override
         public int read() throws IOException {
             startHandshake();
-            synchronized (readLock) {
+            readLock.lock();
+            try {
                 // Handle returning of -1 if EOF is reached.
                 int count = read(singleByte, 0, 1);
                 if (count == -1) {
@@ -763,31 +942,42 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
                     throw new SSLException("read incorrect number of bytes " + count);
                 }
                 return singleByte[0] & 0xff;
+            } finally {
+                readLock.unlock();
             }
         }
 
         @Override
         public int read(byte[] b) throws IOException {
             startHandshake();
-            synchronized (readLock) {
+            readLock.lock();
+            try {
                 return read(b, 0, b.length);
+            } finally {
+                readLock.unlock();
             }
         }
 
         @Override
         public int read(byte[] b, int off, int len) throws IOException {
             startHandshake();
-            synchronized (readLock) {
+            readLock.lock();
+            try {
                 return readUntilDataAvailable(b, off, len);
+            } finally {
+                readLock.unlock();
             }
         }
 
         @Override
         public int available() throws IOException {
             startHandshake();
-            synchronized (readLock) {
+            readLock.lock();
+            try {
                 init();
                 return fromEngine.remaining();
+            } finally {
+                readLock.unlock();
             }
         }
 
@@ -824,8 +1014,9 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
             init();
 
             for (;;) {
-                // Serve any remaining data from the engine first.
-                if (fromEngine.remaining() > 0) {
+                // Serve any remaining data from the engine first. While handshaking, this is
+                // early data that is kept until the application reads it.
+                if (fromEngine.remaining() > 0 && len > 0) {
                     int readFromEngine = Math.min(fromEngine.remaining(), len);
                     fromEngine.get(b, off, readFromEngine);
                     return readFromEngine;
@@ -834,9 +1025,9 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
                 // Try to unwrap any data already in the socket buffer.
                 boolean needMoreDataFromSocket = true;
 
-                // Unwrap the unencrypted bytes into the engine buffer.
+                // Unwrap the unencrypted bytes into the engine buffer, after any data kept there.
                 fromSocket.flip();
-                fromEngine.clear();
+                fromEngine.compact();
 
                 boolean engineHandshaking = isHandshaking(engine.getHandshakeStatus());
                 SSLEngineResult engineResult = engine.unwrap(fromSocket, fromEngine);
@@ -900,8 +1091,11 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
         }
 
         private boolean isHandshakeFinished() {
-            synchronized (stateLock) {
+            stateLock.lock();
+            try {
                 return state >= STATE_READY_HANDSHAKE_CUT_THROUGH;
+            } finally {
+                stateLock.unlock();
             }
         }
 
@@ -909,8 +1103,11 @@ class ConscryptEngineSocket extends OpenSSLSocketImpl implements SSLParametersIm
          * Processes a renegotiation received from the remote peer.
          */
         private void renegotiate() throws IOException {
-            synchronized (handshakeLock) {
+            handshakeLock.lock();
+            try {
                 doHandshake();
+            } finally {
+                handshakeLock.unlock();
             }
         }
 
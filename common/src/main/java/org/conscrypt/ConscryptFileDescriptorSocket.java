@@ -16,6 +16,7 @@
 
 package org.conscrypt;
 
+import static org.conscrypt.Preconditions.checkNotNull;
 import static org.conscrypt.SSLUtils.EngineStates.STATE_CLOSED;
 import static org.conscrypt.SSLUtils.EngineStates.STATE_HANDSHAKE_COMPLETED;
 import static org.conscrypt.SSLUtils.EngineStates.STATE_HANDSHAKE_STARTED;
@@ -23,12 +24,15 @@ import static org.conscrypt.SSLUtils.EngineStates.STATE_NEW;
 import static org.conscrypt.SSLUtils.EngineStates.STATE_READY;
 import static org.conscrypt.SSLUtils.EngineStates.STATE_READY_HANDSHAKE_CUT_THROUGH;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidKeyException;
 import java.security.PrivateKey;
 import java.security.cert.CertificateEncodingException;
@@ -36,6 +40,8 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.ECKey;
 import java.security.spec.ECParameterSpec;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.crypto.SecretKey;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
@@ -64,7 +70,18 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                    SSLParametersImpl.AliasChooser {
     private static final boolean DBG_STATE = false;
 
-    // @GuardedBy("ssl");
+    /**
+     * Guards the state of the socket. This is a {@link ReentrantLock} rather than a monitor so
+     * that virtual threads waiting for the handshake don't pin their carrier thread.
+     */
+    private final ReentrantLock stateLock = new ReentrantLock();
+
+    /**
+     * Signalled whenever the handshake finishes or the socket is closed.
+     */
+    private final Condition stateChanged = stateLock.newCondition();
+
+    // @GuardedBy("stateLock");
     private int state = STATE_NEW;
 
     /**
@@ -73,19 +90,25 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
     private final NativeSsl ssl;
 
     /**
-     * Protected by synchronizing on ssl. Starts as null, set by
+     * Protected by stateLock. Starts as null, set by
      * getInputStream.
      */
-    // @GuardedBy("ssl");
+    // @GuardedBy("stateLock");
     private SSLInputStream is;
 
     /**
-     * Protected by synchronizing on ssl. Starts as null, set by
+     * Protected by stateLock. Starts as null, set by
      * getInputStream.
      */
-    // @GuardedBy("ssl");
+    // @GuardedBy("stateLock");
     private SSLOutputStream os;
 
+    /**
+     * Decides how much application data goes into each record written to the output stream,
+     * or null to leave it to OpenSSL to fill records.
+     */
+    private volatile RecordSizePolicy.Sizer recordSizer;
+
     private final SSLParametersImpl sslParameters;
 
     /*
@@ -183,7 +206,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
     @Override
     public final void startHandshake() throws IOException {
         checkOpen();
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state == STATE_NEW) {
                 handshakeStartedMillis = Platform.getMillisSinceBoot();
                 transitionTo(STATE_HANDSHAKE_STARTED);
@@ -192,6 +216,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 // Do nothing in both cases.
                 return;
             }
+        } finally {
+            stateLock.unlock();
         }
 
         boolean releaseResources = true;
@@ -209,6 +235,11 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 if (cachedSession != null) {
                     cachedSession.offerToResume(ssl);
                 }
+                int ticketRequest =
+                        clientSessionContext().getTicketRequest(getHostnameOrIP(), getPort());
+                if (ticketRequest > 0) {
+                    ssl.setTicketRequest(ticketRequest);
+                }
             }
 
             // Temporarily use a different timeout for the handshake process
@@ -219,10 +250,13 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 setSoWriteTimeout(handshakeTimeoutMilliseconds);
             }
 
-            synchronized (ssl) {
+            stateLock.lock();
+            try {
                 if (state == STATE_CLOSED) {
                     return;
                 }
+            } finally {
+                stateLock.unlock();
             }
 
             try {
@@ -245,10 +279,13 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 // (or WANT_WRITE). Catching that exception here doesn't seem much worse than
                 // changing the native code to return a "special" native pointer value when that
                 // happens.
-                synchronized (ssl) {
+                stateLock.lock();
+                try {
                     if (state == STATE_CLOSED) {
                         return;
                     }
+                } finally {
+                    stateLock.unlock();
                 }
 
                 // Write CCS errors to EventLog
@@ -263,10 +300,13 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 throw e;
             }
 
-            synchronized (ssl) {
+            stateLock.lock();
+            try {
                 if (state == STATE_CLOSED) {
                     return;
                 }
+            } finally {
+                stateLock.unlock();
             }
 
             // Restore the original timeout now that the handshake is complete
@@ -275,7 +315,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 setSoWriteTimeout(savedWriteTimeoutMilliseconds);
             }
 
-            synchronized (ssl) {
+            stateLock.lock();
+            try {
                 releaseResources = (state == STATE_CLOSED);
 
                 if (state == STATE_HANDSHAKE_STARTED) {
@@ -287,8 +328,10 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 if (!releaseResources) {
                     // Unblock threads that are waiting for our state to transition
                     // into STATE_READY or STATE_READY_HANDSHAKE_CUT_THROUGH.
-                    ssl.notifyAll();
+                    stateChanged.signalAll();
                 }
+            } finally {
+                stateLock.unlock();
             }
         } catch (SSLProtocolException e) {
             Platform.countTlsHandshake(false, activeSession.getProtocol(),
@@ -299,14 +342,17 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
         } finally {
             // on exceptional exit, treat the socket as closed
             if (releaseResources) {
-                synchronized (ssl) {
+                stateLock.lock();
+                try {
                     // Mark the socket as closed since we might have reached this as
                     // a result on an exception thrown by the handshake process.
                     //
                     // The state will already be set to closed if we reach this as a result of
                     // an early return or an interruption due to a concurrent call to close().
                     transitionTo(STATE_CLOSED);
-                    ssl.notifyAll();
+                    stateChanged.signalAll();
+                } finally {
+                    stateLock.unlock();
                 }
 
                 try {
@@ -358,7 +404,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 Platform.getMillisSinceBoot() - handshakeStartedMillis);
 
         // First, update the state.
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state == STATE_CLOSED) {
                 // Someone called "close" but the handshake hasn't been interrupted yet.
                 return;
@@ -367,14 +414,19 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             // Now that we've fixed up our state, we can tell waiting threads that
             // we're ready.
             transitionTo(STATE_READY);
+        } finally {
+            stateLock.unlock();
         }
 
         // Let listeners know we are finally done
         notifyHandshakeCompletedListeners();
 
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             // Notify all threads waiting for the handshake to complete.
-            ssl.notifyAll();
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
         }
     }
 
@@ -447,7 +499,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
         checkOpen();
 
         InputStream returnVal;
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state == STATE_CLOSED) {
                 throw new SocketException("Socket is closed.");
             }
@@ -457,6 +510,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             }
 
             returnVal = is;
+        } finally {
+            stateLock.unlock();
         }
 
         // Block waiting for a handshake without a lock held. It's possible that the socket
@@ -471,7 +526,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
         checkOpen();
 
         OutputStream returnVal;
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state == STATE_CLOSED) {
                 throw new SocketException("Socket is closed.");
             }
@@ -481,6 +537,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             }
 
             returnVal = os;
+        } finally {
+            stateLock.unlock();
         }
 
         // Block waiting for a handshake without a lock held. It's possible that the socket
@@ -501,12 +559,13 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
     private void waitForHandshake() throws IOException {
         startHandshake();
 
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             while (state != STATE_READY &&
                     state != STATE_READY_HANDSHAKE_CUT_THROUGH &&
                     state != STATE_CLOSED) {
                 try {
-                    ssl.wait();
+                    stateChanged.await();
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     throw new IOException("Interrupted waiting for handshake", e);
@@ -516,6 +575,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             if (state == STATE_CLOSED) {
                 throw new SocketException("Socket is closed");
             }
+        } finally {
+            stateLock.unlock();
         }
     }
 
@@ -530,7 +591,7 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
          * make sure we serialize callers of SSL_read. Thread is already
          * expected to have completed handshaking.
          */
-        private final Object readLock = new Object();
+        private final ReentrantLock readLock = new ReentrantLock();
 
         SSLInputStream() {
         }
@@ -561,8 +622,10 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 return 0;
             }
 
-            synchronized (readLock) {
-                synchronized (ssl) {
+            readLock.lock();
+            try {
+                stateLock.lock();
+                try {
                     if (state == STATE_CLOSED) {
                         throw new SocketException("socket is closed");
                     }
@@ -570,18 +633,25 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                     if (DBG_STATE) {
                         assertReadableOrWriteableState();
                     }
+                } finally {
+                    stateLock.unlock();
                 }
 
                 int ret =  ssl.read(
                         Platform.getFileDescriptor(socket), buf, offset, byteCount, getSoTimeout());
                 if (ret == -1) {
-                    synchronized (ssl) {
+                    stateLock.lock();
+                    try {
                         if (state == STATE_CLOSED) {
                             throw new SocketException("socket is closed");
                         }
+                    } finally {
+                        stateLock.unlock();
                     }
                 }
                 return ret;
+            } finally {
+                readLock.unlock();
             }
         }
 
@@ -592,14 +662,18 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
 
         void awaitPendingOps() {
             if (DBG_STATE) {
-                synchronized (ssl) {
+                stateLock.lock();
+                try {
                     if (state != STATE_CLOSED) {
                         throw new AssertionError("State is: " + state);
                     }
+                } finally {
+                    stateLock.unlock();
                 }
             }
 
-            synchronized (readLock) {}
+            readLock.lock();
+            readLock.unlock();
         }
     }
 
@@ -614,7 +688,7 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
          * to make sure we serialize callers of SSL_write. Thread is
          * already expected to have completed handshaking.
          */
-        private final Object writeLock = new Object();
+        private final ReentrantLock writeLock = new ReentrantLock();
 
         SSLOutputStream() {
         }
@@ -643,8 +717,10 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 return;
             }
 
-            synchronized (writeLock) {
-                synchronized (ssl) {
+            writeLock.lock();
+            try {
+                stateLock.lock();
+                try {
                     if (state == STATE_CLOSED) {
                         throw new SocketException("socket is closed");
                     }
@@ -652,29 +728,123 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                     if (DBG_STATE) {
                         assertReadableOrWriteableState();
                     }
+                } finally {
+                    stateLock.unlock();
                 }
 
-                ssl.write(Platform.getFileDescriptor(socket), buf, offset, byteCount,
-                        writeTimeoutMilliseconds);
+                writeRecords(buf, offset, byteCount);
 
-                synchronized (ssl) {
+                stateLock.lock();
+                try {
                     if (state == STATE_CLOSED) {
                         throw new SocketException("socket is closed");
                     }
+                } finally {
+                    stateLock.unlock();
                 }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Writes the data in records of the size chosen by the record size policy. Small records
+         * are written one at a time, anything else is left to OpenSSL to split.
+         */
+        private void writeRecords(byte[] buf, int offset, int byteCount) throws IOException {
+            FileDescriptor fd = Platform.getFileDescriptor(socket);
+            RecordSizePolicy.Sizer sizer = recordSizer;
+            if (sizer == null) {
+                ssl.write(fd, buf, offset, byteCount, writeTimeoutMilliseconds);
+                return;
+            }
+            int recordSize = sizer.beginWrite();
+            while (recordSize < NativeConstants.SSL3_RT_MAX_PLAIN_LENGTH
+                    && byteCount > recordSize) {
+                ssl.write(fd, buf, offset, recordSize, writeTimeoutMilliseconds);
+                offset += recordSize;
+                byteCount -= recordSize;
+                recordSize = sizer.written(recordSize);
+            }
+            ssl.write(fd, buf, offset, byteCount, writeTimeoutMilliseconds);
+            sizer.written(byteCount);
+        }
+
+        /**
+         * Writes a file region, either with {@code sendfile} when kernel TLS is active for
+         * sending or by sealing records directly from a memory mapping of the file.
+         */
+        long transferFrom(FileChannel file, long position, long count) throws IOException {
+            Platform.blockGuardOnNetwork();
+            checkOpen();
+            long length = transferLength(file, position, count);
+            if (length == 0) {
+                return 0;
+            }
+
+            writeLock.lock();
+            try {
+                stateLock.lock();
+                try {
+                    if (state == STATE_CLOSED) {
+                        throw new SocketException("socket is closed");
+                    }
+
+                    if (DBG_STATE) {
+                        assertReadableOrWriteableState();
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+
+                FileDescriptor fd = Platform.getFileDescriptor(socket);
+                FileDescriptor fileFd = ssl.isKtlsSendEnabled()
+                        ? Platform.getFileDescriptor(file) : null;
+                long written;
+                if (fileFd != null) {
+                    written = ssl.sendfile(fd, fileFd, position, length, writeTimeoutMilliseconds);
+                } else {
+                    written = 0;
+                    while (written < length) {
+                        int chunk = (int) Math.min(length - written, TRANSFER_MAP_SIZE);
+                        MappedByteBuffer mapped =
+                                file.map(FileChannel.MapMode.READ_ONLY, position + written, chunk);
+                        ssl.writeDirect(fd, NativeCrypto.getDirectBufferAddress(mapped), chunk,
+                                writeTimeoutMilliseconds);
+                        // Also keeps the mapping reachable until the write has completed.
+                        mapped.position(chunk);
+                        written += chunk;
+                    }
+                }
+
+                stateLock.lock();
+                try {
+                    if (state == STATE_CLOSED) {
+                        throw new SocketException("socket is closed");
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+                return written;
+            } finally {
+                writeLock.unlock();
             }
         }
 
         void awaitPendingOps() {
             if (DBG_STATE) {
-                synchronized (ssl) {
+                stateLock.lock();
+                try {
                     if (state != STATE_CLOSED) {
                         throw new AssertionError("State is: " + state);
                     }
+                } finally {
+                    stateLock.unlock();
                 }
             }
 
-            synchronized (writeLock) {}
+            writeLock.lock();
+            writeLock.unlock();
         }
     }
 
@@ -685,7 +855,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
 
     private ConscryptSession provideSession() {
         boolean handshakeCompleted = false;
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state == STATE_CLOSED) {
                 return closedSession != null ? closedSession : SSLNullSession.getNullSession();
             }
@@ -699,6 +870,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             } catch (IOException e) {
                 // Fall through.
             }
+        } finally {
+            stateLock.unlock();
         }
 
         if (!handshakeCompleted) {
@@ -720,9 +893,12 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
 
     // If handshake is in progress, provide active session otherwise a null session.
     private ConscryptSession provideHandshakeSession() {
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             return state >= STATE_HANDSHAKE_STARTED && state < STATE_READY ? activeSession
                 : SSLNullSession.getNullSession();
+        } finally {
+            stateLock.unlock();
         }
     }
 
@@ -733,7 +909,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
 
     @Override
     public final SSLSession getHandshakeSession() {
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state >= STATE_HANDSHAKE_STARTED && state < STATE_READY) {
                 return Platform.wrapSSLSession(new ExternalSession(new ExternalSession.Provider() {
                     @Override
@@ -743,6 +920,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 }));
             }
             return null;
+        } finally {
+            stateLock.unlock();
         }
     }
 
@@ -796,6 +975,60 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
         sslParameters.setUseSessionTickets(useSessionTickets);
     }
 
+    @Override
+    final void setKtlsEnabled(boolean enabled) {
+        stateLock.lock();
+        try {
+            if (state != STATE_NEW) {
+                throw new IllegalStateException(
+                        "Could not enable/disable kTLS after the initial handshake has begun.");
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        sslParameters.setKtlsEnabled(enabled);
+    }
+
+    @Override
+    final boolean isKtlsSendEnabled() {
+        return ssl.isKtlsSendEnabled();
+    }
+
+    @Override
+    final boolean isKtlsReceiveEnabled() {
+        return ssl.isKtlsReceiveEnabled();
+    }
+
+    @Override
+    final void setRecordSizePolicy(RecordSizePolicy policy) {
+        recordSizer = checkNotNull(policy, "policy").newSizer();
+    }
+
+    @Override
+    final long transferFrom(FileChannel file, long position, long count) throws IOException {
+        return ((SSLOutputStream) getOutputStream()).transferFrom(file, position, count);
+    }
+
+    /**
+     * Early data is only supported by engine-based sockets, this socket always does a full
+     * round trip.
+     */
+    @Override
+    final void setMaxEarlyData(int maxEarlyData) {}
+
+    @Override
+    final void setEarlyDataReplayProtection(EarlyDataReplayProtection protection) {}
+
+    @Override
+    final int writeEarlyData(byte[] b, int off, int len) {
+        return 0;
+    }
+
+    @Override
+    final boolean isEarlyDataAccepted() {
+        return false;
+    }
+
     /**
      * This method enables Server Name Indication.  If the hostname is not a valid SNI hostname,
      * the SNI extension will be omitted from the handshake.
@@ -822,12 +1055,15 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             throw new IllegalStateException("Client mode");
         }
 
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state != STATE_NEW) {
                 throw new IllegalStateException(
                         "Could not enable/disable Channel ID after the initial handshake has"
                                 + " begun.");
             }
+        } finally {
+            stateLock.unlock();
         }
         sslParameters.channelIdEnabled = enabled;
     }
@@ -848,11 +1084,14 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             throw new IllegalStateException("Client mode");
         }
 
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state != STATE_READY) {
                 throw new IllegalStateException(
                         "Channel ID is only available after handshake completes");
             }
+        } finally {
+            stateLock.unlock();
         }
         return ssl.getTlsChannelId();
     }
@@ -875,12 +1114,15 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             throw new IllegalStateException("Server mode");
         }
 
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state != STATE_NEW) {
                 throw new IllegalStateException(
                         "Could not change Channel ID private key after the initial handshake has"
                                 + " begun.");
             }
+        } finally {
+            stateLock.unlock();
         }
 
         if (privateKey == null) {
@@ -913,10 +1155,13 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
 
     @Override
     byte[] exportKeyingMaterial(String label, byte[] context, int length) throws SSLException {
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state < STATE_HANDSHAKE_COMPLETED || state == STATE_CLOSED) {
                 return null;
             }
+        } finally {
+            stateLock.unlock();
         }
         return ssl.exportKeyingMaterial(label, context, length);
     }
@@ -928,11 +1173,14 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
 
     @Override
     public final void setUseClientMode(boolean mode) {
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state != STATE_NEW) {
                 throw new IllegalArgumentException(
                         "Could not change the mode after the initial handshake has begun.");
             }
+        } finally {
+            stateLock.unlock();
         }
         sslParameters.setUseClientMode(mode);
     }
@@ -998,7 +1246,8 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
             return;
         }
 
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             if (state == STATE_CLOSED) {
                 // close() has already been called, so do nothing and return.
                 return;
@@ -1014,7 +1263,7 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 free();
                 closeUnderlyingSocket();
 
-                ssl.notifyAll();
+                stateChanged.signalAll();
                 return;
             }
 
@@ -1025,15 +1274,17 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 // after SSL_do_handshake returns, so we don't have anything to do here.
                 ssl.interrupt();
 
-                ssl.notifyAll();
+                stateChanged.signalAll();
                 return;
             }
 
-            ssl.notifyAll();
+            stateChanged.signalAll();
             // We've already returned from startHandshake, so we potentially have
             // input and output streams to clean up.
             sslInputStream = is;
             sslOutputStream = os;
+        } finally {
+            stateLock.unlock();
         }
 
         // Don't bother interrupting unless we have something to interrupt.
@@ -1106,8 +1357,11 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
                 Platform.closeGuardWarnIfOpen(guard);
             }
             if (ssl != null) {
-                synchronized (ssl) {
+                stateLock.lock();
+                try {
                     transitionTo(STATE_CLOSED);
+                } finally {
+                    stateLock.unlock();
                 }
             }
         } finally {
@@ -1126,6 +1380,12 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
         sslParameters.setApplicationProtocolSelector(selector);
     }
 
+    @Override
+    public boolean allowEarlyData(byte[] sessionId, byte[] clientRandom) {
+        // Never asked, this socket doesn't accept early data.
+        return false;
+    }
+
     @Override
     public int selectApplicationProtocol(byte[] protocols) {
         ApplicationProtocolSelectorAdapter adapter = sslParameters.getApplicationProtocolSelector();
@@ -1152,9 +1412,12 @@ class ConscryptFileDescriptorSocket extends OpenSSLSocketImpl
 
     @Override
     public final String getHandshakeApplicationProtocol() {
-        synchronized (ssl) {
+        stateLock.lock();
+        try {
             return state >= STATE_HANDSHAKE_STARTED && state < STATE_READY
                 ? getApplicationProtocol() : null;
+        } finally {
+            stateLock.unlock();
         }
     }
 
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.conscrypt;
+
+import static org.conscrypt.Preconditions.checkNotNull;
+import static org.conscrypt.Preconditions.checkPositionIndexes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A TLS channel on top of a {@link SocketChannel}, driven by a Conscrypt engine.
+ *
+ * <p>The underlying channel may be blocking or non-blocking. In non-blocking mode, {@link
+ * #handshake()}, {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)} never block; when they
+ * can't make progress they return {@code false} or {@code 0} and {@link #interestOps()} tells
+ * which readiness the underlying channel must be selected for before trying again. Note that a
+ * read may need the channel to be writable (e.g. to answer a key update) and vice versa.
+ *
+ * <p>One thread may read while another one writes. The handshake is started implicitly by the
+ * first read or write if {@link #handshake()} hasn't been called.
+ */
+@ExperimentalApi
+public final class ConscryptTlsChannel
+        implements ByteChannel, GatheringByteChannel, ScatteringByteChannel {
+    private static final ByteBuffer[] EMPTY_BUFFERS = new ByteBuffer[0];
+
+    private final SocketChannel channel;
+    private final AbstractConscryptEngine engine;
+
+    /**
+     * Lock for the inbound direction. When both are needed, readLock is acquired before
+     * writeLock.
+     */
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    // @GuardedBy("readLock");
+    private final ByteBuffer netIn;
+    // @GuardedBy("readLock");
+    private final ByteBuffer[] netIns;
+    // Decrypted data that didn't fit into the caller's buffers, always in read mode.
+    // @GuardedBy("readLock");
+    private final ByteBuffer appIn;
+    // @GuardedBy("readLock");
+    private final ByteBuffer[] appIns;
+    // @GuardedBy("readLock");
+    private final ByteBuffer[] singleReadDsts = new ByteBuffer[2];
+    // The caller's buffers followed by appIn, for scattering reads.
+    // @GuardedBy("readLock");
+    private ByteBuffer[] scatterDsts;
+    // @GuardedBy("readLock");
+    private final ReusableEngineResult readResult = new ReusableEngineResult();
+    // @GuardedBy("readLock");
+    private boolean inboundDone;
+
+    // Encrypted data that hasn't been written to the channel yet, always in read mode.
+    // @GuardedBy("writeLock");
+    private final ByteBuffer netOut;
+    // @GuardedBy("writeLock");
+    private final ByteBuffer[] singleWriteSrcs = new ByteBuffer[1];
+    // @GuardedBy("writeLock");
+    private final ReusableEngineResult writeResult = new ReusableEngineResult();
+
+    private volatile boolean handshakeStarted;
+    private volatile boolean handshakeFinished;
+    private volatile int interestOps;
+
+    ConscryptTlsChannel(SocketChannel channel, AbstractConscryptEngine engine) {
+        this.channel = checkNotNull(channel, "channel");
+        this.engine = checkNotNull(engine, "engine");
+        // Reads and writes only hold the channel's own locks while they wait for the network,
+        // the engine serializes the wraps and unwraps themselves.
+
+        netIn = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+        netIns = new ByteBuffer[] {netIn};
+        appIn = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+        appIn.limit(0);
+        appIns = new ByteBuffer[] {appIn};
+        netOut = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+        netOut.limit(0);
+    }
+
+    /**
+     * Returns the underlying channel, e.g. for registering it with a selector.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the engine that encrypts and decrypts the data of this channel.
+     */
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the {@link SelectionKey} operations the underlying channel must be ready for
+     * before the last operation that couldn't complete can make progress, or {@code 0} if it
+     * didn't stall on the channel.
+     */
+    public int interestOps() {
+        return interestOps;
+    }
+
+    /**
+     * Performs as much of the handshake as possible without blocking on a non-blocking
+     * channel.
+     *
+     * @return {@code true} if the handshake has finished, {@code false} if it has to be called
+     *     again once the channel is ready for {@link #interestOps()}
+     */
+    public boolean handshake() throws IOException {
+        if (handshakeFinished) {
+            return true;
+        }
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                return handshakeLocked();
+            }
+        }
+    }
+
+    // @GuardedBy("readLock", "writeLock")
+    private boolean handshakeLocked() throws IOException {
+        if (handshakeFinished) {
+            return true;
+        }
+        if (!handshakeStarted) {
+            engine.beginHandshake();
+            handshakeStarted = true;
+        }
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status) {
+                case NEED_WRAP:
+                    wrapLocked(EMPTY_BUFFERS, 0, 0);
+                    break;
+                case NEED_UNWRAP:
+                    if (unwrapLocked(appIns, 0, 1) < 0) {
+                        if (inboundDone) {
+                            throw new EOFException("Connection closed during handshake");
+                        }
+                        interestOps = SelectionKey.OP_READ;
+                        return false;
+                    }
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                default:
+                    handshakeFinished = true;
+                    interestOps = 0;
+                    return true;
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkNotNull(dst, "dst");
+        synchronized (readLock) {
+            singleReadDsts[0] = dst;
+            try {
+                return (int) read(singleReadDsts, 0, 1);
+            } finally {
+                singleReadDsts[0] = null;
+            }
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Returns {@code 0} if no data could be read without blocking, in which case the
+     * channel must be selected for {@link #interestOps()} before retrying.
+     */
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        checkNotNull(dsts, "dsts");
+        checkPositionIndexes(offset, offset + length, dsts.length);
+        if (!handshake()) {
+            return 0;
+        }
+        synchronized (readLock) {
+            if (appIn.hasRemaining()) {
+                return transfer(appIn, dsts, offset, length);
+            }
+            if (inboundDone) {
+                return -1;
+            }
+            // Decrypt directly into the caller's buffers, followed by appIn for any data that
+            // doesn't fit.
+            ByteBuffer[] unwrapDsts;
+            if (dsts == singleReadDsts) {
+                singleReadDsts[1] = appIn;
+                unwrapDsts = singleReadDsts;
+            } else {
+                if (scatterDsts == null || scatterDsts.length != length + 1) {
+                    // Callers usually pass the same number of buffers every time.
+                    scatterDsts = new ByteBuffer[length + 1];
+                }
+                unwrapDsts = scatterDsts;
+                System.arraycopy(dsts, offset, unwrapDsts, 0, length);
+                unwrapDsts[length] = appIn;
+            }
+            try {
+                while (true) {
+                    int produced = unwrapLocked(unwrapDsts, 0, length + 1);
+                    if (produced > 0) {
+                        interestOps = 0;
+                        return produced - appIn.remaining();
+                    }
+                    if (produced < 0) {
+                        if (inboundDone) {
+                            return -1;
+                        }
+                        interestOps = SelectionKey.OP_READ;
+                        return 0;
+                    }
+                    // Only non-application records so far, keep going.
+                }
+            } finally {
+                if (unwrapDsts == singleReadDsts) {
+                    singleReadDsts[1] = null;
+                } else {
+                    // Don't hold on to the caller's buffers.
+                    Arrays.fill(unwrapDsts, null);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkNotNull(src, "src");
+        // The handshake needs readLock, which must not be acquired while holding writeLock.
+        if (!handshake()) {
+            return 0;
+        }
+        synchronized (writeLock) {
+            singleWriteSrcs[0] = src;
+            try {
+                return (int) write(singleWriteSrcs, 0, 1);
+            } finally {
+                singleWriteSrcs[0] = null;
+            }
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Data is consumed from the sources as long as the encrypted records can be written to
+     * the channel. Returns {@code 0} if nothing could be written without blocking, in which
+     * case the channel must be selected for {@link #interestOps()} before retrying.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        checkNotNull(srcs, "srcs");
+        checkPositionIndexes(offset, offset + length, srcs.length);
+        if (!handshake()) {
+            return 0;
+        }
+        synchronized (writeLock) {
+            long consumed = 0;
+            while (flush() && hasRemaining(srcs, offset, length)) {
+                int wrapped = wrapLocked(srcs, offset, length);
+                if (wrapped == 0 && !netOut.hasRemaining()) {
+                    // The engine can't encrypt anything until more has been read, e.g. the
+                    // rest of a post-handshake message.
+                    interestOps = SelectionKey.OP_READ;
+                    return consumed;
+                }
+                consumed += wrapped;
+            }
+            if (!netOut.hasRemaining()) {
+                interestOps = 0;
+            }
+            return consumed;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends a close_notify alert, as far as that is possible without blocking, and closes the
+     * underlying channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // Not taking readLock, which a reader blocked on the channel may hold until the
+            // channel is closed. The engine itself waits for an unwrap in progress to finish
+            // before it closes.
+            synchronized (writeLock) {
+                if (channel.isOpen()) {
+                    engine.closeOutbound();
+                    flushCloseNotify();
+                }
+            }
+        } catch (IOException e) {
+            // The peer doesn't necessarily wait for the alert.
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Decrypts at most one record from {@link #netIn}, reading from the channel if it doesn't
+     * hold a complete record.
+     *
+     * @return the number of bytes written to {@code dsts}, or {@code -1} if the channel has no
+     *     more data available right now, or ever if {@link #inboundDone} is set
+     */
+    // @GuardedBy("readLock")
+    private int unwrapLocked(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        appIn.compact();
+        try {
+            while (true) {
+                netIn.flip();
+                try {
+                    engine.unwrap(netIns, 0, 1, dsts, offset, length, readResult);
+                } finally {
+                    netIn.compact();
+                }
+                switch (readResult.getStatus()) {
+                    case OK:
+                        afterUnwrap(readResult.getHandshakeStatus());
+                        return readResult.bytesProduced();
+                    case CLOSED:
+                        // The peer sent a close_notify, answer it if it's still listening.
+                        inboundDone = true;
+                        synchronized (writeLock) {
+                            try {
+                                flushCloseNotify();
+                            } catch (IOException e) {
+                                // Ignored, the inbound side is done either way.
+                            }
+                        }
+                        return readResult.bytesProduced() > 0 ? readResult.bytesProduced() : -1;
+                    case BUFFER_UNDERFLOW:
+                        int read = channel.read(netIn);
+                        if (read < 0) {
+                            inboundDone = true;
+                            return -1;
+                        }
+                        if (read == 0) {
+                            return -1;
+                        }
+                        break;
+                    default:
+                        // appIn is large enough for any record.
+                        throw new SSLException("Unexpected unwrap result " + readResult);
+                }
+            }
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    // @GuardedBy("readLock")
+    private void afterUnwrap(HandshakeStatus status) throws IOException {
+        if (status == HandshakeStatus.NEED_WRAP && handshakeFinished) {
+            // A post-handshake message, e.g. a key update, needs an answer.
+            synchronized (writeLock) {
+                if (flush()) {
+                    wrapLocked(EMPTY_BUFFERS, 0, 0);
+                    if (!flush()) {
+                        interestOps = SelectionKey.OP_WRITE;
+                    }
+                }
+            }
+        } else if (status == HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+    }
+
+    /**
+     * Encrypts data into {@link #netOut}, which must be empty.
+     *
+     * @return the number of bytes consumed from {@code srcs}
+     */
+    // @GuardedBy("writeLock")
+    private int wrapLocked(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        netOut.clear();
+        try {
+            engine.wrap(srcs, offset, length, netOut, writeResult);
+        } finally {
+            netOut.flip();
+        }
+        switch (writeResult.getStatus()) {
+            case OK:
+                if (writeResult.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                return writeResult.bytesConsumed();
+            case CLOSED:
+                if (netOut.hasRemaining() || !hasRemaining(srcs, offset, length)) {
+                    // Either the alert that closed the engine still has to be sent, or there
+                    // was nothing to send anyway.
+                    return writeResult.bytesConsumed();
+                }
+                throw new ClosedChannelException();
+            default:
+                // netOut is large enough for any record.
+                throw new SSLException("Unexpected wrap result " + writeResult);
+        }
+    }
+
+    // @GuardedBy("writeLock")
+    private void flushCloseNotify() throws IOException {
+        if (flush()) {
+            wrapLocked(EMPTY_BUFFERS, 0, 0);
+            flush();
+        }
+    }
+
+    /**
+     * Writes {@link #netOut} to the channel.
+     *
+     * @return {@code true} if everything was written
+     */
+    // @GuardedBy("writeLock")
+    private boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                interestOps = SelectionKey.OP_WRITE;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) {
+        int transferred = 0;
+        for (int i = offset; i < offset + length && src.hasRemaining(); i++) {
+            ByteBuffer dst = dsts[i];
+            int count = Math.min(src.remaining(), dst.remaining());
+            if (count == 0) {
+                continue;
+            }
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            dst.put(src);
+            src.limit(limit);
+            transferred += count;
+        }
+        return transferred;
+    }
+}
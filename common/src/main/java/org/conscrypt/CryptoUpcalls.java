@@ -16,6 +16,9 @@
 
 package org.conscrypt;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -23,6 +26,12 @@ import java.security.Provider;
 import java.security.Security;
 import java.security.Signature;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
@@ -38,8 +47,104 @@ import javax.crypto.NoSuchPaddingException;
 final class CryptoUpcalls {
     private static final Logger logger = Logger.getLogger(CryptoUpcalls.class.getName());
 
+    /**
+     * How long to wait for an {@link AsyncPrivateKeyMethod} operation before failing the
+     * handshake, so that a lost operation doesn't hold on to the handshake's thread forever.
+     */
+    static final long ASYNC_OPERATION_TIMEOUT_SECONDS = 30;
+
+    /**
+     * State of the delegated keys that have been used or configured, weakly keyed so that it
+     * goes away with the key. Looked up on every operation, so it must not take a lock shared
+     * by all keys.
+     */
+    private static final ConcurrentHashMap<KeyReference, KeyState> keyStates =
+            new ConcurrentHashMap<KeyReference, KeyState>();
+    private static final ReferenceQueue<PrivateKey> collectedKeys =
+            new ReferenceQueue<PrivateKey>();
+
     private CryptoUpcalls() {}
 
+    private static final class KeyState {
+        volatile AsyncPrivateKeyMethod method;
+        // The provider that last accepted the key, by algorithm or transformation.
+        final Map<String, Provider> providers = new ConcurrentHashMap<String, Provider>();
+    }
+
+    /**
+     * Weakly references a key, comparing equal to references to equal keys as long as it
+     * hasn't been collected.
+     */
+    private static final class KeyReference extends WeakReference<PrivateKey> {
+        private final int hashCode;
+
+        KeyReference(PrivateKey key, ReferenceQueue<PrivateKey> queue) {
+            super(key, queue);
+            hashCode = key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof KeyReference)) {
+                return false;
+            }
+            PrivateKey key = get();
+            return key != null && key.equals(((KeyReference) o).get());
+        }
+    }
+
+    private static KeyState getKeyState(PrivateKey key) {
+        KeyState state = keyStates.get(new KeyReference(key, null));
+        if (state != null) {
+            return state;
+        }
+        Reference<? extends PrivateKey> collected;
+        while ((collected = collectedKeys.poll()) != null) {
+            keyStates.remove(collected);
+        }
+        KeyState newState = new KeyState();
+        state = keyStates.putIfAbsent(new KeyReference(key, collectedKeys), newState);
+        return state != null ? state : newState;
+    }
+
+    /**
+     * Sets the method that performs the operations with {@code key}, or {@code null} to go back
+     * to looking up a provider for it.
+     */
+    static void setAsyncPrivateKeyMethod(PrivateKey key, AsyncPrivateKeyMethod method) {
+        getKeyState(key).method = method;
+    }
+
+    /**
+     * Waits for an operation started by an {@link AsyncPrivateKeyMethod}, returning {@code null}
+     * if it failed or didn't complete in time.
+     */
+    private static byte[] await(Future<byte[]> result, String algorithm) {
+        try {
+            return result.get(ASYNC_OPERATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            logger.warning("Timed out waiting for " + algorithm + " private key operation");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning("Interrupted while waiting for " + algorithm + " private key operation");
+            return null;
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Private key operation " + algorithm + " failed:",
+                    e.getCause());
+            return null;
+        }
+    }
+
     /**
      * Finds providers that are not us that provide the requested algorithms.
      */
@@ -69,26 +174,44 @@ final class CryptoUpcalls {
 
     private static byte[] signDigestWithPrivateKey(PrivateKey javaKey, byte[] message,
             String algorithm) {
-        Signature signature;
+        KeyState state = getKeyState(javaKey);
+        AsyncPrivateKeyMethod method = state.method;
+        if (method != null) {
+            return await(method.sign(javaKey, algorithm, message), algorithm);
+        }
+
+        // Start with the provider that accepted the key last time, if any.
+        Signature signature = null;
+        Provider cachedProvider = state.providers.get(algorithm);
+        if (cachedProvider != null) {
+            try {
+                signature = Signature.getInstance(algorithm, cachedProvider);
+                signature.initSign(javaKey);
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                signature = null;
+            }
+        }
 
         // Since this is a delegated key, we cannot handle providing a signature using this key.
         // Otherwise we wouldn't end up in this class in the first place. The first step is to
         // try to get the most preferred provider as long as it isn't us.
-        try {
-            signature = Signature.getInstance(algorithm);
-            signature.initSign(javaKey);
+        if (signature == null) {
+            try {
+                signature = Signature.getInstance(algorithm);
+                signature.initSign(javaKey);
 
-            // Ignore it if it points back to us.
-            if (Conscrypt.isConscrypt(signature.getProvider())) {
+                // Ignore it if it points back to us.
+                if (Conscrypt.isConscrypt(signature.getProvider())) {
+                    signature = null;
+                }
+            } catch (NoSuchAlgorithmException e) {
+                logger.warning("Unsupported signature algorithm: " + algorithm);
+                return null;
+            } catch (InvalidKeyException e) {
+                logger.warning("Preferred provider doesn't support key:");
+                e.printStackTrace();
                 signature = null;
             }
-        } catch (NoSuchAlgorithmException e) {
-            logger.warning("Unsupported signature algorithm: " + algorithm);
-            return null;
-        } catch (InvalidKeyException e) {
-            logger.warning("Preferred provider doesn't support key:");
-            e.printStackTrace();
-            signature = null;
         }
 
         // If the preferred provider was us, fall back to trying to find the
@@ -118,6 +241,7 @@ final class CryptoUpcalls {
                 return null;
             }
         }
+        state.providers.put(algorithm, signature.getProvider());
 
         // Sign the message.
         try {
@@ -169,28 +293,50 @@ final class CryptoUpcalls {
         }
 
         String transformation = "RSA/ECB/" + jcaPadding;
+
+        KeyState state = getKeyState(javaKey);
+        AsyncPrivateKeyMethod method = state.method;
+        if (method != null) {
+            Future<byte[]> result = cipherMode == Cipher.ENCRYPT_MODE
+                    ? method.sign(javaKey, transformation, input)
+                    : method.decrypt(javaKey, transformation, input);
+            return await(result, transformation);
+        }
+
+        // Start with the provider that accepted the key last time, if any.
         Cipher c = null;
+        Provider cachedProvider = state.providers.get(transformation);
+        if (cachedProvider != null) {
+            try {
+                c = Cipher.getInstance(transformation, cachedProvider);
+                c.init(cipherMode, javaKey);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+                c = null;
+            }
+        }
 
         // Since this is a delegated key, we cannot handle providing a cipher using this key.
         // Otherwise we wouldn't end up in this class in the first place. The first step is to
         // try to get the most preferred provider as long as it isn't us.
-        try {
-            c = Cipher.getInstance(transformation);
-            c.init(cipherMode, javaKey);
+        if (c == null) {
+            try {
+                c = Cipher.getInstance(transformation);
+                c.init(cipherMode, javaKey);
 
-            // Ignore it if it points back to us.
-            if (Conscrypt.isConscrypt(c.getProvider())) {
+                // Ignore it if it points back to us.
+                if (Conscrypt.isConscrypt(c.getProvider())) {
+                    c = null;
+                }
+            } catch (NoSuchAlgorithmException e) {
+                logger.warning("Unsupported cipher algorithm: " + transformation);
+                return null;
+            } catch (NoSuchPaddingException e) {
+                logger.warning("Unsupported cipher algorithm: " + transformation);
+                return null;
+            } catch (InvalidKeyException e) {
+                logger.log(Level.WARNING, "Preferred provider doesn't support key:", e);
                 c = null;
             }
-        } catch (NoSuchAlgorithmException e) {
-            logger.warning("Unsupported cipher algorithm: " + transformation);
-            return null;
-        } catch (NoSuchPaddingException e) {
-            logger.warning("Unsupported cipher algorithm: " + transformation);
-            return null;
-        } catch (InvalidKeyException e) {
-            logger.log(Level.WARNING, "Preferred provider doesn't support key:", e);
-            c = null;
         }
 
         // If the preferred provider was us, fall back to trying to find the
@@ -215,6 +361,7 @@ final class CryptoUpcalls {
                 return null;
             }
         }
+        state.providers.put(transformation, c.getProvider());
 
         try {
             return c.doFinal(input);
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.conscrypt;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Decides whether a server accepts the TLS 1.3 early data a client sent, which an attacker can
+ * replay. Typical implementations accept each ticket only once, or remember the client randoms
+ * seen within the ticket lifetime, in storage shared by all servers that accept the tickets.
+ *
+ * <p>Without one, the early data on a ticket is only accepted the first time the ticket is
+ * presented to the same server session cache.
+ *
+ * <p>See {@link Conscrypt#setEarlyDataReplayProtection(SSLEngine, EarlyDataReplayProtection)}.
+ */
+@ExperimentalApi
+public interface EarlyDataReplayProtection {
+    /**
+     * Returns whether to accept the early data offered in a handshake. The handshake completes
+     * either way; rejected early data is skipped and the client has to send it again.
+     *
+     * @param sessionId the ID of the session the client resumes, which identifies its ticket
+     * @param clientRandom the random value of the client's ClientHello
+     */
+    boolean allowEarlyData(byte[] sessionId, byte[] clientRandom);
+}
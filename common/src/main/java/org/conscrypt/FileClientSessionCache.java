@@ -19,18 +19,27 @@ package org.conscrypt;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import javax.net.ssl.SSLSession;
 import org.conscrypt.io.IoUtils;
 
@@ -42,86 +51,239 @@ import org.conscrypt.io.IoUtils;
 public final class FileClientSessionCache {
     private static final Logger logger = Logger.getLogger(FileClientSessionCache.class.getName());
 
+    /** The default number of sessions a cache holds. */
+    public static final int DEFAULT_CAPACITY = 20000;
+
+    /**
+     * The number of session files the cache used to keep in a directory, one file per session.
+     * The cache now keeps all sessions in a single log and holds up to {@link
+     * #DEFAULT_CAPACITY} of them unless another capacity is given to {@link
+     * #usingDirectory(File, int)}.
+     *
+     * @deprecated no longer used, see {@link #DEFAULT_CAPACITY}
+     */
+    @Deprecated
     public static final int MAX_SIZE = 12; // ~72k
 
     private FileClientSessionCache() {}
 
     /**
-     * This cache creates one file per SSL session using "host.port" for
-     * the file name. Files are created or replaced when session data is put
-     * in the cache (see {@link #putSessionData}). Files are read on
-     * cache hits, but not on cache misses.
+     * This cache appends sessions to a single log file, {@code sessions.log}, and keeps an
+     * index of where the latest session for each host and port is in memory. The log is
+     * memory-mapped, so cache hits are read without system calls.
+     *
+     * <p>Puts only update the index. A background thread appends the new sessions to the log in
+     * batches, so handshake threads never wait for the disk. When the sessions in the log that
+     * have been replaced or evicted outgrow the live ones, the thread rewrites the log with only
+     * the live sessions.
      *
-     * <p>When the number of session files exceeds MAX_SIZE, we delete the
-     * least-recently-used file. We don't current persist the last access time,
-     * so the ordering actually ends up being least-recently-modified in some
-     * cases and even just "not accessed in this process" if the filesystem
-     * doesn't track last modified times.
+     * <p>When the number of sessions exceeds the capacity, we evict the least-recently-used
+     * one. Access order is not persisted, so after a restart sessions are ordered by when they
+     * were written.
+     *
+     * <p>Each record in the log is its length, a CRC-32 of the rest of the record, the length
+     * of the "host.port" key, the key and the session data. Records after the first one that
+     * doesn't check out, such as one torn by a crash, are ignored.
+     *
+     * <p>Earlier versions of this cache kept one file per session, named "host.port". Those
+     * files are moved into the log, and deleted, when a directory is opened.
      */
     static class Impl implements SSLClientSessionCache {
-        /** Directory to store session files in. */
+        static final String LOG_NAME = "sessions.log";
+
+        private static final int MAGIC = 0x43534c47; // "CSLG"
+        private static final int VERSION = 1;
+        private static final int LOG_HEADER_SIZE = 8;
+        private static final int RECORD_HEADER_SIZE = 10;
+        private static final int MIN_MAPPED_SIZE = 64 * 1024;
+
+        /** The log isn't compacted while it is smaller than this. */
+        private static final int MIN_COMPACTION_SIZE = 1024 * 1024;
+
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        /** Directory to store the log in. */
         final File directory;
 
-        /**
-         * Map of name -> File. Keeps track of the order files were accessed in.
-         */
-        Map<String, File> accessOrder = newAccessOrder();
+        final File logFile;
 
-        /** The number of files on disk. */
-        int size;
+        /** The maximum number of sessions to keep. */
+        final int capacity;
 
         /**
-         * The initial set of files. We use this to defer adding information
-         * about all files to accessOrder until necessary.
+         * Map of name -> Entry. Keeps track of the order sessions were accessed in.
          */
-        String[] initialFiles;
+        private final Map<String, Entry> index =
+                new LinkedHashMap<String, Entry>(16, 0.75f, true /* access order */);
+
+        /** Entries whose data hasn't been written to the log yet, in the order they were put. */
+        private List<Entry> pending = new ArrayList<Entry>();
+
+        private final ExecutorService writer;
+        private boolean writeScheduled;
+
+        private RandomAccessFile file;
+        private MappedByteBuffer log;
+
+        /** The offset in the log where the next record goes. */
+        private int end;
+
+        /** The total size of the records of the sessions in the index. */
+        private long liveBytes;
 
         /**
-         * Constructs a new cache backed by the given directory.
+         * Constructs a new cache backed by the given directory, reading the sessions in its log.
          */
-        Impl(File directory) throws IOException {
+        Impl(File directory, int capacity) throws IOException {
             boolean exists = directory.exists();
             if (exists && !directory.isDirectory()) {
                 throw new IOException(directory + " exists but is not a directory.");
             }
+            if (!exists && !directory.mkdirs()) {
+                throw new IOException("Creation of " + directory + " directory failed.");
+            }
 
-            if (exists) {
-                // Read and sort initial list of files. We defer adding
-                // information about these files to accessOrder until necessary
-                // (see indexFiles()). Sorting the list enables us to detect
-                // cache misses in getSessionData().
-                // Note: Sorting an array here was faster than creating a
-                // HashSet on Dalvik.
-                initialFiles = directory.list();
-                if (initialFiles == null) {
-                    // File.list() will return null in error cases without throwing IOException
-                    // http://b/3363561
-                    throw new IOException(directory + " exists but cannot list contents.");
+            this.directory = directory;
+            this.capacity = capacity;
+            this.logFile = new File(directory, LOG_NAME);
+            openLog();
+            readLog();
+            importSessionFiles();
+            this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FileClientSessionCache writer");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-                Arrays.sort(initialFiles);
-                size = initialFiles.length;
-            } else {
-                // Create directory.
-                if (!directory.mkdirs()) {
-                    throw new IOException("Creation of " + directory + " directory failed.");
+            });
+        }
+
+        private void openLog() throws IOException {
+            file = new RandomAccessFile(logFile, "rw");
+            boolean success = false;
+            try {
+                long length = file.length();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException(logFile + " is too large.");
                 }
-                size = 0;
+                map(Math.max((int) length, MIN_MAPPED_SIZE));
+                if (log.getInt(0) == 0) {
+                    log.putInt(4, VERSION);
+                    log.putInt(0, MAGIC);
+                } else if (log.getInt(0) != MAGIC || log.getInt(4) != VERSION) {
+                    throw new IOException(logFile + " is not a session log.");
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    IoUtils.closeQuietly(file);
+                }
+            }
+        }
+
+        /**
+         * Maps the first {@code size} bytes of the log, growing the file if necessary.
+         */
+        private void map(int size) throws IOException {
+            if (file.length() < size) {
+                file.setLength(size);
             }
+            log = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
 
-            this.directory = directory;
+        /**
+         * Indexes the records in the log, stopping at the first one that is incomplete or
+         * corrupt.
+         */
+        private void readLog() {
+            int offset = LOG_HEADER_SIZE;
+            int limit = log.capacity();
+            while (offset + RECORD_HEADER_SIZE <= limit) {
+                int length = log.getInt(offset);
+                if (length < RECORD_HEADER_SIZE || length > limit - offset) {
+                    break;
+                }
+                byte[] record = new byte[length - 8];
+                ByteBuffer view = log.duplicate();
+                view.position(offset + 8);
+                view.get(record);
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, record.length);
+                int keyLength = log.getShort(offset + 8) & 0xffff;
+                if (log.getInt(offset + 4) != (int) crc.getValue()
+                        || RECORD_HEADER_SIZE + keyLength > length) {
+                    break;
+                }
+                Entry entry = new Entry(new String(record, 2, keyLength, UTF_8));
+                entry.offset = offset;
+                entry.recordLength = length;
+                add(entry);
+                offset += length;
+            }
+            end = offset;
         }
 
         /**
-         * Creates a new access-ordered linked hash map.
+         * Appends the sessions in the one-file-per-session format of earlier versions to the
+         * log, oldest first so that the most recently written one is evicted last, and deletes
+         * their files. Sessions already in the log are newer and take precedence.
          */
-        private static Map<String, File> newAccessOrder() {
-            return new LinkedHashMap<String, File>(MAX_SIZE, 0.75f, true /* access order */);
+        private void importSessionFiles() {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    long difference = a.lastModified() - b.lastModified();
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+            String tmpName = LOG_NAME + ".tmp";
+            for (File sessionFile : files) {
+                String name = sessionFile.getName();
+                if (name.equals(LOG_NAME) || name.equals(tmpName) || !sessionFile.isFile()) {
+                    continue;
+                }
+                if (!index.containsKey(name)) {
+                    try {
+                        Entry entry = new Entry(name);
+                        entry.pendingData = readSessionFile(sessionFile);
+                        add(entry);
+                        append(entry);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "FileClientSessionCache: Error importing "
+                                + sessionFile + " into " + logFile + ".", e);
+                    }
+                }
+                if (!sessionFile.delete()) {
+                    logger.log(Level.WARNING,
+                            "FileClientSessionCache: Failed to delete " + sessionFile + ".");
+                }
+            }
+        }
+
+        private static byte[] readSessionFile(File sessionFile) throws IOException {
+            long length = sessionFile.length();
+            if (length > MIN_COMPACTION_SIZE) {
+                throw new IOException(sessionFile + " is too large.");
+            }
+            FileInputStream in = new FileInputStream(sessionFile);
+            try {
+                byte[] data = new byte[(int) length];
+                new DataInputStream(in).readFully(data);
+                return data;
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
         }
 
         /**
-         * Gets the file name for the given host and port.
+         * Gets the key for the given host and port.
          */
-        private static String fileName(String host, int port) {
+        private static String key(String host, int port) {
             if (host == null) {
                 throw new NullPointerException("host == null");
             }
@@ -135,53 +297,19 @@ public final class FileClientSessionCache {
              * in SSLSessionContext misses, so it would be unnecessarily
              * redundant for this cache to store data in memory.
              */
-
-            String name = fileName(host, port);
-            File file = accessOrder.get(name);
-
-            if (file == null) {
-                // File wasn't in access order. Check initialFiles...
-                if (initialFiles == null) {
-                    // All files are in accessOrder, so it doesn't exist.
-                    return null;
-                }
-
-                // Look in initialFiles.
-                if (Arrays.binarySearch(initialFiles, name) < 0) {
-                    // Not found.
-                    return null;
-                }
-
-                // The file is on disk but not in accessOrder yet.
-                file = new File(directory, name);
-                accessOrder.put(name, file);
-            }
-
-            FileInputStream in;
-            try {
-                in = new FileInputStream(file);
-            } catch (FileNotFoundException e) {
-                logReadError(host, file, e);
+            Entry entry = index.get(key(host, port));
+            if (entry == null) {
                 return null;
             }
-            try {
-                int size = (int) file.length();
-                byte[] data = new byte[size];
-                new DataInputStream(in).readFully(data);
-                return data;
-            } catch (IOException e) {
-                logReadError(host, file, e);
-                return null;
-            } finally {
-                IoUtils.closeQuietly(in);
+            if (entry.pendingData != null) {
+                return entry.pendingData.clone();
             }
-        }
-
-        static void logReadError(String host, File file, Throwable t) {
-            logger.log(Level.WARNING,
-                    "FileClientSessionCache: Error reading session data for " + host + " from "
-                            + file + ".",
-                    t);
+            int keyLength = log.getShort(entry.offset + 8) & 0xffff;
+            byte[] data = new byte[entry.recordLength - RECORD_HEADER_SIZE - keyLength];
+            ByteBuffer view = log.duplicate();
+            view.position(entry.offset + RECORD_HEADER_SIZE + keyLength);
+            view.get(data);
+            return data;
         }
 
         @Override
@@ -191,121 +319,235 @@ public final class FileClientSessionCache {
                 throw new NullPointerException("sessionData == null");
             }
 
-            String name = fileName(host, session.getPeerPort());
-            File file = new File(directory, name);
-
-            // Used to keep track of whether or not we're expanding the cache.
-            boolean existedBefore = file.exists();
-
-            FileOutputStream out;
-            try {
-                out = new FileOutputStream(file);
-            } catch (FileNotFoundException e) {
-                // We can't write to the file.
-                logWriteError(host, file, e);
-                return;
+            Entry entry = new Entry(key(host, session.getPeerPort()));
+            entry.pendingData = sessionData.clone();
+            add(entry);
+            pending.add(entry);
+            if (!writeScheduled) {
+                writeScheduled = true;
+                writer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writePending();
+                    }
+                });
             }
+        }
 
-            // If we expanded the cache (by creating a new file)...
-            if (!existedBefore) {
-                size++;
-
-                // Delete an old file if necessary.
-                makeRoom();
+        /**
+         * Adds the entry to the index, replacing any entry for the same key and evicting the
+         * least-recently-used entries beyond the capacity.
+         */
+        private void add(Entry entry) {
+            Entry replaced = index.put(entry.key, entry);
+            if (replaced != null) {
+                removed(replaced);
+            }
+            liveBytes += entry.recordLength;
+            if (index.size() > capacity) {
+                Iterator<Entry> i = index.values().iterator();
+                do {
+                    removed(i.next());
+                    i.remove();
+                } while (index.size() > capacity);
             }
+        }
 
-            boolean writeSuccessful = false;
-            try {
-                out.write(sessionData);
-                writeSuccessful = true;
-            } catch (IOException e) {
-                logWriteError(host, file, e);
-            } finally {
-                boolean closeSuccessful = false;
+        /**
+         * Accounts for an entry that has left the index. Its data is dropped if it hasn't been
+         * written yet, so that the writer skips it without a lookup that would count as an
+         * access of whichever entry is now in the index.
+         */
+        private void removed(Entry entry) {
+            liveBytes -= entry.recordLength;
+            entry.pendingData = null;
+        }
+
+        /**
+         * Appends the pending entries that are still in the index to the log. Runs on the writer
+         * thread.
+         */
+        void writePending() {
+            boolean compact;
+            synchronized (this) {
+                writeScheduled = false;
+                List<Entry> batch = pending;
+                pending = new ArrayList<Entry>();
                 try {
-                    out.close();
-                    closeSuccessful = true;
-                } catch (IOException e) {
-                    logWriteError(host, file, e);
-                } finally {
-                    if (!writeSuccessful || !closeSuccessful) {
-                        // Storage failed. Clean up.
-                        delete(file);
-                    } else {
-                        // Success!
-                        accessOrder.put(name, file);
+                    for (Entry entry : batch) {
+                        if (entry.pendingData != null) {
+                            append(entry);
+                        }
                     }
+                } catch (IOException e) {
+                    logWriteError(e);
                 }
+                compact = end > MIN_COMPACTION_SIZE && end - LOG_HEADER_SIZE > 2 * liveBytes;
+            }
+            if (compact) {
+                compact();
             }
         }
 
         /**
-         * Deletes old files if necessary.
+         * Writes the entry's record at the end of the log, growing the log if necessary.
+         * Called with the lock held.
          */
-        private void makeRoom() {
-            if (size <= MAX_SIZE) {
-                return;
+        private void append(Entry entry) throws IOException {
+            byte[] key = entry.key.getBytes(UTF_8);
+            byte[] data = entry.pendingData;
+            long length = (long) RECORD_HEADER_SIZE + key.length + data.length;
+            if (key.length > 0xffff || end + length > Integer.MAX_VALUE) {
+                throw new IOException("Record for " + entry.key + " doesn't fit in the log.");
             }
+            if (end + length > log.capacity()) {
+                map((int) Math.min(Integer.MAX_VALUE,
+                        Math.max(2L * log.capacity(), end + length)));
+            }
+            writeRecord(log, end, key, data);
+            entry.offset = end;
+            entry.recordLength = (int) length;
+            entry.pendingData = null;
+            liveBytes += length;
+            end += (int) length;
+        }
 
-            indexFiles();
-
-            // Delete LRUed files.
-            int removals = size - MAX_SIZE;
-            Iterator<File> i = accessOrder.values().iterator();
-            do {
-                delete(i.next());
-                i.remove();
-            } while (--removals > 0);
+        private static void writeRecord(ByteBuffer buffer, int offset, byte[] key, byte[] data) {
+            int length = RECORD_HEADER_SIZE + key.length + data.length;
+            CRC32 crc = new CRC32();
+            crc.update(key.length >>> 8);
+            crc.update(key.length);
+            crc.update(key, 0, key.length);
+            crc.update(data, 0, data.length);
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 8);
+            view.putShort((short) key.length);
+            view.put(key);
+            view.put(data);
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            // Written last, so that a record is only read once it is complete.
+            buffer.putInt(offset, length);
         }
 
         /**
-         * Lazily updates accessOrder to know about all files as opposed to
-         * just the files accessed since this process started.
+         * Rewrites the log with only the records of the sessions in the index. The records are
+         * copied without holding the lock; only the writer thread appends to the log, so the
+         * copied records stay valid, and entries that change meanwhile keep their old offsets.
          */
-        private void indexFiles() {
-            String[] initialFiles = this.initialFiles;
-            if (initialFiles != null) {
-                this.initialFiles = null;
-
-                // Files on disk only, sorted by last modified time.
-                // TODO: Use last access time.
-                Set<CacheFile> diskOnly = new TreeSet<CacheFile>();
-                for (String name : initialFiles) {
-                    // If the file hasn't been accessed in this process...
-                    if (!accessOrder.containsKey(name)) {
-                        diskOnly.add(new CacheFile(directory, name));
+        private void compact() {
+            Map<Entry, Integer> newOffsets = new LinkedHashMap<Entry, Integer>();
+            ByteBuffer oldLog;
+            int size = LOG_HEADER_SIZE;
+            synchronized (this) {
+                oldLog = log;
+                for (Entry entry : index.values()) {
+                    if (entry.pendingData == null) {
+                        newOffsets.put(entry, size);
+                        size += entry.recordLength;
                     }
                 }
+            }
 
-                if (!diskOnly.isEmpty()) {
-                    // Add files not accessed in this process to the beginning
-                    // of accessOrder.
-                    Map<String, File> newOrder = newAccessOrder();
-                    for (CacheFile cacheFile : diskOnly) {
-                        newOrder.put(cacheFile.name, cacheFile);
-                    }
-                    newOrder.putAll(accessOrder);
+            File tmpFile = new File(directory, LOG_NAME + ".tmp");
+            RandomAccessFile tmp = null;
+            MappedByteBuffer newLog;
+            try {
+                tmp = new RandomAccessFile(tmpFile, "rw");
+                int mappedSize = Math.max(size, MIN_MAPPED_SIZE);
+                tmp.setLength(mappedSize);
+                newLog = tmp.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+                newLog.putInt(4, VERSION);
+                newLog.putInt(0, MAGIC);
+                for (Map.Entry<Entry, Integer> e : newOffsets.entrySet()) {
+                    ByteBuffer record = oldLog.duplicate();
+                    record.position(e.getKey().offset);
+                    record.limit(e.getKey().offset + e.getKey().recordLength);
+                    ByteBuffer target = newLog.duplicate();
+                    target.position(e.getValue());
+                    target.put(record);
+                }
+                newLog.force();
+            } catch (IOException e) {
+                logWriteError(e);
+                IoUtils.closeQuietly(tmp);
+                tmpFile.delete();
+                return;
+            }
 
-                    this.accessOrder = newOrder;
+            synchronized (this) {
+                if (!tmpFile.renameTo(logFile)) {
+                    logWriteError(new IOException("Failed to rename " + tmpFile + "."));
+                    IoUtils.closeQuietly(tmp);
+                    tmpFile.delete();
+                    return;
+                }
+                IoUtils.closeQuietly(file);
+                file = tmp;
+                log = newLog;
+                end = size;
+                liveBytes = 0;
+                // Entries put since the snapshot are still pending, as only this thread writes
+                // records, so all written entries are in the compacted log.
+                for (Entry entry : index.values()) {
+                    Integer offset = newOffsets.get(entry);
+                    if (offset != null) {
+                        entry.offset = offset;
+                        liveBytes += entry.recordLength;
+                    }
                 }
             }
         }
 
-        @SuppressWarnings("ThrowableInstanceNeverThrown")
-        private void delete(File file) {
-            if (!file.delete()) {
-                Exception e =
-                        new IOException("FileClientSessionCache: Failed to delete " + file + ".");
-                logger.log(Level.WARNING, e.getMessage(), e);
+        /**
+         * Waits until the sessions put so far have been written to the log. For testing.
+         */
+        void flush() throws IOException {
+            try {
+                writer.submit(new Runnable() {
+                    @Override
+                    public void run() {}
+                }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e);
             }
-            size--;
         }
 
-        static void logWriteError(String host, File file, Throwable t) {
+        /**
+         * Returns the size of the log up to its last record. For testing.
+         */
+        synchronized int logSize() {
+            return end;
+        }
+
+        /**
+         * Stops the writer and closes the log, dropping any sessions not written yet.
+         */
+        synchronized void close() {
+            writer.shutdownNow();
+            IoUtils.closeQuietly(file);
+        }
+
+        private void logWriteError(Throwable t) {
             logger.log(Level.WARNING,
-                    "FileClientSessionCache: Error writing session data for " + host + " to " + file
-                            + ".",
-                    t);
+                    "FileClientSessionCache: Error writing session data to " + logFile + ".", t);
+        }
+    }
+
+    /** An indexed session, either in the log or pending a write. */
+    private static final class Entry {
+        final String key;
+        /** The offset of the session's record in the log, if it has been written. */
+        int offset = -1;
+        /** The size of the session's record in the log, or zero if it hasn't been written. */
+        int recordLength;
+        /** The session data, until it has been written or the entry has left the index. */
+        byte[] pendingData;
+
+        Entry(String key) {
+            this.key = key;
         }
     }
 
@@ -317,21 +559,34 @@ public final class FileClientSessionCache {
     static final Map<File, FileClientSessionCache.Impl> caches =
             new HashMap<File, FileClientSessionCache.Impl>();
 
+    /**
+     * Returns a cache backed by the given directory with the default capacity. See {@link
+     * #usingDirectory(File, int)}.
+     */
+    public static SSLClientSessionCache usingDirectory(File directory) throws IOException {
+        return usingDirectory(directory, DEFAULT_CAPACITY);
+    }
+
     /**
      * Returns a cache backed by the given directory. Creates the directory
      * (including parent directories) if necessary. This cache should have
      * exclusive access to the given directory.
      *
-     * @param directory to store files in
+     * @param directory to store the session log in
+     * @param capacity the maximum number of sessions to keep, which only applies to the first
+     *  call for a directory
      * @return a cache backed by the given directory
      * @throws IOException if the file exists and is not a directory or if
-     *  creating the directories fails
+     *  creating the directories or the log fails
      */
-    public static synchronized SSLClientSessionCache usingDirectory(File directory)
-            throws IOException {
+    public static synchronized SSLClientSessionCache usingDirectory(File directory,
+            int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
         FileClientSessionCache.Impl cache = caches.get(directory);
         if (cache == null) {
-            cache = new FileClientSessionCache.Impl(directory);
+            cache = new FileClientSessionCache.Impl(directory, capacity);
             caches.put(directory, cache);
         }
         return cache;
@@ -339,38 +594,9 @@ public final class FileClientSessionCache {
 
     /** For testing. */
     static synchronized void reset() {
-        caches.clear();
-    }
-
-    /** A file containing a piece of cached data. */
-    @SuppressWarnings("serial")
-    static class CacheFile extends File {
-        final String name;
-
-        CacheFile(File dir, String name) {
-            super(dir, name);
-            this.name = name;
-        }
-
-        long lastModified = -1;
-
-        @Override
-        public long lastModified() {
-            long lastModified = this.lastModified;
-            if (lastModified == -1) {
-                lastModified = this.lastModified = super.lastModified();
-            }
-            return lastModified;
-        }
-
-        @Override
-        public int compareTo(File another) {
-            // Sort by last modified time.
-            long result = lastModified() - another.lastModified();
-            if (result == 0) {
-                return super.compareTo(another);
-            }
-            return result < 0 ? -1 : 1;
+        for (FileClientSessionCache.Impl cache : caches.values()) {
+            cache.close();
         }
+        caches.clear();
     }
 }
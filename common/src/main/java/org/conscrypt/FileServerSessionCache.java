@@ -0,0 +1,497 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLSession;
+import org.conscrypt.io.IoUtils;
+
+/**
+ * Server session cache in a fixed-size memory-mapped file, which several processes on the same
+ * host can share, and which keeps its sessions across restarts.
+ *
+ * <p>The file is a hash table of fixed-size slots keyed by session ID. A session goes into one
+ * of a few slots starting at the one its ID hashes to, replacing an expired session or else the
+ * one closest to expiry. The slots are grouped into stripes, each guarded by a lock within the
+ * process and a lock on its byte range of the file across processes.
+ */
+@Internal
+public final class FileServerSessionCache implements SSLServerSessionCache {
+    private static final Logger logger = Logger.getLogger(FileServerSessionCache.class.getName());
+
+    /** The default number of sessions the cache holds. */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /** The default size of the largest encoded session the cache holds, in bytes. */
+    public static final int DEFAULT_MAX_SESSION_SIZE = 2048;
+
+    /** The default number of seconds a session stays in the cache after it was created. */
+    public static final int DEFAULT_TIMEOUT_SECONDS = 8 * 60 * 60;
+
+    private static final int MAGIC = 0x43535343; // "CSSC"
+    private static final int VERSION = 1;
+
+    /*
+     * File header: magic, version, capacity and slot size, each an int.
+     */
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_SLOT_SIZE = 12;
+
+    /*
+     * Slot: expiry time in milliseconds since the epoch, or zero for an empty slot, then the
+     * hash of the ID, the ID length, the data length, the ID and the data. Writers clear the
+     * expiry time first and set it last, so a slot left half-written by a crash reads as empty.
+     */
+    private static final int SLOT_EXPIRES = 0;
+    private static final int SLOT_HASH = 8;
+    private static final int SLOT_ID_LENGTH = 12;
+    private static final int SLOT_DATA_LENGTH = 16;
+    private static final int SLOT_ID = 20;
+    private static final int MAX_ID_LENGTH = 32;
+    private static final int SLOT_DATA = SLOT_ID + MAX_ID_LENGTH;
+
+    /** The number of slots in a stripe, which all share a lock. */
+    static final int STRIPE_SLOTS = 64;
+
+    /** The number of slots searched for a session, starting at the one its ID hashes to. */
+    static final int PROBE_LIMIT = 8;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int maxSessionSize;
+    private final int slotSize;
+    private final long timeoutMillis;
+    private final ReentrantLock[] stripeLocks;
+
+    /**
+     * The channel the file is locked through. Interrupting a thread waiting for a file lock
+     * closes the channel, in which case it is replaced. The mapping stays valid regardless.
+     */
+    private volatile FileChannel channel;
+
+    /** Guards replacing {@link #channel} and {@link #closed}. */
+    private final ReentrantLock channelLock = new ReentrantLock();
+
+    // @GuardedBy("channelLock")
+    private boolean closed;
+
+    private FileServerSessionCache(File file, int capacity, int maxSessionSize,
+            int timeoutSeconds) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.maxSessionSize = maxSessionSize;
+        // Keep the slots 8-byte aligned.
+        this.slotSize = (SLOT_DATA + maxSessionSize + 7) & ~7;
+        this.timeoutMillis = timeoutSeconds * 1000L;
+        long length = HEADER_SIZE + (long) capacity * slotSize;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cache file too large: " + length + " bytes");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean success = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            this.channel = channel;
+            FileLock lock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                if (raf.length() < length) {
+                    // New files are zero-filled, which makes every slot empty.
+                    raf.setLength(length);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                initializeHeader();
+            } finally {
+                lock.release();
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                IoUtils.closeQuietly(raf);
+            }
+        }
+
+        stripeLocks = new ReentrantLock[capacity / STRIPE_SLOTS];
+        for (int i = 0; i < stripeLocks.length; i++) {
+            stripeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Writes the header of a new file, or checks that an existing one was created with the same
+     * geometry. Called with the header locked.
+     */
+    private void initializeHeader() throws IOException {
+        int magic = buffer.getInt(HEADER_MAGIC);
+        if (magic == 0) {
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_CAPACITY, capacity);
+            buffer.putInt(HEADER_SLOT_SIZE, slotSize);
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            return;
+        }
+        if (magic != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION) {
+            throw new IOException(file + " is not a session cache file.");
+        }
+        if (buffer.getInt(HEADER_CAPACITY) != capacity
+                || buffer.getInt(HEADER_SLOT_SIZE) != slotSize) {
+            throw new IOException(file + " holds " + buffer.getInt(HEADER_CAPACITY)
+                    + " sessions of " + buffer.getInt(HEADER_SLOT_SIZE) + "-byte slots, not "
+                    + capacity + " of " + slotSize + ".");
+        }
+    }
+
+    @Override
+    public byte[] getSessionData(byte[] id) {
+        if (id == null) {
+            throw new NullPointerException("id == null");
+        }
+        if (id.length == 0 || id.length > MAX_ID_LENGTH) {
+            return null;
+        }
+        int hash = hash(id);
+        int home = home(hash);
+        int stripe = home / STRIPE_SLOTS;
+        long now = System.currentTimeMillis();
+        ReentrantLock stripeLock = stripeLocks[stripe];
+        stripeLock.lock();
+        try {
+            FileLock lock = lockStripe(stripe, true);
+            if (lock == null) {
+                return null;
+            }
+            try {
+                int slot = find(id, hash, home, now);
+                if (slot < 0) {
+                    return null;
+                }
+                int offset = offset(slot);
+                int dataLength = buffer.getInt(offset + SLOT_DATA_LENGTH);
+                if (dataLength < 0 || dataLength > maxSessionSize) {
+                    return null;
+                }
+                byte[] data = new byte[dataLength];
+                ByteBuffer view = buffer.duplicate();
+                view.position(offset + SLOT_DATA);
+                view.get(data);
+                return data;
+            } finally {
+                release(lock);
+            }
+        } finally {
+            stripeLock.unlock();
+        }
+    }
+
+    @Override
+    public void putSessionData(SSLSession session, byte[] sessionData) {
+        if (session == null) {
+            throw new NullPointerException("session == null");
+        }
+        if (sessionData == null) {
+            throw new NullPointerException("sessionData == null");
+        }
+        put(session.getId(), sessionData, session.getCreationTime() + timeoutMillis);
+    }
+
+    /**
+     * Stores the session data under the given ID until the given time, in milliseconds since
+     * the epoch. Sessions with IDs or data too large for a slot aren't stored.
+     */
+    void put(byte[] id, byte[] data, long expiresAtMillis) {
+        if (id == null || id.length == 0 || id.length > MAX_ID_LENGTH
+                || data.length > maxSessionSize) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (expiresAtMillis <= now) {
+            return;
+        }
+        int hash = hash(id);
+        int home = home(hash);
+        int stripe = home / STRIPE_SLOTS;
+        ReentrantLock stripeLock = stripeLocks[stripe];
+        stripeLock.lock();
+        try {
+            FileLock lock = lockStripe(stripe, false);
+            if (lock == null) {
+                return;
+            }
+            try {
+                int slot = find(id, hash, home, now);
+                if (slot < 0) {
+                    slot = victim(home, now);
+                }
+                int offset = offset(slot);
+                buffer.putLong(offset + SLOT_EXPIRES, 0);
+                buffer.putInt(offset + SLOT_HASH, hash);
+                buffer.putInt(offset + SLOT_ID_LENGTH, id.length);
+                buffer.putInt(offset + SLOT_DATA_LENGTH, data.length);
+                ByteBuffer view = buffer.duplicate();
+                view.position(offset + SLOT_ID);
+                view.put(id);
+                view.position(offset + SLOT_DATA);
+                view.put(data);
+                buffer.putLong(offset + SLOT_EXPIRES, expiresAtMillis);
+            } finally {
+                release(lock);
+            }
+        } finally {
+            stripeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slot holding an unexpired session with the given ID, or -1.
+     */
+    private int find(byte[] id, int hash, int home, long now) {
+        for (int i = 0; i < PROBE_LIMIT; i++) {
+            int slot = probe(home, i);
+            int offset = offset(slot);
+            if (buffer.getLong(offset + SLOT_EXPIRES) > now
+                    && buffer.getInt(offset + SLOT_HASH) == hash
+                    && idEquals(offset, id)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot to store a new session in: an empty or expired one if there is one,
+     * otherwise the one closest to expiry.
+     */
+    private int victim(int home, long now) {
+        int victim = home;
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_LIMIT; i++) {
+            int slot = probe(home, i);
+            long expires = buffer.getLong(offset(slot) + SLOT_EXPIRES);
+            if (expires <= now) {
+                return slot;
+            }
+            if (expires < earliest) {
+                earliest = expires;
+                victim = slot;
+            }
+        }
+        return victim;
+    }
+
+    private boolean idEquals(int offset, byte[] id) {
+        if (buffer.getInt(offset + SLOT_ID_LENGTH) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (buffer.get(offset + SLOT_ID + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the slot searched {@code i}-th for IDs hashing to {@code home}. The search wraps
+     * around within the stripe, so that it never needs another stripe's lock.
+     */
+    private static int probe(int home, int i) {
+        int stripeStart = home - (home % STRIPE_SLOTS);
+        return stripeStart + (home - stripeStart + i) % STRIPE_SLOTS;
+    }
+
+    private int home(int hash) {
+        return (hash & Integer.MAX_VALUE) % capacity;
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private static int hash(byte[] id) {
+        // Session IDs are random, but spread the bits in case they aren't.
+        int h = 1;
+        for (byte b : id) {
+            h = 31 * h + b;
+        }
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    /**
+     * Locks the stripe's slots against other processes, or returns {@code null} if the lock
+     * can't be taken. Called with the stripe's lock held, as a process can't hold overlapping
+     * file locks.
+     *
+     * <p>If the channel was closed because a thread was interrupted while waiting for a lock,
+     * the channel is reopened and, unless the current thread is the interrupted one, the lock
+     * is tried again.
+     */
+    private FileLock lockStripe(int stripe, boolean shared) {
+        long position = offset(stripe * STRIPE_SLOTS);
+        long size = (long) STRIPE_SLOTS * slotSize;
+        FileChannel current = channel;
+        try {
+            try {
+                return current.lock(position, size, shared);
+            } catch (FileLockInterruptionException e) {
+                // Thrown to the interrupted thread, whose interrupt status is still set.
+                reopenChannel(current);
+                return null;
+            } catch (ClosedChannelException e) {
+                if (!reopenChannel(current) || Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                return channel.lock(position, size, shared);
+            }
+        } catch (FileLockInterruptionException e) {
+            reopenChannel(channel);
+            return null;
+        } catch (IOException e) {
+            logger.log(Level.WARNING,
+                    "FileServerSessionCache: Error locking " + file + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the channel if it is still the given, closed one. Returns whether there is an
+     * open channel afterwards.
+     */
+    private boolean reopenChannel(FileChannel closedChannel) {
+        channelLock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (channel == closedChannel) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING,
+                    "FileServerSessionCache: Error reopening " + file + ".", e);
+            return false;
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the channel for good. The mapping is released once the cache is unreachable.
+     */
+    private void close() {
+        channelLock.lock();
+        try {
+            closed = true;
+            IoUtils.closeQuietly(channel);
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    private void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (ClosedChannelException e) {
+            // The lock went away with its channel.
+        } catch (IOException e) {
+            logger.log(Level.WARNING,
+                    "FileServerSessionCache: Error unlocking " + file + ".", e);
+        }
+    }
+
+    /**
+     * Maps files to the cache instances that are backed by those files. A process can't lock
+     * the same part of a file twice, so everyone in it has to share the same instance.
+     */
+    static final Map<File, FileServerSessionCache> caches =
+            new HashMap<File, FileServerSessionCache>();
+
+    /**
+     * Returns a cache backed by the given file with the default capacity, maximum session size
+     * and timeout. See {@link #usingFile(File, int, int, int)}.
+     */
+    public static SSLServerSessionCache usingFile(File file) throws IOException {
+        return usingFile(
+                file, DEFAULT_CAPACITY, DEFAULT_MAX_SESSION_SIZE, DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Returns a cache backed by the given file, which is created if necessary. All processes
+     * using the file must pass the same capacity and maximum session size. Sessions are dropped
+     * from the cache {@code timeoutSeconds} after they were created, or earlier to make room.
+     *
+     * @param file to map
+     * @param capacity the number of sessions the cache holds, rounded up to a multiple of
+     *  {@link #STRIPE_SLOTS}
+     * @param maxSessionSize the size of the largest encoded session to store, in bytes
+     * @param timeoutSeconds how long to keep sessions
+     * @throws IOException if the file can't be mapped or was created with a different capacity
+     *  or maximum session size
+     */
+    public static synchronized SSLServerSessionCache usingFile(File file, int capacity,
+            int maxSessionSize, int timeoutSeconds) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        if (maxSessionSize <= 0) {
+            throw new IllegalArgumentException("maxSessionSize <= 0");
+        }
+        if (timeoutSeconds <= 0) {
+            throw new IllegalArgumentException("timeoutSeconds <= 0");
+        }
+        capacity = (capacity + STRIPE_SLOTS - 1) / STRIPE_SLOTS * STRIPE_SLOTS;
+        File canonicalFile = file.getCanonicalFile();
+        FileServerSessionCache cache = caches.get(canonicalFile);
+        if (cache == null) {
+            cache = new FileServerSessionCache(
+                    canonicalFile, capacity, maxSessionSize, timeoutSeconds);
+            caches.put(canonicalFile, cache);
+        } else if (cache.capacity != capacity || cache.maxSessionSize != maxSessionSize
+                || cache.timeoutMillis != timeoutSeconds * 1000L) {
+            throw new IOException(file + " is already in use with a different configuration.");
+        }
+        return cache;
+    }
+
+    /** For testing. */
+    static synchronized void reset() {
+        for (FileServerSessionCache cache : caches.values()) {
+            cache.close();
+        }
+        caches.clear();
+    }
+}
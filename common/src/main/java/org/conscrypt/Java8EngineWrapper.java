@@ -71,6 +71,51 @@ final class Java8EngineWrapper extends AbstractConscryptEngine {
         delegate.setBufferAllocator(bufferAllocator);
     }
 
+    @Override
+    void setMultiRecordWrapEnabled(boolean enabled) {
+        delegate.setMultiRecordWrapEnabled(enabled);
+    }
+
+    @Override
+    void setDelegatedTasksEnabled(boolean enabled) {
+        delegate.setDelegatedTasksEnabled(enabled);
+    }
+
+    @Override
+    void setRecordSizePolicy(RecordSizePolicy policy) {
+        delegate.setRecordSizePolicy(policy);
+    }
+
+    @Override
+    void setMaxEarlyData(int maxEarlyData) {
+        delegate.setMaxEarlyData(maxEarlyData);
+    }
+
+    @Override
+    void setEarlyDataReplayProtection(EarlyDataReplayProtection protection) {
+        delegate.setEarlyDataReplayProtection(protection);
+    }
+
+    @Override
+    boolean isEarlyDataAccepted() {
+        return delegate.isEarlyDataAccepted();
+    }
+
+    @Override
+    void setMultiRecordUnwrapEnabled(boolean enabled) {
+        delegate.setMultiRecordUnwrapEnabled(enabled);
+    }
+
+    @Override
+    void setHeapBufferPinningEnabled(boolean enabled) {
+        delegate.setHeapBufferPinningEnabled(enabled);
+    }
+
+    @Override
+    void setFullDuplexEnabled(boolean enabled) {
+        delegate.setFullDuplexEnabled(enabled);
+    }
+
     // @Override
     // int maxSealOverhead() {
     //     return delegate.maxSealOverhead();
@@ -258,6 +303,14 @@ final class Java8EngineWrapper extends AbstractConscryptEngine {
         return delegate.unwrap(srcs, srcsOffset, srcsLength, dsts, dstsOffset, dstsLength);
     }
 
+    @Override
+    ReusableEngineResult unwrap(ByteBuffer[] srcs, int srcsOffset, int srcsLength,
+            ByteBuffer[] dsts, int dstsOffset, int dstsLength, ReusableEngineResult result)
+            throws SSLException {
+        return delegate.unwrap(
+                srcs, srcsOffset, srcsLength, dsts, dstsOffset, dstsLength, result);
+    }
+
     @Override
     public SSLEngineResult wrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
         return delegate.wrap(src, dst);
@@ -269,6 +322,12 @@ final class Java8EngineWrapper extends AbstractConscryptEngine {
         return delegate.wrap(srcs, srcsOffset, srcsLength, dst);
     }
 
+    @Override
+    ReusableEngineResult wrap(ByteBuffer[] srcs, int srcsOffset, int srcsLength, ByteBuffer dst,
+            ReusableEngineResult result) throws SSLException {
+        return delegate.wrap(srcs, srcsOffset, srcsLength, dst, result);
+    }
+
     @Override
     void setUseSessionTickets(boolean useSessionTickets) {
         delegate.setUseSessionTickets(useSessionTickets);
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.X509KeyManager;
+
+/**
+ * Caches the local certificate chain and private key of each key manager alias in their native
+ * form, so that handshakes using the same alias don't parse the chain and convert the key again.
+ * Key managers are asked for the chain and key on every handshake as before, and an alias is
+ * converted again whenever they return different objects for it.
+ */
+final class LocalCertificateCache {
+    /**
+     * The number of aliases cached. Key managers rarely have more than a few, so the cache is
+     * cleared rather than evicting individual aliases when it fills up.
+     */
+    private static final int MAX_ALIASES = 64;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Returns the native form of the given chain and key, which the key manager returned for
+     * the alias.
+     */
+    Entry get(X509KeyManager keyManager, String alias, X509Certificate[] chain,
+            PrivateKey privateKey) throws CertificateEncodingException, SSLException {
+        Entry entry = entries.get(alias);
+        if (entry != null && entry.isFor(keyManager, chain, privateKey)) {
+            return entry;
+        }
+        entry = new Entry(keyManager, chain, privateKey);
+        if (entries.size() >= MAX_ALIASES) {
+            entries.clear();
+        }
+        entries.put(alias, entry);
+        return entry;
+    }
+
+    /**
+     * The native form of a certificate chain and private key.
+     */
+    static final class Entry {
+        private final X509KeyManager keyManager;
+        private final X509Certificate[] chain;
+        private final PrivateKey privateKey;
+        private final OpenSSLX509Certificate[] certificates;
+        private final long[] certificateRefs;
+        private final OpenSSLKey key;
+
+        private Entry(X509KeyManager keyManager, X509Certificate[] chain, PrivateKey privateKey)
+                throws CertificateEncodingException, SSLException {
+            this.keyManager = keyManager;
+            this.chain = chain.clone();
+            this.privateKey = privateKey;
+            certificates = new OpenSSLX509Certificate[chain.length];
+            certificateRefs = new long[chain.length];
+            for (int i = 0; i < chain.length; i++) {
+                certificates[i] = OpenSSLX509Certificate.fromCertificate(chain[i]);
+                certificateRefs[i] = certificates[i].getContext();
+            }
+            PublicKey publicKey = (chain.length > 0) ? chain[0].getPublicKey() : null;
+            try {
+                key = OpenSSLKey.fromPrivateKeyForTLSStackOnly(privateKey, publicKey);
+            } catch (InvalidKeyException e) {
+                throw new SSLException(e);
+            }
+        }
+
+        /**
+         * Returns whether this is the native form of the given chain and key. Key managers
+         * usually return the same objects every time, so comparing identities avoids comparing
+         * encodings.
+         */
+        boolean isFor(X509KeyManager keyManager, X509Certificate[] chain, PrivateKey privateKey) {
+            if (this.keyManager != keyManager || this.privateKey != privateKey
+                    || this.chain.length != chain.length) {
+                return false;
+            }
+            for (int i = 0; i < chain.length; i++) {
+                if (this.chain[i] != chain[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sets the chain and key as the local certificates and private key of the given SSL.
+         */
+        void apply(NativeSsl ssl, long sslNativePointer) throws SSLException {
+            NativeCrypto.setLocalCertRefsAndPrivateKey(
+                    sslNativePointer, ssl, certificateRefs, certificates, key.getNativeRef());
+        }
+    }
+}
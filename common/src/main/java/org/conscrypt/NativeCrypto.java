@@ -112,7 +112,8 @@ public final class NativeCrypto {
 
     static native long getRSAPrivateKeyWrapper(PrivateKey key, byte[] modulus);
 
-    static native long getECPrivateKeyWrapper(PrivateKey key, NativeRef.EC_GROUP ecGroupRef);
+    static native long getECPrivateKeyWrapper(PrivateKey key, NativeRef.EC_GROUP ecGroupRef,
+            NativeRef.EC_POINT publicKeyRef);
 
     static native long RSA_generate_key_ex(int modulusBits, byte[] publicExponent);
 
@@ -931,6 +932,50 @@ public final class NativeCrypto {
 
     static native void SSL_CTX_set_session_id_context(long ssl_ctx, AbstractSessionContext holder, byte[] sid_ctx);
 
+    /**
+     * Installs the session ticket key callback with a random key. Must be called before any SSL is
+     * created from the context.
+     */
+    static native void SSL_CTX_init_ticket_keys(long ssl_ctx, AbstractSessionContext holder);
+
+    /**
+     * Replaces the session ticket keys, each 80 bytes long. The first key encrypts new tickets,
+     * all of them decrypt. Requires {@link #SSL_CTX_init_ticket_keys}.
+     */
+    static native void SSL_CTX_set_ticket_keys(long ssl_ctx, AbstractSessionContext holder, byte[] keys);
+
+    /**
+     * Registers the ticket_request extension of RFC 9149, sent by clients and parsed by servers.
+     * Must be called before any SSL is created from the context.
+     */
+    static native void SSL_CTX_add_ticket_request_ext(
+            long ssl_ctx, AbstractSessionContext holder, boolean server);
+
+    /**
+     * Returns the number of tickets decrypted with the current key, decrypted with a previous key,
+     * and with an unknown key, in that order.
+     */
+    static native long[] SSL_CTX_get_ticket_key_stats(long ssl_ctx, AbstractSessionContext holder);
+
+    /**
+     * Sets the protocol version range of new {@code SSL}s. Returns 0 if either version is invalid.
+     */
+    static native int SSL_CTX_set_protocol_versions(long ssl_ctx, AbstractSessionContext holder,
+            int min_version, int max_version);
+
+    /**
+     * Sets the cipher suites of new {@code SSL}s. Unlike {@link #SSL_set_cipher_lists}, the list
+     * must not be empty.
+     */
+    static native void SSL_CTX_set_cipher_lists(
+            long ssl_ctx, AbstractSessionContext holder, String[] ciphers);
+
+    /**
+     * Sets the ALPN protocols new client {@code SSL}s offer.
+     */
+    static native void SSL_CTX_set_alpn_protos(long ssl_ctx, AbstractSessionContext holder,
+            byte[] protocols) throws SSLException;
+
     static native long SSL_CTX_set_timeout(long ssl_ctx, AbstractSessionContext holder, long seconds);
 
     static native long SSL_new(long ssl_ctx, AbstractSessionContext holder) throws SSLException;
@@ -952,6 +997,21 @@ public final class NativeCrypto {
     static native void setLocalCertsAndPrivateKey(long ssl, NativeSsl ssl_holder, byte[][] encodedCertificates,
         NativeRef.EVP_PKEY pkey) throws SSLException;
 
+    /**
+     * Sets the local certificates and private key, like
+     * {@link #setLocalCertsAndPrivateKey(long, NativeSsl, byte[][], NativeRef.EVP_PKEY)}, but
+     * from certificates that are already parsed.
+     *
+     * @param ssl the SSL reference.
+     * @param certificateRefs references to the {@code X509}s of the local certificate chain.
+     * @param certificatesHolder the object that owns the {@code X509}s.
+     * @param pkey a reference to the private key.
+     * @throws SSLException if a problem occurs setting the cert/key.
+     */
+    static native void setLocalCertRefsAndPrivateKey(long ssl, NativeSsl ssl_holder,
+            long[] certificateRefs, Object certificatesHolder, NativeRef.EVP_PKEY pkey)
+            throws SSLException;
+
     static native void SSL_set_client_CA_list(long ssl, NativeSsl ssl_holder, byte[][] asn1DerEncodedX500Principals)
             throws SSLException;
 
@@ -961,6 +1021,55 @@ public final class NativeCrypto {
 
     static native long SSL_clear_options(long ssl, NativeSsl ssl_holder, long options);
 
+    /**
+     * Asks the library to move record processing into the kernel (kTLS) once the keys are known.
+     *
+     * @return {@code false} if the library was built without kTLS support
+     */
+    static native boolean SSL_enable_ktls(long ssl, NativeSsl ssl_holder);
+
+    /**
+     * Returns a bitmask of the directions that are handled by kernel TLS, see {@link
+     * NativeSsl#isKtlsSendEnabled()} and {@link NativeSsl#isKtlsReceiveEnabled()}.
+     */
+    static native int SSL_get_ktls_status(long ssl, NativeSsl ssl_holder);
+
+    /**
+     * Suspends the handshake until the certificate verification callback is run again. Only
+     * valid from within that callback on a client. Returns {@code false} if the handshake can't
+     * be suspended.
+     */
+    static native boolean SSL_set_retry_verify(long ssl, NativeSsl ssl_holder);
+
+    /**
+     * Sets the number of TLS 1.3 session tickets a client asks the server for with the
+     * ticket_request extension, or -1 not to send the extension. On a server, sets the most
+     * tickets it issues when asked, or -1 to ignore requests.
+     */
+    static native void SSL_set_ticket_request(long ssl, NativeSsl ssl_holder, int count);
+
+    /**
+     * Sets the amount of TLS 1.3 early data a server accepts and advertises in its tickets.
+     */
+    static native void SSL_set_max_early_data(long ssl, NativeSsl ssl_holder, int maxEarlyData);
+
+    /**
+     * Sets the number of TLS 1.3 session tickets a server issues.
+     */
+    static native void SSL_set_num_tickets(long ssl, NativeSsl ssl_holder, int count);
+
+    /**
+     * Returns one of {@code SSL_EARLY_DATA_NOT_SENT}, {@code SSL_EARLY_DATA_REJECTED} and
+     * {@code SSL_EARLY_DATA_ACCEPTED}.
+     */
+    static native int SSL_get_early_data_status(long ssl, NativeSsl ssl_holder);
+
+    /**
+     * Has a server ask {@link SSLHandshakeCallbacks#allowEarlyData} whether to accept early data,
+     * in place of the built-in replay protection.
+     */
+    static native void SSL_set_allow_early_data_cb(long ssl, NativeSsl ssl_holder);
+
     static native int SSL_set_protocol_versions(long ssl, NativeSsl ssl_holder, int min_version, int max_version);
 
     static native void SSL_enable_signed_cert_timestamps(long ssl, NativeSsl ssl_holder);
@@ -1126,6 +1235,32 @@ public final class NativeCrypto {
         SSL_set_cipher_lists(ssl, ssl_holder, opensslSuites.toArray(new String[opensslSuites.size()]));
     }
 
+    /**
+     * Sets the protocols and cipher suites that {@code SSL}s created from the context start out
+     * with, like {@link #setEnabledProtocols} and {@link #setEnabledCipherSuites} do for a single
+     * {@code SSL}. The cipher suites must not include {@link #TLS_FALLBACK_SCSV}, which is set
+     * as a mode on each {@code SSL}.
+     */
+    static void setContextProtocolsAndCipherSuites(long sslCtx, AbstractSessionContext holder,
+            String[] protocols, String[] cipherSuites) {
+        checkEnabledProtocols(protocols);
+        checkEnabledCipherSuites(cipherSuites);
+        Range range = getProtocolRange(protocols);
+        SSL_CTX_set_protocol_versions(sslCtx, holder, getProtocolConstant(range.min),
+                getProtocolConstant(range.max));
+        List<String> opensslSuites = new ArrayList<String>();
+        for (String cipherSuite : cipherSuites) {
+            if (cipherSuite.equals(TLS_FALLBACK_SCSV)) {
+                throw new IllegalArgumentException(TLS_FALLBACK_SCSV + " can't be set on a context");
+            }
+            if (!cipherSuite.equals(TLS_EMPTY_RENEGOTIATION_INFO_SCSV)) {
+                opensslSuites.add(cipherSuiteFromJava(cipherSuite));
+            }
+        }
+        SSL_CTX_set_cipher_lists(
+                sslCtx, holder, opensslSuites.toArray(new String[opensslSuites.size()]));
+    }
+
     static String[] checkEnabledCipherSuites(String[] cipherSuites) {
         if (cipherSuites == null) {
             throw new IllegalArgumentException("cipherSuites == null");
@@ -1204,6 +1339,23 @@ public final class NativeCrypto {
             SSLHandshakeCallbacks shc, byte[] b, int off, int len, int writeTimeoutMillis)
             throws IOException;
 
+    /**
+     * Writes {@code len} bytes of plaintext from the native memory at {@code address}, such as
+     * that of a direct or memory-mapped buffer.
+     */
+    static native void SSL_write_direct(long ssl, NativeSsl ssl_holder, FileDescriptor fd,
+            SSLHandshakeCallbacks shc, long address, int len, int writeTimeoutMillis)
+            throws IOException;
+
+    /**
+     * Sends {@code count} bytes of {@code file} starting at {@code offset} with {@code
+     * SSL_sendfile}. Only usable when kernel TLS is active for sending. Returns the number of
+     * bytes sent.
+     */
+    static native long SSL_sendfile(long ssl, NativeSsl ssl_holder, FileDescriptor fd,
+            FileDescriptor file, long offset, long count, int writeTimeoutMillis)
+            throws IOException;
+
     static native void SSL_interrupt(long ssl, NativeSsl ssl_holder);
     static native void SSL_shutdown(
             long ssl, NativeSsl ssl_holder, FileDescriptor fd, SSLHandshakeCallbacks shc) throws IOException;
@@ -1234,6 +1386,8 @@ public final class NativeCrypto {
 
     static native boolean SSL_SESSION_should_be_single_use(long sslSessionNativePointer);
 
+    static native int SSL_SESSION_get_max_early_data(long sslSessionNativePointer);
+
     static native void SSL_SESSION_up_ref(long sslSessionNativePointer);
 
     static native void SSL_SESSION_free(long sslSessionNativePointer);
@@ -1345,6 +1499,16 @@ public final class NativeCrypto {
          * @return the index offset of the selected protocol
          */
         @SuppressWarnings("unused") int selectApplicationProtocol(byte[] applicationProtocols);
+
+        /**
+         * Called on a server that was asked to check early data for replays, when a client
+         * offers TLS 1.3 early data on a session that allows it.
+         *
+         * @param sessionId the ID of the session being resumed
+         * @param clientRandom the random value of the ClientHello
+         * @return whether to accept the early data
+         */
+        @SuppressWarnings("unused") boolean allowEarlyData(byte[] sessionId, byte[] clientRandom);
     }
 
     static native String SSL_CIPHER_get_kx_name(long cipherAddress);
@@ -1439,6 +1603,49 @@ public final class NativeCrypto {
     static native int ENGINE_SSL_write_direct(long ssl, NativeSsl ssl_holder, long address, int length,
             SSLHandshakeCallbacks shc) throws IOException;
 
+    /**
+     * Reads TLS 1.3 early data on a server, driving the handshake up to the end of the early
+     * data. Returns the number of bytes read, {@code 0} once there is no more early data, or the
+     * negated {@code SSL_ERROR_WANT_READ} or {@code SSL_ERROR_WANT_WRITE}.
+     */
+    static native int ENGINE_SSL_read_early_data_direct(long ssl, NativeSsl ssl_holder,
+            long address, int length, SSLHandshakeCallbacks shc) throws IOException;
+
+    /**
+     * Writes TLS 1.3 early data on a client that offers a session which allows it. Returns the
+     * number of bytes written or the negated {@code SSL_ERROR_WANT_READ} or
+     * {@code SSL_ERROR_WANT_WRITE}.
+     */
+    static native int ENGINE_SSL_write_early_data_direct(long ssl, NativeSsl ssl_holder,
+            long address, int length, SSLHandshakeCallbacks shc) throws IOException;
+
+    /**
+     * Variant of {@link #ENGINE_SSL_read_direct} that reads into a byte array. The array is only
+     * pinned while no callbacks into Java can happen; otherwise the data is copied.
+     */
+    static native int ENGINE_SSL_read_heap(long ssl, NativeSsl ssl_holder, byte[] dest, int offset,
+            int length, SSLHandshakeCallbacks shc) throws IOException, CertificateException;
+
+    /**
+     * Variant of {@link #ENGINE_SSL_write_direct} that writes from a byte array. The array is only
+     * pinned while no callbacks into Java can happen; otherwise the data is copied.
+     */
+    static native int ENGINE_SSL_write_heap(long ssl, NativeSsl ssl_holder, byte[] source,
+            int offset, int length, SSLHandshakeCallbacks shc) throws IOException;
+
+    /**
+     * Seals as many TLS records as fit from the source address into the destination address,
+     * draining the given network BIO after every record. Used by {@link ConscryptEngine} to
+     * produce several records with a single call.
+     *
+     * @return if positive, the number of plaintext bytes consumed in the upper 32 bits and the
+     * number of encrypted bytes produced in the lower 32 bits. Otherwise the result of the
+     * {@code SSL_write} call that failed before any record was written.
+     */
+    static native long ENGINE_SSL_write_records_direct(long ssl, NativeSsl ssl_holder, long bioRef,
+            long sourceAddress, int sourceLength, long destAddress, int destLength,
+            SSLHandshakeCallbacks shc) throws IOException;
+
     /**
      * Writes data from the given direct {@link java.nio.ByteBuffer} to the BIO.
      */
@@ -1451,6 +1658,20 @@ public final class NativeCrypto {
     static native int ENGINE_SSL_read_BIO_direct(long ssl, NativeSsl ssl_holder, long bioRef, long address, int len,
             SSLHandshakeCallbacks shc) throws IOException;
 
+    /**
+     * Writes data from the given byte array to the BIO, pinning the array for the duration of
+     * the write.
+     */
+    static native int ENGINE_SSL_write_BIO_heap(long ssl, NativeSsl ssl_holder, long bioRef,
+            byte[] source, int offset, int length, SSLHandshakeCallbacks shc) throws IOException;
+
+    /**
+     * Reads data from the given BIO into a byte array, pinning the array for the duration of the
+     * read.
+     */
+    static native int ENGINE_SSL_read_BIO_heap(long ssl, NativeSsl ssl_holder, long bioRef,
+            byte[] dest, int offset, int length, SSLHandshakeCallbacks shc) throws IOException;
+
     /**
      * Forces the SSL object to process any data pending in the BIO.
      */
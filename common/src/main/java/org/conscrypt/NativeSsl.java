@@ -16,6 +16,7 @@
 
 package org.conscrypt;
 
+import static org.conscrypt.NativeConstants.SSL_EARLY_DATA_ACCEPTED;
 import static org.conscrypt.NativeConstants.SSL_OP_CIPHER_SERVER_PREFERENCE;
 import static org.conscrypt.NativeConstants.SSL_OP_NO_TICKET;
 import static org.conscrypt.NativeConstants.SSL_RECEIVED_SHUTDOWN;
@@ -30,9 +31,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
 import java.security.PrivateKey;
-import java.security.PublicKey;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
@@ -54,30 +53,41 @@ import org.conscrypt.SSLParametersImpl.PSKCallbacks;
  * A utility wrapper that abstracts operations on the underlying native SSL instance.
  */
 final class NativeSsl {
+    // Bits of the value returned by NativeCrypto.SSL_get_ktls_status.
+    private static final int KTLS_SEND = 1;
+    private static final int KTLS_RECEIVE = 2;
+
     private final SSLParametersImpl parameters;
     private final SSLHandshakeCallbacks handshakeCallbacks;
     private final AliasChooser aliasChooser;
     private final PSKCallbacks pskCallbacks;
+    private final SslConfigTemplate configTemplate;
     private X509Certificate[] localCertificates;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private volatile long ssl;
 
     private NativeSsl(long ssl, SSLParametersImpl parameters,
             SSLHandshakeCallbacks handshakeCallbacks, AliasChooser aliasChooser,
-            PSKCallbacks pskCallbacks) {
+            PSKCallbacks pskCallbacks, SslConfigTemplate configTemplate) {
         this.ssl = ssl;
         this.parameters = parameters;
         this.handshakeCallbacks = handshakeCallbacks;
         this.aliasChooser = aliasChooser;
         this.pskCallbacks = pskCallbacks;
+        this.configTemplate = configTemplate;
     }
 
     static NativeSsl newInstance(SSLParametersImpl parameters,
             SSLHandshakeCallbacks handshakeCallbacks, AliasChooser chooser,
             PSKCallbacks pskCallbacks) throws SSLException {
         AbstractSessionContext ctx = parameters.getSessionContext();
+        if (ctx instanceof ServerSessionContext) {
+            ((ServerSessionContext) ctx).rotateTicketKeysIfDue();
+        }
+        SslConfigTemplate configTemplate = ctx.getConfigTemplate(parameters);
         long ssl = NativeCrypto.SSL_new(ctx.sslCtxNativePointer, ctx);
-        return new NativeSsl(ssl, parameters, handshakeCallbacks, chooser, pskCallbacks);
+        return new NativeSsl(
+                ssl, parameters, handshakeCallbacks, chooser, pskCallbacks, configTemplate);
     }
 
     BioWrapper newBio() {
@@ -121,6 +131,41 @@ final class NativeSsl {
         return localCertificates;
     }
 
+    /**
+     * Suspends the handshake from within the certificate verification callback, which runs
+     * again when the handshake is resumed. Returns {@code false} if that isn't supported.
+     */
+    boolean setRetryVerify() {
+        return NativeCrypto.SSL_set_retry_verify(ssl, this);
+    }
+
+    /**
+     * Sets the number of TLS 1.3 session tickets the server is asked to send. On a server, sets
+     * the most tickets sent when asked.
+     */
+    void setTicketRequest(int count) {
+        NativeCrypto.SSL_set_ticket_request(ssl, this, count);
+    }
+
+    /**
+     * Has a server accept up to {@code maxEarlyData} bytes of TLS 1.3 early data and, if
+     * {@code replayCheck} is set, ask the handshake callbacks whether to accept it rather than
+     * rely on the built-in replay protection.
+     */
+    void setMaxEarlyData(int maxEarlyData, boolean replayCheck) {
+        NativeCrypto.SSL_set_max_early_data(ssl, this, maxEarlyData);
+        if (replayCheck) {
+            NativeCrypto.SSL_set_allow_early_data_cb(ssl, this);
+        }
+    }
+
+    /**
+     * Returns whether the peer's TLS 1.3 early data was accepted.
+     */
+    boolean isEarlyDataAccepted() {
+        return NativeCrypto.SSL_get_early_data_status(ssl, this) == SSL_EARLY_DATA_ACCEPTED;
+    }
+
     byte[] getPeerCertificateOcspData() {
         return NativeCrypto.SSL_get_ocsp_response(ssl, this);
     }
@@ -245,25 +290,11 @@ final class NativeSsl {
         if (localCertificates == null) {
             return;
         }
-        int numLocalCerts = localCertificates.length;
-        PublicKey publicKey = (numLocalCerts > 0) ? localCertificates[0].getPublicKey() : null;
-
-        // Encode the local certificates.
-        byte[][] encodedLocalCerts = new byte[numLocalCerts][];
-        for (int i = 0; i < numLocalCerts; ++i) {
-            encodedLocalCerts[i] = localCertificates[i].getEncoded();
-        }
 
-        // Convert the key so we can access a native reference.
-        final OpenSSLKey key;
-        try {
-            key = OpenSSLKey.fromPrivateKeyForTLSStackOnly(privateKey, publicKey);
-        } catch (InvalidKeyException e) {
-            throw new SSLException(e);
-        }
-
-        // Set the local certs and private key.
-        NativeCrypto.setLocalCertsAndPrivateKey(ssl, this, encodedLocalCerts, key.getNativeRef());
+        // Set the local certs and private key, converted once per alias.
+        parameters.getSessionContext()
+                .localCertificates.get(keyManager, alias, localCertificates, privateKey)
+                .apply(this, ssl);
     }
 
     String getVersion() {
@@ -311,12 +342,23 @@ final class NativeSsl {
                     + NativeCrypto.OBSOLETE_PROTOCOL_SSLV3
                     + " is no longer supported and was filtered from the list");
         }
-        NativeCrypto.setEnabledProtocols(ssl, this, parameters.enabledProtocols);
-        NativeCrypto.setEnabledCipherSuites(
-            ssl, this, parameters.enabledCipherSuites, parameters.enabledProtocols);
+        // The SSL starts out with the configuration compiled into its context, which usually
+        // is this connection's.
+        if (!configTemplate.hasProtocolsAndCipherSuites(
+                    parameters.enabledProtocols, parameters.enabledCipherSuites)) {
+            NativeCrypto.setEnabledProtocols(ssl, this, parameters.enabledProtocols);
+            NativeCrypto.setEnabledCipherSuites(
+                ssl, this, parameters.enabledCipherSuites, parameters.enabledProtocols);
+        }
 
-        if (parameters.applicationProtocols.length > 0) {
-            NativeCrypto.setApplicationProtocols(ssl, this, isClient(), parameters.applicationProtocols);
+        if (isClient()) {
+            // An empty list clears the protocols inherited from the context.
+            if (!configTemplate.hasApplicationProtocols(parameters.applicationProtocols)) {
+                NativeCrypto.setApplicationProtocols(
+                        ssl, this, true, parameters.applicationProtocols);
+            }
+        } else if (parameters.applicationProtocols.length > 0) {
+            NativeCrypto.setApplicationProtocols(ssl, this, false, parameters.applicationProtocols);
         }
         if (!isClient() && parameters.applicationProtocolSelector != null) {
             NativeCrypto.setHasApplicationProtocolSelector(ssl, this, true);
@@ -338,12 +380,31 @@ final class NativeSsl {
 
         enablePSKKeyManagerIfRequested();
 
-        if (parameters.useSessionTickets) {
+        // Servers with shared ticket keys issue tickets, as other servers can't resume their
+        // sessions otherwise.
+        AbstractSessionContext sessionContext = parameters.getSessionContext();
+        if (sessionContext instanceof ServerSessionContext
+                && ((ServerSessionContext) sessionContext).hasTicketKeys()) {
+            NativeCrypto.SSL_clear_options(ssl, this, SSL_OP_NO_TICKET);
+            NativeCrypto.SSL_set_num_tickets(ssl, this, 1);
+        } else if (parameters.useSessionTickets) {
             NativeCrypto.SSL_clear_options(ssl, this, SSL_OP_NO_TICKET);
         } else {
             NativeCrypto.SSL_set_options(
                     ssl, this, NativeCrypto.SSL_get_options(ssl, this) | SSL_OP_NO_TICKET);
         }
+        if (sessionContext instanceof ServerSessionContext) {
+            int maxRequestedTickets =
+                    ((ServerSessionContext) sessionContext).getMaxRequestedTickets();
+            if (maxRequestedTickets > 0) {
+                setTicketRequest(maxRequestedTickets);
+            }
+        }
+
+        if (parameters.ktlsEnabled) {
+            // Falls back to user space silently if the kernel or the cipher doesn't support it.
+            NativeCrypto.SSL_enable_ktls(ssl, this);
+        }
 
         if (parameters.getUseSni() && AddressUtils.isValidSniHostname(hostname)) {
             NativeCrypto.SSL_set_tlsext_host_name(ssl, this, hostname);
@@ -444,6 +505,33 @@ final class NativeSsl {
         }
     }
 
+    void writeDirect(FileDescriptor fd, long address, int len, int timeoutMillis)
+            throws IOException {
+        lock.readLock().lock();
+        try {
+            if (isClosed() || fd == null || !fd.valid()) {
+                throw new SocketException("Socket is closed");
+            }
+            NativeCrypto.SSL_write_direct(
+                    ssl, this, fd, handshakeCallbacks, address, len, timeoutMillis);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long sendfile(FileDescriptor fd, FileDescriptor file, long offset, long count,
+            int timeoutMillis) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (isClosed() || fd == null || !fd.valid()) {
+                throw new SocketException("Socket is closed");
+            }
+            return NativeCrypto.SSL_sendfile(ssl, this, fd, file, offset, count, timeoutMillis);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     @SuppressWarnings("deprecation") // PSKKeyManager is deprecated, but in our own package
     private void enablePSKKeyManagerIfRequested() throws SSLException {
         // Enable Pre-Shared Key (PSK) key exchange if requested
@@ -510,7 +598,7 @@ final class NativeSsl {
                 if (issuers != null && issuers.length != 0) {
                     byte[][] issuersBytes;
                     try {
-                        issuersBytes = SSLUtils.encodeSubjectX509Principals(issuers);
+                        issuersBytes = configTemplate.encodeIssuers(issuers);
                     } catch (CertificateEncodingException e) {
                         throw new SSLException("Problem encoding principals", e);
                     }
@@ -567,6 +655,27 @@ final class NativeSsl {
         }
     }
 
+    int readHeapByteBuffer(byte[] dest, int offset, int length)
+            throws IOException, CertificateException {
+        lock.readLock().lock();
+        try {
+            return NativeCrypto.ENGINE_SSL_read_heap(
+                    ssl, this, dest, offset, length, handshakeCallbacks);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int writeHeapByteBuffer(byte[] source, int offset, int length) throws IOException {
+        lock.readLock().lock();
+        try {
+            return NativeCrypto.ENGINE_SSL_write_heap(
+                    ssl, this, source, offset, length, handshakeCallbacks);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     int writeDirectByteBuffer(long sourceAddress, int sourceLength) throws IOException {
         lock.readLock().lock();
         try {
@@ -577,6 +686,40 @@ final class NativeSsl {
         }
     }
 
+    int readEarlyDataDirectByteBuffer(long destAddress, int destLength) throws IOException {
+        lock.readLock().lock();
+        try {
+            return NativeCrypto.ENGINE_SSL_read_early_data_direct(
+                    ssl, this, destAddress, destLength, handshakeCallbacks);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int writeEarlyDataDirectByteBuffer(long sourceAddress, int sourceLength) throws IOException {
+        lock.readLock().lock();
+        try {
+            return NativeCrypto.ENGINE_SSL_write_early_data_direct(
+                    ssl, this, sourceAddress, sourceLength, handshakeCallbacks);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long writeRecordsDirectByteBuffer(BioWrapper networkBio, long sourceAddress,
+            int sourceLength, long destAddress, int destLength) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (isClosed()) {
+                throw new SSLException("Connection closed");
+            }
+            return NativeCrypto.ENGINE_SSL_write_records_direct(ssl, this, networkBio.bio,
+                    sourceAddress, sourceLength, destAddress, destLength, handshakeCallbacks);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     void forceRead() throws IOException {
         lock.readLock().lock();
         try {
@@ -598,6 +741,32 @@ final class NativeSsl {
         }
     }
 
+    /**
+     * Returns whether outgoing records are encrypted by the kernel.
+     */
+    boolean isKtlsSendEnabled() {
+        return (getKtlsStatus() & KTLS_SEND) != 0;
+    }
+
+    /**
+     * Returns whether incoming records are decrypted by the kernel.
+     */
+    boolean isKtlsReceiveEnabled() {
+        return (getKtlsStatus() & KTLS_RECEIVE) != 0;
+    }
+
+    private int getKtlsStatus() {
+        lock.readLock().lock();
+        try {
+            if (!isClosed()) {
+                return NativeCrypto.SSL_get_ktls_status(ssl, this);
+            }
+            return 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     // int getMaxSealOverhead() {
     //     return NativeCrypto.SSL_max_seal_overhead(ssl, this);
     // }
@@ -686,6 +855,32 @@ final class NativeSsl {
             }
         }
 
+        int writeHeapByteBuffer(byte[] source, int offset, int length) throws IOException {
+            lock.readLock().lock();
+            try {
+                if (isClosed()) {
+                    throw new SSLException("Connection closed");
+                }
+                return NativeCrypto.ENGINE_SSL_write_BIO_heap(
+                        ssl, NativeSsl.this, bio, source, offset, length, handshakeCallbacks);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int readHeapByteBuffer(byte[] dest, int offset, int length) throws IOException {
+            lock.readLock().lock();
+            try {
+                if (isClosed()) {
+                    throw new SSLException("Connection closed");
+                }
+                return NativeCrypto.ENGINE_SSL_read_BIO_heap(
+                        ssl, NativeSsl.this, bio, dest, offset, length, handshakeCallbacks);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
         void close() {
             lock.writeLock().lock();
             try {
@@ -171,6 +171,12 @@ abstract class NativeSslSession {
      */
     abstract boolean isSingleUse();
 
+    /**
+     * Returns the amount of TLS 1.3 early data the server accepts when this session is resumed,
+     * or {@code 0} if it can't be used to send early data.
+     */
+    abstract int getMaxEarlyData();
+
     abstract void offerToResume(NativeSsl ssl) throws SSLException;
 
     abstract String getCipherSuite();
@@ -267,6 +273,11 @@ abstract class NativeSslSession {
             return NativeCrypto.SSL_SESSION_should_be_single_use(ref.address);
         }
 
+        @Override
+        int getMaxEarlyData() {
+            return NativeCrypto.SSL_SESSION_get_max_early_data(ref.address);
+        }
+
         @Override
         void offerToResume(NativeSsl ssl) throws SSLException {
             ssl.offerToResumeSession(ref.address);
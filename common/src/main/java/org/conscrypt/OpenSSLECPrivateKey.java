@@ -27,7 +27,9 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.interfaces.ECKey;
 import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
 import java.security.spec.ECPrivateKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
@@ -94,7 +96,11 @@ final class OpenSSLECPrivateKey implements ECPrivateKey, OpenSSLKeyHolder {
             throw new InvalidKeyException("EC parameters not available. Private: " + privateKey
                     + ", public: " + publicKey);
         }
-        return wrapJCAPrivateKeyForTLSStackOnly(privateKey, params);
+        ECPoint publicPoint = null;
+        if (publicKey instanceof ECPublicKey) {
+            publicPoint = ((ECPublicKey) publicKey).getW();
+        }
+        return wrapJCAPrivateKeyForTLSStackOnly(privateKey, params, publicPoint);
     }
 
     /**
@@ -104,6 +110,16 @@ final class OpenSSLECPrivateKey implements ECPrivateKey, OpenSSLKeyHolder {
      */
     static OpenSSLKey wrapJCAPrivateKeyForTLSStackOnly(PrivateKey privateKey,
             ECParameterSpec params) throws InvalidKeyException {
+        return wrapJCAPrivateKeyForTLSStackOnly(privateKey, params, null);
+    }
+
+    /**
+     * Wraps the provided private key like {@link #wrapJCAPrivateKeyForTLSStackOnly(PrivateKey,
+     * ECParameterSpec)}. The native key holds {@code publicPoint}, if not {@code null}, which it
+     * needs to be matched with its certificate.
+     */
+    private static OpenSSLKey wrapJCAPrivateKeyForTLSStackOnly(PrivateKey privateKey,
+            ECParameterSpec params, ECPoint publicPoint) throws InvalidKeyException {
         if (params == null) {
             if (privateKey instanceof ECKey) {
                 params = ((ECKey) privateKey).getParams();
@@ -120,14 +136,18 @@ final class OpenSSLECPrivateKey implements ECPrivateKey, OpenSSLKeyHolder {
             throw new InvalidKeyException("Invalid EC parameters: " + params);
         }
 
-        return new OpenSSLKey(
-                NativeCrypto.getECPrivateKeyWrapper(privateKey, group.getNativeRef()), true);
+        NativeRef.EC_POINT publicKeyRef = null;
+        if (publicPoint != null) {
+            publicKeyRef = OpenSSLECPointContext.getInstance(group, publicPoint).getNativeRef();
+        }
+        return new OpenSSLKey(NativeCrypto.getECPrivateKeyWrapper(
+                privateKey, group.getNativeRef(), publicKeyRef), true);
     }
 
     private static OpenSSLKey wrapPlatformKey(ECPrivateKey ecPrivateKey,
             OpenSSLECGroupContext group) throws InvalidKeyException {
         return new OpenSSLKey(NativeCrypto.getECPrivateKeyWrapper(ecPrivateKey,
-                group.getNativeRef()), true);
+                group.getNativeRef(), null), true);
     }
 
     static OpenSSLKey getInstance(ECPrivateKey ecPrivateKey) throws InvalidKeyException {
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.conscrypt;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link BufferAllocator} that recycles direct buffers.
+ *
+ * <p>Requests are rounded up to one of a small number of size classes. Each size class has a
+ * shared arena, which carves buffers out of larger direct chunks and keeps a bounded number of
+ * released buffers for reuse. In front of the arenas every platform thread has a small cache of
+ * buffers up to the size of a TLS record, so that the common allocate/release pattern of an engine
+ * does not touch shared state at all. Virtual threads, which may be very numerous, go straight to
+ * the arenas. Requests larger than the largest size class are not pooled.
+ *
+ * <p>A sample of the allocated buffers is tracked; if one of them becomes unreachable without
+ * having been released, a warning is logged and {@link #leakCount()} is incremented.
+ */
+final class PooledBufferAllocator extends BufferAllocator {
+    private static final Logger logger = Logger.getLogger(PooledBufferAllocator.class.getName());
+
+    /**
+     * The capacities of the pooled buffers. The 17 KiB class holds a maximum-sized TLS record,
+     * which is by far the most common request from the engine.
+     */
+    private static final int[] SIZE_CLASSES = {
+            1024, 2048, 4096, 8192, 16384, 17 * 1024, 32768, 65536};
+
+    /**
+     * The number of size classes, starting from the smallest, kept by the thread caches. Larger
+     * buffers are only pooled by the arenas, which bounds the memory held by each thread.
+     */
+    private static final int THREAD_CACHED_SIZE_CLASSES = 6;
+
+    /**
+     * The size of the direct chunks that the arenas carve buffers out of. Size classes larger
+     * than this get a chunk of their own per buffer.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The default number of buffers per size class kept by each thread.
+     */
+    private static final int DEFAULT_THREAD_CACHE_SIZE = 4;
+
+    /**
+     * The default number of released buffers per size class kept by each arena.
+     */
+    private static final int DEFAULT_ARENA_SIZE = 64;
+
+    /**
+     * The default sampling interval for leak detection: one in this many allocations is tracked.
+     */
+    private static final int DEFAULT_LEAK_SAMPLING_INTERVAL = 128;
+
+    private static final PooledBufferAllocator DEFAULT = new PooledBufferAllocator(
+            DEFAULT_THREAD_CACHE_SIZE, DEFAULT_ARENA_SIZE, DEFAULT_LEAK_SAMPLING_INTERVAL);
+
+    /**
+     * The cache of threads that don't get one of their own. It never holds any buffers.
+     */
+    private static final ThreadCache NO_THREAD_CACHE = new ThreadCache(0, 0);
+
+    /**
+     * {@code Thread.isVirtual()}, or {@code null} on runtimes without virtual threads.
+     */
+    private static final Method IS_VIRTUAL_METHOD = getIsVirtualMethod();
+
+    static PooledBufferAllocator getDefault() {
+        return DEFAULT;
+    }
+
+    private final Arena[] arenas;
+    private final int threadCacheSize;
+    private final int leakSamplingInterval;
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            if (threadCacheSize == 0 || isVirtualThread(Thread.currentThread())) {
+                return NO_THREAD_CACHE;
+            }
+            return new ThreadCache(THREAD_CACHED_SIZE_CLASSES, threadCacheSize);
+        }
+    };
+
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+    private final Set<LeakTracker> trackers =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+    private final AtomicInteger allocationCount = new AtomicInteger();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param threadCacheSize the number of buffers per size class kept by each thread
+     * @param arenaSize the number of released buffers per size class kept by the shared arenas
+     * @param leakSamplingInterval track one in this many allocations for leaks, or {@code 0} to
+     *     disable leak detection
+     */
+    PooledBufferAllocator(int threadCacheSize, int arenaSize, int leakSamplingInterval) {
+        Preconditions.checkArgument(threadCacheSize >= 0, "threadCacheSize < 0");
+        Preconditions.checkArgument(arenaSize >= 0, "arenaSize < 0");
+        Preconditions.checkArgument(leakSamplingInterval >= 0, "leakSamplingInterval < 0");
+        this.threadCacheSize = threadCacheSize;
+        this.leakSamplingInterval = leakSamplingInterval;
+        arenas = new Arena[SIZE_CLASSES.length];
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = new Arena(i, SIZE_CLASSES[i], arenaSize);
+        }
+    }
+
+    @Override
+    public AllocatedBuffer allocateDirectBuffer(int capacity) {
+        Preconditions.checkArgument(capacity >= 0, "capacity < 0");
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0) {
+            return AllocatedBuffer.wrap(ByteBuffer.allocateDirect(capacity));
+        }
+
+        PooledBuffer buffer = threadCache.get().poll(sizeClass);
+        if (buffer == null) {
+            buffer = arenas[sizeClass].allocate();
+        }
+        buffer.init(capacity);
+        if (leakSamplingInterval > 0) {
+            trackIfSampled(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the number of sampled buffers that were garbage collected without being released.
+     */
+    long leakCount() {
+        reportLeaks();
+        return leakCount.get();
+    }
+
+    /**
+     * Returns the number of released buffers currently held by the shared arenas.
+     */
+    int pooledBufferCount() {
+        int count = 0;
+        for (Arena arena : arenas) {
+            count += arena.size.get();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the index of the smallest size class that fits {@code capacity}, or {@code -1} if
+     * the capacity is too large to be pooled.
+     */
+    private static int sizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Method getIsVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static boolean isVirtualThread(Thread thread) {
+        if (IS_VIRTUAL_METHOD == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL_METHOD.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void recycle(PooledBuffer buffer) {
+        if (buffer.tracker != null) {
+            trackers.remove(buffer.tracker);
+            buffer.tracker.clear();
+            buffer.tracker = null;
+        }
+        if (!threadCache.get().offer(buffer)) {
+            arenas[buffer.sizeClass].recycle(buffer);
+        }
+    }
+
+    private void trackIfSampled(PooledBuffer buffer) {
+        if (allocationCount.getAndIncrement() % leakSamplingInterval != 0) {
+            return;
+        }
+        reportLeaks();
+        LeakTracker tracker = new LeakTracker(buffer, leakQueue);
+        buffer.tracker = tracker;
+        trackers.add(tracker);
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (trackers.remove(tracker)) {
+                leakCount.incrementAndGet();
+                logger.log(Level.WARNING,
+                        "AllocatedBuffer was garbage collected without being released",
+                        tracker.allocationSite);
+            }
+        }
+    }
+
+    /**
+     * A pooled buffer. Instances are recycled together with the memory they refer to, so
+     * allocating from a warm pool creates no garbage.
+     */
+    private final class PooledBuffer extends AllocatedBuffer {
+        private final int sizeClass;
+        private final ByteBuffer buffer;
+        private boolean released;
+        private LeakTracker tracker;
+
+        PooledBuffer(int sizeClass, ByteBuffer buffer) {
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+        }
+
+        void init(int capacity) {
+            released = false;
+            buffer.clear();
+            buffer.limit(capacity);
+        }
+
+        @Override
+        public ByteBuffer nioBuffer() {
+            if (released) {
+                throw new IllegalStateException("Buffer has been released");
+            }
+            return buffer;
+        }
+
+        @Override
+        public AllocatedBuffer release() {
+            if (released) {
+                throw new IllegalStateException("Buffer has already been released");
+            }
+            released = true;
+            recycle(this);
+            return this;
+        }
+    }
+
+    /**
+     * Weakly references a sampled buffer. If the referent is collected while the tracker is
+     * still registered, the buffer was never released.
+     */
+    private static final class LeakTracker extends WeakReference<PooledBuffer> {
+        private final Throwable allocationSite = new Throwable("Allocation site");
+
+        LeakTracker(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+        }
+    }
+
+    /**
+     * The shared pool of one size class.
+     */
+    private final class Arena {
+        private final int sizeClass;
+        private final int bufferSize;
+        private final int maxSize;
+        private final ConcurrentLinkedQueue<PooledBuffer> free =
+                new ConcurrentLinkedQueue<PooledBuffer>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        Arena(int sizeClass, int bufferSize, int maxSize) {
+            this.sizeClass = sizeClass;
+            this.bufferSize = bufferSize;
+            this.maxSize = maxSize;
+        }
+
+        PooledBuffer allocate() {
+            PooledBuffer buffer = free.poll();
+            if (buffer != null) {
+                size.decrementAndGet();
+                return buffer;
+            }
+            return newChunk();
+        }
+
+        void recycle(PooledBuffer buffer) {
+            // Retention is bounded, anything beyond that is left to the garbage collector.
+            if (size.incrementAndGet() <= maxSize) {
+                free.offer(buffer);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+
+        /**
+         * Carves a new chunk of direct memory into buffers, returns the first one and keeps as
+         * many of the others as the arena may retain.
+         */
+        private PooledBuffer newChunk() {
+            int buffersPerChunk = Math.max(1, Math.min(CHUNK_SIZE / bufferSize, maxSize + 1));
+            ByteBuffer chunk = ByteBuffer.allocateDirect(buffersPerChunk * bufferSize);
+            PooledBuffer first = null;
+            for (int i = 0; i < buffersPerChunk; i++) {
+                chunk.limit((i + 1) * bufferSize);
+                chunk.position(i * bufferSize);
+                PooledBuffer buffer = new PooledBuffer(sizeClass, chunk.slice());
+                if (first == null) {
+                    first = buffer;
+                } else {
+                    recycle(buffer);
+                }
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Per-thread stacks of released buffers, one per cached size class. Only ever accessed by its
+     * owning thread, apart from {@link #NO_THREAD_CACHE}, which is never modified.
+     */
+    private static final class ThreadCache {
+        private final PooledBuffer[][] buffers;
+        private final int[] counts;
+
+        ThreadCache(int sizeClasses, int capacity) {
+            buffers = new PooledBuffer[sizeClasses][capacity];
+            counts = new int[sizeClasses];
+        }
+
+        PooledBuffer poll(int sizeClass) {
+            if (sizeClass >= counts.length) {
+                return null;
+            }
+            int count = counts[sizeClass];
+            if (count == 0) {
+                return null;
+            }
+            PooledBuffer[] stack = buffers[sizeClass];
+            PooledBuffer buffer = stack[--count];
+            stack[count] = null;
+            counts[sizeClass] = count;
+            return buffer;
+        }
+
+        boolean offer(PooledBuffer buffer) {
+            if (buffer.sizeClass >= counts.length) {
+                return false;
+            }
+            PooledBuffer[] stack = buffers[buffer.sizeClass];
+            int count = counts[buffer.sizeClass];
+            if (count == stack.length) {
+                return false;
+            }
+            stack[count] = buffer;
+            counts[buffer.sizeClass] = count + 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.conscrypt;
+
+import static org.conscrypt.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Decides how much application data goes into each TLS record that an engine or socket sends.
+ *
+ * <p>A receiver can't decrypt any of a record until all of it has arrived, so a full 16 KiB
+ * record spread over a dozen TCP segments delays the first readable byte by several round trips
+ * while the congestion window is still small. The {@link #dynamic() dynamic} policy therefore
+ * sends small records, each fitting into a single TCP segment, until a connection has sent
+ * enough data to have opened up its congestion window, and then switches to full-size records,
+ * which have the least overhead. A connection that has been idle for a while goes back to small
+ * records.
+ *
+ * <p>Policies are immutable and may be shared between connections. See {@link
+ * Conscrypt#setRecordSizePolicy(SSLEngine, RecordSizePolicy)} and {@link
+ * Conscrypt#setRecordSizePolicy(SSLSocket, RecordSizePolicy)}.
+ */
+@ExperimentalApi
+public final class RecordSizePolicy {
+    /**
+     * A 1400 byte TCP segment payload less the 29 bytes of record overhead of an AES-GCM cipher
+     * suite in TLS 1.2.
+     */
+    static final int DEFAULT_SMALL_RECORD_SIZE = 1400 - 29;
+
+    /**
+     * Enough data for the congestion window to have grown well past a full-size record.
+     */
+    static final long DEFAULT_BOOST_THRESHOLD_BYTES = 1024 * 1024;
+
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 1000;
+
+    private static final RecordSizePolicy FIXED =
+            new RecordSizePolicy(NativeConstants.SSL3_RT_MAX_PLAIN_LENGTH, 0, 0);
+
+    private static final RecordSizePolicy DYNAMIC = new RecordSizePolicy(
+            DEFAULT_SMALL_RECORD_SIZE, DEFAULT_BOOST_THRESHOLD_BYTES, DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+    private final int smallRecordSize;
+    private final long boostThresholdBytes;
+    private final long idleTimeoutNanos;
+
+    private RecordSizePolicy(int smallRecordSize, long boostThresholdBytes,
+            long idleTimeoutMillis) {
+        this.smallRecordSize = smallRecordSize;
+        this.boostThresholdBytes = boostThresholdBytes;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * Returns the policy that always fills records up to the maximum size. This is the default.
+     */
+    public static RecordSizePolicy fixed() {
+        return FIXED;
+    }
+
+    /**
+     * Returns a dynamic policy that sends records that fit into a 1400 byte TCP segment for the
+     * first 1 MiB after the handshake or after the connection has been idle for a second.
+     */
+    public static RecordSizePolicy dynamic() {
+        return DYNAMIC;
+    }
+
+    /**
+     * Returns a dynamic policy with the given parameters.
+     *
+     * @param smallRecordSize the maximum amount of application data in each small record
+     * @param boostThresholdBytes the amount of application data to send in small records before
+     *     switching to full-size records
+     * @param idleTimeoutMillis how long the connection has to go without sending data to go back
+     *     to small records
+     * @throws IllegalArgumentException if {@code smallRecordSize} is not positive or larger than
+     *     the maximum record size, or if either of the other arguments is negative.
+     */
+    public static RecordSizePolicy dynamic(
+            int smallRecordSize, long boostThresholdBytes, long idleTimeoutMillis) {
+        checkArgument(smallRecordSize > 0
+                        && smallRecordSize <= NativeConstants.SSL3_RT_MAX_PLAIN_LENGTH,
+                "Invalid smallRecordSize");
+        checkArgument(boostThresholdBytes >= 0, "boostThresholdBytes < 0");
+        checkArgument(idleTimeoutMillis >= 0, "idleTimeoutMillis < 0");
+        return new RecordSizePolicy(smallRecordSize, boostThresholdBytes, idleTimeoutMillis);
+    }
+
+    /**
+     * Returns the state tracker for a new connection, or {@code null} if every record is full
+     * size anyway.
+     */
+    Sizer newSizer() {
+        if (smallRecordSize == NativeConstants.SSL3_RT_MAX_PLAIN_LENGTH
+                || boostThresholdBytes == 0) {
+            return null;
+        }
+        return new Sizer(this);
+    }
+
+    /**
+     * Tracks how much a connection has sent since it was last idle. Not thread-safe; callers
+     * hold the lock that serializes their writes.
+     */
+    static final class Sizer {
+        private final RecordSizePolicy policy;
+        private long bytesSinceIdle;
+        private long lastWriteNanos;
+
+        private Sizer(RecordSizePolicy policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Starts a write and returns the size of its first record. Resets to small records if
+         * nothing has been written for the idle timeout.
+         */
+        int beginWrite() {
+            long now = System.nanoTime();
+            if (bytesSinceIdle > 0 && now - lastWriteNanos >= policy.idleTimeoutNanos) {
+                bytesSinceIdle = 0;
+            }
+            lastWriteNanos = now;
+            return recordSize();
+        }
+
+        /**
+         * Records that {@code bytes} of application data were sent and returns the size of the
+         * next record.
+         */
+        int written(int bytes) {
+            bytesSinceIdle += bytes;
+            return recordSize();
+        }
+
+        private int recordSize() {
+            return bytesSinceIdle < policy.boostThresholdBytes
+                    ? policy.smallRecordSize
+                    : NativeConstants.SSL3_RT_MAX_PLAIN_LENGTH;
+        }
+    }
+}
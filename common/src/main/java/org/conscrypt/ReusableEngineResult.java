@@ -0,0 +1,115 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.conscrypt;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * A mutable counterpart of {@link SSLEngineResult} that a Conscrypt engine fills in instead of
+ * allocating a new result for every operation. See {@link Conscrypt#wrap(SSLEngine, ByteBuffer[],
+ * int, int, ByteBuffer, ReusableEngineResult)} and {@link Conscrypt#unwrap(SSLEngine,
+ * ByteBuffer[], int, int, ByteBuffer[], int, int, ReusableEngineResult)}.
+ *
+ * <p>The values are only valid until the instance is passed to the next operation. Instances
+ * are not thread-safe; use one per thread.
+ */
+@ExperimentalApi
+public final class ReusableEngineResult {
+    private Status status = Status.OK;
+    private HandshakeStatus handshakeStatus = HandshakeStatus.NOT_HANDSHAKING;
+    private int bytesConsumed;
+    private int bytesProduced;
+
+    /**
+     * The immutable result these values were copied from, if any.
+     */
+    private SSLEngineResult shared;
+
+    public ReusableEngineResult() {}
+
+    ReusableEngineResult set(Status status, HandshakeStatus handshakeStatus, int bytesConsumed,
+            int bytesProduced) {
+        this.status = status;
+        this.handshakeStatus = handshakeStatus;
+        this.bytesConsumed = bytesConsumed;
+        this.bytesProduced = bytesProduced;
+        this.shared = null;
+        return this;
+    }
+
+    ReusableEngineResult set(SSLEngineResult result) {
+        set(result.getStatus(), result.getHandshakeStatus(), result.bytesConsumed(),
+                result.bytesProduced());
+        this.shared = result;
+        return this;
+    }
+
+    /**
+     * Returns an immutable copy of this result.
+     */
+    SSLEngineResult toSSLEngineResult() {
+        if (shared != null) {
+            return shared;
+        }
+        return new SSLEngineResult(status, handshakeStatus, bytesConsumed, bytesProduced);
+    }
+
+    /**
+     * Returns the overall result of the operation.
+     *
+     * @see SSLEngineResult#getStatus()
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the handshake status after the operation.
+     *
+     * @see SSLEngineResult#getHandshakeStatus()
+     */
+    public HandshakeStatus getHandshakeStatus() {
+        return handshakeStatus;
+    }
+
+    /**
+     * Returns the number of bytes consumed from the input buffers.
+     *
+     * @see SSLEngineResult#bytesConsumed()
+     */
+    public int bytesConsumed() {
+        return bytesConsumed;
+    }
+
+    /**
+     * Returns the number of bytes written to the output buffers.
+     *
+     * @see SSLEngineResult#bytesProduced()
+     */
+    public int bytesProduced() {
+        return bytesProduced;
+    }
+
+    @Override
+    public String toString() {
+        return "Status = " + status + " HandshakeStatus = " + handshakeStatus
+                + "\nbytesConsumed = " + bytesConsumed + " bytesProduced = " + bytesProduced;
+    }
+}
@@ -111,6 +111,12 @@ final class SSLParametersImpl implements Cloneable {
      */
     boolean channelIdEnabled;
 
+    /**
+     * Whether record processing should be offloaded to kernel TLS where possible. Only honored
+     * by sockets that hand their file descriptor to the native SSL object.
+     */
+    boolean ktlsEnabled;
+
     /**
      * Initializes the parameters. Naturally this constructor is used
      * in SSLContextImpl.engineInit method which directly passes its
@@ -191,6 +197,7 @@ final class SSLParametersImpl implements Cloneable {
         this.useSessionTickets = sslParams.useSessionTickets;
         this.useSni = sslParams.useSni;
         this.channelIdEnabled = sslParams.channelIdEnabled;
+        this.ktlsEnabled = sslParams.ktlsEnabled;
     }
 
     static SSLParametersImpl getDefault() throws KeyManagementException {
@@ -395,6 +402,10 @@ final class SSLParametersImpl implements Cloneable {
         this.useSessionTickets = useSessionTickets;
     }
 
+    void setKtlsEnabled(boolean ktlsEnabled) {
+        this.ktlsEnabled = ktlsEnabled;
+    }
+
     /**
      * Whether connections using this SSL connection should use the TLS
      * extension Server Name Indication (SNI).
@@ -40,11 +40,9 @@ import static org.conscrypt.NativeConstants.SSL3_RT_HANDSHAKE;
 import static org.conscrypt.NativeConstants.SSL3_RT_HEADER_LENGTH;
 import static org.conscrypt.NativeConstants.SSL3_RT_MAX_PACKET_SIZE;
 
-import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -55,8 +53,6 @@ import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.security.cert.CertificateException;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-
 /**
  * Utility methods for SSL packet processing. Copied from the Netty project.
  * <p>
@@ -183,34 +179,21 @@ final class SSLUtils {
     /** Key type: SM2 certificate. */
     private static final String KEY_TYPE_SM2 = "SM2";
 
+    /**
+     * Decodes a peer certificate chain. Certificates seen before are returned from the
+     * {@link CertificateInternCache} rather than parsed again.
+     */
     static X509Certificate[] decodeX509CertificateChain(byte[][] certChain)
             throws java.security.cert.CertificateException {
-        CertificateFactory certificateFactory = getCertificateFactory();
+        CertificateInternCache cache = CertificateInternCache.getInstance();
         int numCerts = certChain.length;
         X509Certificate[] decodedCerts = new X509Certificate[numCerts];
         for (int i = 0; i < numCerts; i++) {
-            decodedCerts[i] = decodeX509Certificate(certificateFactory, certChain[i]);
+            decodedCerts[i] = cache.intern(certChain[i]);
         }
         return decodedCerts;
     }
 
-    private static CertificateFactory getCertificateFactory() {
-        try {
-            return CertificateFactory.getInstance("X.509",new BouncyCastleProvider());
-        } catch (java.security.cert.CertificateException e) {
-            return null;
-        }
-    }
-
-    private static X509Certificate decodeX509Certificate(CertificateFactory certificateFactory,
-            byte[] bytes) throws java.security.cert.CertificateException {
-        if (certificateFactory != null) {
-            return (X509Certificate) certificateFactory.generateCertificate(
-                    new ByteArrayInputStream(bytes));
-        }
-        return OpenSSLX509Certificate.fromX509Der(bytes);
-    }
-
     /**
      * Returns key type constant suitable for calling X509KeyManager.chooseServerAlias or
      * X509ExtendedKeyManager.chooseEngineServerAlias. Returns {@code null} for key exchanges that
@@ -568,6 +551,21 @@ final class SSLUtils {
         return packetLength;
     }
 
+    /**
+     * Returns the byte at {@code index} of the data remaining in {@code buffers}, starting at
+     * {@code offset}, without consuming anything. Returns {@code -1} if there is no such byte.
+     */
+    static int peekUnsignedByte(ByteBuffer[] buffers, int offset, int index) {
+        for (int i = offset; i < buffers.length; i++) {
+            ByteBuffer buffer = buffers[i];
+            if (index < buffer.remaining()) {
+                return unsignedByte(buffer.get(buffer.position() + index));
+            }
+            index -= buffer.remaining();
+        }
+        return -1;
+    }
+
     private static short unsignedByte(byte b) {
         return (short) (b & 0xFF);
     }
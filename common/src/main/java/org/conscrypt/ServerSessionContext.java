@@ -16,6 +16,7 @@
 
 package org.conscrypt;
 
+import java.util.TreeMap;
 import javax.net.ssl.SSLContext;
 
 /**
@@ -24,8 +25,22 @@ import javax.net.ssl.SSLContext;
  */
 @Internal
 public final class ServerSessionContext extends AbstractSessionContext {
+    /**
+     * The length of a session ticket key: a 16-byte name that identifies the key in tickets, a
+     * 32-byte HMAC-SHA256 key and a 32-byte AES-256-CBC key.
+     */
+    public static final int TICKET_KEY_LENGTH = 80;
+
     private SSLServerSessionCache persistentCache;
 
+    // @GuardedBy("this")
+    private final TreeMap<Long, byte[]> scheduledTicketKeys = new TreeMap<Long, byte[]>();
+    private volatile long nextTicketKeyRotationMillis = Long.MAX_VALUE;
+    private volatile boolean hasTicketKeys;
+    private volatile int maxRequestedTickets;
+    // @GuardedBy("this")
+    private boolean ticketRequestExtAdded;
+
     ServerSessionContext() {
         super(100);
 
@@ -43,6 +58,10 @@ public final class ServerSessionContext extends AbstractSessionContext {
         // between apps. However our sessions are either in memory or
         // exported to a app's SSLServerSessionCache.
         NativeCrypto.SSL_CTX_set_session_id_context(sslCtxNativePointer, this, new byte[] { ' ' });
+
+        // Installed now, as the SSL_CTX must not change once connections use it, so that
+        // ticket keys can be set at any time.
+        NativeCrypto.SSL_CTX_init_ticket_keys(sslCtxNativePointer, this);
     }
 
     /**
@@ -53,6 +72,139 @@ public final class ServerSessionContext extends AbstractSessionContext {
         this.persistentCache = persistentCache;
     }
 
+    /**
+     * Applications should not use this method. Instead use {@link
+     * Conscrypt#setSessionTicketKeys(SSLContext, byte[], byte[]...)}.
+     */
+    public void setTicketKeys(byte[] currentKey, byte[]... previousKeys) {
+        byte[] keys = concatTicketKeys(currentKey, previousKeys);
+        synchronized (this) {
+            NativeCrypto.SSL_CTX_set_ticket_keys(sslCtxNativePointer, this, keys);
+            hasTicketKeys = true;
+        }
+    }
+
+    /**
+     * Applications should not use this method. Instead use {@link
+     * Conscrypt#scheduleSessionTicketKeys(SSLContext, long, byte[], byte[]...)}.
+     */
+    public void scheduleTicketKeys(
+            long activationTimeMillis, byte[] currentKey, byte[]... previousKeys) {
+        byte[] keys = concatTicketKeys(currentKey, previousKeys);
+        synchronized (this) {
+            scheduledTicketKeys.put(activationTimeMillis, keys);
+            nextTicketKeyRotationMillis = scheduledTicketKeys.firstKey();
+        }
+        rotateTicketKeysIfDue();
+    }
+
+    /**
+     * Installs the most recent scheduled ticket keys whose activation time has passed. Called
+     * for every new server connection, so that keys are rotated without a timer thread.
+     */
+    void rotateTicketKeysIfDue() {
+        if (System.currentTimeMillis() < nextTicketKeyRotationMillis) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            byte[] keys = null;
+            while (!scheduledTicketKeys.isEmpty() && scheduledTicketKeys.firstKey() <= now) {
+                keys = scheduledTicketKeys.pollFirstEntry().getValue();
+            }
+            nextTicketKeyRotationMillis = scheduledTicketKeys.isEmpty()
+                    ? Long.MAX_VALUE : scheduledTicketKeys.firstKey();
+            if (keys != null) {
+                NativeCrypto.SSL_CTX_set_ticket_keys(sslCtxNativePointer, this, keys);
+                hasTicketKeys = true;
+            }
+        }
+    }
+
+    /**
+     * Sets the most TLS 1.3 session tickets a server issues to a client that asks for them with
+     * the ticket_request extension of RFC 9149. Zero, the default, ignores requests. Requests
+     * only change the number of tickets of servers that issue tickets at all. The extension is
+     * registered the first time a maximum is set, which must happen before the context creates
+     * any connection.
+     *
+     * <p>Applications should not use this method. Instead use {@link
+     * Conscrypt#setMaxRequestedTickets(SSLContext, int)}.
+     */
+    public void setMaxRequestedTickets(int max) {
+        if (max < 0 || max > 255) {
+            throw new IllegalArgumentException("max must be between 0 and 255: " + max);
+        }
+        synchronized (this) {
+            if (max > 0 && !ticketRequestExtAdded) {
+                NativeCrypto.SSL_CTX_add_ticket_request_ext(sslCtxNativePointer, this, true);
+                ticketRequestExtAdded = true;
+            }
+            maxRequestedTickets = max;
+        }
+    }
+
+    /**
+     * Returns the most TLS 1.3 session tickets a server issues on request, zero if requests are
+     * ignored.
+     */
+    public int getMaxRequestedTickets() {
+        return maxRequestedTickets;
+    }
+
+    /**
+     * Returns whether session ticket keys have been installed, which turns on session tickets
+     * for all connections of this context.
+     */
+    boolean hasTicketKeys() {
+        return hasTicketKeys;
+    }
+
+    /**
+     * Returns the number of session tickets decrypted with the current ticket key.
+     */
+    public long getCurrentTicketKeyDecryptCount() {
+        return NativeCrypto.SSL_CTX_get_ticket_key_stats(sslCtxNativePointer, this)[0];
+    }
+
+    /**
+     * Returns the number of session tickets decrypted with one of the previous ticket keys. The
+     * clients get a new ticket under the current key.
+     */
+    public long getPreviousTicketKeyDecryptCount() {
+        return NativeCrypto.SSL_CTX_get_ticket_key_stats(sslCtxNativePointer, this)[1];
+    }
+
+    /**
+     * Returns the number of session tickets under keys that are no longer, or never were,
+     * installed. These connections fall back to a full handshake.
+     */
+    public long getUnknownTicketKeyCount() {
+        return NativeCrypto.SSL_CTX_get_ticket_key_stats(sslCtxNativePointer, this)[2];
+    }
+
+    private static byte[] concatTicketKeys(byte[] currentKey, byte[]... previousKeys) {
+        byte[] keys = new byte[(1 + previousKeys.length) * TICKET_KEY_LENGTH];
+        checkTicketKey(currentKey);
+        System.arraycopy(currentKey, 0, keys, 0, TICKET_KEY_LENGTH);
+        for (int i = 0; i < previousKeys.length; i++) {
+            checkTicketKey(previousKeys[i]);
+            System.arraycopy(previousKeys[i], 0, keys, (i + 1) * TICKET_KEY_LENGTH,
+                    TICKET_KEY_LENGTH);
+        }
+        return keys;
+    }
+
+    private static void checkTicketKey(byte[] key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        if (key.length != TICKET_KEY_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Ticket keys must be " + TICKET_KEY_LENGTH + " bytes: " + key.length);
+        }
+    }
+
     @Override
     NativeSslSession getSessionFromPersistentCache(byte[] sessionId) {
         if (persistentCache != null) {
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import javax.net.ssl.SSLException;
+
+/**
+ * The configuration compiled into the {@code SSL_CTX} of a session context, which every
+ * {@code SSL} created from it inherits: the protocol range, the cipher suites and the ALPN
+ * protocols clients offer. A context compiles the configuration of its first connection, which
+ * usually is that of all its connections. Connections configured differently apply their own
+ * configuration on top.
+ *
+ * <p>Also remembers the encoded subjects of the last client certificate issuers a server sent,
+ * which are usually the same for every handshake.
+ */
+final class SslConfigTemplate {
+    /** A template with nothing compiled in, for configurations that can't be compiled. */
+    static final SslConfigTemplate EMPTY = new SslConfigTemplate(null, null, EmptyArray.BYTE);
+
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final byte[] applicationProtocols;
+    private volatile EncodedIssuers encodedIssuers;
+
+    private SslConfigTemplate(
+            String[] protocols, String[] cipherSuites, byte[] applicationProtocols) {
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+        this.applicationProtocols = applicationProtocols;
+    }
+
+    /**
+     * Compiles the configuration in the parameters into the context's {@code SSL_CTX}. Must be
+     * called before any {@code SSL} is created from the context, as an {@code SSL_CTX} must not
+     * change while {@code SSL}s are created from it.
+     */
+    static SslConfigTemplate compile(AbstractSessionContext context, SSLParametersImpl parameters) {
+        String[] protocols = parameters.enabledProtocols;
+        String[] cipherSuites = parameters.enabledCipherSuites;
+        byte[] applicationProtocols = parameters.applicationProtocols;
+        if (protocols == null || protocols.length == 0 || cipherSuites == null
+                || cipherSuites.length == 0 || applicationProtocols == null) {
+            return EMPTY;
+        }
+        // Copied, as the arrays in the parameters may be the caller's.
+        SslConfigTemplate template = new SslConfigTemplate(
+                protocols.clone(), cipherSuites.clone(), applicationProtocols.clone());
+        try {
+            NativeCrypto.setContextProtocolsAndCipherSuites(context.sslCtxNativePointer, context,
+                    template.protocols, template.cipherSuites);
+            if (template.applicationProtocols.length > 0) {
+                NativeCrypto.SSL_CTX_set_alpn_protos(
+                        context.sslCtxNativePointer, context, template.applicationProtocols);
+            }
+        } catch (IllegalArgumentException e) {
+            // Invalid configurations and TLS_FALLBACK_SCSV, which is set per connection. Each
+            // connection applies its own configuration, which throws for it if it's invalid.
+            return EMPTY;
+        } catch (SSLException e) {
+            return EMPTY;
+        }
+        return template;
+    }
+
+    /**
+     * Returns whether {@code SSL}s start out with the given protocols and cipher suites.
+     */
+    boolean hasProtocolsAndCipherSuites(String[] protocols, String[] cipherSuites) {
+        return this.protocols != null && Arrays.equals(this.protocols, protocols)
+                && Arrays.equals(this.cipherSuites, cipherSuites);
+    }
+
+    /**
+     * Returns whether client {@code SSL}s start out offering the given ALPN protocols.
+     */
+    boolean hasApplicationProtocols(byte[] applicationProtocols) {
+        return Arrays.equals(this.applicationProtocols, applicationProtocols);
+    }
+
+    /**
+     * Returns the encoded subjects of the given client certificate issuers.
+     */
+    byte[][] encodeIssuers(X509Certificate[] issuers) throws CertificateEncodingException {
+        EncodedIssuers cached = encodedIssuers;
+        if (cached != null && cached.isFor(issuers)) {
+            return cached.subjects;
+        }
+        byte[][] subjects = SSLUtils.encodeSubjectX509Principals(issuers);
+        encodedIssuers = new EncodedIssuers(issuers.clone(), subjects);
+        return subjects;
+    }
+
+    private static final class EncodedIssuers {
+        final X509Certificate[] issuers;
+        final byte[][] subjects;
+
+        EncodedIssuers(X509Certificate[] issuers, byte[][] subjects) {
+            this.issuers = issuers;
+            this.subjects = subjects;
+        }
+
+        /**
+         * Returns whether these are the subjects of the given issuers. Trust managers usually
+         * return the same certificate instances every time, so comparing identities avoids
+         * comparing encodings.
+         */
+        boolean isFor(X509Certificate[] issuers) {
+            if (this.issuers.length != issuers.length) {
+                return false;
+            }
+            for (int i = 0; i < issuers.length; i++) {
+                if (this.issuers[i] != issuers[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
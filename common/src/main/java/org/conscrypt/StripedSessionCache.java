@@ -0,0 +1,539 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The sessions of an {@link AbstractSessionContext} by ID. Sessions are spread over stripes that
+ * each have their own lock, LRU order and share of the maximum size, so that operations on
+ * different sessions rarely contend. Each stripe expires its sessions with a hierarchical timing
+ * wheel that the operations on the stripe advance, rather than with scans of the whole cache.
+ *
+ * <p>Methods that drop sessions add them to a list provided by the caller instead of notifying
+ * the context, so that the context's callbacks run without holding a stripe lock.
+ */
+final class StripedSessionCache {
+    /**
+     * The smallest share of the maximum size a stripe gets. Small caches use fewer stripes, so
+     * that their LRU order stays close to a global one.
+     */
+    private static final int MIN_STRIPE_SIZE = 16;
+    private static final int MAX_STRIPES = 64;
+
+    // Indices of the counters of a stripe.
+    private static final int HITS = 0;
+    private static final int MISSES = 1;
+    private static final int EVICTIONS = 2;
+    private static final int EXPIRATIONS = 3;
+
+    private volatile Stripe[] stripes;
+    private volatile int timeoutSeconds;
+
+    StripedSessionCache(int maximumSize, int timeoutSeconds, long nowMillis) {
+        this.timeoutSeconds = timeoutSeconds;
+        this.stripes = newStripes(maximumSize, toTick(nowMillis));
+    }
+
+    /**
+     * Returns the valid session with the given ID, or {@code null}. An expired session is
+     * dropped.
+     */
+    NativeSslSession get(ByteArray key, long nowMillis, List<NativeSslSession> dropped) {
+        return lookup(key, nowMillis, dropped, true);
+    }
+
+    /**
+     * Like {@link #get}, but doesn't count towards the hit and miss counts.
+     */
+    NativeSslSession peek(ByteArray key, long nowMillis, List<NativeSslSession> dropped) {
+        return lookup(key, nowMillis, dropped, false);
+    }
+
+    /**
+     * Adds a session, replacing any session with the same ID and evicting the least recently
+     * used sessions of its stripe if the stripe is full.
+     */
+    void put(ByteArray key, NativeSslSession session, long nowMillis,
+            List<NativeSslSession> dropped) {
+        Stripe stripe = lockStripe(key);
+        try {
+            long now = toTick(nowMillis);
+            stripe.expire(now, timeoutSeconds, dropped);
+            Node old = stripe.nodes.remove(key);
+            if (old != null) {
+                stripe.wheel.cancel(old);
+                dropped.add(old.session);
+            }
+            Node node = new Node(key, session);
+            node.lastAccessNanos = System.nanoTime();
+            stripe.nodes.put(key, node);
+            if (timeoutSeconds > 0) {
+                stripe.wheel.schedule(node, now + timeoutSeconds);
+            }
+            if (stripe.maximumSize > 0) {
+                Iterator<Node> i = stripe.nodes.values().iterator();
+                while (stripe.nodes.size() > stripe.maximumSize) {
+                    Node eldest = i.next();
+                    i.remove();
+                    stripe.wheel.cancel(eldest);
+                    stripe.counts[EVICTIONS]++;
+                    dropped.add(eldest.session);
+                }
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the session with the given ID and returns it, or {@code null} if there was none.
+     */
+    NativeSslSession remove(ByteArray key) {
+        Stripe stripe = lockStripe(key);
+        try {
+            Node node = stripe.nodes.remove(key);
+            if (node == null) {
+                return null;
+            }
+            stripe.wheel.cancel(node);
+            return node.session;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the cached sessions, valid or not, in no particular order.
+     */
+    List<NativeSslSession> sessions() {
+        List<NativeSslSession> sessions = new ArrayList<NativeSslSession>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Node node : stripe.nodes.values()) {
+                    sessions.add(node.session);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Sets the timeout used to schedule the expiry of sessions added from now on. Sessions
+     * already in the cache are checked against it when their current expiry time comes, and
+     * lookups never return an invalid session.
+     */
+    void setTimeout(int seconds) {
+        timeoutSeconds = seconds;
+    }
+
+    /**
+     * Changes the maximum size, redistributing the sessions over a number of stripes suited to
+     * it. If there are too many sessions, the least recently used are evicted.
+     */
+    void setMaximumSize(int maximumSize, long nowMillis, List<NativeSslSession> dropped) {
+        Stripe[] oldStripes = lockAll();
+        try {
+            List<Node> nodes = new ArrayList<Node>();
+            long now = toTick(nowMillis);
+            Stripe[] newStripes = newStripes(maximumSize, now);
+            long[] counts = newStripes[0].counts;
+            for (Stripe stripe : oldStripes) {
+                nodes.addAll(stripe.nodes.values());
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += stripe.counts[i];
+                }
+                stripe.retired = true;
+            }
+            Collections.sort(nodes, new Comparator<Node>() {
+                @Override
+                public int compare(Node a, Node b) {
+                    // Overflow-safe comparison of System.nanoTime() values.
+                    long diff = a.lastAccessNanos - b.lastAccessNanos;
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+
+            int excess = maximumSize > 0 ? Math.max(0, nodes.size() - maximumSize) : 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get(i);
+                if (i < excess) {
+                    counts[EVICTIONS]++;
+                    dropped.add(node.session);
+                    continue;
+                }
+                Node copy = new Node(node.key, node.session);
+                copy.lastAccessNanos = node.lastAccessNanos;
+                Stripe stripe = newStripes[indexFor(node.key, newStripes.length)];
+                stripe.nodes.put(copy.key, copy);
+                if (node.deadline != Node.UNSCHEDULED) {
+                    stripe.wheel.schedule(copy, node.deadline);
+                }
+            }
+            stripes = newStripes;
+        } finally {
+            unlockAll(oldStripes);
+        }
+    }
+
+    long hitCount() {
+        return count(HITS);
+    }
+
+    long missCount() {
+        return count(MISSES);
+    }
+
+    long evictionCount() {
+        return count(EVICTIONS);
+    }
+
+    long expirationCount() {
+        return count(EXPIRATIONS);
+    }
+
+    int stripeCount() {
+        return stripes.length;
+    }
+
+    private long count(int counter) {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                count += stripe.counts[counter];
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    private NativeSslSession lookup(ByteArray key, long nowMillis,
+            List<NativeSslSession> dropped, boolean countStats) {
+        Stripe stripe = lockStripe(key);
+        try {
+            stripe.expire(toTick(nowMillis), timeoutSeconds, dropped);
+            Node node = stripe.nodes.get(key);
+            if (node != null && !node.session.isValid()) {
+                stripe.nodes.remove(key);
+                stripe.wheel.cancel(node);
+                stripe.counts[EXPIRATIONS]++;
+                dropped.add(node.session);
+                node = null;
+            }
+            if (node == null) {
+                if (countStats) {
+                    stripe.counts[MISSES]++;
+                }
+                return null;
+            }
+            if (countStats) {
+                stripe.counts[HITS]++;
+            }
+            node.lastAccessNanos = System.nanoTime();
+            return node.session;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Locks and returns the current stripe of the given key, retrying if the stripes are
+     * replaced concurrently.
+     */
+    private Stripe lockStripe(ByteArray key) {
+        while (true) {
+            Stripe[] current = stripes;
+            Stripe stripe = current[indexFor(key, current.length)];
+            stripe.lock.lock();
+            if (!stripe.retired) {
+                return stripe;
+            }
+            stripe.lock.unlock();
+        }
+    }
+
+    private Stripe[] lockAll() {
+        while (true) {
+            Stripe[] current = stripes;
+            for (Stripe stripe : current) {
+                stripe.lock.lock();
+            }
+            if (!current[0].retired) {
+                return current;
+            }
+            unlockAll(current);
+        }
+    }
+
+    private static void unlockAll(Stripe[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].lock.unlock();
+        }
+    }
+
+    private static int indexFor(ByteArray key, int stripeCount) {
+        // Session IDs are random, but spread the bits anyway in case of poor IDs.
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h ^= (h >>> 8);
+        return h & (stripeCount - 1);
+    }
+
+    private static Stripe[] newStripes(int maximumSize, long nowTick) {
+        int maxStripes = Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors());
+        int count = 1;
+        while (count * 2 <= maxStripes
+                && (maximumSize == 0 || count * 2 * MIN_STRIPE_SIZE <= maximumSize)) {
+            count *= 2;
+        }
+        Stripe[] stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            // Split the maximum size exactly, so that the cache never exceeds it.
+            int stripeSize = maximumSize / count + (i < maximumSize % count ? 1 : 0);
+            stripes[i] = new Stripe(stripeSize, nowTick);
+        }
+        return stripes;
+    }
+
+    private static long toTick(long millis) {
+        return TimeUnit.MILLISECONDS.toSeconds(millis);
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        // In LRU order.
+        // @GuardedBy("lock")
+        final LinkedHashMap<ByteArray, Node> nodes =
+                new LinkedHashMap<ByteArray, Node>(16, 0.75f, true);
+        // @GuardedBy("lock")
+        final TimingWheel wheel;
+        // Zero for unlimited.
+        final int maximumSize;
+        // @GuardedBy("lock")
+        boolean retired;
+        // @GuardedBy("lock")
+        final long[] counts = new long[4];
+        private final List<Node> due = new ArrayList<Node>();
+
+        Stripe(int maximumSize, long nowTick) {
+            this.maximumSize = maximumSize;
+            this.wheel = new TimingWheel(nowTick);
+        }
+
+        /**
+         * Drops the sessions that are due and no longer valid. Sessions that are still valid,
+         * because the timeout was raised, are scheduled again.
+         */
+        void expire(long nowTick, int timeoutSeconds, List<NativeSslSession> dropped) {
+            wheel.advance(nowTick, due);
+            for (int i = 0; i < due.size(); i++) {
+                Node node = due.get(i);
+                if (!node.session.isValid()) {
+                    nodes.remove(node.key);
+                    counts[EXPIRATIONS]++;
+                    dropped.add(node.session);
+                } else if (timeoutSeconds > 0) {
+                    wheel.schedule(node, nowTick + timeoutSeconds);
+                }
+            }
+            due.clear();
+        }
+    }
+
+    private static final class Node {
+        static final long UNSCHEDULED = Long.MIN_VALUE;
+
+        final ByteArray key;
+        final NativeSslSession session;
+        long lastAccessNanos;
+        // The timing wheel state.
+        long deadline = UNSCHEDULED;
+        int level;
+        int slot;
+        Node prev;
+        Node next;
+
+        Node(ByteArray key, NativeSslSession session) {
+            this.key = key;
+            this.session = session;
+        }
+    }
+
+    /**
+     * A hierarchical timing wheel with one second ticks. Each level has 64 slots, and a slot of
+     * a level spans a full turn of the level below it, so four levels cover over six months.
+     * Scheduling and cancelling take constant time, and advancing the wheel only touches the
+     * slots that come due, moving timers from higher levels down as their turn comes.
+     */
+    private static final class TimingWheel {
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+        private static final int MASK = SLOTS - 1;
+        private static final int LEVELS = 4;
+        private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+        private final Node[][] slots = new Node[LEVELS][SLOTS];
+        private long currentTick;
+        private int size;
+
+        TimingWheel(long nowTick) {
+            this.currentTick = nowTick;
+        }
+
+        /**
+         * Schedules a node to be due at the given tick. Deadlines beyond the range of the wheel
+         * are clamped; the node is then rescheduled when it comes due.
+         */
+        void schedule(Node node, long deadlineTick) {
+            if (node.deadline != Node.UNSCHEDULED) {
+                cancel(node);
+            }
+            node.deadline =
+                    Math.max(currentTick + 1, Math.min(deadlineTick, currentTick + MAX_DELAY));
+            insert(node);
+            size++;
+        }
+
+        void cancel(Node node) {
+            if (node.deadline == Node.UNSCHEDULED) {
+                return;
+            }
+            unlink(node);
+            node.deadline = Node.UNSCHEDULED;
+            size--;
+        }
+
+        /**
+         * Advances the wheel to the given tick and adds the nodes that came due to {@code due}.
+         */
+        void advance(long nowTick, List<Node> due) {
+            if (nowTick - currentTick > (1L << (SLOT_BITS * (LEVELS - 1)))) {
+                // After a long idle period, rebuilding is cheaper than stepping through it.
+                rebuild(nowTick, due);
+                return;
+            }
+            while (currentTick < nowTick) {
+                if (size == 0) {
+                    currentTick = nowTick;
+                    return;
+                }
+                currentTick++;
+                for (int level = 1; level < LEVELS
+                        && (currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0; level++) {
+                    cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & MASK));
+                }
+                int index = (int) (currentTick & MASK);
+                Node node = slots[0][index];
+                slots[0][index] = null;
+                while (node != null) {
+                    Node next = node.next;
+                    node.prev = null;
+                    node.next = null;
+                    node.deadline = Node.UNSCHEDULED;
+                    size--;
+                    due.add(node);
+                    node = next;
+                }
+            }
+        }
+
+        private void cascade(int level, int index) {
+            Node node = slots[level][index];
+            slots[level][index] = null;
+            while (node != null) {
+                Node next = node.next;
+                node.prev = null;
+                node.next = null;
+                insert(node);
+                node = next;
+            }
+        }
+
+        private void rebuild(long nowTick, List<Node> due) {
+            List<Node> nodes = new ArrayList<Node>(size);
+            for (int level = 0; level < LEVELS; level++) {
+                for (int index = 0; index < SLOTS; index++) {
+                    Node node = slots[level][index];
+                    slots[level][index] = null;
+                    while (node != null) {
+                        Node next = node.next;
+                        node.prev = null;
+                        node.next = null;
+                        nodes.add(node);
+                        node = next;
+                    }
+                }
+            }
+            currentTick = nowTick;
+            for (Node node : nodes) {
+                if (node.deadline <= nowTick) {
+                    node.deadline = Node.UNSCHEDULED;
+                    size--;
+                    due.add(node);
+                } else {
+                    insert(node);
+                }
+            }
+        }
+
+        /**
+         * Links a node into the slot for its deadline. The level is chosen by how far away the
+         * deadline is, and the slot within the level by the deadline's bits for that level.
+         */
+        private void insert(Node node) {
+            long delay = node.deadline - currentTick;
+            int level = 0;
+            while (level < LEVELS - 1 && delay >= (1L << (SLOT_BITS * (level + 1)))) {
+                level++;
+            }
+            int index = (int) ((node.deadline >>> (SLOT_BITS * level)) & MASK);
+            node.level = level;
+            node.slot = index;
+            Node head = slots[level][index];
+            node.next = head;
+            if (head != null) {
+                head.prev = node;
+            }
+            slots[level][index] = node;
+        }
+
+        private void unlink(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                slots[node.level][node.slot] = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+    }
+}
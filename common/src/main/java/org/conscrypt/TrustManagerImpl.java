@@ -96,6 +96,9 @@ public final class TrustManagerImpl extends X509ExtendedTrustManager {
     private static final Set<Option> REVOCATION_CHECK_OPTIONS =
             revocationOptions();
 
+    /** The number of intermediate certificates remembered from validated chains. */
+    private static final int MAX_INTERMEDIATES = 1024;
+
     private static ConscryptHostnameVerifier defaultHostnameVerifier;
 
     /**
@@ -124,7 +127,8 @@ public final class TrustManagerImpl extends X509ExtendedTrustManager {
 
     /**
      * An index of intermediate certificates that we've seen. These certificates are NOT implicitly
-     * trusted and must still form a valid chain to an anchor.
+     * trusted and must still form a valid chain to an anchor. Bounded to the
+     * {@link #MAX_INTERMEDIATES} most recently used.
      */
     private final TrustedCertificateIndex intermediateIndex;
 
@@ -147,6 +151,11 @@ public final class TrustManagerImpl extends X509ExtendedTrustManager {
     // Forces CT verification to always to done. For tests.
     private boolean ctEnabledOverride;
 
+    /**
+     * The chains validated recently, or {@code null} if validation results aren't cached.
+     */
+    private volatile VerifiedChainCache verifiedChainCache;
+
     /**
      * Creates X509TrustManager based on a keystore
      */
@@ -223,7 +232,7 @@ public final class TrustManagerImpl extends X509ExtendedTrustManager {
         this.validator = validatorLocal;
         this.factory = factoryLocal;
         this.trustedCertificateIndex = trustedCertificateIndexLocal;
-        this.intermediateIndex = new TrustedCertificateIndex();
+        this.intermediateIndex = new TrustedCertificateIndex(MAX_INTERMEDIATES);
         this.acceptedIssuers = acceptedIssuersLocal;
         this.err = errLocal;
         this.blocklist = blocklist;
@@ -388,6 +397,92 @@ public final class TrustManagerImpl extends X509ExtendedTrustManager {
         } else {
             trustedCertificateIndex.reset(trustAnchors(acceptedIssuers));
         }
+        invalidateVerifiedChainCache();
+    }
+
+    /**
+     * Enables caching the results of successful chain validations, so that peers presenting
+     * the same chain again are trusted without validating it again. Each result is cached until
+     * a certificate in the chain expires or for {@code timeToLiveMillis}, whichever comes first,
+     * and until {@link #handleTrustStorageUpdate} is called. Hostname verification isn't
+     * cached. A {@code maximumSize} of zero disables the cache, which is the default.
+     */
+    public void setVerifiedChainCache(int maximumSize, long timeToLiveMillis) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize < 0");
+        }
+        if (timeToLiveMillis <= 0) {
+            throw new IllegalArgumentException("timeToLiveMillis <= 0");
+        }
+        verifiedChainCache = (maximumSize == 0)
+                ? null
+                : new VerifiedChainCache(maximumSize, timeToLiveMillis);
+    }
+
+    /**
+     * Returns the number of chains trusted because their validation result was cached.
+     */
+    public long getVerifiedChainCacheHitCount() {
+        VerifiedChainCache cache = verifiedChainCache;
+        return (cache == null) ? 0 : cache.hitCount();
+    }
+
+    /**
+     * Returns the number of chains validated because no validation result was cached.
+     */
+    public long getVerifiedChainCacheMissCount() {
+        VerifiedChainCache cache = verifiedChainCache;
+        return (cache == null) ? 0 : cache.missCount();
+    }
+
+    /**
+     * Returns the number of trust anchor lookups that found an anchor.
+     */
+    public long getTrustAnchorIndexHitCount() {
+        return (trustedCertificateIndex == null) ? 0 : trustedCertificateIndex.getHitCount();
+    }
+
+    /**
+     * Returns the number of trust anchor lookups that found no anchor.
+     */
+    public long getTrustAnchorIndexMissCount() {
+        return (trustedCertificateIndex == null) ? 0 : trustedCertificateIndex.getMissCount();
+    }
+
+    /**
+     * Returns the number of intermediate certificates remembered from validated chains, which
+     * are used to complete chains that peers send without them.
+     */
+    public int getIntermediateCacheSize() {
+        return intermediateIndex.size();
+    }
+
+    /**
+     * Returns the number of lookups of remembered intermediate certificates that found one.
+     */
+    public long getIntermediateCacheHitCount() {
+        return intermediateIndex.getHitCount();
+    }
+
+    /**
+     * Returns the number of lookups of remembered intermediate certificates that found none.
+     */
+    public long getIntermediateCacheMissCount() {
+        return intermediateIndex.getMissCount();
+    }
+
+    /**
+     * Returns the number of intermediate certificates forgotten to make room for others.
+     */
+    public long getIntermediateCacheEvictionCount() {
+        return intermediateIndex.getEvictionCount();
+    }
+
+    private void invalidateVerifiedChainCache() {
+        VerifiedChainCache cache = verifiedChainCache;
+        if (cache != null) {
+            cache.invalidate();
+        }
     }
 
     private List<X509Certificate> checkTrusted(X509Certificate[] certs, String authType,
@@ -476,6 +571,24 @@ public final class TrustManagerImpl extends X509ExtendedTrustManager {
         if (err != null) {
             throw new CertificateException(err);
         }
+        VerifiedChainCache cache = verifiedChainCache;
+        if (cache == null) {
+            return buildAndVerifyChain(certs, ocspData, tlsSctData, host, clientAuth);
+        }
+        VerifiedChainCache.Key key =
+                new VerifiedChainCache.Key(certs, authType, host, clientAuth, ocspData, tlsSctData);
+        List<X509Certificate> trustedChain = cache.get(key, System.currentTimeMillis());
+        if (trustedChain != null) {
+            return trustedChain;
+        }
+        int generation = cache.generation();
+        trustedChain = buildAndVerifyChain(certs, ocspData, tlsSctData, host, clientAuth);
+        cache.put(key, trustedChain, generation, System.currentTimeMillis());
+        return trustedChain;
+    }
+
+    private List<X509Certificate> buildAndVerifyChain(X509Certificate[] certs, byte[] ocspData,
+            byte[] tlsSctData, String host, boolean clientAuth) throws CertificateException {
         Set<X509Certificate> used = new HashSet<X509Certificate>();
         ArrayList<X509Certificate> untrustedChain = new ArrayList<X509Certificate>();
         ArrayList<TrustAnchor> trustedChain = new ArrayList<TrustAnchor>();
@@ -1022,15 +1135,18 @@ public final class TrustManagerImpl extends X509ExtendedTrustManager {
 
     public void setCTEnabledOverride(boolean enabled) {
         this.ctEnabledOverride = enabled;
+        invalidateVerifiedChainCache();
     }
 
     // Replace the CTVerifier. For testing only.
     public void setCTVerifier(CTVerifier verifier) {
         this.ctVerifier = verifier;
+        invalidateVerifiedChainCache();
     }
 
     // Replace the CTPolicy. For testing only.
     public void setCTPolicy(CTPolicy policy) {
         this.ctPolicy = policy;
+        invalidateVerifiedChainCache();
     }
 }
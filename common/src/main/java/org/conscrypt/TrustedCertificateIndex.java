@@ -19,37 +19,64 @@ package org.conscrypt;
 import java.security.PublicKey;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.security.auth.x500.X500Principal;
 
 /**
  * Indexes {@code TrustAnchor} instances so they can be found in O(1)
  * time instead of O(N).
+ *
+ * <p>Lookups read an immutable snapshot of the index without locking. Indexing copies the
+ * snapshot, which is cheap for the small number of certificates indexed and rare once an index
+ * is populated. An index may be bounded, in which case the least recently found certificates
+ * are dropped to stay within the bound.
  */
 @Internal
 public final class TrustedCertificateIndex {
 
-    private final Map<X500Principal, List<TrustAnchor>> subjectToTrustAnchors
-            = new HashMap<X500Principal, List<TrustAnchor>>();
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    /** The maximum number of anchors indexed, or zero if the index is unbounded. */
+    private final int maximumSize;
+
+    /** Guards changes to the index. */
+    private final Object lock = new Object();
+
+    private volatile Map<X500Principal, Entry[]> subjectToTrustAnchors =
+            Collections.<X500Principal, Entry[]>emptyMap();
+
+    /** The number of anchors indexed. Guarded by {@code lock}. */
+    private int size;
 
-    public TrustedCertificateIndex() {}
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TrustedCertificateIndex() {
+        this.maximumSize = 0;
+    }
 
     public TrustedCertificateIndex(Set<TrustAnchor> anchors) {
-        index(anchors);
+        this.maximumSize = 0;
+        reset(anchors);
     }
 
-    private void index(Set<TrustAnchor> anchors) {
-        for (TrustAnchor anchor : anchors) {
-            index(anchor);
+    /**
+     * Creates an index of at most {@code maximumSize} anchors, which drops the least recently
+     * found anchors once it is full.
+     */
+    public TrustedCertificateIndex(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize <= 0");
         }
+        this.maximumSize = maximumSize;
     }
 
     public TrustAnchor index(X509Certificate cert) {
@@ -59,88 +86,116 @@ public final class TrustedCertificateIndex {
     }
 
     public void index(TrustAnchor anchor) {
-        X500Principal subject;
-        X509Certificate cert = anchor.getTrustedCert();
-        if (cert != null) {
-            subject = cert.getSubjectX500Principal();
-        } else {
-            subject = anchor.getCA();
-        }
-
-        synchronized (subjectToTrustAnchors) {
-            List<TrustAnchor> anchors = subjectToTrustAnchors.get(subject);
-            if (anchors == null) {
-                anchors = new ArrayList<TrustAnchor>(1);
-                subjectToTrustAnchors.put(subject, anchors);
-            } else {
-                // Avoid indexing the same certificate multiple times
-                if (cert != null) {
-                    for (TrustAnchor entry : anchors) {
-                        if (cert.equals(entry.getTrustedCert())) {
-                            return;
-                        }
-                    }
-                }
+        synchronized (lock) {
+            if (isIndexed(subjectToTrustAnchors, anchor)) {
+                return;
             }
-            anchors.add(anchor);
+            Map<X500Principal, Entry[]> index =
+                    new HashMap<X500Principal, Entry[]>(subjectToTrustAnchors);
+            add(index, anchor);
+            subjectToTrustAnchors = index;
         }
     }
 
     public void reset() {
-        synchronized (subjectToTrustAnchors) {
-            subjectToTrustAnchors.clear();
+        synchronized (lock) {
+            subjectToTrustAnchors = Collections.<X500Principal, Entry[]>emptyMap();
+            size = 0;
         }
     }
 
     public void reset(Set<TrustAnchor> anchors) {
-        synchronized (subjectToTrustAnchors) {
-            reset();
-            index(anchors);
+        synchronized (lock) {
+            Map<X500Principal, Entry[]> index = new HashMap<X500Principal, Entry[]>();
+            size = 0;
+            for (TrustAnchor anchor : anchors) {
+                if (!isIndexed(index, anchor)) {
+                    add(index, anchor);
+                }
+            }
+            subjectToTrustAnchors = index;
         }
     }
 
-    public TrustAnchor findByIssuerAndSignature(X509Certificate cert) {
-        X500Principal issuer = cert.getIssuerX500Principal();
-        synchronized (subjectToTrustAnchors) {
-            List<TrustAnchor> anchors = subjectToTrustAnchors.get(issuer);
-            if (anchors == null) {
-                return null;
+    /**
+     * Returns whether the anchor's certificate is in the index already.
+     */
+    private static boolean isIndexed(Map<X500Principal, Entry[]> index, TrustAnchor anchor) {
+        X509Certificate cert = anchor.getTrustedCert();
+        Entry[] entries = index.get(subjectOf(anchor));
+        if (entries == null || cert == null) {
+            return false;
+        }
+        // Avoid indexing the same certificate multiple times
+        for (Entry entry : entries) {
+            if (cert.equals(entry.anchor.getTrustedCert())) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            for (TrustAnchor anchor : anchors) {
+    /**
+     * Adds the anchor to the index, which must not be the published snapshot, evicting if the
+     * index is full. Must be called with {@code lock} held.
+     */
+    private void add(Map<X500Principal, Entry[]> index, TrustAnchor anchor) {
+        X500Principal subject = subjectOf(anchor);
+        Entry[] entries = index.get(subject);
+        if (entries == null) {
+            entries = NO_ENTRIES;
+        }
+        Entry[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+        newEntries[entries.length] = new Entry(anchor);
+        index.put(subject, newEntries);
+        size++;
+        if (maximumSize > 0 && size > maximumSize) {
+            evictLeastRecentlyFound(index);
+        }
+    }
+
+    public TrustAnchor findByIssuerAndSignature(X509Certificate cert) {
+        Entry[] entries = subjectToTrustAnchors.get(cert.getIssuerX500Principal());
+        if (entries != null) {
+            for (Entry entry : entries) {
                 PublicKey publicKey;
                 try {
-                    X509Certificate caCert = anchor.getTrustedCert();
+                    X509Certificate caCert = entry.anchor.getTrustedCert();
                     if (caCert != null) {
                         publicKey = caCert.getPublicKey();
                     } else {
-                        publicKey = anchor.getCAPublicKey();
+                        publicKey = entry.anchor.getCAPublicKey();
                     }
                     cert.verify(publicKey);
-                    return anchor;
+                    hits.incrementAndGet();
+                    return found(entry);
                 } catch (Exception ignored) {
                     // Ignored
                 }
             }
         }
+        misses.incrementAndGet();
         return null;
     }
 
     public TrustAnchor findBySubjectAndPublicKey(X509Certificate cert) {
-        X500Principal subject = cert.getSubjectX500Principal();
-        synchronized (subjectToTrustAnchors) {
-            List<TrustAnchor> anchors = subjectToTrustAnchors.get(subject);
-            if (anchors == null) {
-                return null;
+        Entry[] entries = subjectToTrustAnchors.get(cert.getSubjectX500Principal());
+        if (entries != null) {
+            Entry entry = findBySubjectAndPublicKey(cert, Arrays.asList(entries));
+            if (entry != null) {
+                hits.incrementAndGet();
+                return found(entry);
             }
-            return findBySubjectAndPublicKey(cert, anchors);
         }
+        misses.incrementAndGet();
+        return null;
     }
 
-    private static TrustAnchor findBySubjectAndPublicKey(X509Certificate cert,
-                                                         Collection<TrustAnchor> anchors) {
+    private static Entry findBySubjectAndPublicKey(X509Certificate cert,
+                                                   Collection<Entry> entries) {
         PublicKey certPublicKey = cert.getPublicKey();
-        for (TrustAnchor anchor : anchors) {
+        for (Entry entry : entries) {
+            TrustAnchor anchor = entry.anchor;
             PublicKey caPublicKey;
             try {
                 X509Certificate caCert = anchor.getTrustedCert();
@@ -150,7 +205,7 @@ public final class TrustedCertificateIndex {
                     caPublicKey = anchor.getCAPublicKey();
                 }
                 if (caPublicKey.equals(certPublicKey)) {
-                    return anchor;
+                    return entry;
                 } else {
                     // PublicKey.equals is not required to compare keys across providers. Fall back
                     // to checking using the encoded form.
@@ -161,7 +216,7 @@ public final class TrustedCertificateIndex {
                         if (certPublicKeyEncoded != null
                                 && caPublicKeyEncoded != null
                                 && Arrays.equals(caPublicKeyEncoded, certPublicKeyEncoded)) {
-                            return anchor;
+                            return entry;
                         }
                     }
                 }
@@ -173,34 +228,128 @@ public final class TrustedCertificateIndex {
     }
 
     public Set<TrustAnchor> findAllByIssuerAndSignature(X509Certificate cert) {
-        X500Principal issuer = cert.getIssuerX500Principal();
-        synchronized (subjectToTrustAnchors) {
-            List<TrustAnchor> anchors = subjectToTrustAnchors.get(issuer);
-            if (anchors == null) {
-                return Collections.<TrustAnchor>emptySet();
+        Entry[] entries = subjectToTrustAnchors.get(cert.getIssuerX500Principal());
+        if (entries == null) {
+            misses.incrementAndGet();
+            return Collections.<TrustAnchor>emptySet();
+        }
+
+        Set<TrustAnchor> result = new HashSet<TrustAnchor>();
+        for (Entry entry : entries) {
+            try {
+                PublicKey publicKey;
+                X509Certificate caCert = entry.anchor.getTrustedCert();
+                if (caCert != null) {
+                    publicKey = caCert.getPublicKey();
+                } else {
+                    publicKey = entry.anchor.getCAPublicKey();
+                }
+                if (publicKey == null) {
+                    continue;
+                }
+                cert.verify(publicKey);
+                result.add(found(entry));
+            } catch (Exception ignored) {
+                // Ignored
             }
+        }
+        if (result.isEmpty()) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
 
-            Set<TrustAnchor> result = new HashSet<TrustAnchor>();
-            for (TrustAnchor anchor : anchors) {
-                try {
-                    PublicKey publicKey;
-                    X509Certificate caCert = anchor.getTrustedCert();
-                    if (caCert != null) {
-                        publicKey = caCert.getPublicKey();
-                    } else {
-                        publicKey = anchor.getCAPublicKey();
-                    }
-                    if (publicKey == null) {
-                        continue;
-                    }
-                    cert.verify(publicKey);
-                    result.add(anchor);
-                } catch (Exception ignored) {
-                    // Ignored
+    /**
+     * Returns the number of anchors indexed.
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found an anchor.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that found no anchor.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of anchors dropped to keep a bounded index within its maximum size.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Records that the entry was found, so that bounded indexes keep it, and returns its anchor.
+     */
+    private TrustAnchor found(Entry entry) {
+        if (maximumSize > 0) {
+            entry.lastFound = System.nanoTime();
+        }
+        return entry.anchor;
+    }
+
+    /**
+     * Removes the least recently found anchor from the index, which is a copy of the current
+     * snapshot. Bounded indexes are small, so a scan is cheap enough.
+     */
+    private void evictLeastRecentlyFound(Map<X500Principal, Entry[]> index) {
+        X500Principal oldestSubject = null;
+        Entry oldest = null;
+        for (Map.Entry<X500Principal, Entry[]> mapping : index.entrySet()) {
+            for (Entry entry : mapping.getValue()) {
+                if (oldest == null || entry.lastFound - oldest.lastFound < 0) {
+                    oldestSubject = mapping.getKey();
+                    oldest = entry;
+                }
+            }
+        }
+        Entry[] entries = index.get(oldestSubject);
+        if (entries.length == 1) {
+            index.remove(oldestSubject);
+        } else {
+            Entry[] remaining = new Entry[entries.length - 1];
+            for (int i = 0, j = 0; i < entries.length; i++) {
+                if (entries[i] != oldest) {
+                    remaining[j++] = entries[i];
                 }
             }
-            return result;
+            index.put(oldestSubject, remaining);
         }
+        size--;
+        evictions.incrementAndGet();
     }
 
+    private static X500Principal subjectOf(TrustAnchor anchor) {
+        X509Certificate cert = anchor.getTrustedCert();
+        if (cert != null) {
+            return cert.getSubjectX500Principal();
+        }
+        return anchor.getCA();
+    }
+
+    /**
+     * An indexed anchor, with the time it was last found for bounded indexes.
+     */
+    private static final class Entry {
+        final TrustAnchor anchor;
+        volatile long lastFound;
+
+        Entry(TrustAnchor anchor) {
+            this.anchor = anchor;
+            this.lastFound = System.nanoTime();
+        }
+    }
 }
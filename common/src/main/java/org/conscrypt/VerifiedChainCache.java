@@ -0,0 +1,196 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the chains {@link TrustManagerImpl} has successfully validated, so that peers
+ * presenting the same certificates again are accepted without building and validating their
+ * chain again. A chain is remembered until any of its certificates expires or for the configured
+ * time to live, whichever comes first, and until the trust manager's trust anchors change.
+ */
+final class VerifiedChainCache {
+    private final int maximumSize;
+    private final long timeToLiveMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Guarded by {@code this}. Incremented whenever the cached results become invalid. */
+    private int generation;
+
+    /** Guarded by {@code this}. */
+    private final Map<Key, Entry> entries;
+
+    VerifiedChainCache(final int maximumSize, long timeToLiveMillis) {
+        this.maximumSize = maximumSize;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, VerifiedChainCache.Entry> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    int getMaximumSize() {
+        return maximumSize;
+    }
+
+    long getTimeToLiveMillis() {
+        return timeToLiveMillis;
+    }
+
+    /**
+     * Returns the current generation, which callers pass to {@link #put} once they have
+     * validated a chain, so that results obtained before an {@link #invalidate} aren't cached.
+     */
+    synchronized int generation() {
+        return generation;
+    }
+
+    /**
+     * Returns the trusted chain cached for the key, or {@code null} if there is none.
+     */
+    List<X509Certificate> get(Key key, long now) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt <= now) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new ArrayList<X509Certificate>(entry.trustedChain);
+    }
+
+    /**
+     * Caches the trusted chain validated for the key.
+     */
+    void put(Key key, List<X509Certificate> trustedChain, int generation, long now) {
+        long expiresAt = now + timeToLiveMillis;
+        if (expiresAt < now) {
+            expiresAt = Long.MAX_VALUE;
+        }
+        for (X509Certificate certificate : trustedChain) {
+            expiresAt = Math.min(expiresAt, certificate.getNotAfter().getTime());
+        }
+        if (expiresAt <= now) {
+            return;
+        }
+        Entry entry = new Entry(new ArrayList<X509Certificate>(trustedChain), expiresAt);
+        synchronized (this) {
+            if (generation == this.generation) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Forgets all cached chains, including those being validated now.
+     */
+    synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * Everything a validation result depends on, apart from the trust manager's configuration:
+     * the encoded certificates presented by the peer, the authentication type, the host and
+     * whether a client or server is validated, and the stapled OCSP response and SCTs.
+     */
+    static final class Key {
+        private final byte[][] encodedCertificates;
+        private final String authType;
+        private final String host;
+        private final boolean clientAuth;
+        private final byte[] ocspData;
+        private final byte[] tlsSctData;
+        private final int hashCode;
+
+        Key(X509Certificate[] certificates, String authType, String host, boolean clientAuth,
+                byte[] ocspData, byte[] tlsSctData) throws CertificateEncodingException {
+            encodedCertificates = new byte[certificates.length][];
+            for (int i = 0; i < certificates.length; i++) {
+                encodedCertificates[i] = certificates[i].getEncoded();
+            }
+            this.authType = authType;
+            this.host = host;
+            this.clientAuth = clientAuth;
+            this.ocspData = ocspData;
+            this.tlsSctData = tlsSctData;
+            int hash = Arrays.deepHashCode(encodedCertificates);
+            hash = 31 * hash + authType.hashCode();
+            hash = 31 * hash + (host != null ? host.hashCode() : 0);
+            hash = 31 * hash + (clientAuth ? 1 : 0);
+            hash = 31 * hash + Arrays.hashCode(ocspData);
+            hashCode = 31 * hash + Arrays.hashCode(tlsSctData);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hashCode == other.hashCode && clientAuth == other.clientAuth
+                    && authType.equals(other.authType)
+                    && (host == null ? other.host == null : host.equals(other.host))
+                    && Arrays.equals(ocspData, other.ocspData)
+                    && Arrays.equals(tlsSctData, other.tlsSctData)
+                    && Arrays.deepEquals(encodedCertificates, other.encodedCertificates);
+        }
+    }
+
+    private static final class Entry {
+        final List<X509Certificate> trustedChain;
+        final long expiresAt;
+
+        Entry(List<X509Certificate> trustedChain, long expiresAt) {
+            this.trustedChain = trustedChain;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -74,6 +74,7 @@ import org.junit.runners.Suite;
         CertPinManagerTest.class,
         ChainStrengthAnalyzerTest.class,
         TrustManagerImplTest.class,
+        TrustedCertificateIndexTest.class,
         // org.conscrypt.ct tests
         CTVerifierTest.class,
         SerializationTest.class,
@@ -84,7 +84,10 @@ import org.junit.runners.Suite;
         ChainStrengthAnalyzerTest.class,
         HostnameVerifierTest.class,
         NativeCryptoArgTest.class,
+        PooledBufferAllocatorTest.class,
+        RecordSizePolicyTest.class,
         TrustManagerImplTest.class,
+        TrustedCertificateIndexTest.class,
         // org.conscrypt.ct tests
         CTVerifierTest.class,
         SerializationTest.class,
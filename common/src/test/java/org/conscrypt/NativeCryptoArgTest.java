@@ -123,7 +123,7 @@ public class NativeCryptoArgTest {
                 .hasArg(0, long.class)
                 .hasArg(1, conscryptClass("NativeSsl"))
                 .except(nonThrowingMethods)
-                .expectSize(60)
+                .expectSize(78)
                 .build();
 
         testMethods(filter, NullPointerException.class);
@@ -134,7 +134,7 @@ public class NativeCryptoArgTest {
                 .hasPrefix("SSL_")
                 .hasArgLength(1)
                 .hasArg(0, long.class)
-                .expectSize(10)
+                .expectSize(11)
                 .build();
 
         testMethods(filter, NullPointerException.class);
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PooledBufferAllocatorTest {
+    @Test
+    public void allocatedBufferHasRequestedCapacity() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(4, 4, 0);
+        AllocatedBuffer allocated = allocator.allocateDirectBuffer(1000);
+        ByteBuffer buffer = allocated.nioBuffer();
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(1000, buffer.remaining());
+        allocated.release();
+    }
+
+    @Test
+    public void releasedBufferIsReusedByTheSameThread() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(4, 4, 0);
+        AllocatedBuffer first = allocator.allocateDirectBuffer(16384);
+        ByteBuffer firstBuffer = first.nioBuffer();
+        firstBuffer.put((byte) 1);
+        first.release();
+
+        AllocatedBuffer second = allocator.allocateDirectBuffer(16000);
+        assertSame(firstBuffer, second.nioBuffer());
+        // The buffer is reset on reuse.
+        assertEquals(0, second.nioBuffer().position());
+        assertEquals(16000, second.nioBuffer().remaining());
+        second.release();
+    }
+
+    @Test
+    public void differentSizeClassesAreNotShared() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(4, 4, 0);
+        AllocatedBuffer small = allocator.allocateDirectBuffer(100);
+        ByteBuffer smallBuffer = small.nioBuffer();
+        small.release();
+
+        AllocatedBuffer large = allocator.allocateDirectBuffer(16709);
+        assertNotSame(smallBuffer, large.nioBuffer());
+        assertEquals(16709, large.nioBuffer().remaining());
+        large.release();
+    }
+
+    @Test
+    public void oversizedBuffersAreNotPooled() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(4, 4, 0);
+        AllocatedBuffer allocated = allocator.allocateDirectBuffer(1024 * 1024);
+        ByteBuffer buffer = allocated.nioBuffer();
+        assertEquals(1024 * 1024, buffer.capacity());
+        allocated.release();
+
+        AllocatedBuffer next = allocator.allocateDirectBuffer(1024 * 1024);
+        assertNotSame(buffer, next.nioBuffer());
+        next.release();
+    }
+
+    @Test
+    public void buffersLargerThanRecordAreNotCachedPerThread() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(4, 0, 0);
+        AllocatedBuffer record = allocator.allocateDirectBuffer(17 * 1024);
+        ByteBuffer recordBuffer = record.nioBuffer();
+        record.release();
+        AllocatedBuffer large = allocator.allocateDirectBuffer(32768);
+        ByteBuffer largeBuffer = large.nioBuffer();
+        large.release();
+
+        AllocatedBuffer nextRecord = allocator.allocateDirectBuffer(17 * 1024);
+        assertSame(recordBuffer, nextRecord.nioBuffer());
+        nextRecord.release();
+        AllocatedBuffer nextLarge = allocator.allocateDirectBuffer(32768);
+        assertNotSame(largeBuffer, nextLarge.nioBuffer());
+        nextLarge.release();
+    }
+
+    @Test
+    public void retentionIsBounded() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(0, 2, 0);
+        AllocatedBuffer[] buffers = new AllocatedBuffer[64];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = allocator.allocateDirectBuffer(4096);
+        }
+        for (AllocatedBuffer buffer : buffers) {
+            buffer.release();
+        }
+        assertEquals(2, allocator.pooledBufferCount());
+    }
+
+    @Test
+    public void doubleReleaseShouldFail() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(4, 4, 0);
+        AllocatedBuffer allocated = allocator.allocateDirectBuffer(1024);
+        allocated.release();
+        try {
+            allocated.release();
+            fail();
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void unreleasedBufferShouldBeReportedAsLeak() throws Exception {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(4, 4, 1);
+        allocator.allocateDirectBuffer(1024);
+        for (int i = 0; i < 50 && allocator.leakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, allocator.leakCount());
+    }
+
+    @Test
+    public void releasedBufferShouldNotBeReportedAsLeak() throws Exception {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(0, 0, 1);
+        allocator.allocateDirectBuffer(1024).release();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, allocator.leakCount());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RecordSizePolicyTest {
+    private static final int FULL_SIZE = NativeConstants.SSL3_RT_MAX_PLAIN_LENGTH;
+
+    @Test
+    public void fixedPolicyNeedsNoSizer() {
+        assertNull(RecordSizePolicy.fixed().newSizer());
+        assertNull(RecordSizePolicy.dynamic(FULL_SIZE, 1000, 1000).newSizer());
+        assertNull(RecordSizePolicy.dynamic(1000, 0, 1000).newSizer());
+    }
+
+    @Test
+    public void sizerRampsUpAfterThreshold() {
+        RecordSizePolicy.Sizer sizer = RecordSizePolicy.dynamic(1000, 2500, 60000).newSizer();
+        assertEquals(1000, sizer.beginWrite());
+        assertEquals(1000, sizer.written(1000));
+        assertEquals(1000, sizer.written(1000));
+        assertEquals(FULL_SIZE, sizer.written(1000));
+        assertEquals(FULL_SIZE, sizer.beginWrite());
+    }
+
+    @Test
+    public void sizerResetsAfterIdleTimeout() {
+        RecordSizePolicy.Sizer sizer = RecordSizePolicy.dynamic(1000, 1000, 0).newSizer();
+        assertEquals(1000, sizer.beginWrite());
+        assertEquals(FULL_SIZE, sizer.written(1000));
+        // With no idle timeout, every write counts as following an idle period.
+        assertEquals(1000, sizer.beginWrite());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void smallRecordSizeMustBePositive() {
+        RecordSizePolicy.dynamic(0, 1000, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void smallRecordSizeMustNotExceedFullSize() {
+        RecordSizePolicy.dynamic(FULL_SIZE + 1, 1000, 1000);
+    }
+}
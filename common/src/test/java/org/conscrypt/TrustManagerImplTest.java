@@ -209,6 +209,55 @@ public class TrustManagerImplTest {
         }
     }
 
+    @Test
+    public void testVerifiedChainCache() throws Exception {
+        TestUtils.assumeExtendedTrustManagerAvailable();
+        KeyStore.PrivateKeyEntry pke = TestKeyStore.getServer().getPrivateKey("RSA", "RSA");
+        X509Certificate[] chain3 = (X509Certificate[]) pke.getCertificateChain();
+        X509Certificate[] chain2 = new X509Certificate[] {chain3[0], chain3[1]};
+        X509Certificate[] chain1 = new X509Certificate[] {chain3[0]};
+        TrustManagerImpl tmi = (TrustManagerImpl) trustManager(chain3[2]);
+        tmi.setVerifiedChainCache(16, 60000);
+
+        assertEquals(Arrays.asList(chain3), tmi.checkServerTrusted(chain2, "RSA", "purple.com"));
+        assertEquals(0, tmi.getVerifiedChainCacheHitCount());
+        assertEquals(1, tmi.getVerifiedChainCacheMissCount());
+        assertEquals(Arrays.asList(chain3), tmi.checkServerTrusted(chain2, "RSA", "purple.com"));
+        assertEquals(1, tmi.getVerifiedChainCacheHitCount());
+
+        // Results are cached per host and auth type.
+        tmi.checkServerTrusted(chain2, "RSA", "green.com");
+        tmi.checkServerTrusted(chain2, "ECDHE_RSA", "purple.com");
+        assertEquals(1, tmi.getVerifiedChainCacheHitCount());
+        assertEquals(3, tmi.getVerifiedChainCacheMissCount());
+
+        // Failures aren't cached.
+        assertInvalid(chain1, tmi);
+        assertInvalid(chain1, tmi);
+        assertEquals(1, tmi.getVerifiedChainCacheHitCount());
+    }
+
+    @Test
+    public void testVerifiedChainCacheInvalidation() throws Exception {
+        TestUtils.assumeExtendedTrustManagerAvailable();
+        KeyStore.PrivateKeyEntry pke = TestKeyStore.getServer().getPrivateKey("RSA", "RSA");
+        X509Certificate[] chain3 = (X509Certificate[]) pke.getCertificateChain();
+        TrustManagerImpl tmi = (TrustManagerImpl) trustManager(chain3[2]);
+        tmi.setVerifiedChainCache(16, 60000);
+
+        tmi.checkServerTrusted(chain3, "RSA");
+        tmi.handleTrustStorageUpdate();
+        tmi.checkServerTrusted(chain3, "RSA");
+        assertEquals(0, tmi.getVerifiedChainCacheHitCount());
+
+        tmi.setVerifiedChainCache(16, 1);
+        tmi.checkServerTrusted(chain3, "RSA");
+        Thread.sleep(10);
+        tmi.checkServerTrusted(chain3, "RSA");
+        assertEquals(0, tmi.getVerifiedChainCacheHitCount());
+        assertEquals(2, tmi.getVerifiedChainCacheMissCount());
+    }
+
     private X509TrustManager trustManager(X509Certificate ca) throws Exception {
         KeyStore keyStore = TestKeyStore.createKeyStore();
         keyStore.setCertificateEntry("alias", ca);
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyStore;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import org.conscrypt.java.security.TestKeyStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TrustedCertificateIndexTest {
+    private X509Certificate root;
+    private X509Certificate intermediate;
+    private X509Certificate server;
+
+    @Before
+    public void setUp() {
+        // chain should be server/intermediate/root
+        KeyStore.PrivateKeyEntry pke = TestKeyStore.getServer().getPrivateKey("RSA", "RSA");
+        X509Certificate[] chain = (X509Certificate[]) pke.getCertificateChain();
+        server = chain[0];
+        intermediate = chain[1];
+        root = chain[2];
+    }
+
+    @Test
+    public void testFind() {
+        TrustedCertificateIndex index = new TrustedCertificateIndex(
+                Collections.singleton(new TrustAnchor(root, null)));
+        index.index(intermediate);
+        index.index(intermediate);
+        assertEquals(2, index.size());
+
+        assertSame(root, index.findByIssuerAndSignature(intermediate).getTrustedCert());
+        assertSame(intermediate, index.findBySubjectAndPublicKey(intermediate).getTrustedCert());
+        assertEquals(1, index.findAllByIssuerAndSignature(server).size());
+        assertNull(index.findBySubjectAndPublicKey(server));
+        assertEquals(3, index.getHitCount());
+        assertEquals(1, index.getMissCount());
+        assertEquals(0, index.getEvictionCount());
+
+        index.reset();
+        assertEquals(0, index.size());
+        assertTrue(index.findAllByIssuerAndSignature(server).isEmpty());
+    }
+
+    @Test
+    public void testBoundedIndexDropsLeastRecentlyFound() throws Exception {
+        TrustedCertificateIndex index = new TrustedCertificateIndex(2);
+        index.index(root);
+        Thread.sleep(1);
+        index.index(intermediate);
+        Thread.sleep(1);
+        assertNotNull(index.findBySubjectAndPublicKey(root));
+        Thread.sleep(1);
+
+        index.index(server);
+        assertEquals(2, index.size());
+        assertEquals(1, index.getEvictionCount());
+        assertNotNull(index.findBySubjectAndPublicKey(root));
+        assertNotNull(index.findBySubjectAndPublicKey(server));
+        assertNull(index.findBySubjectAndPublicKey(intermediate));
+    }
+}
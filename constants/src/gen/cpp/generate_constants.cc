@@ -70,6 +70,11 @@ int main(int /* argc */, char ** /* argv */) {
   CONST(SSL_ERROR_WANT_READ);
   CONST(SSL_ERROR_WANT_WRITE);
   CONST(SSL_ERROR_ZERO_RETURN);
+  CONST(SSL_ERROR_WANT_RETRY_VERIFY);
+
+  CONST(SSL_EARLY_DATA_NOT_SENT);
+  CONST(SSL_EARLY_DATA_REJECTED);
+  CONST(SSL_EARLY_DATA_ACCEPTED);
 
   CONST(TLS1_VERSION);
   CONST(TLS1_1_VERSION);
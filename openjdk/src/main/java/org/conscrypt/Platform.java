@@ -47,6 +47,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketImpl;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.attribute.PosixFilePermission;
@@ -70,6 +71,8 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
@@ -89,8 +92,10 @@ import sun.security.x509.AlgorithmId;
  * Uses reflection to implement Java 8 SSL features for backwards compatibility.
  */
 final class Platform {
+    private static final Logger logger = Logger.getLogger(Platform.class.getName());
     private static final int JAVA_VERSION = javaVersion0();
     private static final Method GET_CURVE_NAME_METHOD;
+    private static volatile boolean fileDescriptorFallbackLogged;
 
     static {
 
@@ -216,6 +221,29 @@ final class Platform {
     }
 
     @SuppressWarnings("unused")
+    /**
+     * Returns the file descriptor backing {@code channel}, or {@code null} if it isn't
+     * accessible. From Java 16 on, the file descriptor is only accessible if the application is
+     * run with {@code --add-opens java.base/sun.nio.ch=ALL-UNNAMED}.
+     */
+    static FileDescriptor getFileDescriptor(FileChannel channel) {
+        try {
+            Field f_fd = channel.getClass().getDeclaredField("fd");
+            f_fd.setAccessible(true);
+            return (FileDescriptor) f_fd.get(channel);
+        } catch (Exception e) {
+            if (!fileDescriptorFallbackLogged) {
+                fileDescriptorFallbackLogged = true;
+                logger.log(Level.INFO, "Can't get the file descriptor of "
+                                + channel.getClass().getName()
+                                + ", files are sent without sendfile. Run with --add-opens "
+                                + "java.base/sun.nio.ch=ALL-UNNAMED to use sendfile.",
+                        e);
+            }
+            return null;
+        }
+    }
+
     static FileDescriptor getFileDescriptorFromSSLSocket(AbstractConscryptSocket socket) {
         return getFileDescriptor(socket);
     }
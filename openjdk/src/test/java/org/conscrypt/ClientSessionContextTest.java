@@ -18,10 +18,15 @@ package org.conscrypt;
 
 import static org.conscrypt.MockSessionBuilder.DEFAULT_PORT;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 
 import java.security.KeyManagementException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -113,4 +118,96 @@ public class ClientSessionContextTest extends AbstractSessionContextTest<ClientS
                 context.getCachedSession("host", DEFAULT_PORT, getDefaultSSLParameters()));
         assertEquals(0, size(context));
     }
+
+    @Test
+    public void testTicketRequestsRefillPool() {
+        ClientSessionContext context = newContext();
+        assertEquals(0, context.getTicketRequest("host", DEFAULT_PORT));
+
+        context.setTicketPoolSize(4);
+        assertEquals(4, context.getTicketRequest("host", DEFAULT_PORT));
+        for (int i = 0; i < 3; i++) {
+            context.cacheSession(new MockSessionBuilder()
+                    .id(new byte[] {(byte) i}).host("host").singleUse(true).build());
+        }
+        assertEquals(1, context.getTicketRequest("host", DEFAULT_PORT));
+        assertEquals(4, context.getTicketRequest("other", DEFAULT_PORT));
+
+        assertNotNull(context.getCachedSession("host", DEFAULT_PORT, getDefaultSSLParameters()));
+        assertEquals(2, context.getTicketRequest("host", DEFAULT_PORT));
+
+        context.cacheSession(new MockSessionBuilder()
+                .id(new byte[] {3}).host("host").singleUse(true).build());
+        context.cacheSession(new MockSessionBuilder()
+                .id(new byte[] {4}).host("host").singleUse(true).build());
+        // A full pool still replaces the ticket each connection uses.
+        assertEquals(1, context.getTicketRequest("host", DEFAULT_PORT));
+    }
+
+    @Test
+    public void testTicketPoolHitAndMissCounts() {
+        ClientSessionContext context = newContext();
+        context.cacheSession(new MockSessionBuilder()
+                .id(new byte[] {1}).host("host").singleUse(true).build());
+        context.cacheSession(new MockSessionBuilder()
+                .id(new byte[] {2}).host("host").singleUse(true).valid(false).build());
+
+        assertNotNull(context.getCachedSession("host", DEFAULT_PORT, getDefaultSSLParameters()));
+        assertNull(context.getCachedSession("host", DEFAULT_PORT, getDefaultSSLParameters()));
+        assertNull(context.getCachedSession("other", DEFAULT_PORT, getDefaultSSLParameters()));
+
+        assertEquals(1, context.getTicketPoolHitCount());
+        assertEquals(2, context.getTicketPoolMissCount());
+        // The invalid ticket was dropped rather than handed out.
+        assertEquals(0, size(context));
+    }
+
+    @Test
+    public void testParallelConnectionsTakeDistinctTickets() throws Exception {
+        final int connections = 200;
+        final ClientSessionContext context = newContext();
+        context.setSessionCacheSize(connections);
+        for (int i = 0; i < connections; i++) {
+            context.cacheSession(new MockSessionBuilder()
+                    .id(new byte[] {(byte) (i >> 8), (byte) i})
+                    .host("host")
+                    .singleUse(true)
+                    .build());
+        }
+        assertEquals(connections, size(context));
+
+        final SSLParametersImpl parameters = getDefaultSSLParameters();
+        final Set<NativeSslSession> taken =
+                Collections.synchronizedSet(Collections.newSetFromMap(
+                        new IdentityHashMap<NativeSslSession, Boolean>()));
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    NativeSslSession session =
+                            context.getCachedSession("host", DEFAULT_PORT, parameters);
+                    if (session != null) {
+                        taken.add(session);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(connections, taken.size());
+        assertEquals(connections, context.getTicketPoolHitCount());
+        assertEquals(0, size(context));
+        assertEquals(0, context.getTicketPoolMissCount());
+    }
 }
@@ -24,19 +24,40 @@ import static org.conscrypt.TestUtils.newTextMessage;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.same;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.security.PrivateKey;
 import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Cipher;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -45,6 +66,7 @@ import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.X509ExtendedKeyManager;
 import org.conscrypt.java.security.TestKeyStore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -277,6 +299,684 @@ public class ConscryptEngineTest {
         exchangeMessage(inputBuffer, clientEngine, serverEngine);
     }
 
+    @Test
+    public void multiRecordWrapShouldWrapWholeMessage() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+        Conscrypt.setMultiRecordWrapEnabled(clientEngine, true);
+
+        final int messageSize = 256 * 1024;
+        ByteBuffer message = newMessage(messageSize);
+        byte[] messageBytes = toArray(message);
+        int numRecords = messageSize / 16384 + 1;
+        ByteBuffer encrypted = bufferType.newBuffer(
+                numRecords * clientEngine.getSession().getPacketBufferSize());
+
+        // A single call should seal every record.
+        SSLEngineResult wrapResult = clientEngine.wrap(message, encrypted);
+        assertEquals(Status.OK, wrapResult.getStatus());
+        assertEquals(messageSize, wrapResult.bytesConsumed());
+        assertFalse(message.hasRemaining());
+        assertEquals(encrypted.position(), wrapResult.bytesProduced());
+        encrypted.flip();
+
+        byte[] actualBytes = unwrap(new ByteBuffer[] {encrypted}, serverEngine);
+        assertArrayEquals(messageBytes, actualBytes);
+    }
+
+    @Test
+    public void multiRecordWrapShouldStopWhenDstIsFull() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+        Conscrypt.setMultiRecordWrapEnabled(clientEngine, true);
+
+        ByteBuffer message = newMessage(64 * 1024);
+        byte[] messageBytes = toArray(message);
+        int packetBufferSize = clientEngine.getSession().getPacketBufferSize();
+
+        // Room for two records per call.
+        List<ByteBuffer> encryptedBuffers = new ArrayList<ByteBuffer>();
+        while (message.hasRemaining()) {
+            ByteBuffer encrypted = bufferType.newBuffer(2 * packetBufferSize);
+            SSLEngineResult wrapResult = clientEngine.wrap(message, encrypted);
+            assertEquals(Status.OK, wrapResult.getStatus());
+            assertTrue(wrapResult.bytesConsumed() <= 2 * 16384);
+            encrypted.flip();
+            encryptedBuffers.add(encrypted);
+        }
+        assertEquals(2, encryptedBuffers.size());
+
+        byte[] actualBytes = unwrap(
+                encryptedBuffers.toArray(new ByteBuffer[0]), serverEngine);
+        assertArrayEquals(messageBytes, actualBytes);
+    }
+
+    @Test
+    public void dynamicRecordSizeShouldRampUpToFullRecords() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+        Conscrypt.setRecordSizePolicy(clientEngine, RecordSizePolicy.dynamic(1000, 3000, 60000));
+
+        ByteBuffer message = newMessage(64 * 1024);
+        byte[] messageBytes = toArray(message);
+        int packetBufferSize = clientEngine.getSession().getPacketBufferSize();
+
+        List<Integer> recordSizes = new ArrayList<Integer>();
+        List<ByteBuffer> encryptedBuffers = new ArrayList<ByteBuffer>();
+        while (message.hasRemaining()) {
+            ByteBuffer encrypted = bufferType.newBuffer(packetBufferSize);
+            SSLEngineResult wrapResult = clientEngine.wrap(message, encrypted);
+            assertEquals(Status.OK, wrapResult.getStatus());
+            recordSizes.add(wrapResult.bytesConsumed());
+            encrypted.flip();
+            encryptedBuffers.add(encrypted);
+        }
+        // Small records until the threshold has been sent, full-size records after that.
+        assertEquals(Arrays.asList(1000, 1000, 1000, 16384), recordSizes.subList(0, 4));
+
+        byte[] actualBytes = unwrap(
+                encryptedBuffers.toArray(new ByteBuffer[0]), serverEngine);
+        assertArrayEquals(messageBytes, actualBytes);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullRecordSizePolicyShouldThrow() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        Conscrypt.setRecordSizePolicy(clientEngine, null);
+    }
+
+    @Test
+    public void delegatedTaskShouldVerifyServerCertificate() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        Conscrypt.setDelegatedTasksEnabled(clientEngine, true);
+        clientEngine.beginHandshake();
+        serverEngine.beginHandshake();
+
+        ByteBuffer empty = bufferType.newBuffer(0);
+        ByteBuffer clientToServer =
+                bufferType.newBuffer(clientEngine.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient =
+                bufferType.newBuffer(serverEngine.getSession().getPacketBufferSize());
+        ByteBuffer clientApp =
+                bufferType.newBuffer(clientEngine.getSession().getApplicationBufferSize());
+        ByteBuffer serverApp =
+                bufferType.newBuffer(serverEngine.getSession().getApplicationBufferSize());
+
+        int tasks = 0;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 100 && !(isHandshakeDone(clientEngine)
+                    && isHandshakeDone(serverEngine)); i++) {
+                if (clientEngine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    Runnable task = clientEngine.getDelegatedTask();
+                    assertNotNull(task);
+                    // The task is only handed out once.
+                    assertNull(clientEngine.getDelegatedTask());
+                    executor.submit(task).get();
+                    tasks++;
+                    continue;
+                }
+                clientEngine.wrap(empty, clientToServer);
+                serverEngine.wrap(empty, serverToClient);
+                clientToServer.flip();
+                serverEngine.unwrap(clientToServer, serverApp);
+                clientToServer.compact();
+                serverToClient.flip();
+                clientEngine.unwrap(serverToClient, clientApp);
+                serverToClient.compact();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, tasks);
+        assertTrue(isHandshakeDone(clientEngine));
+        assertTrue(isHandshakeDone(serverEngine));
+        exchangeMessage(newMessage(MESSAGE_SIZE), clientEngine, serverEngine);
+    }
+
+    private static boolean isHandshakeDone(SSLEngine engine) {
+        return engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    @Test
+    public void asyncPrivateKeyMethodShouldSignWithRsaKeyOnDelegatedTask() throws Exception {
+        assertTrue(doAsyncPrivateKeyHandshake(TestKeyStore.getServer(), "RSA").startsWith("RSA/"));
+    }
+
+    @Test
+    public void asyncPrivateKeyMethodShouldSignWithEcKeyOnDelegatedTask() throws Exception {
+        assertEquals("NONEwithECDSA",
+                doAsyncPrivateKeyHandshake(TestKeyStore.getClientEcRsaCertificate(), "EC"));
+    }
+
+    /**
+     * Completes a handshake with a server whose {@code keyType} key from {@code serverKeyStore}
+     * is only used through an {@link AsyncPrivateKeyMethod}, and returns the algorithm the key
+     * signed with.
+     */
+    private String doAsyncPrivateKeyHandshake(TestKeyStore serverKeyStore, String keyType)
+            throws Exception {
+        final ScheduledExecutorService keyService = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger signatures = new AtomicInteger();
+        final AtomicReference<String> signatureAlgorithm = new AtomicReference<String>();
+        final AtomicReference<HandshakeStatus> statusWhileSigning =
+                new AtomicReference<HandshakeStatus>();
+        // Stands in for a remote key service, signing with the actual key after a delay.
+        AsyncPrivateKeyMethod method = new AsyncPrivateKeyMethod() {
+            @Override
+            public Future<byte[]> sign(final PrivateKey key, final String algorithm,
+                    final byte[] input) {
+                signatures.incrementAndGet();
+                signatureAlgorithm.set(algorithm);
+                return keyService.schedule(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        // The task waiting for the signature doesn't lock the engine.
+                        statusWhileSigning.set(serverEngine.getHandshakeStatus());
+                        return signWithActualKey(key, algorithm, input);
+                    }
+                }, 10, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public Future<byte[]> decrypt(PrivateKey key, String transformation, byte[] input) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        try {
+            setupClientEngine(getConscryptProvider(), TestKeyStore.getClient());
+            setupOpaqueKeyServerEngine(serverKeyStore, keyType, method);
+
+            doHandshake(true);
+
+            assertEquals(1, signatures.get());
+            assertEquals(HandshakeStatus.NEED_TASK, statusWhileSigning.get());
+            exchangeMessage(newMessage(MESSAGE_SIZE), clientEngine, serverEngine);
+            return signatureAlgorithm.get();
+        } finally {
+            keyService.shutdown();
+        }
+    }
+
+    @Test
+    public void delegatedHandshakeShouldAnswerOtherThreadsWhileRunning() throws Exception {
+        final CountDownLatch signing = new CountDownLatch(1);
+        final CountDownLatch signatureReleased = new CountDownLatch(1);
+        final ExecutorService keyService = Executors.newSingleThreadExecutor();
+        AsyncPrivateKeyMethod method = new AsyncPrivateKeyMethod() {
+            @Override
+            public Future<byte[]> sign(final PrivateKey key, final String algorithm,
+                    final byte[] input) {
+                return keyService.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        signing.countDown();
+                        signatureReleased.await();
+                        return signWithActualKey(key, algorithm, input);
+                    }
+                });
+            }
+
+            @Override
+            public Future<byte[]> decrypt(PrivateKey key, String transformation, byte[] input) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        ExecutorService taskRunner = Executors.newSingleThreadExecutor();
+        try {
+            setupClientEngine(getConscryptProvider(), TestKeyStore.getClient());
+            setupOpaqueKeyServerEngine(TestKeyStore.getServer(), "RSA", method);
+            clientEngine.beginHandshake();
+            serverEngine.beginHandshake();
+
+            ByteBuffer empty = bufferType.newBuffer(0);
+            ByteBuffer clientToServer =
+                    bufferType.newBuffer(clientEngine.getSession().getPacketBufferSize());
+            ByteBuffer serverToClient =
+                    bufferType.newBuffer(serverEngine.getSession().getPacketBufferSize());
+            ByteBuffer clientApp =
+                    bufferType.newBuffer(clientEngine.getSession().getApplicationBufferSize());
+            ByteBuffer serverApp =
+                    bufferType.newBuffer(serverEngine.getSession().getApplicationBufferSize());
+
+            int tasks = 0;
+            for (int i = 0; i < 100 && !(isHandshakeDone(clientEngine)
+                    && isHandshakeDone(serverEngine)); i++) {
+                if (serverEngine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    Future<?> task = taskRunner.submit(serverEngine.getDelegatedTask());
+                    tasks++;
+                    assertTrue(signing.await(5, TimeUnit.SECONDS));
+
+                    // The task is in the middle of the handshake, the engine answers without
+                    // touching the SSL.
+                    assertEquals(HandshakeStatus.NEED_TASK, serverEngine.getHandshakeStatus());
+                    assertFalse(serverEngine.isInboundDone());
+                    assertFalse(serverEngine.isOutboundDone());
+                    assertEquals("SSL_NULL_WITH_NULL_NULL",
+                            serverEngine.getSession().getCipherSuite());
+                    assertNotNull(serverEngine.getHandshakeSession().getCipherSuite());
+                    SSLEngineResult result = serverEngine.wrap(empty, serverToClient);
+                    assertEquals(HandshakeStatus.NEED_TASK, result.getHandshakeStatus());
+                    assertEquals(0, result.bytesProduced());
+
+                    signatureReleased.countDown();
+                    task.get(5, TimeUnit.SECONDS);
+                    continue;
+                }
+                clientEngine.wrap(empty, clientToServer);
+                serverEngine.wrap(empty, serverToClient);
+                clientToServer.flip();
+                serverEngine.unwrap(clientToServer, serverApp);
+                clientToServer.compact();
+                serverToClient.flip();
+                clientEngine.unwrap(serverToClient, clientApp);
+                serverToClient.compact();
+            }
+
+            // Only the ClientHello needs the private key, the client's Finished is processed
+            // without a task.
+            assertEquals(1, tasks);
+            assertTrue(isHandshakeDone(clientEngine));
+            assertTrue(isHandshakeDone(serverEngine));
+            exchangeMessage(newMessage(MESSAGE_SIZE), clientEngine, serverEngine);
+        } finally {
+            taskRunner.shutdown();
+            keyService.shutdown();
+        }
+    }
+
+    /**
+     * Sets up a server engine with delegated tasks whose {@code keyType} key from
+     * {@code serverKeyStore} is only used through {@code method}.
+     */
+    private void setupOpaqueKeyServerEngine(TestKeyStore serverKeyStore, String keyType,
+            AsyncPrivateKeyMethod method) throws Exception {
+        SSLContext serverContext =
+                SSLContext.getInstance(getProtocols()[0], getConscryptProvider());
+        serverContext.init(new KeyManager[] {new OpaqueKeyManager(
+                                   (X509ExtendedKeyManager) serverKeyStore.keyManagers[0],
+                                   keyType, method)},
+                serverKeyStore.trustManagers, null);
+        serverEngine = serverContext.createSSLEngine();
+        serverEngine.setEnabledCipherSuites(TestUtils.getCommonCipherSuites());
+        serverEngine.setUseClientMode(false);
+        Conscrypt.setDelegatedTasksEnabled(serverEngine, true);
+    }
+
+    /**
+     * Performs an {@link AsyncPrivateKeyMethod} signature with the key behind an
+     * {@link OpaqueKey}.
+     */
+    private static byte[] signWithActualKey(PrivateKey key, String algorithm, byte[] input)
+            throws Exception {
+        PrivateKey actualKey = ((OpaqueKey) key).actualKey;
+        if (algorithm.startsWith("RSA/")) {
+            Cipher cipher = Cipher.getInstance(algorithm);
+            cipher.init(Cipher.ENCRYPT_MODE, actualKey);
+            return cipher.doFinal(input);
+        }
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initSign(actualKey);
+        signature.update(input);
+        return signature.sign();
+    }
+
+    /**
+     * A private key whose key material isn't accessible.
+     */
+    private static final class OpaqueKey implements PrivateKey {
+        private final PrivateKey actualKey;
+
+        OpaqueKey(PrivateKey actualKey) {
+            this.actualKey = actualKey;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return actualKey.getAlgorithm();
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+    }
+
+    /**
+     * Hands out opaque keys that are used through an {@link AsyncPrivateKeyMethod}. Only offers
+     * a server key of the given type.
+     */
+    private static final class OpaqueKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager delegate;
+        private final String serverKeyType;
+        private final AsyncPrivateKeyMethod method;
+        private final ConcurrentMap<String, OpaqueKey> keys =
+                new ConcurrentHashMap<String, OpaqueKey>();
+
+        OpaqueKeyManager(X509ExtendedKeyManager delegate, String serverKeyType,
+                AsyncPrivateKeyMethod method) {
+            this.delegate = delegate;
+            this.serverKeyType = serverKeyType;
+            this.method = method;
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return delegate.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+            return delegate.chooseClientAlias(keyTypes, issuers, socket);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return delegate.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            if (!serverKeyType.equals(keyType)) {
+                return null;
+            }
+            return delegate.chooseServerAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String chooseEngineServerAlias(
+                String keyType, Principal[] issuers, SSLEngine engine) {
+            if (!serverKeyType.equals(keyType)) {
+                return null;
+            }
+            return delegate.chooseEngineServerAlias(keyType, issuers, engine);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return delegate.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            OpaqueKey key = keys.get(alias);
+            if (key == null) {
+                key = new OpaqueKey(delegate.getPrivateKey(alias));
+                Conscrypt.setAsyncPrivateKeyMethod(key, method);
+                OpaqueKey existing = keys.putIfAbsent(alias, key);
+                if (existing != null) {
+                    key = existing;
+                }
+            }
+            return key;
+        }
+    }
+
+    @Test
+    public void wrapShouldSealFragmentsIntoSingleRecord() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+
+        ByteBuffer header = newMessage(100);
+        ByteBuffer body = newMessage(1000);
+        ByteBuffer trailer = newMessage(10);
+        byte[] messageBytes = new byte[1110];
+        System.arraycopy(toArray(header), 0, messageBytes, 0, 100);
+        System.arraycopy(toArray(body), 0, messageBytes, 100, 1000);
+        System.arraycopy(toArray(trailer), 0, messageBytes, 1100, 10);
+
+        ByteBuffer encrypted =
+                bufferType.newBuffer(clientEngine.getSession().getPacketBufferSize());
+        SSLEngineResult wrapResult =
+                clientEngine.wrap(new ByteBuffer[] {header, body, trailer}, encrypted);
+        assertEquals(Status.OK, wrapResult.getStatus());
+        assertEquals(1110, wrapResult.bytesConsumed());
+        assertFalse(header.hasRemaining());
+        assertFalse(body.hasRemaining());
+        assertFalse(trailer.hasRemaining());
+        encrypted.flip();
+
+        // All of the fragments should end up in a single record.
+        ByteBuffer decrypted =
+                bufferType.newBuffer(serverEngine.getSession().getApplicationBufferSize());
+        SSLEngineResult unwrapResult = serverEngine.unwrap(encrypted, decrypted);
+        assertEquals(Status.OK, unwrapResult.getStatus());
+        assertFalse(encrypted.hasRemaining());
+        decrypted.flip();
+        assertArrayEquals(messageBytes, toArray(decrypted));
+    }
+
+    @Test
+    public void heapBufferPinningShouldExchangeData() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        Conscrypt.setHeapBufferPinningEnabled(clientEngine, true);
+        Conscrypt.setHeapBufferPinningEnabled(serverEngine, true);
+        doHandshake(true);
+
+        ByteBuffer request = newMessage(64 * 1024);
+        byte[] requestBytes = toArray(request);
+        List<ByteBuffer> encryptedRequest = wrap(request, clientEngine);
+        assertArrayEquals(requestBytes,
+                unwrap(encryptedRequest.toArray(new ByteBuffer[0]), serverEngine));
+
+        ByteBuffer response = newMessage(64 * 1024);
+        byte[] responseBytes = toArray(response);
+        List<ByteBuffer> encryptedResponse = wrap(response, serverEngine);
+        assertArrayEquals(responseBytes,
+                unwrap(encryptedResponse.toArray(new ByteBuffer[0]), clientEngine));
+    }
+
+    @Test
+    public void fullDuplexShouldWrapAndUnwrapConcurrently() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        Conscrypt.setFullDuplexEnabled(clientEngine, true);
+        doHandshake(true);
+
+        final int messageSize = 256 * 1024;
+        ByteBuffer response = newMessage(messageSize);
+        byte[] responseBytes = toArray(response);
+        final ByteBuffer[] encryptedResponse =
+                wrap(response, serverEngine).toArray(new ByteBuffer[0]);
+        ByteBuffer request = newMessage(messageSize);
+        byte[] requestBytes = toArray(request);
+
+        // The client decrypts the response on another thread while encrypting the request.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> decryptedResponse = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return unwrap(encryptedResponse, clientEngine);
+                }
+            });
+            List<ByteBuffer> encryptedRequest = wrap(request, clientEngine);
+
+            assertArrayEquals(responseBytes, decryptedResponse.get());
+            assertArrayEquals(requestBytes,
+                    unwrap(encryptedRequest.toArray(new ByteBuffer[0]), serverEngine));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void fullDuplexShouldCloseWhileWrapping() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        Conscrypt.setFullDuplexEnabled(clientEngine, true);
+        doHandshake(true);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> wrapping = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ByteBuffer encrypted = bufferType.newBuffer(
+                            clientEngine.getSession().getPacketBufferSize());
+                    while (!clientEngine.isOutboundDone()) {
+                        encrypted.clear();
+                        clientEngine.wrap(newMessage(1024), encrypted);
+                    }
+                    return null;
+                }
+            });
+            clientEngine.closeInbound();
+            clientEngine.closeOutbound();
+            wrapping.get();
+            assertTrue(clientEngine.isInboundDone());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fullDuplexShouldNotBeEnabledAfterHandshake() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+        Conscrypt.setFullDuplexEnabled(clientEngine, true);
+    }
+
+    @Test
+    public void reusableResultShouldBeFilledIn() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+
+        ByteBuffer message = newMessage(MESSAGE_SIZE);
+        byte[] messageBytes = toArray(message);
+        ByteBuffer[] srcs = {newMessage(10), message, newMessage(10)};
+        ByteBuffer encrypted =
+                bufferType.newBuffer(clientEngine.getSession().getPacketBufferSize());
+        ReusableEngineResult result = new ReusableEngineResult();
+
+        // Wrap only the middle buffer.
+        assertSame(result, Conscrypt.wrap(clientEngine, srcs, 1, 1, encrypted, result));
+        assertEquals(Status.OK, result.getStatus());
+        assertEquals(HandshakeStatus.NOT_HANDSHAKING, result.getHandshakeStatus());
+        assertEquals(MESSAGE_SIZE, result.bytesConsumed());
+        assertEquals(encrypted.position(), result.bytesProduced());
+        assertFalse(message.hasRemaining());
+        assertEquals(10, srcs[0].remaining());
+        assertEquals(10, srcs[2].remaining());
+        encrypted.flip();
+
+        ByteBuffer decrypted =
+                bufferType.newBuffer(serverEngine.getSession().getApplicationBufferSize());
+        assertSame(result,
+                Conscrypt.unwrap(serverEngine, new ByteBuffer[] {encrypted}, 0, 1,
+                        new ByteBuffer[] {decrypted}, 0, 1, result));
+        assertEquals(Status.OK, result.getStatus());
+        assertEquals(MESSAGE_SIZE, result.bytesProduced());
+        decrypted.flip();
+        assertArrayEquals(messageBytes, toArray(decrypted));
+
+        // Results of the standard methods are not affected by the reusable one.
+        SSLEngineResult standardResult = clientEngine.wrap(newMessage(10), encrypted);
+        assertEquals(Status.BUFFER_OVERFLOW, standardResult.getStatus());
+        assertEquals(Status.OK, result.getStatus());
+    }
+
+    @Test
+    public void multiRecordUnwrapShouldUnwrapAllRecords() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+        Conscrypt.setMultiRecordWrapEnabled(clientEngine, true);
+        Conscrypt.setMultiRecordUnwrapEnabled(serverEngine, true);
+
+        final int messageSize = 64 * 1024;
+        ByteBuffer message = newMessage(messageSize);
+        byte[] messageBytes = toArray(message);
+        ByteBuffer encrypted = bufferType.newBuffer(
+                (messageSize / 16384 + 1) * clientEngine.getSession().getPacketBufferSize());
+        clientEngine.wrap(message, encrypted);
+        assertFalse(message.hasRemaining());
+        encrypted.flip();
+        int encryptedLength = encrypted.remaining();
+
+        // A single call should decrypt every record.
+        ByteBuffer decrypted = bufferType.newBuffer(
+                messageSize + serverEngine.getSession().getApplicationBufferSize());
+        SSLEngineResult unwrapResult = serverEngine.unwrap(encrypted, decrypted);
+        assertEquals(Status.OK, unwrapResult.getStatus());
+        assertEquals(encryptedLength, unwrapResult.bytesConsumed());
+        assertEquals(messageSize, unwrapResult.bytesProduced());
+        assertFalse(encrypted.hasRemaining());
+
+        decrypted.flip();
+        assertArrayEquals(messageBytes, toArray(decrypted));
+    }
+
+    @Test
+    public void multiRecordUnwrapShouldStopWhenDstIsFull() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        doHandshake(true);
+        Conscrypt.setMultiRecordUnwrapEnabled(serverEngine, true);
+
+        final int messageSize = 64 * 1024;
+        ByteBuffer message = newMessage(messageSize);
+        ByteBuffer encrypted = bufferType.newBuffer(
+                (messageSize / 16384 + 1) * clientEngine.getSession().getPacketBufferSize());
+        while (message.hasRemaining()) {
+            clientEngine.wrap(message, encrypted);
+        }
+        encrypted.flip();
+
+        // Room for two full records, but not for a third.
+        ByteBuffer decrypted = bufferType.newBuffer(2 * 16384 + 1024);
+        SSLEngineResult unwrapResult = serverEngine.unwrap(encrypted, decrypted);
+        assertEquals(Status.OK, unwrapResult.getStatus());
+        assertEquals(2 * 16384, unwrapResult.bytesProduced());
+        assertTrue(encrypted.hasRemaining());
+    }
+
+    @Test
+    public void multiRecordUnwrapShouldReportHandshakeFinished() throws Exception {
+        setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
+        Conscrypt.setMultiRecordUnwrapEnabled(clientEngine, true);
+        Conscrypt.setMultiRecordUnwrapEnabled(serverEngine, true);
+        clientEngine.beginHandshake();
+        serverEngine.beginHandshake();
+
+        ByteBuffer empty = bufferType.newBuffer(0);
+        ByteBuffer clientToServer =
+                bufferType.newBuffer(clientEngine.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient =
+                bufferType.newBuffer(serverEngine.getSession().getPacketBufferSize());
+        ByteBuffer clientApp =
+                bufferType.newBuffer(clientEngine.getSession().getApplicationBufferSize());
+        ByteBuffer serverApp =
+                bufferType.newBuffer(serverEngine.getSession().getApplicationBufferSize());
+
+        // Each engine has to report FINISHED from the call that completes its handshake, even
+        // when that call is handed a whole flight of records.
+        boolean clientFinished = false;
+        boolean serverFinished = false;
+        for (int i = 0; i < 100 && !(clientFinished && serverFinished); i++) {
+            clientFinished |= clientEngine.wrap(empty, clientToServer).getHandshakeStatus()
+                    == HandshakeStatus.FINISHED;
+            serverFinished |= serverEngine.wrap(empty, serverToClient).getHandshakeStatus()
+                    == HandshakeStatus.FINISHED;
+            clientToServer.flip();
+            serverFinished |= serverEngine.unwrap(clientToServer, serverApp).getHandshakeStatus()
+                    == HandshakeStatus.FINISHED;
+            clientToServer.compact();
+            serverToClient.flip();
+            clientFinished |= clientEngine.unwrap(serverToClient, clientApp).getHandshakeStatus()
+                    == HandshakeStatus.FINISHED;
+            serverToClient.compact();
+        }
+
+        assertTrue(clientFinished);
+        assertTrue(serverFinished);
+        exchangeMessage(newMessage(MESSAGE_SIZE), clientEngine, serverEngine);
+    }
+
     @Test
     public void alpnWithProtocolListShouldSucceed() throws Exception {
         setupEngines(TestKeyStore.getClient(), TestKeyStore.getServer());
@@ -416,6 +1116,232 @@ public class ConscryptEngineTest {
         assertEquals(alpnProtocol, Conscrypt.getApplicationProtocol(clientEngine));
     }
 
+    @Test
+    public void earlyDataShouldBeAcceptedOnResumedSession() throws Exception {
+        SSLContext clientContext = newContext(getConscryptProvider(), TestKeyStore.getClient());
+        SSLContext serverContext = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        byte[] request = newTextMessage(1000);
+
+        // The full handshake gets the client a ticket that allows early data.
+        assertEquals(0, connectWithEarlyData(clientContext, serverContext, null, new byte[0]).length);
+        assertFalse(Conscrypt.isEarlyDataAccepted(clientEngine));
+
+        assertArrayEquals(request, connectWithEarlyData(clientContext, serverContext, null, request));
+        assertTrue(Conscrypt.isEarlyDataAccepted(clientEngine));
+        assertTrue(Conscrypt.isEarlyDataAccepted(serverEngine));
+
+        final AtomicInteger checks = new AtomicInteger();
+        EarlyDataReplayProtection rejectAll = new EarlyDataReplayProtection() {
+            @Override
+            public boolean allowEarlyData(byte[] sessionId, byte[] clientRandom) {
+                checks.incrementAndGet();
+                return false;
+            }
+        };
+        // Rejected early data is skipped, so the client has to send it again.
+        assertEquals(0, connectWithEarlyData(clientContext, serverContext, rejectAll, request).length);
+        assertEquals(1, checks.get());
+        assertFalse(Conscrypt.isEarlyDataAccepted(clientEngine));
+        assertFalse(Conscrypt.isEarlyDataAccepted(serverEngine));
+        exchangeMessage(newMessage(MESSAGE_SIZE), clientEngine, serverEngine);
+    }
+
+    /**
+     * Connects new TLS 1.3 engines of the given contexts, with the client offering
+     * {@code earlyData} in its first flight, and returns the early data the server read.
+     */
+    private byte[] connectWithEarlyData(SSLContext clientContext, SSLContext serverContext,
+            EarlyDataReplayProtection protection, byte[] earlyData) throws Exception {
+        // The client session cache is only used for engines with a peer host and port.
+        clientEngine = clientContext.createSSLEngine("localhost", 443);
+        clientEngine.setUseClientMode(true);
+        clientEngine.setEnabledProtocols(new String[] {"TLSv1.3"});
+        serverEngine = serverContext.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.setEnabledProtocols(new String[] {"TLSv1.3"});
+        Conscrypt.setMaxEarlyData(clientEngine, 16384);
+        Conscrypt.setMaxEarlyData(serverEngine, 16384);
+        Conscrypt.setEarlyDataReplayProtection(serverEngine, protection);
+        clientEngine.beginHandshake();
+        serverEngine.beginHandshake();
+
+        ByteBuffer empty = bufferType.newBuffer(0);
+        ByteBuffer request = bufferType.newBuffer(earlyData.length);
+        request.put(earlyData);
+        request.flip();
+        ByteBuffer clientToServer =
+                bufferType.newBuffer(2 * clientEngine.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient =
+                bufferType.newBuffer(serverEngine.getSession().getPacketBufferSize());
+        ByteBuffer clientApp =
+                bufferType.newBuffer(clientEngine.getSession().getApplicationBufferSize());
+        ByteBuffer serverApp =
+                bufferType.newBuffer(serverEngine.getSession().getApplicationBufferSize());
+
+        for (int i = 0; i < 100 && !(isHandshakeDone(clientEngine)
+                && isHandshakeDone(serverEngine)); i++) {
+            // Only the first wrap can carry early data.
+            clientEngine.wrap(i == 0 ? request : empty, clientToServer);
+            serverEngine.wrap(empty, serverToClient);
+            clientToServer.flip();
+            serverEngine.unwrap(clientToServer, serverApp);
+            clientToServer.compact();
+            serverToClient.flip();
+            clientEngine.unwrap(serverToClient, clientApp);
+            serverToClient.compact();
+        }
+        assertTrue(isHandshakeDone(clientEngine));
+        assertTrue(isHandshakeDone(serverEngine));
+
+        // Delivers the ticket for the next connection.
+        exchangeMessage(newMessage(MESSAGE_SIZE), serverEngine, clientEngine);
+
+        serverApp.flip();
+        return toArray(serverApp);
+    }
+
+    @Test
+    public void ticketKeysShouldResumeSessionsOnOtherServers() throws Exception {
+        byte[] oldKey = newTicketKey();
+        byte[] currentKey = newTicketKey();
+        SSLContext clientContext = newContext(getConscryptProvider(), TestKeyStore.getClient());
+        SSLContext oldServer = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        SSLContext newServer = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        SSLContext otherServer = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        Conscrypt.setSessionTicketKeys(oldServer, oldKey);
+        Conscrypt.setSessionTicketKeys(newServer, currentKey, oldKey);
+        Conscrypt.setSessionTicketKeys(otherServer, newTicketKey());
+        ServerSessionContext newSessions =
+                (ServerSessionContext) newServer.getServerSessionContext();
+        ServerSessionContext otherSessions =
+                (ServerSessionContext) otherServer.getServerSessionContext();
+
+        connectWithTicket(clientContext, oldServer);
+        connectWithTicket(clientContext, newServer);
+        assertEquals(0, newSessions.getCurrentTicketKeyDecryptCount());
+        assertEquals(1, newSessions.getPreviousTicketKeyDecryptCount());
+
+        // The ticket was renewed under the current key.
+        connectWithTicket(clientContext, newServer);
+        assertEquals(1, newSessions.getCurrentTicketKeyDecryptCount());
+        assertEquals(1, newSessions.getPreviousTicketKeyDecryptCount());
+
+        connectWithTicket(clientContext, otherServer);
+        assertEquals(1, otherSessions.getUnknownTicketKeyCount());
+        assertEquals(0, otherSessions.getCurrentTicketKeyDecryptCount());
+    }
+
+    @Test
+    public void scheduledTicketKeysShouldBeInstalledWhenDue() throws Exception {
+        SSLContext clientContext = newContext(getConscryptProvider(), TestKeyStore.getClient());
+        SSLContext serverContext = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        ServerSessionContext sessions =
+                (ServerSessionContext) serverContext.getServerSessionContext();
+        byte[] oldKey = newTicketKey();
+        byte[] currentKey = newTicketKey();
+        Conscrypt.setSessionTicketKeys(serverContext, oldKey);
+        Conscrypt.scheduleSessionTicketKeys(
+                serverContext, System.currentTimeMillis() - 1, currentKey, oldKey);
+        Conscrypt.scheduleSessionTicketKeys(
+                serverContext, System.currentTimeMillis() + 3600 * 1000, newTicketKey());
+
+        connectWithTicket(clientContext, serverContext);
+        connectWithTicket(clientContext, serverContext);
+        assertEquals(1, sessions.getCurrentTicketKeyDecryptCount());
+        assertEquals(0, sessions.getUnknownTicketKeyCount());
+    }
+
+    @Test
+    public void ticketRequestsShouldFillClientTicketPool() throws Exception {
+        SSLContext clientContext = newContext(getConscryptProvider(), TestKeyStore.getClient());
+        SSLContext serverContext = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        Conscrypt.setSessionTicketKeys(serverContext, newTicketKey());
+        Conscrypt.setMaxRequestedTickets(serverContext, 8);
+        Conscrypt.setTicketPoolSize(clientContext, 4);
+        ClientSessionContext sessions =
+                (ClientSessionContext) clientContext.getClientSessionContext();
+
+        connectWithTicket(clientContext, serverContext);
+        assertEquals(4, sessions.size());
+
+        // Resuming uses up one ticket, and the server replaces it.
+        connectWithTicket(clientContext, serverContext);
+        assertEquals(4, sessions.size());
+        assertEquals(1, sessions.getTicketPoolHitCount());
+        assertEquals(1, sessions.getTicketPoolMissCount());
+    }
+
+    @Test
+    public void ticketRequestsShouldBeIgnoredUnlessServerOptsIn() throws Exception {
+        SSLContext clientContext = newContext(getConscryptProvider(), TestKeyStore.getClient());
+        SSLContext serverContext = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        Conscrypt.setSessionTicketKeys(serverContext, newTicketKey());
+        Conscrypt.setTicketPoolSize(clientContext, 4);
+
+        connectWithTicket(clientContext, serverContext);
+        assertEquals(1, ((ClientSessionContext) clientContext.getClientSessionContext()).size());
+    }
+
+    @Test
+    public void ticketRequestsShouldBeCappedAtServerMaximum() throws Exception {
+        SSLContext clientContext = newContext(getConscryptProvider(), TestKeyStore.getClient());
+        SSLContext serverContext = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        Conscrypt.setSessionTicketKeys(serverContext, newTicketKey());
+        Conscrypt.setMaxRequestedTickets(serverContext, 2);
+        Conscrypt.setTicketPoolSize(clientContext, 4);
+
+        connectWithTicket(clientContext, serverContext);
+        assertEquals(2, ((ClientSessionContext) clientContext.getClientSessionContext()).size());
+    }
+
+    /**
+     * Engines that configure their own protocols and cipher suites get them, rather than the
+     * configuration their context compiled for its first engine.
+     */
+    @Test
+    public void engineConfigurationShouldOverrideContextConfiguration() throws Exception {
+        SSLContext clientContext = newContext(getConscryptProvider(), TestKeyStore.getClient());
+        SSLContext serverContext = newContext(getConscryptProvider(), TestKeyStore.getServer());
+        String cipherSuite = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+
+        connectWithTicket(clientContext, serverContext);
+        assertEquals("TLSv1.3", clientEngine.getSession().getProtocol());
+
+        clientEngine = clientContext.createSSLEngine();
+        clientEngine.setUseClientMode(true);
+        clientEngine.setEnabledProtocols(new String[] {"TLSv1.2"});
+        clientEngine.setEnabledCipherSuites(new String[] {cipherSuite});
+        serverEngine = serverContext.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        doHandshake(true);
+        assertEquals("TLSv1.2", clientEngine.getSession().getProtocol());
+        assertEquals(cipherSuite, serverEngine.getSession().getCipherSuite());
+
+        connectWithTicket(clientContext, serverContext);
+        assertEquals("TLSv1.3", clientEngine.getSession().getProtocol());
+    }
+
+    /**
+     * Connects new engines of the given contexts and delivers the server's session ticket to the
+     * client.
+     */
+    private void connectWithTicket(SSLContext clientContext, SSLContext serverContext)
+            throws Exception {
+        // The client session cache is only used for engines with a peer host and port.
+        clientEngine = clientContext.createSSLEngine("localhost", 443);
+        clientEngine.setUseClientMode(true);
+        serverEngine = serverContext.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        doHandshake(true);
+        exchangeMessage(newMessage(MESSAGE_SIZE), serverEngine, clientEngine);
+    }
+
+    private static byte[] newTicketKey() {
+        byte[] key = new byte[ServerSessionContext.TICKET_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
     private void doMutualAuthHandshake(
             TestKeyStore clientKs, TestKeyStore serverKs, ClientAuth clientAuth) throws Exception {
         setupEngines(clientKs, serverKs);
@@ -13,8 +13,11 @@ import org.junit.runners.Suite;
   ClientSessionContextTest.class,
   ConscryptSocketTest.class,
   ConscryptTest.class,
+  ConscryptTlsChannelTest.class,
   DuckTypedPSKKeyManagerTest.class,
   FileClientSessionCacheTest.class,
+  FileServerSessionCacheTest.class,
+  LocalCertificateCacheTest.class,
   NativeCryptoTest.class,
   NativeRefTest.class,
   NativeSslSessionTest.class,
@@ -23,6 +26,7 @@ import org.junit.runners.Suite;
   PlatformTest.class,
   ServerSessionContextTest.class,
   SSLUtilsTest.class,
+  StripedSessionCacheTest.class,
   TestSessionBuilderTest.class,
 })
 public class ConscryptOpenJdkSuite {
@@ -25,15 +25,22 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.when;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.KeyManagementException;
@@ -41,6 +48,7 @@ import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -277,6 +285,7 @@ public class ConscryptSocketTest {
         KeyManager[] keyManagers;
         TrustManager[] trustManagers;
         String[] alpnProtocols;
+        boolean ktlsEnabled;
 
         abstract AbstractConscryptSocket createSocket(ServerSocket listener) throws IOException;
 
@@ -328,6 +337,7 @@ public class ConscryptSocketTest {
             if (alpnProtocols != null) {
                 Conscrypt.setApplicationProtocols(socket, alpnProtocols);
             }
+            Conscrypt.setKtlsEnabled(socket, ktlsEnabled);
             return socket;
         }
     }
@@ -360,6 +370,7 @@ public class ConscryptSocketTest {
             if (alpnProtocolSelector != null) {
                 Conscrypt.setApplicationProtocolSelector(socket, alpnProtocolSelector);
             }
+            Conscrypt.setKtlsEnabled(socket, ktlsEnabled);
             return socket;
         }
     }
@@ -703,6 +714,109 @@ public class ConscryptSocketTest {
         }
     }
 
+    @Test
+    public void dataFlowsWithKtlsEnabled() throws Exception {
+        final TestConnection connection =
+                new TestConnection(new X509Certificate[] {cert, ca}, certKey);
+        connection.clientHooks.ktlsEnabled = true;
+        connection.serverHooks.ktlsEnabled = true;
+        connection.doHandshakeSuccess();
+
+        // Whether the kernel takes over depends on the host, but data has to flow either way.
+        if (socketType == SocketType.ENGINE) {
+            assertFalse(Conscrypt.isKtlsSendEnabled(connection.client));
+            assertFalse(Conscrypt.isKtlsReceiveEnabled(connection.client));
+        }
+        for (int i = 0; i < 10; i++) {
+            sendData(connection.client, connection.server, randomBuffer());
+            sendData(connection.server, connection.client, randomBuffer());
+        }
+    }
+
+    @Test
+    public void transferFromShouldSendFileRegion() throws Exception {
+        final TestConnection connection =
+                new TestConnection(new X509Certificate[] {cert, ca}, certKey);
+        connection.doHandshakeSuccess();
+
+        transferFileRegion(connection, false);
+    }
+
+    @Test
+    public void transferFromShouldSendFileRegionWithSendfile() throws Exception {
+        final TestConnection connection =
+                new TestConnection(new X509Certificate[] {cert, ca}, certKey);
+        connection.clientHooks.ktlsEnabled = true;
+        connection.serverHooks.ktlsEnabled = true;
+        connection.doHandshakeSuccess();
+
+        // Only hosts whose kernel takes over sending use sendfile.
+        assumeTrue(Conscrypt.isKtlsSendEnabled(connection.client));
+        transferFileRegion(connection, true);
+    }
+
+    /**
+     * Sends most of a random file from the client to the server with {@link
+     * Conscrypt#transferFrom}, and checks what the server receives. With {@code sendfile}, the
+     * test is skipped unless the file descriptor of the channel is accessible.
+     */
+    private void transferFileRegion(final TestConnection connection, boolean sendfile)
+            throws Exception {
+        byte[] contents = new byte[100 * 1024];
+        random.nextBytes(contents);
+        File file = File.createTempFile("transfer", null);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(contents);
+            } finally {
+                out.close();
+            }
+
+            if (sendfile) {
+                FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+                try {
+                    // Java 16 and later need --add-opens java.base/sun.nio.ch=ALL-UNNAMED.
+                    assumeTrue(Platform.getFileDescriptor(channel) != null);
+                } finally {
+                    channel.close();
+                }
+            }
+
+            int offset = 1000;
+            final byte[] received = new byte[contents.length - offset];
+            Future<Void> readFuture = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    InputStream in = connection.server.getInputStream();
+                    int read = 0;
+                    while (read < received.length) {
+                        int count = in.read(received, read, received.length - read);
+                        if (count < 0) {
+                            throw new EOFException();
+                        }
+                        read += count;
+                    }
+                    return null;
+                }
+            });
+
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                assertEquals(received.length,
+                        Conscrypt.transferFrom(connection.client, channel, offset, Long.MAX_VALUE));
+                assertEquals(0,
+                        Conscrypt.transferFrom(connection.client, channel, file.length(), 1));
+            } finally {
+                channel.close();
+            }
+            readFuture.get(10, TimeUnit.SECONDS);
+            assertArrayEquals(Arrays.copyOfRange(contents, offset, contents.length), received);
+        } finally {
+            file.delete();
+        }
+    }
+
     private void sendData(SSLSocket source, final SSLSocket destination, byte[] data)
             throws Exception {
         final byte[] received = new byte[data.length];
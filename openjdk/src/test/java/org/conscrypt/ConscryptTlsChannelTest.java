@@ -0,0 +1,277 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.getConscryptProvider;
+import static org.conscrypt.TestUtils.getLoopbackAddress;
+import static org.conscrypt.TestUtils.getProtocols;
+import static org.conscrypt.TestUtils.initSslContext;
+import static org.conscrypt.TestUtils.newTextMessage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import org.conscrypt.java.security.TestKeyStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ConscryptTlsChannelTest {
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void blockingChannelShouldExchangeData() throws Exception {
+        final byte[] message = newTextMessage(MESSAGE_SIZE);
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(getLoopbackAddress(), 0));
+            Future<byte[]> echoed = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    ConscryptTlsChannel server = Conscrypt.newTlsChannel(
+                            serverChannel.accept(), newEngine(TestKeyStore.getServer(), false));
+                    try {
+                        ByteBuffer received = readFully(server, message.length);
+                        received.flip();
+                        while (received.hasRemaining()) {
+                            server.write(received);
+                        }
+                        return received.array();
+                    } finally {
+                        server.close();
+                    }
+                }
+            });
+
+            ConscryptTlsChannel client = Conscrypt.newTlsChannel(
+                    SocketChannel.open(serverChannel.getLocalAddress()),
+                    newEngine(TestKeyStore.getClient(), true));
+            try {
+                assertTrue(client.handshake());
+                ByteBuffer src = ByteBuffer.wrap(message);
+                while (src.hasRemaining()) {
+                    client.write(src);
+                }
+                ByteBuffer received = readFully(client, message.length);
+                assertArrayEquals(message, received.array());
+                assertArrayEquals(message, echoed.get(10, TimeUnit.SECONDS));
+                // The server closes its end after echoing.
+                assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+            } finally {
+                client.close();
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    @Test
+    public void closeShouldNotWaitForBlockedRead() throws Exception {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            serverChannel.bind(new InetSocketAddress(getLoopbackAddress(), 0));
+            Future<Integer> serverRead = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    ConscryptTlsChannel server = Conscrypt.newTlsChannel(
+                            serverChannel.accept(), newEngine(TestKeyStore.getServer(), false));
+                    try {
+                        // Returns once the client's close_notify arrives.
+                        return server.read(ByteBuffer.allocate(1));
+                    } finally {
+                        server.close();
+                    }
+                }
+            });
+
+            final ConscryptTlsChannel client = Conscrypt.newTlsChannel(
+                    SocketChannel.open(serverChannel.getLocalAddress()),
+                    newEngine(TestKeyStore.getClient(), true));
+            assertTrue(client.handshake());
+            Future<Long> clientRead = reader.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return client.read(new ByteBuffer[] {
+                            ByteBuffer.allocate(1), ByteBuffer.allocateDirect(1)});
+                }
+            });
+            // Let the read block on the channel.
+            Thread.sleep(100);
+            client.close();
+
+            assertEquals(-1, (int) serverRead.get(10, TimeUnit.SECONDS));
+            try {
+                clientRead.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException expected) {
+                // The channel was closed under the read.
+            }
+        } finally {
+            reader.shutdownNow();
+            serverChannel.close();
+        }
+    }
+
+    @Test
+    public void nonBlockingChannelShouldHandshakeWithSelector() throws Exception {
+        final byte[] message = newTextMessage(1024);
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(getLoopbackAddress(), 0));
+            Future<byte[]> received = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    ConscryptTlsChannel server = Conscrypt.newTlsChannel(
+                            serverChannel.accept(), newEngine(TestKeyStore.getServer(), false));
+                    try {
+                        return readFully(server, message.length).array();
+                    } finally {
+                        server.close();
+                    }
+                }
+            });
+
+            SocketChannel channel = SocketChannel.open(serverChannel.getLocalAddress());
+            channel.configureBlocking(false);
+            ConscryptTlsChannel client =
+                    Conscrypt.newTlsChannel(channel, newEngine(TestKeyStore.getClient(), true));
+            Selector selector = Selector.open();
+            try {
+                SelectionKey key = channel.register(selector, 0);
+                while (!client.handshake()) {
+                    int ops = client.interestOps();
+                    assertTrue(ops == SelectionKey.OP_READ || ops == SelectionKey.OP_WRITE);
+                    key.interestOps(ops);
+                    selector.select(10000);
+                }
+                ByteBuffer src = ByteBuffer.wrap(message);
+                while (src.hasRemaining()) {
+                    if (client.write(src) == 0) {
+                        key.interestOps(client.interestOps());
+                        selector.select(10000);
+                    }
+                }
+                assertArrayEquals(message, received.get(10, TimeUnit.SECONDS));
+            } finally {
+                selector.close();
+                client.close();
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    @Test
+    public void asynchronousChannelShouldExchangeData() throws Exception {
+        byte[] message = newTextMessage(MESSAGE_SIZE);
+        AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(getLoopbackAddress(), 0));
+            Future<AsynchronousSocketChannel> accepted = serverChannel.accept();
+            AsynchronousSocketChannel clientChannel = AsynchronousSocketChannel.open();
+            clientChannel.connect(serverChannel.getLocalAddress()).get(10, TimeUnit.SECONDS);
+
+            ConscryptAsynchronousSocketChannel server = Conscrypt.newAsynchronousSocketChannel(
+                    accepted.get(10, TimeUnit.SECONDS),
+                    newEngine(TestKeyStore.getServer(), false));
+            ConscryptAsynchronousSocketChannel client = Conscrypt.newAsynchronousSocketChannel(
+                    clientChannel, newEngine(TestKeyStore.getClient(), true));
+            try {
+                server.handshake();
+                client.handshake().get(10, TimeUnit.SECONDS);
+                server.handshake().get(10, TimeUnit.SECONDS);
+
+                ByteBuffer src = ByteBuffer.wrap(message);
+                ByteBuffer dst = ByteBuffer.allocateDirect(message.length);
+                while (src.hasRemaining() || dst.hasRemaining()) {
+                    Future<Integer> written = null;
+                    if (src.hasRemaining()) {
+                        written = client.write(src);
+                    }
+                    if (dst.hasRemaining()) {
+                        assertTrue(server.read(dst).get(10, TimeUnit.SECONDS) >= 0);
+                    }
+                    if (written != null) {
+                        written.get(10, TimeUnit.SECONDS);
+                    }
+                }
+                dst.flip();
+                byte[] received = new byte[dst.remaining()];
+                dst.get(received);
+                assertArrayEquals(message, received);
+
+                client.close();
+                assertEquals(-1, (int) server.read(ByteBuffer.allocate(1))
+                        .get(10, TimeUnit.SECONDS));
+            } finally {
+                client.close();
+                server.close();
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    private static ByteBuffer readFully(ConscryptTlsChannel channel, int length)
+            throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer;
+    }
+
+    private static SSLEngine newEngine(TestKeyStore keyStore, boolean client) throws Exception {
+        SSLContext context = SSLContext.getInstance(getProtocols()[0], getConscryptProvider());
+        SSLEngine engine = initSslContext(context, keyStore).createSSLEngine();
+        engine.setUseClientMode(client);
+        return engine;
+    }
+}
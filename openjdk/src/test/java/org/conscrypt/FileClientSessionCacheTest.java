@@ -17,23 +17,48 @@
 package org.conscrypt;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import junit.framework.TestCase;
 import org.conscrypt.javax.net.ssl.FakeSSLSession;
 
 public class FileClientSessionCacheTest extends TestCase {
+    private File cacheDir;
 
-    public void testMaxSize() throws IOException, InterruptedException {
+    @Override
+    protected void setUp() throws IOException {
         String tmpDir = System.getProperty("java.io.tmpdir");
         if (tmpDir == null) {
             fail("Please set 'java.io.tmpdir' system property.");
         }
-        File cacheDir = new File(tmpDir
+        cacheDir = new File(tmpDir
                 + "/" + FileClientSessionCacheTest.class.getName() + "/cache");
+        FileClientSessionCache.reset();
+        deleteCache();
+    }
+
+    @Override
+    protected void tearDown() {
+        FileClientSessionCache.reset();
+        deleteCache();
+    }
+
+    private void deleteCache() {
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public void testCapacity() throws IOException, InterruptedException {
+        final int capacity = 12;
         final SSLClientSessionCache cache
-                = FileClientSessionCache.usingDirectory(cacheDir);
+                = FileClientSessionCache.usingDirectory(cacheDir, capacity);
         Thread[] threads = new Thread[10];
-        final int iterations = FileClientSessionCache.MAX_SIZE * 10;
+        final int iterations = capacity * 10;
         for (int i = 0; i < threads.length; i++) {
             final int id = i;
             threads[i] = new Thread() {
@@ -51,6 +76,119 @@ public class FileClientSessionCacheTest extends TestCase {
         for (Thread thread : threads) {
             thread.join();
         }
-        assertEquals(FileClientSessionCache.MAX_SIZE, cacheDir.list().length);
+        assertEquals(capacity, countSessions(cache, threads.length, iterations));
+
+        // The log holds the latest sessions after a restart too.
+        ((FileClientSessionCache.Impl) cache).flush();
+        FileClientSessionCache.reset();
+        SSLClientSessionCache reopened
+                = FileClientSessionCache.usingDirectory(cacheDir, capacity);
+        assertEquals(capacity, countSessions(reopened, threads.length, iterations));
+    }
+
+    private static int countSessions(SSLClientSessionCache cache, int threads, int iterations) {
+        int count = 0;
+        for (int id = 0; id < threads; id++) {
+            for (int i = 0; i < iterations; i++) {
+                if (cache.getSessionData(id + "" + i, 443) != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public void testSessionsSurviveRestart() throws IOException {
+        FileClientSessionCache.Impl cache =
+                (FileClientSessionCache.Impl) FileClientSessionCache.usingDirectory(cacheDir);
+        cache.putSessionData(new FakeSSLSession("a"), new byte[] {1, 2, 3});
+        cache.putSessionData(new FakeSSLSession("b"), new byte[] {4});
+        cache.putSessionData(new FakeSSLSession("a"), new byte[] {5, 6});
+        // Pending sessions are served from memory.
+        assertEquals(2, cache.getSessionData("a", 443).length);
+        cache.flush();
+
+        FileClientSessionCache.reset();
+        SSLClientSessionCache reopened = FileClientSessionCache.usingDirectory(cacheDir);
+        assertEquals(5, reopened.getSessionData("a", 443)[0]);
+        assertEquals(4, reopened.getSessionData("b", 443)[0]);
+        assertNull(reopened.getSessionData("c", 443));
+    }
+
+    public void testTornRecordIsIgnored() throws IOException {
+        FileClientSessionCache.Impl cache =
+                (FileClientSessionCache.Impl) FileClientSessionCache.usingDirectory(cacheDir);
+        cache.putSessionData(new FakeSSLSession("a"), new byte[] {1});
+        cache.flush();
+        int end = cache.logSize();
+        FileClientSessionCache.reset();
+
+        // A record whose length made it to disk but whose contents didn't.
+        RandomAccessFile log = new RandomAccessFile(
+                new File(cacheDir, FileClientSessionCache.Impl.LOG_NAME), "rw");
+        try {
+            log.seek(end);
+            log.writeInt(100);
+            log.writeInt(12345);
+        } finally {
+            log.close();
+        }
+
+        cache = (FileClientSessionCache.Impl) FileClientSessionCache.usingDirectory(cacheDir);
+        assertEquals(end, cache.logSize());
+        assertEquals(1, cache.getSessionData("a", 443)[0]);
+        cache.putSessionData(new FakeSSLSession("b"), new byte[] {2});
+        cache.flush();
+        FileClientSessionCache.reset();
+
+        SSLClientSessionCache reopened = FileClientSessionCache.usingDirectory(cacheDir);
+        assertEquals(1, reopened.getSessionData("a", 443)[0]);
+        assertEquals(2, reopened.getSessionData("b", 443)[0]);
+    }
+
+    public void testSessionFilesAreImported() throws IOException {
+        assertTrue(cacheDir.isDirectory() || cacheDir.mkdirs());
+        writeFile(new File(cacheDir, "a.443"), new byte[] {1, 2});
+        writeFile(new File(cacheDir, "b.443"), new byte[] {3});
+
+        SSLClientSessionCache cache = FileClientSessionCache.usingDirectory(cacheDir);
+        assertEquals(2, cache.getSessionData("a", 443)[1]);
+        assertEquals(3, cache.getSessionData("b", 443)[0]);
+        assertFalse(new File(cacheDir, "a.443").exists());
+        assertFalse(new File(cacheDir, "b.443").exists());
+
+        FileClientSessionCache.reset();
+        SSLClientSessionCache reopened = FileClientSessionCache.usingDirectory(cacheDir);
+        assertEquals(2, reopened.getSessionData("a", 443)[1]);
+        assertEquals(3, reopened.getSessionData("b", 443)[0]);
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testReplacedSessionsAreCompacted() throws IOException {
+        FileClientSessionCache.Impl cache =
+                (FileClientSessionCache.Impl) FileClientSessionCache.usingDirectory(cacheDir);
+        byte[] data = new byte[4096];
+        for (int i = 0; i < 1000; i++) {
+            data[0] = (byte) i;
+            cache.putSessionData(new FakeSSLSession("host" + (i % 10)), data);
+            if (i % 100 == 0) {
+                cache.flush();
+            }
+        }
+        cache.flush();
+
+        // Ten live sessions of 4k each; compaction keeps the log from growing far past 1 MB.
+        assertTrue(cache.logSize() < 2 * 1024 * 1024);
+        for (int i = 990; i < 1000; i++) {
+            assertEquals((byte) i, cache.getSessionData("host" + (i % 10), 443)[0]);
+        }
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FileServerSessionCacheTest {
+    private static final int CAPACITY = 256;
+    private static final int MAX_SESSION_SIZE = 512;
+    private static final int TIMEOUT_SECONDS = 60;
+
+    /** The number of distinct session IDs the processes in the shared test write. */
+    private static final int SHARED_IDS = 1024;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("FileServerSessionCacheTest", ".cache");
+        assertTrue(file.delete());
+        FileServerSessionCache.reset();
+    }
+
+    @After
+    public void tearDown() {
+        FileServerSessionCache.reset();
+        file.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        SSLServerSessionCache cache = open();
+        byte[] id = new byte[] {1, 2, 3};
+        byte[] data = new byte[] {4, 5, 6, 7};
+
+        assertNull(cache.getSessionData(id));
+        cache.putSessionData(newSession(id, System.currentTimeMillis()), data);
+        assertArrayEquals(data, cache.getSessionData(id));
+
+        byte[] newData = new byte[] {8};
+        cache.putSessionData(newSession(id, System.currentTimeMillis()), newData);
+        assertArrayEquals(newData, cache.getSessionData(id));
+        assertNull(cache.getSessionData(new byte[] {1, 2}));
+    }
+
+    @Test
+    public void testSessionsExpire() throws IOException {
+        SSLServerSessionCache cache = open();
+        long created = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        cache.putSessionData(newSession(new byte[] {1}, created + 1000), new byte[] {1});
+        cache.putSessionData(newSession(new byte[] {2}, created), new byte[] {2});
+
+        assertArrayEquals(new byte[] {1}, cache.getSessionData(new byte[] {1}));
+        assertNull(cache.getSessionData(new byte[] {2}));
+    }
+
+    @Test
+    public void testOversizedSessionsAreNotStored() throws IOException {
+        SSLServerSessionCache cache = open();
+        byte[] id = new byte[] {1};
+        cache.putSessionData(
+                newSession(id, System.currentTimeMillis()), new byte[MAX_SESSION_SIZE + 1]);
+        assertNull(cache.getSessionData(id));
+    }
+
+    @Test
+    public void testFullCacheKeepsNewestSessions() throws IOException {
+        FileServerSessionCache cache = (FileServerSessionCache) open();
+        int count = CAPACITY * 4;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            cache.put(id(i), data(i), now + 60000 + i);
+        }
+
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] data = cache.getSessionData(id(i));
+            if (data != null) {
+                assertArrayEquals(data(i), data);
+                found++;
+            }
+        }
+        assertTrue(found <= CAPACITY);
+        assertArrayEquals(data(count - 1), cache.getSessionData(id(count - 1)));
+    }
+
+    @Test
+    public void testSessionsSurviveRestart() throws IOException {
+        SSLServerSessionCache cache = open();
+        byte[] id = new byte[] {1, 2, 3};
+        cache.putSessionData(newSession(id, System.currentTimeMillis()), new byte[] {4});
+
+        FileServerSessionCache.reset();
+        cache = open();
+        assertArrayEquals(new byte[] {4}, cache.getSessionData(id));
+    }
+
+    @Test
+    public void testInterruptDoesNotBreakCache() throws IOException {
+        SSLServerSessionCache cache = open();
+        byte[] id = new byte[] {1, 2, 3};
+        cache.putSessionData(newSession(id, System.currentTimeMillis()), new byte[] {4});
+
+        // Interrupting a thread that locks the file closes the channel.
+        Thread.currentThread().interrupt();
+        try {
+            cache.getSessionData(id);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+
+        assertArrayEquals(new byte[] {4}, cache.getSessionData(id));
+        cache.putSessionData(newSession(id, System.currentTimeMillis()), new byte[] {5});
+        assertArrayEquals(new byte[] {5}, cache.getSessionData(id));
+    }
+
+    @Test
+    public void testMismatchedCapacityIsRejected() throws IOException {
+        open();
+        FileServerSessionCache.reset();
+        try {
+            FileServerSessionCache.usingFile(
+                    file, CAPACITY * 2, MAX_SESSION_SIZE, TIMEOUT_SECONDS);
+            fail();
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testSharedBetweenProcesses() throws Exception {
+        FileServerSessionCache cache = (FileServerSessionCache) open();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < 3; i++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    FileServerSessionCacheTest.class.getName(), file.getPath(),
+                    Integer.toString(i))
+                                  .inheritIO()
+                                  .start());
+        }
+        // Run a worker in this process too.
+        assertEquals(0, runWorker(cache, 3));
+        for (Process process : processes) {
+            assertEquals(0, process.waitFor());
+        }
+
+        // Each worker wrote its own ID last, which nothing evicts from a cache this size.
+        for (int i = 0; i <= 3; i++) {
+            assertArrayEquals(data(SHARED_IDS + i), cache.getSessionData(id(SHARED_IDS + i)));
+        }
+    }
+
+    /**
+     * Runs a worker of {@link #testSharedBetweenProcesses} in a separate process.
+     */
+    public static void main(String[] args) throws IOException {
+        FileServerSessionCache cache = (FileServerSessionCache) FileServerSessionCache.usingFile(
+                new File(args[0]), CAPACITY, MAX_SESSION_SIZE, TIMEOUT_SECONDS);
+        System.exit(runWorker(cache, Integer.parseInt(args[1])));
+    }
+
+    /**
+     * Stores and looks up sessions in a shared ID space, checking that every lookup sees the
+     * data of the ID it asked for in full. Returns the number of lookups that didn't.
+     */
+    private static int runWorker(FileServerSessionCache cache, int worker) {
+        Random random = new Random(worker);
+        long expires = System.currentTimeMillis() + 60000;
+        int errors = 0;
+        for (int i = 0; i < 20000; i++) {
+            int n = random.nextInt(SHARED_IDS);
+            if (random.nextBoolean()) {
+                cache.put(id(n), data(n), expires);
+            } else {
+                byte[] data = cache.getSessionData(id(n));
+                if (data != null && !Arrays.equals(data(n), data)) {
+                    errors++;
+                }
+            }
+        }
+        cache.put(id(SHARED_IDS + worker), data(SHARED_IDS + worker), expires + 60000);
+        return errors;
+    }
+
+    private SSLServerSessionCache open() throws IOException {
+        return FileServerSessionCache.usingFile(file, CAPACITY, MAX_SESSION_SIZE, TIMEOUT_SECONDS);
+    }
+
+    private static SSLSession newSession(byte[] id, long creationTime) {
+        SSLSession session = mock(SSLSession.class);
+        when(session.getId()).thenReturn(id);
+        when(session.getCreationTime()).thenReturn(creationTime);
+        return session;
+    }
+
+    private static byte[] id(int n) {
+        byte[] id = new byte[32];
+        for (int i = 0; i < id.length; i += 4) {
+            id[i] = (byte) (n >> 24);
+            id[i + 1] = (byte) (n >> 16);
+            id[i + 2] = (byte) (n >> 8);
+            id[i + 3] = (byte) n;
+        }
+        return id;
+    }
+
+    /** Returns data of a length and content that depend on {@code n}. */
+    private static byte[] data(int n) {
+        byte[] data = new byte[16 + n % (MAX_SESSION_SIZE - 16)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (n + i);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.X509KeyManager;
+import org.conscrypt.java.security.TestKeyStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalCertificateCacheTest {
+    private X509KeyManager keyManager;
+    private String alias;
+    private LocalCertificateCache cache;
+
+    @Before
+    public void setUp() {
+        keyManager = (X509KeyManager) TestKeyStore.getServer().keyManagers[0];
+        alias = keyManager.chooseServerAlias("RSA", null, null);
+        assertNotNull(alias);
+        cache = new LocalCertificateCache();
+    }
+
+    @Test
+    public void sameObjectsShouldReuseEntry() throws Exception {
+        LocalCertificateCache.Entry entry = get(keyManager.getCertificateChain(alias));
+        // Key managers may return a new array of the same certificates each time.
+        assertSame(entry, get(keyManager.getCertificateChain(alias).clone()));
+    }
+
+    @Test
+    public void differentCertificatesShouldReplaceEntry() throws Exception {
+        X509Certificate[] chain = keyManager.getCertificateChain(alias);
+        LocalCertificateCache.Entry entry = get(chain);
+
+        X509Certificate[] reparsed = chain.clone();
+        reparsed[0] = OpenSSLX509Certificate.fromX509Der(chain[0].getEncoded());
+        LocalCertificateCache.Entry replacement = get(reparsed);
+        assertNotSame(entry, replacement);
+        assertSame(replacement, get(reparsed));
+    }
+
+    @Test
+    public void differentKeyManagerShouldReplaceEntry() throws Exception {
+        X509Certificate[] chain = keyManager.getCertificateChain(alias);
+        PrivateKey privateKey = keyManager.getPrivateKey(alias);
+        LocalCertificateCache.Entry entry = cache.get(keyManager, alias, chain, privateKey);
+
+        X509KeyManager other = (X509KeyManager) TestKeyStore.getClient().keyManagers[0];
+        assertNotSame(entry, cache.get(other, alias, chain, privateKey));
+    }
+
+    private LocalCertificateCache.Entry get(X509Certificate[] chain) throws Exception {
+        return cache.get(keyManager, alias, chain, keyManager.getPrivateKey(alias));
+    }
+}
@@ -879,6 +879,11 @@ public class NativeCryptoTest {
             serverCertificateRequestedInvoked = true;
         }
 
+        @Override
+        public boolean allowEarlyData(byte[] sessionId, byte[] clientRandom) {
+            return false;
+        }
+
         @Override
         public int selectApplicationProtocol(byte[] protocols) {
             if (alpnSelector == null) {
@@ -17,14 +17,21 @@
 package org.conscrypt;
 
 import static org.conscrypt.TestUtils.UTF_8;
+import static org.conscrypt.TestUtils.openTestFile;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import org.conscrypt.java.security.TestKeyStore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -209,6 +216,67 @@ public class SSLUtilsTest {
         }
     }
 
+    @Test
+    public void decodeX509CertificateChainShouldReuseCertificates() throws Exception {
+        Certificate[] chain =
+                TestKeyStore.getServer().getPrivateKey("RSA", "RSA").getCertificateChain();
+        byte[][] encoded = new byte[chain.length][];
+        for (int i = 0; i < chain.length; i++) {
+            encoded[i] = chain[i].getEncoded();
+        }
+
+        X509Certificate[] decoded = SSLUtils.decodeX509CertificateChain(encoded);
+        assertEquals(Arrays.asList(chain), Arrays.asList(decoded));
+        X509Certificate[] decodedAgain = SSLUtils.decodeX509CertificateChain(encoded.clone());
+        for (int i = 0; i < chain.length; i++) {
+            assertTrue(decoded[i] instanceof OpenSSLX509Certificate);
+            assertSame(decoded[i], decodedAgain[i]);
+        }
+    }
+
+    @Test
+    public void decodeX509CertificateChainShouldDecodeSm2Chain() throws Exception {
+        X509Certificate[] chain = new X509Certificate[] {
+                OpenSSLX509Certificate.fromX509PemInputStream(openTestFile("sm2-cert.crt")),
+                OpenSSLX509Certificate.fromX509PemInputStream(openTestFile("sm2-ca.crt"))};
+        byte[][] encoded = new byte[chain.length][];
+        for (int i = 0; i < chain.length; i++) {
+            encoded[i] = chain[i].getEncoded();
+        }
+
+        X509Certificate[] decoded = SSLUtils.decodeX509CertificateChain(encoded);
+        assertEquals(Arrays.asList(chain), Arrays.asList(decoded));
+        assertTrue(decoded[0] instanceof OpenSSLX509Certificate);
+        assertEquals(chain[0].getSigAlgName(), decoded[0].getSigAlgName());
+        decoded[0].verify(decoded[1].getPublicKey());
+        decoded[1].verify(decoded[1].getPublicKey());
+    }
+
+    @Test
+    public void certificateInternCacheShouldDropLeastRecentlyUsed() throws Exception {
+        // Sixteen stripes of one certificate each.
+        CertificateInternCache cache = new CertificateInternCache(16);
+        byte[] server = TestKeyStore.getServer().getPrivateKey("RSA", "RSA")
+                .getCertificate().getEncoded();
+        byte[] client = TestKeyStore.getClient().getPrivateKey("RSA", "RSA")
+                .getCertificate().getEncoded();
+
+        OpenSSLX509Certificate certificate = cache.intern(server);
+        assertSame(certificate, cache.intern(server.clone()));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        // Enough other certificates to replace the server certificate whichever stripe it's
+        // in. Changing the signature bytes still leaves a parseable certificate.
+        for (int i = 0; i < 1024; i++) {
+            byte[] other = client.clone();
+            other[other.length - 1] ^= (byte) i;
+            other[other.length - 2] ^= (byte) (i >> 8);
+            cache.intern(other);
+        }
+        assertNotSame(certificate, cache.intern(server));
+    }
+
     private static String[] toStrings(byte[][] protocols) {
         int numProtocols = protocols.length;
         String[] out = new String[numProtocols];
@@ -16,7 +16,10 @@
 
 package org.conscrypt;
 
+import static org.junit.Assert.assertEquals;
+
 import java.util.Enumeration;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -44,4 +47,19 @@ public class ServerSessionContextTest extends AbstractSessionContextTest<ServerS
         }
         return count;
     }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setTicketKeysShouldRejectShortKeys() {
+        newContext().setTicketKeys(new byte[ServerSessionContext.TICKET_KEY_LENGTH],
+                new byte[ServerSessionContext.TICKET_KEY_LENGTH - 1]);
+    }
+
+    @Test
+    public void ticketKeyCountsShouldStartAtZero() {
+        ServerSessionContext context = newContext();
+        context.setTicketKeys(new byte[ServerSessionContext.TICKET_KEY_LENGTH]);
+        assertEquals(0, context.getCurrentTicketKeyDecryptCount());
+        assertEquals(0, context.getPreviousTicketKeyDecryptCount());
+        assertEquals(0, context.getUnknownTicketKeyCount());
+    }
 }
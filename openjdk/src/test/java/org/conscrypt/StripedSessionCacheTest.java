@@ -0,0 +1,208 @@
+/*
+ * Copyright 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.conscrypt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StripedSessionCacheTest {
+    private static final long START = 1000000L;
+    private static final int TIMEOUT_SECONDS = 10;
+
+    private final List<NativeSslSession> dropped = new ArrayList<NativeSslSession>();
+
+    @Test
+    public void getShouldCountHitsAndMisses() {
+        StripedSessionCache cache = new StripedSessionCache(10, TIMEOUT_SECONDS, START);
+        NativeSslSession a = newSession("a", true);
+        cache.put(key(a), a, START, dropped);
+
+        assertSame(a, cache.get(key(a), START, dropped));
+        assertNull(cache.get(new ByteArray(new byte[] {1}), START, dropped));
+        assertNull(cache.peek(new ByteArray(new byte[] {2}), START, dropped));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void putShouldEvictLeastRecentlyUsed() {
+        StripedSessionCache cache = new StripedSessionCache(2, TIMEOUT_SECONDS, START);
+        NativeSslSession a = newSession("a", true);
+        NativeSslSession b = newSession("b", true);
+        NativeSslSession c = newSession("c", true);
+        cache.put(key(a), a, START, dropped);
+        cache.put(key(b), b, START, dropped);
+        cache.get(key(a), START, dropped);
+        cache.put(key(c), c, START, dropped);
+
+        assertEquals(Arrays.asList(b), dropped);
+        assertSame(a, cache.get(key(a), START, dropped));
+        assertNull(cache.get(key(b), START, dropped));
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void putShouldReplaceSessionWithSameId() {
+        StripedSessionCache cache = new StripedSessionCache(10, TIMEOUT_SECONDS, START);
+        NativeSslSession a = new MockSessionBuilder().id(new byte[] {1}).host("a").build();
+        NativeSslSession b = new MockSessionBuilder().id(new byte[] {1}).host("b").build();
+        cache.put(key(a), a, START, dropped);
+        cache.put(key(b), b, START, dropped);
+
+        assertEquals(Arrays.asList(a), dropped);
+        assertSame(b, cache.get(key(a), START, dropped));
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void setMaximumSizeShouldKeepMostRecentlyUsed() {
+        StripedSessionCache cache = new StripedSessionCache(0, TIMEOUT_SECONDS, START);
+        List<NativeSslSession> sessions = new ArrayList<NativeSslSession>();
+        for (int i = 0; i < 100; i++) {
+            NativeSslSession session = newSession("host" + i, true);
+            sessions.add(session);
+            cache.put(key(session), session, START, dropped);
+        }
+        cache.setMaximumSize(10, START, dropped);
+
+        assertEquals(1, cache.stripeCount());
+        assertEquals(sessions.subList(0, 90), dropped);
+        assertEquals(10, cache.sessions().size());
+        assertEquals(90, cache.evictionCount());
+    }
+
+    @Test
+    public void expiredSessionsShouldBeDroppedWhenDue() {
+        StripedSessionCache cache = new StripedSessionCache(10, TIMEOUT_SECONDS, START);
+        NativeSslSession expired = newSession("expired", false);
+        cache.put(key(expired), expired, START, dropped);
+
+        NativeSslSession other = newSession("other", true);
+        cache.put(key(other), other, START + 5000, dropped);
+        assertEquals(0, dropped.size());
+
+        // Any operation on the stripe advances its timing wheel.
+        long later = START + (TIMEOUT_SECONDS + 1) * 1000;
+        for (int i = 0; i < 64; i++) {
+            cache.peek(new ByteArray(new byte[] {(byte) i}), later, dropped);
+        }
+        assertEquals(Arrays.asList(expired), dropped);
+        assertEquals(1, cache.expirationCount());
+        assertEquals(1, cache.sessions().size());
+    }
+
+    @Test
+    public void validSessionsShouldBeRescheduledWhenDue() {
+        StripedSessionCache cache = new StripedSessionCache(10, TIMEOUT_SECONDS, START);
+        NativeSslSession a = newSession("a", true);
+        cache.put(key(a), a, START, dropped);
+
+        long later = START + TimeUnit.DAYS.toMillis(30);
+        assertSame(a, cache.get(key(a), later, dropped));
+        assertEquals(0, dropped.size());
+        assertEquals(0, cache.expirationCount());
+    }
+
+    @Test
+    public void lookupShouldDropInvalidSession() {
+        StripedSessionCache cache = new StripedSessionCache(10, 0, START);
+        NativeSslSession a = newSession("a", false);
+        cache.put(key(a), a, START, dropped);
+
+        assertNull(cache.get(key(a), START, dropped));
+        assertEquals(Arrays.asList(a), dropped);
+        assertEquals(1, cache.expirationCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void timingWheelShouldExpireAcrossLevels() {
+        // Deadlines from seconds to days out land on different levels of the wheel.
+        int[] timeouts = {1, 63, 64, 65, 4095, 4096, 100000, 8 * 60 * 60};
+        for (int timeout : timeouts) {
+            dropped.clear();
+            StripedSessionCache cache = new StripedSessionCache(10, timeout, START);
+            NativeSslSession a = newSession("a", false);
+            cache.put(key(a), a, START, dropped);
+            NativeSslSession probe = newSession("probe", true);
+
+            long dueMillis = START + timeout * 1000L;
+            cache.peek(key(probe), dueMillis - 1000, dropped);
+            assertEquals("timeout " + timeout, 0, dropped.size());
+            cache.peek(key(probe), dueMillis, dropped);
+            assertEquals("timeout " + timeout, Arrays.asList(a), dropped);
+        }
+    }
+
+    @Test
+    public void concurrentAccessShouldStayWithinMaximumSize() throws Exception {
+        final StripedSessionCache cache = new StripedSessionCache(256, TIMEOUT_SECONDS, START);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        List<NativeSslSession> dropped = new ArrayList<NativeSslSession>();
+                        for (int i = 0; i < 1000; i++) {
+                            NativeSslSession session = newSession(thread + "-" + i, true);
+                            cache.put(key(session), session, START, dropped);
+                            // Other threads may have evicted it already.
+                            NativeSslSession cached = cache.get(key(session), START, dropped);
+                            assertTrue(cached == null || cached == session);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(cache.sessions().size() <= 256);
+        assertEquals(8000, cache.hitCount() + cache.missCount());
+        assertEquals(8000 - cache.sessions().size(), cache.evictionCount());
+    }
+
+    private static NativeSslSession newSession(String host, boolean valid) {
+        return new MockSessionBuilder().host(host).valid(valid).build();
+    }
+
+    private static ByteArray key(NativeSslSession session) {
+        return new ByteArray(session.getId());
+    }
+}